@@ -0,0 +1,780 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics;
+import com.google.devtools.build.lib.actions.cache.Protos.ActionCacheStatistics.MissReason;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ConditionallyThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An implementation of the ActionCache interface that keeps the cached actions out of the Java
+ * heap.
+ *
+ * <p>Entries are encoded like in {@link CompactPersistentActionCache} and appended to
+ * memory-mapped log segments. An off-heap open-addressed hash table maps the {@link
+ * PersistentStringIndexer} index of each action key to the location of its latest record. The
+ * table is split into independently locked stripes that are read optimistically, so lookups from
+ * concurrently executing actions don't contend with each other or with most updates.
+ *
+ * <p>Saving only forces the dirty segments to disk and compacts at most one segment that is mostly
+ * garbage, so its cost does not grow with the size of the cache. The index is rebuilt by replaying
+ * the segments when the cache is loaded.
+ */
+@ConditionallyThreadSafe // condition: each instance must instantiated with
+// different cache root
+public class MappedActionCache implements ActionCache {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final String SEGMENT_PREFIX =
+      "mapped_action_log_v" + CompactPersistentActionCache.VERSION + ".";
+
+  @VisibleForTesting static final int SEGMENT_SIZE = 64 << 20;
+
+  /**
+   * Each record starts with the length of its payload plus one, followed by the index of its key.
+   * A length of zero marks the end of the segment, an empty payload marks the removal of the key.
+   */
+  private static final int HEADER_SIZE = 2 * Integer.BYTES;
+
+  private static final byte[] TOMBSTONE = new byte[0];
+
+  /** Location of records that are removals. Locations are otherwise non-negative. */
+  private static final long REMOVED = Long.MIN_VALUE;
+
+  /** Location of keys that are not in the cache. */
+  private static final long NOT_FOUND = -1;
+
+  private static final int STRIPE_BITS = 6;
+  private static final int INITIAL_STRIPE_CAPACITY = 1024;
+
+  private final Path cacheRoot;
+  private final PersistentStringIndexer indexer;
+  private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+  private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+  private final Object appendLock = new Object();
+
+  @GuardedBy("appendLock")
+  @Nullable
+  private Segment current;
+
+  @GuardedBy("appendLock")
+  private int nextSegmentId;
+
+  private final AtomicLong bytesAppended = new AtomicLong();
+
+  private final Object indexerFlushLock = new Object();
+
+  /**
+   * The size of the indexer when its journal was last written. Records only become visible in the
+   * segments, which survive a crash of the server, once the ids they reference are in the journal.
+   */
+  private volatile int durableIndexerSize;
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final Map<MissReason, AtomicInteger> misses = new EnumMap<>(MissReason.class);
+
+  public MappedActionCache(Path cacheRoot, Clock clock) throws IOException {
+    this.cacheRoot = cacheRoot;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    Path indexFile =
+        cacheRoot.getChild(
+            "mapped_filename_index_v" + CompactPersistentActionCache.VERSION + ".blaze");
+    try {
+      indexer = PersistentStringIndexer.newPersistentStringIndexer(indexFile, clock);
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load filename index data", e);
+    }
+    durableIndexerSize = indexer.size();
+    try {
+      recover();
+    } catch (IOException e) {
+      renameCorruptedFiles(cacheRoot);
+      throw new IOException("Failed to load action cache data", e);
+    }
+
+    for (MissReason reason : MissReason.values()) {
+      if (reason == MissReason.UNRECOGNIZED) {
+        // The presence of this enum value is a protobuf artifact and confuses our metrics
+        // externalization code below. Just skip it.
+        continue;
+      }
+      misses.put(reason, new AtomicInteger(0));
+    }
+  }
+
+  /**
+   * Rename corrupted files so they could be analyzed later. This would also ensure that next
+   * initialization attempt will create empty cache.
+   */
+  private static void renameCorruptedFiles(Path cacheRoot) {
+    String suffix = "_v" + CompactPersistentActionCache.VERSION + ".";
+    try {
+      for (Dirent dirent : cacheRoot.readdir(Symlinks.NOFOLLOW)) {
+        String name = dirent.getName();
+        if (name.startsWith("mapped_") && name.contains(suffix) && !name.endsWith(".bad")) {
+          cacheRoot.getChild(name).renameTo(cacheRoot.getChild(name + ".bad"));
+        }
+      }
+    } catch (IOException e) {
+      // do nothing
+    }
+  }
+
+  /** Maps the existing segments in order and replays their records into the index. */
+  private void recover() throws IOException {
+    TreeMap<Integer, Path> segmentFiles = new TreeMap<>();
+    if (cacheRoot.exists()) {
+      for (Dirent dirent : cacheRoot.readdir(Symlinks.NOFOLLOW)) {
+        String name = dirent.getName();
+        if (name.startsWith(SEGMENT_PREFIX)) {
+          try {
+            segmentFiles.put(
+                Integer.parseInt(name.substring(SEGMENT_PREFIX.length())),
+                cacheRoot.getChild(name));
+          } catch (NumberFormatException e) {
+            // Not one of ours.
+          }
+        }
+      }
+    }
+
+    // Records are only appended once the ids they reference are in the indexer journal, so the ids
+    // of all records are known. Ids beyond the indexer are skipped as a defense against a journal
+    // that was lost together with the machine; entries referencing such ids are decoded lazily and
+    // reported as corrupted.
+    int indexerSize = indexer.size();
+    synchronized (appendLock) {
+      for (Map.Entry<Integer, Path> segmentFile : segmentFiles.entrySet()) {
+        Segment segment = Segment.map(segmentFile.getKey(), segmentFile.getValue(), 0);
+        segments.put(segment.id, segment);
+        int position = 0;
+        while (segment.capacity() - position >= HEADER_SIZE) {
+          int storedLength = segment.buffer.getInt(position);
+          if (storedLength == 0) {
+            break;
+          }
+          int recordSize = HEADER_SIZE + storedLength - 1;
+          if (storedLength < 0 || recordSize > segment.capacity() - position) {
+            // A record that was being written when the server went away. Make sure that it isn't
+            // mistaken for a record once the segment is appended to.
+            segment.zeroFrom(position);
+            break;
+          }
+          int keyId = segment.buffer.getInt(position + Integer.BYTES);
+          if (keyId >= 0 && keyId < indexerSize) {
+            long location = location(segment.id, position);
+            segment.liveBytes.addAndGet(recordSize);
+            release(
+                stripeFor(keyId).put(keyId, storedLength == 1 ? location | REMOVED : location));
+          }
+          position += recordSize;
+        }
+        segment.end = position;
+        current = segment;
+        nextSegmentId = segment.id + 1;
+      }
+    }
+  }
+
+  @Override
+  public ActionCache.Entry get(String key) {
+    int keyId = indexer.getIndex(key);
+    if (keyId < 0) {
+      return null;
+    }
+    byte[] data = read(keyId);
+    try {
+      return data != null ? CompactPersistentActionCache.decode(indexer, data) : null;
+    } catch (IOException e) {
+      // return entry marked as corrupted.
+      return ActionCache.Entry.CORRUPTED;
+    }
+  }
+
+  @Nullable
+  private byte[] read(int keyId) {
+    Stripe stripe = stripeFor(keyId);
+    while (true) {
+      long location = stripe.get(keyId);
+      if (location < 0) {
+        return null;
+      }
+      Segment segment = segments.get(segmentId(location));
+      if (segment != null) {
+        return segment.payload(position(location));
+      }
+      // The segment was compacted since we looked up the location, so the index points to the new
+      // location of the record now.
+    }
+  }
+
+  @Override
+  public void put(String key, ActionCache.Entry entry) {
+    // Encode record. Note that both methods may create new mappings in the indexer.
+    int keyId = indexer.getOrCreateIndex(key);
+    byte[] content = CompactPersistentActionCache.encode(indexer, entry);
+    flushIndexer();
+
+    Stripe stripe = stripeFor(keyId);
+    long stamp = stripe.lock.writeLock();
+    try {
+      long location;
+      try {
+        location = append(keyId, content);
+      } catch (IOException e) {
+        logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).withCause(e).log(
+            "Failed to append to the action cache");
+        // The previous entry is outdated, but will be rejected by the action cache checker if it
+        // is found again after a restart.
+        location = NOT_FOUND;
+      }
+      release(stripe.put(keyId, location));
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  @Override
+  public void remove(String key) {
+    int keyId = indexer.getIndex(key);
+    if (keyId < 0) {
+      return;
+    }
+    Stripe stripe = stripeFor(keyId);
+    long stamp = stripe.lock.writeLock();
+    try {
+      if (stripe.table.get(keyId) < 0) {
+        return;
+      }
+      long location;
+      try {
+        location = append(keyId, TOMBSTONE) | REMOVED;
+      } catch (IOException e) {
+        logger.atWarning().atMostEvery(1, TimeUnit.MINUTES).withCause(e).log(
+            "Failed to append to the action cache");
+        location = NOT_FOUND;
+      }
+      release(stripe.put(keyId, location));
+    } finally {
+      stripe.lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Writes the indexer journal if ids were created since it was last written. Otherwise, a crash
+   * after the record is appended would leave records whose ids the restarted server reassigns to
+   * other strings, and whose entries would then silently decode to the wrong files and digests.
+   * Concurrent puts share a single write of the journal.
+   */
+  private void flushIndexer() {
+    if (indexer.size() <= durableIndexerSize) {
+      return;
+    }
+    synchronized (indexerFlushLock) {
+      // Ids below the size read before the flush are in the indexer's map, so they are written.
+      int size = indexer.size();
+      if (size > durableIndexerSize) {
+        indexer.flush();
+        durableIndexerSize = size;
+      }
+    }
+  }
+
+  /** Appends a record and returns its location. */
+  private long append(int keyId, byte[] payload) throws IOException {
+    int recordSize = HEADER_SIZE + payload.length;
+    Segment segment;
+    int position;
+    synchronized (appendLock) {
+      if (current == null || current.capacity() - current.end < recordSize) {
+        Segment next =
+            Segment.map(
+                nextSegmentId,
+                cacheRoot.getChild(SEGMENT_PREFIX + nextSegmentId),
+                Math.max(SEGMENT_SIZE, recordSize));
+        nextSegmentId++;
+        segments.put(next.id, next);
+        current = next;
+      }
+      segment = current;
+      position = segment.end;
+      segment.end += recordSize;
+      segment.pendingWrites++;
+    }
+    segment.write(position, keyId, payload);
+    synchronized (appendLock) {
+      segment.pendingWrites--;
+    }
+    segment.liveBytes.addAndGet(recordSize);
+    bytesAppended.addAndGet(recordSize);
+    return location(segment.id, position);
+  }
+
+  /** Accounts for the record at {@code location} being superseded. */
+  private void release(long location) {
+    if (location == NOT_FOUND) {
+      return;
+    }
+    location &= ~REMOVED;
+    Segment segment = segments.get(segmentId(location));
+    if (segment != null) {
+      segment.liveBytes.addAndGet(-segment.recordSize(position(location)));
+    }
+  }
+
+  @Override
+  public synchronized long save() throws IOException {
+    long indexSize = indexer.save();
+    for (Segment segment : segments.values()) {
+      if (segment.dirty) {
+        segment.dirty = false;
+        segment.buffer.force();
+      }
+    }
+    compact();
+    return indexSize + bytesAppended.getAndSet(0);
+  }
+
+  /**
+   * Moves the live records of the segment with the lowest ratio of live bytes, if it is less than
+   * half, to the current segment, and deletes it.
+   */
+  @GuardedBy("this")
+  private void compact() throws IOException {
+    Segment victim = null;
+    boolean oldest = true;
+    synchronized (appendLock) {
+      double lowestRatio = 0.5;
+      int oldestId = Integer.MAX_VALUE;
+      for (Segment segment : segments.values()) {
+        oldestId = Math.min(oldestId, segment.id);
+        if (segment == current || segment.pendingWrites > 0) {
+          continue;
+        }
+        double ratio = segment.end == 0 ? 0 : (double) segment.liveBytes.get() / segment.end;
+        if (ratio < lowestRatio) {
+          lowestRatio = ratio;
+          victim = segment;
+        }
+      }
+      if (victim == null) {
+        return;
+      }
+      oldest = victim.id == oldestId;
+    }
+
+    int position = 0;
+    while (position < victim.end) {
+      int recordSize = victim.recordSize(position);
+      int keyId = victim.buffer.getInt(position + Integer.BYTES);
+      long location = location(victim.id, position);
+      Stripe stripe = stripeFor(keyId);
+      long stamp = stripe.lock.writeLock();
+      try {
+        long indexed = stripe.table.get(keyId);
+        if (indexed != NOT_FOUND && (indexed & ~REMOVED) == location) {
+          if (indexed == location) {
+            stripe.put(keyId, append(keyId, victim.payload(position)));
+          } else if (!oldest) {
+            // Older segments may still contain records of the removed key.
+            stripe.put(keyId, append(keyId, TOMBSTONE) | REMOVED);
+          } else {
+            stripe.put(keyId, NOT_FOUND);
+          }
+        }
+      } finally {
+        stripe.lock.unlockWrite(stamp);
+      }
+      position += recordSize;
+    }
+
+    segments.remove(victim.id);
+    try {
+      victim.path.delete();
+    } catch (IOException e) {
+      // Replaying the segment after a restart is harmless, its live records were appended again.
+      logger.atWarning().withCause(e).log("Failed to delete compacted segment %s", victim.path);
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    synchronized (indexerFlushLock) {
+      // Clearing saves the empty indexer.
+      indexer.clear();
+      durableIndexerSize = 0;
+    }
+    long[] stamps = new long[stripes.length];
+    for (int i = 0; i < stripes.length; i++) {
+      stamps[i] = stripes[i].lock.writeLock();
+    }
+    try {
+      for (Stripe stripe : stripes) {
+        stripe.table = new Table(INITIAL_STRIPE_CAPACITY);
+        stripe.size = 0;
+      }
+      synchronized (appendLock) {
+        for (Segment segment : segments.values()) {
+          try {
+            segment.path.delete();
+          } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Failed to delete segment %s", segment.path);
+          }
+        }
+        segments.clear();
+        current = null;
+      }
+    } finally {
+      for (int i = 0; i < stripes.length; i++) {
+        stripes[i].lock.unlockWrite(stamps[i]);
+      }
+    }
+  }
+
+  /** Returns the key indices and locations of all cached entries. */
+  private List<long[]> entries() {
+    List<long[]> entries = new ArrayList<>();
+    for (Stripe stripe : stripes) {
+      long stamp = stripe.lock.readLock();
+      try {
+        Table table = stripe.table;
+        for (int slot = 0; slot <= table.mask; slot++) {
+          int storedKey = table.keys.get(slot);
+          long location = table.locations.get(slot);
+          if (storedKey != 0 && location >= 0) {
+            entries.add(new long[] {storedKey - 1, location});
+          }
+        }
+      } finally {
+        stripe.lock.unlockRead(stamp);
+      }
+    }
+    return entries;
+  }
+
+  private String describe(long[] entry) {
+    Segment segment = segments.get(segmentId(entry[1]));
+    if (segment == null) {
+      return "(compacted)\n";
+    }
+    byte[] data = segment.payload(position(entry[1]));
+    String content;
+    try {
+      content = CompactPersistentActionCache.decode(indexer, data).toString();
+    } catch (IOException e) {
+      content = e + "\n";
+    }
+    return content + "  packed_len = " + data.length + "\n";
+  }
+
+  @Override
+  public synchronized String toString() {
+    List<long[]> entries = entries();
+    StringBuilder builder = new StringBuilder();
+    builder.append("Action cache (" + entries.size() + " records):\n");
+    int size = entries.size() > 1000 ? 10 : entries.size();
+    int ct = 0;
+    for (long[] entry : entries) {
+      builder
+          .append("-> ")
+          .append(indexer.getStringForIndex((int) entry[0]))
+          .append("\n")
+          .append(describe(entry));
+      if (++ct > size) {
+        builder.append("...");
+        break;
+      }
+    }
+    return builder.toString();
+  }
+
+  /** Dumps action cache content. */
+  @Override
+  public synchronized void dump(PrintStream out) {
+    List<long[]> entries = entries();
+    out.println("String indexer content:\n");
+    out.println(indexer);
+    out.println("Action cache (" + entries.size() + " records):\n");
+    for (long[] entry : entries) {
+      out.println(
+          entry[0]
+              + ", "
+              + indexer.getStringForIndex((int) entry[0])
+              + ":\n"
+              + describe(entry));
+    }
+  }
+
+  @Override
+  public void accountHit() {
+    hits.incrementAndGet();
+  }
+
+  @Override
+  public void accountMiss(MissReason reason) {
+    AtomicInteger counter = misses.get(reason);
+    Preconditions.checkNotNull(counter, "Miss reason %s was not registered in the misses map "
+        + "during cache construction", reason);
+    counter.incrementAndGet();
+  }
+
+  @Override
+  public void mergeIntoActionCacheStatistics(ActionCacheStatistics.Builder builder) {
+    builder.setHits(hits.get());
+
+    int totalMisses = 0;
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      int count = entry.getValue().get();
+      builder.addMissDetailsBuilder().setReason(entry.getKey()).setCount(count);
+      totalMisses += count;
+    }
+    builder.setMisses(totalMisses);
+  }
+
+  @Override
+  public void resetStatistics() {
+    hits.set(0);
+    for (Map.Entry<MissReason, AtomicInteger> entry : misses.entrySet()) {
+      entry.getValue().set(0);
+    }
+  }
+
+  /** Returns the number of segment files, for testing compaction. */
+  @VisibleForTesting
+  int getSegmentCount() {
+    return segments.size();
+  }
+
+  private static long location(int segmentId, int position) {
+    return ((long) segmentId << 32) | (position & 0xFFFFFFFFL);
+  }
+
+  private static int segmentId(long location) {
+    return (int) ((location & ~REMOVED) >>> 32);
+  }
+
+  private static int position(long location) {
+    return (int) location;
+  }
+
+  private static int hash(int keyId) {
+    return keyId * 0x9E3779B9;
+  }
+
+  private Stripe stripeFor(int keyId) {
+    return stripes[hash(keyId) >>> (Integer.SIZE - STRIPE_BITS)];
+  }
+
+  /** A memory-mapped log file. */
+  private static final class Segment {
+    private final int id;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /** The position at which the next record is appended. Guarded by the append lock. */
+    private int end;
+
+    /**
+     * The number of records that space was reserved for, but that are still being written. Guarded
+     * by the append lock.
+     */
+    private int pendingWrites;
+
+    private volatile boolean dirty;
+
+    private Segment(int id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+    /** Maps the file at {@code path}, growing it to at least {@code size} bytes. */
+    private static Segment map(int id, Path path, int size) throws IOException {
+      try (RandomAccessFile file = new RandomAccessFile(path.getPathFile(), "rw")) {
+        if (file.length() > Integer.MAX_VALUE) {
+          throw new IOException("Segment " + path + " is too large: " + file.length());
+        }
+        if (file.length() < size) {
+          // Extending the file doesn't allocate disk space until the segment is written to.
+          file.setLength(size);
+        }
+        // The mapping stays valid after the file is closed.
+        return new Segment(
+            id, path, file.getChannel().map(MapMode.READ_WRITE, 0, file.length()));
+      }
+    }
+
+    private int capacity() {
+      return buffer.capacity();
+    }
+
+    private int recordSize(int position) {
+      return HEADER_SIZE + buffer.getInt(position) - 1;
+    }
+
+    private byte[] payload(int position) {
+      byte[] payload = new byte[buffer.getInt(position) - 1];
+      // Only absolute accessors of the shared buffer are thread-safe.
+      ByteBuffer view = buffer.duplicate();
+      view.position(position + HEADER_SIZE);
+      view.get(payload);
+      return payload;
+    }
+
+    private void write(int position, int keyId, byte[] payload) {
+      ByteBuffer view = buffer.duplicate();
+      view.position(position + HEADER_SIZE);
+      view.put(payload);
+      buffer.putInt(position + Integer.BYTES, keyId);
+      // The length is written last so that the record is complete once it is non-zero.
+      buffer.putInt(position, payload.length + 1);
+      dirty = true;
+    }
+
+    private void zeroFrom(int position) {
+      for (int i = position; i < buffer.capacity(); i++) {
+        buffer.put(i, (byte) 0);
+      }
+      dirty = true;
+    }
+  }
+
+  /**
+   * A part of the index. Lookups read the table optimistically and only fall back to the read lock
+   * if they raced with an update. Updates hold the write lock while appending to the log, so that
+   * the index of a key is always updated in the same order as its records are appended.
+   */
+  private static final class Stripe {
+    private final StampedLock lock = new StampedLock();
+
+    private Table table = new Table(INITIAL_STRIPE_CAPACITY);
+
+    /** The number of occupied slots in the table. */
+    private int size;
+
+    private long get(int keyId) {
+      long stamp = lock.tryOptimisticRead();
+      long location = table.get(keyId);
+      if (!lock.validate(stamp)) {
+        stamp = lock.readLock();
+        try {
+          location = table.get(keyId);
+        } finally {
+          lock.unlockRead(stamp);
+        }
+      }
+      return location;
+    }
+
+    /** Sets the location of the key, and returns its previous location. Requires the write lock. */
+    private long put(int keyId, long location) {
+      int slot = table.slot(keyId);
+      if (table.keys.get(slot) != 0) {
+        long previous = table.locations.get(slot);
+        table.locations.put(slot, location);
+        return previous;
+      }
+      if (2 * (size + 1) > table.mask + 1) {
+        table = table.grow();
+        slot = table.slot(keyId);
+      }
+      // Write the location first, so that optimistic readers never see a key without it.
+      table.locations.put(slot, location);
+      table.keys.put(slot, keyId + 1);
+      size++;
+      return NOT_FOUND;
+    }
+  }
+
+  /**
+   * An off-heap open-addressed hash table from key indices to record locations, using linear
+   * probing. The tables are at most half full, so probing always terminates, even for readers that
+   * race with a writer.
+   */
+  private static final class Table {
+    /** The key indices plus one, or 0 for empty slots. */
+    private final IntBuffer keys;
+
+    private final LongBuffer locations;
+    private final int mask;
+
+    private Table(int capacity) {
+      keys = ByteBuffer.allocateDirect(capacity * Integer.BYTES).asIntBuffer();
+      locations = ByteBuffer.allocateDirect(capacity * Long.BYTES).asLongBuffer();
+      mask = capacity - 1;
+    }
+
+    /** Returns the slot of {@code keyId}, or the empty slot where it would be inserted. */
+    private int slot(int keyId) {
+      int slot = hash(keyId) & mask;
+      while (true) {
+        int storedKey = keys.get(slot);
+        if (storedKey == 0 || storedKey == keyId + 1) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    private long get(int keyId) {
+      int slot = slot(keyId);
+      return keys.get(slot) == 0 ? NOT_FOUND : locations.get(slot);
+    }
+
+    private Table grow() {
+      Table grown = new Table(2 * (mask + 1));
+      for (int slot = 0; slot <= mask; slot++) {
+        int storedKey = keys.get(slot);
+        if (storedKey != 0) {
+          int newSlot = grown.slot(storedKey - 1);
+          grown.keys.put(newSlot, storedKey);
+          grown.locations.put(newSlot, locations.get(slot));
+        }
+      }
+      return grown;
+    }
+  }
+}
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.bazel;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.lib.bazel.execlog.StableSort;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
 import com.google.devtools.build.lib.events.Event;
@@ -28,15 +29,18 @@ import com.google.devtools.build.lib.server.FailureDetails.Execution.Code;
 import com.google.devtools.build.lib.server.FailureDetails.FailureDetail;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.DetailedExitCode;
-import com.google.devtools.build.lib.util.io.AsynchronousFileOutputStream;
+import com.google.devtools.build.lib.util.io.AsynchronousMessageOutputStream;
+import com.google.devtools.build.lib.util.io.MessageOutputStream;
 import com.google.devtools.build.lib.util.io.MessageOutputStreamWrapper.BinaryOutputStreamWrapper;
 import com.google.devtools.build.lib.util.io.MessageOutputStreamWrapper.JsonOutputStreamWrapper;
 import com.google.devtools.build.lib.util.io.MessageOutputStreamWrapper.MessageOutputStreamCollection;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Module providing on-demand spawn logging.
@@ -50,6 +54,9 @@ public final class SpawnLogModule extends BlazeModule {
 
   private Path rawOutput;
 
+  /** Whether the raw output is compressed, which it is unless the user asked for it. */
+  private boolean rawOutputCompressed;
+
   /**
    * After the execution is done, the temporary file contents will be sorted and logged as the user
    * requested, to binary and/or json files. We will open the streams at the beginning of the
@@ -64,6 +71,7 @@ public final class SpawnLogModule extends BlazeModule {
     spawnLogContext = null;
     outputStreams = new MessageOutputStreamCollection();
     rawOutput = null;
+    rawOutputCompressed = false;
     env = null;
   }
 
@@ -96,17 +104,17 @@ public final class SpawnLogModule extends BlazeModule {
                   .getOutputStream()));
     }
 
-    AsynchronousFileOutputStream outStream = null;
+    AsynchronousMessageOutputStream outStream = null;
     if (executionOptions.executionLogFile != null && !executionOptions.executionLogFile.isEmpty()) {
       rawOutput = workingDirectory.getRelative(executionOptions.executionLogFile);
-      outStream =
-          new AsynchronousFileOutputStream(
-              workingDirectory.getRelative(executionOptions.executionLogFile));
+      outStream = AsynchronousMessageOutputStream.create(rawOutput, /* compress= */ false);
     } else if (!outputStreams.isEmpty()) {
-      // Execution log requested but raw log file not specified
-      File file = File.createTempFile("exec", ".log");
+      // Execution log requested but raw log file not specified. The raw log is only read back to
+      // be sorted, so it is compressed to save disk bandwidth.
+      File file = File.createTempFile("exec", ".log.gz");
       rawOutput = fileSystem.getPath(file.getAbsolutePath());
-      outStream = new AsynchronousFileOutputStream(rawOutput);
+      rawOutputCompressed = true;
+      outStream = AsynchronousMessageOutputStream.create(rawOutput, /* compress= */ true);
     }
 
     if (outStream == null) {
@@ -157,8 +165,7 @@ public final class SpawnLogModule extends BlazeModule {
       try {
         spawnLogContext.close();
         if (!outputStreams.isEmpty()) {
-          InputStream in = rawOutput.getInputStream();
-          StableSort.stableSort(in, outputStreams);
+          sortRawOutput(rawOutput, rawOutputCompressed, outputStreams);
           outputStreams.close();
         }
         done = true;
@@ -179,6 +186,21 @@ public final class SpawnLogModule extends BlazeModule {
     }
   }
 
+  /**
+   * Writes the spawns of the raw execution log to {@code out}, sorted by {@link StableSort}. The
+   * raw log is read as compressed with gzip if {@code compressed} is true.
+   */
+  @VisibleForTesting
+  static void sortRawOutput(Path rawOutput, boolean compressed, MessageOutputStream out)
+      throws IOException {
+    try (InputStream in =
+        compressed
+            ? new GZIPInputStream(rawOutput.getInputStream(), 64 * 1024)
+            : new BufferedInputStream(rawOutput.getInputStream(), 64 * 1024)) {
+      StableSort.stableSort(in, out);
+    }
+  }
+
   private static DetailedExitCode createDetailedExitCode(String message, Code detailedCode) {
     return DetailedExitCode.of(
         FailureDetail.newBuilder()
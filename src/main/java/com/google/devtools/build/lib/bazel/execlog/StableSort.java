@@ -38,8 +38,9 @@ import java.util.PriorityQueue;
 public final class StableSort {
   private static ImmutableList<SpawnExec> read(InputStream in) throws IOException {
     ImmutableList.Builder<SpawnExec> result = ImmutableList.builder();
-    while (in.available() > 0) {
-      SpawnExec ex = SpawnExec.parseDelimitedFrom(in);
+    SpawnExec ex;
+    // Null at the end of the stream.
+    while ((ex = SpawnExec.parseDelimitedFrom(in)) != null) {
       result.add(ex);
     }
     return result.build();
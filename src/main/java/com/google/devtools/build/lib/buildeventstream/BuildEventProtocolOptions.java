@@ -76,4 +76,15 @@ public class BuildEventProtocolOptions extends OptionsBase {
       effectTags = {OptionEffectTag.UNKNOWN},
       help = "Whether to publish TargetSummary events.")
   public boolean publishTargetSummary;
+
+  @Option(
+      name = "experimental_build_event_file_max_buffered_bytes",
+      defaultValue = "67108864",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "The most bytes of serialized events that a build event file transport buffers in"
+              + " memory while the events wait to be written. Events serialized beyond this budget"
+              + " are spilled to a temporary file until the writer catches up.")
+  public long fileMaxBufferedBytes;
 }
@@ -17,7 +17,7 @@ package com.google.devtools.build.lib.buildeventstream.transports;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
+import com.google.common.base.MoreObjects;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -38,12 +38,20 @@ import com.google.devtools.build.lib.server.FailureDetails.FailureDetail;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.DetailedExitCode;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.RejectedExecutionException;
@@ -51,6 +59,10 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
@@ -58,10 +70,19 @@ import javax.annotation.concurrent.ThreadSafe;
  *
  * <p>Implementors of this class need to implement {@code #sendBuildEvent(BuildEvent)} which
  * serializes the build event and writes it to a file.
+ *
+ * <p>Events are serialized on a small pool of threads, so that large events don't hold up the
+ * thread posting them, and a single writer thread writes them in the order they were posted. The
+ * serialized events waiting to be written are held in memory up to {@link
+ * BuildEventProtocolOptions#fileMaxBufferedBytes}; events serialized beyond that are spilled to a
+ * temporary file, which the writer reads them back from.
  */
 abstract class FileTransport implements BuildEventTransport {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  private static final int SERIALIZER_THREADS =
+      Math.min(4, Runtime.getRuntime().availableProcessors());
+
   private final BuildEventProtocolOptions options;
   private final BuildEventArtifactUploader uploader;
   private final SequentialWriter writer;
@@ -72,6 +93,14 @@ abstract class FileTransport implements BuildEventTransport {
           Executors.newSingleThreadScheduledExecutor(
               new ThreadFactoryBuilder().setNameFormat("file-uploader-timeout-%d").build()));
 
+  private final ExecutorService serializerExecutor =
+      Executors.newFixedThreadPool(
+          SERIALIZER_THREADS,
+          new ThreadFactoryBuilder()
+              .setNameFormat("bep-file-serializer-%d")
+              .setDaemon(true)
+              .build());
+
   FileTransport(
       BufferedOutputStream outputStream,
       BuildEventProtocolOptions options,
@@ -80,65 +109,260 @@ abstract class FileTransport implements BuildEventTransport {
     this.uploader = uploader;
     this.options = options;
     this.writer =
-        new SequentialWriter(outputStream, this::serializeEvent, uploader, timeoutExecutor);
+        new SequentialWriter(
+            outputStream,
+            uploader,
+            options.fileMaxBufferedBytes,
+            timeoutExecutor,
+            serializerExecutor);
     this.namer = namer;
   }
 
+  /** A serialized event, which is either held in memory or spilled to a file. */
+  private static final class SerializedEvent {
+    @Nullable private final byte[] bytes;
+    private final long spillOffset;
+    private final int length;
+
+    private SerializedEvent(@Nullable byte[] bytes, long spillOffset, int length) {
+      this.bytes = bytes;
+      this.spillOffset = spillOffset;
+      this.length = length;
+    }
+  }
+
+  /** An event that was posted, but not written yet. */
+  private static final class PendingWrite {
+    private final ListenableFuture<SerializedEvent> event;
+    private final long postedNanos;
+
+    private PendingWrite(ListenableFuture<SerializedEvent> event, long postedNanos) {
+      this.event = event;
+      this.postedNanos = postedNanos;
+    }
+  }
+
+  /** A snapshot of how far the writes of a {@link FileTransport} lag behind the posted events. */
+  static final class Stats {
+    /** The number of events that were written. */
+    final long writtenEvents;
+    /** The number of events that were posted, but not written yet. */
+    final int queueDepth;
+    /** The most events that were posted, but not written yet, at any time. */
+    final int maxQueueDepth;
+    /** The most bytes of serialized events that were held in memory at any time. */
+    final long maxBufferedBytes;
+    /** The number of events that were spilled to disk as they didn't fit the memory budget. */
+    final long spilledEvents;
+    /** The total size of the events that were spilled to disk. */
+    final long spilledBytes;
+    /** The mean time from the posting of an event to its write. */
+    final Duration meanWriteLatency;
+    /** The longest time from the posting of an event to its write. */
+    final Duration maxWriteLatency;
+
+    private Stats(
+        long writtenEvents,
+        int queueDepth,
+        int maxQueueDepth,
+        long maxBufferedBytes,
+        long spilledEvents,
+        long spilledBytes,
+        Duration meanWriteLatency,
+        Duration maxWriteLatency) {
+      this.writtenEvents = writtenEvents;
+      this.queueDepth = queueDepth;
+      this.maxQueueDepth = maxQueueDepth;
+      this.maxBufferedBytes = maxBufferedBytes;
+      this.spilledEvents = spilledEvents;
+      this.spilledBytes = spilledBytes;
+      this.meanWriteLatency = meanWriteLatency;
+      this.maxWriteLatency = maxWriteLatency;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("writtenEvents", writtenEvents)
+          .add("queueDepth", queueDepth)
+          .add("maxQueueDepth", maxQueueDepth)
+          .add("maxBufferedBytes", maxBufferedBytes)
+          .add("spilledEvents", spilledEvents)
+          .add("spilledBytes", spilledBytes)
+          .add("meanWriteLatency", meanWriteLatency)
+          .add("maxWriteLatency", maxWriteLatency)
+          .toString();
+    }
+  }
+
+  /**
+   * A temporary file holding the serialized events that don't fit the memory budget. It is
+   * created on the first spill and deleted when it is closed.
+   */
+  @ThreadSafe
+  private static final class SpillFile implements Closeable {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @GuardedBy("this")
+    @Nullable
+    private FileChannel channel;
+
+    @GuardedBy("this")
+    private long size;
+
+    @GuardedBy("this")
+    private boolean closed;
+
+    /** Appends the bytes to the file and returns the offset they were written at. */
+    synchronized long append(byte[] bytes) throws IOException {
+      if (closed) {
+        throw new IOException("The BEP spill file is closed");
+      }
+      if (channel == null) {
+        java.nio.file.Path path = Files.createTempFile("bep-", ".spill");
+        channel =
+            FileChannel.open(
+                path,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+      }
+      long offset = size;
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer, offset + buffer.position());
+      }
+      size += bytes.length;
+      return offset;
+    }
+
+    /** Copies {@code length} bytes starting at {@code offset} to the given stream. */
+    void copyTo(long offset, int length, OutputStream out) throws IOException {
+      FileChannel channel;
+      synchronized (this) {
+        channel = checkNotNull(this.channel);
+      }
+      // Positional reads don't interfere with concurrent appends, so they don't hold the lock.
+      ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, COPY_BUFFER_SIZE));
+      long position = offset;
+      long end = offset + length;
+      while (position < end) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new EOFException("The BEP spill file is shorter than expected");
+        }
+        out.write(buffer.array(), 0, read);
+        position += read;
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      closed = true;
+      if (channel != null) {
+        channel.close();
+      }
+    }
+  }
+
   @ThreadSafe
   @VisibleForTesting
   static final class SequentialWriter implements Runnable {
-    private static final ListenableFuture<BuildEventStreamProtos.BuildEvent> CLOSE_EVENT_FUTURE =
-        Futures.immediateFailedFuture(
-            new IllegalStateException(
-                "A FileTransport is trying to write CLOSE_EVENT_FUTURE, this is a bug."));
+    private static final PendingWrite CLOSE_EVENT =
+        new PendingWrite(
+            Futures.immediateFailedFuture(
+                new IllegalStateException(
+                    "A FileTransport is trying to write CLOSE_EVENT, this is a bug.")),
+            /* postedNanos= */ 0);
     private static final Duration FLUSH_INTERVAL =
         Duration.ofMillis(
             Long.parseLong(System.getProperty("EXPERIMENTAL_BEP_FILE_FLUSH_MILLIS", "250")));
 
     private final Thread writerThread;
     private final BufferedOutputStream out;
-    private final Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc;
     private final BuildEventArtifactUploader uploader;
     private final AtomicBoolean isClosed = new AtomicBoolean();
     private final SettableFuture<Void> closeFuture = SettableFuture.create();
 
-    @VisibleForTesting
-    final BlockingQueue<ListenableFuture<BuildEventStreamProtos.BuildEvent>> pendingWrites =
-        new LinkedBlockingDeque<>();
+    private final BlockingQueue<PendingWrite> pendingWrites = new LinkedBlockingDeque<>();
+
+    private final long memoryBudget;
+    private final SpillFile spillFile = new SpillFile();
+    private final AtomicLong bufferedBytes = new AtomicLong();
 
-    private ScheduledExecutorService timeoutExecutor;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong maxBufferedBytes = new AtomicLong();
+    private final AtomicLong spilledEvents = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong writtenEvents = new AtomicLong();
+    private final AtomicLong totalWriteLatencyNanos = new AtomicLong();
+    private final AtomicLong maxWriteLatencyNanos = new AtomicLong();
+
+    private final ScheduledExecutorService timeoutExecutor;
+    private final ExecutorService serializerExecutor;
 
     SequentialWriter(
         BufferedOutputStream outputStream,
-        Function<BuildEventStreamProtos.BuildEvent, byte[]> serializeFunc,
         BuildEventArtifactUploader uploader,
-        ScheduledExecutorService timeoutExecutor) {
+        long memoryBudget,
+        ScheduledExecutorService timeoutExecutor,
+        ExecutorService serializerExecutor) {
       checkNotNull(uploader);
 
       this.out = checkNotNull(outputStream);
       this.writerThread = new Thread(this, "bep-local-writer");
-      this.serializeFunc = checkNotNull(serializeFunc);
       this.uploader = checkNotNull(uploader);
+      this.memoryBudget = memoryBudget;
       this.timeoutExecutor = checkNotNull(timeoutExecutor);
+      this.serializerExecutor = checkNotNull(serializerExecutor);
       writerThread.start();
     }
 
+    /** Queues the event to be written after the events queued before it. */
+    boolean add(ListenableFuture<SerializedEvent> event) {
+      if (!pendingWrites.add(new PendingWrite(event, System.nanoTime()))) {
+        return false;
+      }
+      maxQueueDepth.accumulateAndGet(queueDepth.incrementAndGet(), Math::max);
+      return true;
+    }
+
+    /**
+     * Holds the serialized event in memory if it fits the memory budget, and spills it to disk
+     * otherwise. Called on the serializer threads.
+     */
+    SerializedEvent buffer(byte[] serialized) throws IOException {
+      long buffered = bufferedBytes.addAndGet(serialized.length);
+      if (buffered > memoryBudget) {
+        bufferedBytes.addAndGet(-serialized.length);
+        long offset = spillFile.append(serialized);
+        spilledEvents.incrementAndGet();
+        spilledBytes.addAndGet(serialized.length);
+        return new SerializedEvent(/* bytes= */ null, offset, serialized.length);
+      }
+      maxBufferedBytes.accumulateAndGet(buffered, Math::max);
+      return new SerializedEvent(serialized, /* spillOffset= */ 0, serialized.length);
+    }
+
     @Override
     public void run() {
-      ListenableFuture<BuildEventStreamProtos.BuildEvent> buildEventF;
+      PendingWrite pendingWrite;
       try {
         Instant prevFlush = Instant.now();
-        while ((buildEventF = pendingWrites.poll(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))
-            != CLOSE_EVENT_FUTURE) {
-          if (buildEventF != null) {
-            BuildEventStreamProtos.BuildEvent buildEvent = buildEventF.get();
-            if (buildEvent != null) {
-              byte[] serialized = serializeFunc.apply(buildEvent);
-              out.write(serialized);
+        while ((pendingWrite = pendingWrites.poll(FLUSH_INTERVAL.toMillis(), TimeUnit.MILLISECONDS))
+            != CLOSE_EVENT) {
+          if (pendingWrite != null) {
+            SerializedEvent event = pendingWrite.event.get();
+            if (event != null) {
+              write(event);
             }
+            recordWrite(pendingWrite);
           }
           Instant now = Instant.now();
-          if (buildEventF == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
+          if (pendingWrite == null || now.compareTo(prevFlush.plus(FLUSH_INTERVAL)) > 0) {
             // Some users, e.g. Tulsi, expect prompt BEP stream flushes for interactive use.
             out.flush();
             prevFlush = now;
@@ -158,13 +382,50 @@ abstract class FileTransport implements BuildEventTransport {
         } catch (IOException e) {
           logger.atSevere().withCause(e).log("Failed to close BEP file output stream.");
         } finally {
+          try {
+            spillFile.close();
+          } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Failed to delete the BEP spill file.");
+          }
           uploader.release();
           timeoutExecutor.shutdown();
+          serializerExecutor.shutdown();
         }
+        logger.atInfo().log("Finished writing the BEP file: %s", getStats());
         closeFuture.set(null);
       }
     }
 
+    private void write(SerializedEvent event) throws IOException {
+      if (event.bytes != null) {
+        out.write(event.bytes);
+        bufferedBytes.addAndGet(-event.length);
+      } else {
+        spillFile.copyTo(event.spillOffset, event.length, out);
+      }
+    }
+
+    private void recordWrite(PendingWrite pendingWrite) {
+      queueDepth.decrementAndGet();
+      writtenEvents.incrementAndGet();
+      long latencyNanos = System.nanoTime() - pendingWrite.postedNanos;
+      totalWriteLatencyNanos.addAndGet(latencyNanos);
+      maxWriteLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    Stats getStats() {
+      long written = writtenEvents.get();
+      return new Stats(
+          written,
+          queueDepth.get(),
+          maxQueueDepth.get(),
+          maxBufferedBytes.get(),
+          spilledEvents.get(),
+          spilledBytes.get(),
+          Duration.ofNanos(written == 0 ? 0 : totalWriteLatencyNanos.get() / written),
+          Duration.ofNanos(maxWriteLatencyNanos.get()));
+    }
+
     private void exitFailure(Throwable e) {
       final String message;
       // Print a more useful error message when the upload times out.
@@ -212,7 +473,7 @@ abstract class FileTransport implements BuildEventTransport {
       }
       try {
         pendingWrites.clear();
-        pendingWrites.put(CLOSE_EVENT_FUTURE);
+        pendingWrites.put(CLOSE_EVENT);
       } catch (InterruptedException e) {
         logger.atSevere().withCause(e).log("Failed to immediately close the sequential writer.");
       }
@@ -235,7 +496,7 @@ abstract class FileTransport implements BuildEventTransport {
           MoreExecutors.directExecutor());
 
       try {
-        pendingWrites.put(CLOSE_EVENT_FUTURE);
+        pendingWrites.put(CLOSE_EVENT);
       } catch (InterruptedException e) {
         closeNow();
         logger.atSevere().withCause(e).log("Failed to close the sequential writer.");
@@ -255,7 +516,7 @@ abstract class FileTransport implements BuildEventTransport {
       return;
     }
     try {
-      if (!writer.pendingWrites.add(asStreamProto(event, namer))) {
+      if (!writer.add(serialize(event, namer))) {
         logger.atSevere().log("Failed to add BEP event to the write queue");
       }
     } catch (RejectedExecutionException e) {
@@ -271,6 +532,25 @@ abstract class FileTransport implements BuildEventTransport {
     return writer.close();
   }
 
+  /** Returns how far the writes lag behind the posted events. */
+  Stats getStats() {
+    return writer.getStats();
+  }
+
+  /**
+   * Converts the given event into a proto object and serializes it; this may trigger uploading of
+   * referenced files as a side effect. The conversion runs as soon as the uploads are done, while
+   * the serialization runs on the serializer threads. May return {@code null} if there was an
+   * interrupt. This method is not thread-safe.
+   */
+  private ListenableFuture<SerializedEvent> serialize(BuildEvent event, ArtifactGroupNamer namer) {
+    return Futures.transformAsync(
+        asStreamProto(event, namer),
+        proto ->
+            Futures.immediateFuture(proto == null ? null : writer.buffer(serializeEvent(proto))),
+        serializerExecutor);
+  }
+
   /**
    * Converts the given event into a proto object; this may trigger uploading of referenced files as
    * a side effect. May return {@code null} if there was an interrupt. This method is not
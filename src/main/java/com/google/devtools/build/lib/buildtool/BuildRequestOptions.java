@@ -468,6 +468,18 @@ public class BuildRequestOptions extends OptionsBase {
       help = "The number of threads that are used by the FileSystemValueChecker.")
   public int fsvcThreads;
 
+  @Option(
+      name = "experimental_fsvc_batch_stat",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      metadataTags = OptionMetadataTag.EXPERIMENTAL,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If true, and there is no output service that stats outputs in batches, the"
+              + " FileSystemValueChecker stats the outputs of the previous build in batches, with"
+              + " a single call into native code per batch.")
+  public boolean fsvcBatchStat;
+
   @Option(
       name = "experimental_no_product_name_out_symlink",
       defaultValue = "false",
@@ -59,6 +59,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.AsyncSpawnExecutor;
 import com.google.devtools.build.lib.exec.BlazeExecutor;
 import com.google.devtools.build.lib.exec.CheckUpToDateFilter;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
@@ -344,6 +345,7 @@ public class ExecutionTool {
       try (SilentCloseable c = Profiler.instance().profile("configureResourceManager")) {
         configureResourceManager(env.getLocalResourceManager(), request);
       }
+      AsyncSpawnExecutor.setMaxConcurrentSpawns(request.getBuildOptions().jobs);
 
       Profiler.instance().markPhase(ProfilePhase.EXECUTE);
       boolean shouldTrustRemoteArtifacts =
@@ -372,6 +374,10 @@ public class ExecutionTool {
     } catch (Error | RuntimeException e) {
       catastrophe = e;
     } finally {
+      // Spawns whose actions were not resumed, because the build stopped early, must not outlive
+      // the build.
+      AsyncSpawnExecutor.cancelAll();
+
       // These may flush logs, which may help if there is a catastrophic failure.
       for (ExecutorLifecycleListener executorLifecycleListener : executorLifecycleListeners) {
         executorLifecycleListener.executionPhaseEnding();
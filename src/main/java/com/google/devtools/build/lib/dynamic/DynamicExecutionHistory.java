@@ -0,0 +1,233 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.actions.DynamicStrategyRegistry.DynamicMode;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Learns from past spawns of each mnemonic whether dynamic execution should run them locally,
+ * remotely, or race both branches, and how long to delay the local branch of a race.
+ *
+ * <p>For each mnemonic, the history keeps an exponentially decayed count of the races that each
+ * branch won, and a moving average of how long each branch took when it did. Recent races weigh
+ * more than old ones, so that a change in which branch is faster, e.g. because the remote
+ * executors became overloaded, shows after a few dozen races rather than after as many races as
+ * were won before. The history is kept in the output base, so that it survives server restarts.
+ */
+@ThreadSafe
+final class DynamicExecutionHistory {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x44594e48;
+  private static final int VERSION = 2;
+
+  /** How many outcomes of a mnemonic are needed before its spawns are not raced. */
+  @VisibleForTesting static final int MIN_OUTCOMES = 10;
+
+  /** The fraction of outcomes one branch must win so that the other one is not started. */
+  private static final double DOMINANT_WIN_RATE = 0.95;
+
+  /**
+   * One in this many spawns of a mnemonic is still raced even if one branch dominates, so that the
+   * history notices when the other branch becomes faster.
+   */
+  @VisibleForTesting static final int EXPLORATION_INTERVAL = 20;
+
+  /**
+   * The factor by which the weights of past wins decay with each new race, so that the weights
+   * reflect roughly the last 50 races.
+   */
+  private static final double WIN_DECAY = 0.98;
+
+  /** The weight of a new duration in the moving averages. */
+  private static final double SMOOTHING = 0.2;
+
+  /** The longest that the local branch of a race is delayed. */
+  private static final Duration MAX_LOCAL_DELAY = Duration.ofSeconds(10);
+
+  /** Where to run a spawn. */
+  enum Decision {
+    LOCAL_ONLY,
+    REMOTE_ONLY,
+    /** Race both branches, delaying the local one by {@link #getLocalDelay}. */
+    RACE,
+    /** Race both branches without delay, to learn how they compare. */
+    EXPLORE
+  }
+
+  /** The outcomes of the spawns of one mnemonic. */
+  private static final class Outcomes {
+    long races;
+    double localWins;
+    double remoteWins;
+    double localMillis;
+    double remoteMillis;
+    long decisions;
+
+    synchronized void add(DynamicMode winner, long millis) {
+      localWins *= WIN_DECAY;
+      remoteWins *= WIN_DECAY;
+      if (winner == DynamicMode.LOCAL) {
+        localMillis = localWins == 0 ? millis : localMillis + SMOOTHING * (millis - localMillis);
+        localWins++;
+      } else {
+        remoteMillis =
+            remoteWins == 0 ? millis : remoteMillis + SMOOTHING * (millis - remoteMillis);
+        remoteWins++;
+      }
+      races++;
+    }
+  }
+
+  private final Path file;
+  private final ConcurrentHashMap<String, Outcomes> outcomesByMnemonic;
+  private volatile boolean modified;
+
+  private DynamicExecutionHistory(Path file, ConcurrentHashMap<String, Outcomes> outcomes) {
+    this.file = file;
+    this.outcomesByMnemonic = outcomes;
+  }
+
+  /** Returns the history stored in {@code file}, or an empty history if it cannot be read. */
+  static DynamicExecutionHistory load(Path file) {
+    ConcurrentHashMap<String, Outcomes> outcomes = new ConcurrentHashMap<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(file.getInputStream()))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        logger.atInfo().log("Ignoring dynamic execution history %s of another version", file);
+        return new DynamicExecutionHistory(file, outcomes);
+      }
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String mnemonic = in.readUTF();
+        Outcomes entry = new Outcomes();
+        entry.races = in.readLong();
+        entry.localWins = in.readDouble();
+        entry.remoteWins = in.readDouble();
+        entry.localMillis = in.readDouble();
+        entry.remoteMillis = in.readDouble();
+        outcomes.put(mnemonic, entry);
+      }
+    } catch (FileNotFoundException e) {
+      // No history yet.
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log(
+          "Ignoring unreadable dynamic execution history %s", file);
+      outcomes.clear();
+    }
+    return new DynamicExecutionHistory(file, outcomes);
+  }
+
+  /** Decides where to run the next spawn of {@code mnemonic}. */
+  Decision decide(String mnemonic) {
+    Outcomes outcomes = outcomesByMnemonic.get(mnemonic);
+    if (outcomes == null) {
+      return Decision.RACE;
+    }
+    synchronized (outcomes) {
+      if (outcomes.races < MIN_OUTCOMES) {
+        return Decision.RACE;
+      }
+      double total = outcomes.localWins + outcomes.remoteWins;
+      if (++outcomes.decisions % EXPLORATION_INTERVAL == 0) {
+        return Decision.EXPLORE;
+      }
+      if (outcomes.localWins >= DOMINANT_WIN_RATE * total) {
+        return Decision.LOCAL_ONLY;
+      }
+      if (outcomes.remoteWins >= DOMINANT_WIN_RATE * total) {
+        return Decision.REMOTE_ONLY;
+      }
+      return Decision.RACE;
+    }
+  }
+
+  /**
+   * Returns how long to delay the local branch of a race for a spawn of {@code mnemonic}, or
+   * {@code defaultDelay} if there is no history for it.
+   *
+   * <p>If the remote branch usually finishes first, the local branch is delayed until the remote
+   * branch usually finishes, so that the local branch only uses a core if the remote branch is
+   * slower than usual.
+   */
+  Duration getLocalDelay(String mnemonic, Duration defaultDelay) {
+    Outcomes outcomes = outcomesByMnemonic.get(mnemonic);
+    if (outcomes == null) {
+      return defaultDelay;
+    }
+    synchronized (outcomes) {
+      if (outcomes.races < MIN_OUTCOMES) {
+        return defaultDelay;
+      }
+      if (outcomes.remoteWins <= outcomes.localWins) {
+        return Duration.ZERO;
+      }
+      Duration delay = Duration.ofMillis((long) outcomes.remoteMillis);
+      return delay.compareTo(MAX_LOCAL_DELAY) > 0 ? MAX_LOCAL_DELAY : delay;
+    }
+  }
+
+  /**
+   * Records that the {@code winner} branch of a race for a spawn of {@code mnemonic} finished
+   * first, {@code elapsed} after it started.
+   */
+  void recordOutcome(String mnemonic, DynamicMode winner, Duration elapsed) {
+    outcomesByMnemonic
+        .computeIfAbsent(mnemonic, k -> new Outcomes())
+        .add(winner, elapsed.toMillis());
+    modified = true;
+  }
+
+  /** Writes the history to its file if it has changed since it was loaded. */
+  void saveIfModified() throws IOException {
+    if (!modified) {
+      return;
+    }
+    modified = false;
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream()))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      // Entries added while writing may or may not be written.
+      Map<String, Outcomes> snapshot = new HashMap<>(outcomesByMnemonic);
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, Outcomes> entry : snapshot.entrySet()) {
+        Outcomes outcomes = entry.getValue();
+        synchronized (outcomes) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(outcomes.races);
+          out.writeDouble(outcomes.localWins);
+          out.writeDouble(outcomes.remoteWins);
+          out.writeDouble(outcomes.localMillis);
+          out.writeDouble(outcomes.remoteMillis);
+        }
+      }
+    }
+    tmpFile.renameTo(file);
+  }
+}
@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.flogger.GoogleLogger;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnStrategy;
@@ -35,20 +36,31 @@ import com.google.devtools.build.lib.server.FailureDetails.FailureDetail;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.DetailedExitCode;
 import com.google.devtools.common.options.OptionsBase;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 
 /**
  * {@link BlazeModule} providing support for dynamic spawn execution and scheduling.
  */
 public class DynamicExecutionModule extends BlazeModule {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final String HISTORY_FILENAME = "dynamic_execution_history";
 
   private ExecutorService executorService;
 
+  /**
+   * The outcomes of past races, kept across commands while {@code
+   * --experimental_dynamic_learned_scheduling} is set.
+   */
+  @Nullable private DynamicExecutionHistory history;
+
   public DynamicExecutionModule() {}
 
   @VisibleForTesting
@@ -124,8 +136,15 @@ public class DynamicExecutionModule extends BlazeModule {
   public void registerSpawnStrategies(
       SpawnStrategyRegistry.Builder registryBuilder, CommandEnvironment env)
       throws AbruptExitException {
-    registerSpawnStrategies(
-        registryBuilder, env.getOptions().getOptions(DynamicExecutionOptions.class));
+    DynamicExecutionOptions options = env.getOptions().getOptions(DynamicExecutionOptions.class);
+    if (options.learnedScheduling) {
+      if (history == null) {
+        history = DynamicExecutionHistory.load(env.getOutputBase().getChild(HISTORY_FILENAME));
+      }
+    } else {
+      history = null;
+    }
+    registerSpawnStrategies(registryBuilder, options, history);
   }
 
   // CommandEnvironment is difficult to access in tests, so use this method for testing.
@@ -133,6 +152,14 @@ public class DynamicExecutionModule extends BlazeModule {
   final void registerSpawnStrategies(
       SpawnStrategyRegistry.Builder registryBuilder, DynamicExecutionOptions options)
       throws AbruptExitException {
+    registerSpawnStrategies(registryBuilder, options, /*history=*/ null);
+  }
+
+  private void registerSpawnStrategies(
+      SpawnStrategyRegistry.Builder registryBuilder,
+      DynamicExecutionOptions options,
+      @Nullable DynamicExecutionHistory history)
+      throws AbruptExitException {
     if (!options.internalSpawnScheduler) {
       return;
     }
@@ -142,7 +169,8 @@ public class DynamicExecutionModule extends BlazeModule {
             executorService,
             options,
             this::getExecutionPolicy,
-            this::getPostProcessingSpawnForLocalExecution);
+            this::getPostProcessingSpawnForLocalExecution,
+            history);
     registryBuilder.registerStrategy(strategy, "dynamic", "dynamic_worker");
 
     registryBuilder.addDynamicLocalStrategies(getLocalStrategies(options));
@@ -200,5 +228,12 @@ public class DynamicExecutionModule extends BlazeModule {
   public void afterCommand() {
     ExecutorUtil.interruptibleShutdown(executorService);
     executorService = null;
+    if (history != null) {
+      try {
+        history.saveIfModified();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to save the dynamic execution history");
+      }
+    }
   }
 }
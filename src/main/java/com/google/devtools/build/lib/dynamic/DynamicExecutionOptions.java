@@ -101,6 +101,20 @@ public class DynamicExecutionOptions extends OptionsBase {
   )
   public int localExecutionDelay;
 
+  @Option(
+      name = "experimental_dynamic_learned_scheduling",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION, OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      defaultValue = "false",
+      help =
+          "If set, dynamic execution records which branch finishes first for each mnemonic, and"
+              + " how long it takes, in the output base. Spawns of mnemonics where one branch"
+              + " almost always wins only run on that branch, except for an occasional race to"
+              + " keep the history up to date. In other races, the local branch is delayed by how"
+              + " long the remote branch usually takes if it usually wins, instead of by"
+              + " --experimental_local_execution_delay.")
+  public boolean learnedScheduling;
+
   @Option(
     name = "experimental_debug_spawn_scheduler",
     documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
@@ -35,6 +35,7 @@ import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.SpawnStrategy;
+import com.google.devtools.build.lib.dynamic.DynamicExecutionHistory.Decision;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutionPolicy;
 import com.google.devtools.build.lib.server.FailureDetails.DynamicExecution;
@@ -43,6 +44,7 @@ import com.google.devtools.build.lib.server.FailureDetails.FailureDetail;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
@@ -92,6 +94,12 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
 
   private final Function<Spawn, Optional<Spawn>> getExtraSpawnForLocalExecution;
 
+  /**
+   * The outcomes of past races, which decide where spawns run, or null if {@link
+   * DynamicExecutionOptions#learnedScheduling} is not set.
+   */
+  @Nullable private final DynamicExecutionHistory history;
+
   /**
    * Constructs a {@code DynamicSpawnStrategy}.
    *
@@ -102,10 +110,29 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
       DynamicExecutionOptions options,
       Function<Spawn, ExecutionPolicy> getExecutionPolicy,
       Function<Spawn, Optional<Spawn>> getPostProcessingSpawnForLocalExecution) {
+    this(
+        executorService,
+        options,
+        getExecutionPolicy,
+        getPostProcessingSpawnForLocalExecution,
+        /*history=*/ null);
+  }
+
+  /**
+   * Constructs a {@code DynamicSpawnStrategy} that learns from {@code history} where to run
+   * spawns.
+   */
+  DynamicSpawnStrategy(
+      ExecutorService executorService,
+      DynamicExecutionOptions options,
+      Function<Spawn, ExecutionPolicy> getExecutionPolicy,
+      Function<Spawn, Optional<Spawn>> getPostProcessingSpawnForLocalExecution,
+      @Nullable DynamicExecutionHistory history) {
     this.executorService = MoreExecutors.listeningDecorator(executorService);
     this.options = options;
     this.getExecutionPolicy = getExecutionPolicy;
     this.getExtraSpawnForLocalExecution = getPostProcessingSpawnForLocalExecution;
+    this.history = history;
   }
 
   /**
@@ -323,6 +350,20 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
     if (executionPolicy.canRunRemotelyOnly()) {
       return runRemotely(spawn, actionExecutionContext, null);
     }
+    Decision decision = history == null ? Decision.RACE : history.decide(spawn.getMnemonic());
+    if (options.debugSpawnScheduler && decision != Decision.RACE) {
+      actionExecutionContext
+          .getEventHandler()
+          .handle(
+              Event.info(
+                  String.format("%s action scheduled %s", spawn.getMnemonic(), decision)));
+    }
+    if (decision == Decision.LOCAL_ONLY) {
+      return runLocally(spawn, actionExecutionContext, null);
+    }
+    if (decision == Decision.REMOTE_ONLY) {
+      return runRemotely(spawn, actionExecutionContext, null);
+    }
 
     // Semaphores to track termination of each branch. These are necessary to wait for the branch to
     // finish its own cleanup (e.g. terminating subprocesses) once it has been cancelled.
@@ -349,22 +390,27 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
                     checkState(Thread.interrupted());
                     throw new InterruptedException();
                   }
-                  if (delayLocalExecution.get()) {
-                    Thread.sleep(options.localExecutionDelay);
+                  long delayMillis = getLocalDelayMillis(spawn, decision);
+                  if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
                   }
-                  return runLocally(
-                      spawn,
-                      context,
-                      () ->
-                          stopBranch(
-                              remoteBranch,
-                              remoteDone,
-                              localBranch,
-                              DynamicMode.LOCAL,
-                              strategyThatCancelled,
-                              DynamicSpawnStrategy.this.options,
-                              actionExecutionContext,
-                              spawn));
+                  long startNanos = System.nanoTime();
+                  ImmutableList<SpawnResult> spawnResults =
+                      runLocally(
+                          spawn,
+                          context,
+                          () ->
+                              stopBranch(
+                                  remoteBranch,
+                                  remoteDone,
+                                  localBranch,
+                                  DynamicMode.LOCAL,
+                                  strategyThatCancelled,
+                                  DynamicSpawnStrategy.this.options,
+                                  actionExecutionContext,
+                                  spawn));
+                  recordOutcome(spawn, DynamicMode.LOCAL, strategyThatCancelled, startNanos);
+                  return spawnResults;
                 } finally {
                   localDone.release();
                 }
@@ -396,6 +442,7 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
                     checkState(Thread.interrupted());
                     throw new InterruptedException();
                   }
+                  long startNanos = System.nanoTime();
                   ImmutableList<SpawnResult> spawnResults =
                       runRemotely(
                           spawn,
@@ -411,6 +458,7 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
                                   actionExecutionContext,
                                   spawn));
                   delayLocalExecution.set(true);
+                  recordOutcome(spawn, DynamicMode.REMOTE, strategyThatCancelled, startNanos);
                   return spawnResults;
                 } finally {
                   remoteDone.release();
@@ -438,6 +486,32 @@ public class DynamicSpawnStrategy implements SpawnStrategy {
     }
   }
 
+  /** Returns how long to delay the local branch of a race. */
+  private long getLocalDelayMillis(Spawn spawn, Decision decision) {
+    long defaultDelayMillis = delayLocalExecution.get() ? options.localExecutionDelay : 0;
+    if (history == null) {
+      return defaultDelayMillis;
+    }
+    if (decision == Decision.EXPLORE) {
+      return 0;
+    }
+    return history
+        .getLocalDelay(spawn.getMnemonic(), Duration.ofMillis(defaultDelayMillis))
+        .toMillis();
+  }
+
+  /** Adds the outcome of a race to the history, if {@code mode} won the race. */
+  private void recordOutcome(
+      Spawn spawn,
+      DynamicMode mode,
+      AtomicReference<DynamicMode> strategyThatCancelled,
+      long startNanos) {
+    if (history != null && strategyThatCancelled.get() == mode) {
+      history.recordOutcome(
+          spawn.getMnemonic(), mode, Duration.ofNanos(System.nanoTime() - startNanos));
+    }
+  }
+
   @Override
   public boolean canExec(Spawn spawn, ActionContext.ActionContextRegistry actionContextRegistry) {
     DynamicStrategyRegistry dynamicStrategyRegistry =
@@ -32,6 +32,7 @@ import com.google.devtools.build.lib.actions.RunningActionEvent;
 import com.google.devtools.build.lib.actions.SandboxedSpawnStrategy;
 import com.google.devtools.build.lib.actions.SchedulingActionEvent;
 import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnContinuation;
 import com.google.devtools.build.lib.actions.SpawnExecutedEvent;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
@@ -51,6 +52,7 @@ import com.google.devtools.build.lib.util.CommandFailureUtils;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsProvider;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.time.Duration;
@@ -96,6 +98,18 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnStrategy {
     return spawnRunner.canExec(spawn);
   }
 
+  @Override
+  public SpawnContinuation beginExecution(
+      Spawn spawn, ActionExecutionContext actionExecutionContext) throws InterruptedException {
+    OptionsProvider options = actionExecutionContext.getOptions();
+    ExecutionOptions executionOptions =
+        options == null ? null : options.getOptions(ExecutionOptions.class);
+    if (executionOptions == null || !executionOptions.asyncSpawnExecution) {
+      return SandboxedSpawnStrategy.super.beginExecution(spawn, actionExecutionContext);
+    }
+    return AsyncSpawnExecutor.submit(() -> exec(spawn, actionExecutionContext, null));
+  }
+
   @Override
   public ImmutableList<SpawnResult> exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
       throws ExecException, InterruptedException {
@@ -301,6 +315,11 @@ public abstract class AbstractSpawnStrategy implements SandboxedSpawnStrategy {
       return lazyInputMapping;
     }
 
+    @Override
+    public SpawnInputExpander getSpawnInputExpander() {
+      return spawnInputExpander;
+    }
+
     @Override
     public void report(ProgressStatus state, String name) {
       ActionExecutionMetadata action = spawn.getResourceOwner();
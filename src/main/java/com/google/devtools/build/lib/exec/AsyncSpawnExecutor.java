@@ -0,0 +1,161 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.SpawnContinuation;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs spawns on a pool of threads that is separate from the Skyframe evaluator threads, and
+ * returns {@link SpawnContinuation}s that complete when the spawns are done.
+ *
+ * <p>Most spawns spend their time waiting for a remote server, a worker or a subprocess, so the
+ * pool's threads have small stacks. The pool runs at most {@code --jobs} spawns at a time (see
+ * {@link #setMaxConcurrentSpawns}); further spawns wait in a queue until a thread is free. Idle
+ * threads are released after a minute.
+ */
+public final class AsyncSpawnExecutor {
+
+  private static final long STACK_SIZE = 512 * 1024;
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  private static final ThreadFactory threadFactory =
+      runnable -> {
+        Thread thread =
+            new Thread(
+                /*group=*/ null,
+                runnable,
+                "async-spawn-" + threadCount.incrementAndGet(),
+                STACK_SIZE);
+        thread.setDaemon(true);
+        return thread;
+      };
+
+  private static final ThreadPoolExecutor pool = createPool();
+
+  private static final ListeningExecutorService executor = MoreExecutors.listeningDecorator(pool);
+
+  private static final Set<ListenableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+
+  private AsyncSpawnExecutor() {}
+
+  private static ThreadPoolExecutor createPool() {
+    // Core and maximum sizes are equal, so that the pool starts a new thread for each spawn until
+    // the bound is reached, instead of queueing while below it.
+    int size = Runtime.getRuntime().availableProcessors();
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            size,
+            size,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            threadFactory);
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /**
+   * Sets the number of spawns that may run on the pool at the same time. Called with the value of
+   * {@code --jobs} at the start of each build.
+   */
+  public static synchronized void setMaxConcurrentSpawns(int jobs) {
+    Preconditions.checkArgument(jobs > 0, "jobs must be positive: %s", jobs);
+    // The core size may never exceed the maximum size, so the order depends on the direction.
+    if (jobs > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(jobs);
+      pool.setCorePoolSize(jobs);
+    } else {
+      pool.setCorePoolSize(jobs);
+      pool.setMaximumPoolSize(jobs);
+    }
+  }
+
+  /** Runs {@code spawn} on the pool, and returns a continuation that waits for its results. */
+  static SpawnContinuation submit(Callable<ImmutableList<SpawnResult>> spawn) {
+    ListenableFuture<ImmutableList<SpawnResult>> future = executor.submit(spawn);
+    inFlight.add(future);
+    future.addListener(() -> inFlight.remove(future), MoreExecutors.directExecutor());
+    return new Continuation(future);
+  }
+
+  /**
+   * Interrupts the spawns that are still running, for example because the build was interrupted or
+   * failed before their actions resumed.
+   */
+  public static void cancelAll() {
+    for (ListenableFuture<?> future : inFlight) {
+      future.cancel(/*mayInterruptIfRunning=*/ true);
+    }
+  }
+
+  private static final class Continuation extends SpawnContinuation {
+    private final ListenableFuture<ImmutableList<SpawnResult>> future;
+
+    Continuation(ListenableFuture<ImmutableList<SpawnResult>> future) {
+      this.future = future;
+    }
+
+    @Override
+    public ListenableFuture<?> getFuture() {
+      return future;
+    }
+
+    @Override
+    public SpawnContinuation execute() throws ExecException, InterruptedException {
+      try {
+        // Only blocks if the caller does not wait for the future, as in synchronous execution.
+        return SpawnContinuation.immediate(future.get());
+      } catch (InterruptedException e) {
+        future.cancel(/*mayInterruptIfRunning=*/ true);
+        throw e;
+      } catch (CancellationException e) {
+        throw new InterruptedException("Spawn was cancelled");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ExecException) {
+          throw (ExecException) cause;
+        }
+        if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+    }
+  }
+}
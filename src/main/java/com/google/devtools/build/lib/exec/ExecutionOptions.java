@@ -30,6 +30,7 @@ import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
 import com.google.devtools.common.options.OptionEffectTag;
+import com.google.devtools.common.options.OptionMetadataTag;
 import com.google.devtools.common.options.Options;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
@@ -390,6 +391,20 @@ public class ExecutionOptions extends OptionsBase {
   )
   public boolean enableCriticalPathProfiling;
 
+  @Option(
+      name = "experimental_async_spawn_execution",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.EXECUTION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If set to true, spawns run on a separate pool of threads with small stacks, and the "
+              + "action only waits for their result. Together with --experimental_async_execution, "
+              + "this means that waiting for remote, worker or local execution does not hold one "
+              + "of the --jobs threads, so that many more spawns can be in flight than there are "
+              + "jobs.")
+  public boolean asyncSpawnExecution;
+
   @Option(
       name = "experimental_stats_summary",
       documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
@@ -31,6 +31,7 @@ import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.RunfilesSupplier;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.vfs.Path;
@@ -225,6 +226,107 @@ public class SpawnInputExpander {
     }
   }
 
+  /** The interface for accessing part of the input hierarchy. */
+  public interface InputWalker {
+    /** Returns the mapping of the inputs directly attached to this part of the hierarchy. */
+    SortedMap<PathFragment, ActionInput> getLeavesInputMapping() throws IOException;
+
+    /** Visits the parts of the hierarchy below this one. */
+    void visitNonLeaves(InputVisitor visitor) throws IOException;
+  }
+
+  /** The interface for visiting part of the input hierarchy. */
+  public interface InputVisitor {
+    /**
+     * Visits a part of the input hierarchy.
+     *
+     * <p>{@code nodeKey} can be used as key when memoizing visited parts of the hierarchy. Two
+     * parts with equal keys map the same inputs to the same paths.
+     */
+    void visit(Object nodeKey, InputWalker walker) throws IOException;
+  }
+
+  /**
+   * Visits the inputs of the given spawn in the shape of its input {@link NestedSet}, so that
+   * callers can memoize whatever they compute for the parts shared between spawns. The union of
+   * the visited leaves mappings is the same as the result of {@link #getInputMapping}.
+   */
+  public void walkInputs(
+      Spawn spawn,
+      ArtifactExpander artifactExpander,
+      PathFragment baseDirectory,
+      MetadataProvider actionInputFileCache,
+      InputVisitor visitor)
+      throws IOException {
+    walkNestedSetInputs(baseDirectory, spawn.getInputFiles(), artifactExpander, visitor);
+
+    RunfilesSupplier runfilesSupplier = spawn.getRunfilesSupplier();
+    visitor.visit(
+        ImmutableList.of(baseDirectory, runfilesSupplier),
+        new InputWalker() {
+          @Override
+          public SortedMap<PathFragment, ActionInput> getLeavesInputMapping() throws IOException {
+            TreeMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+            addRunfilesToInputs(
+                inputMap, runfilesSupplier, actionInputFileCache, artifactExpander, baseDirectory);
+            return inputMap;
+          }
+
+          @Override
+          public void visitNonLeaves(InputVisitor childVisitor) {}
+        });
+
+    Map<Artifact, ImmutableList<FilesetOutputSymlink>> filesetMappings =
+        spawn.getFilesetMappings();
+    if (!filesetMappings.isEmpty()) {
+      visitor.visit(
+          ImmutableList.of(baseDirectory, filesetMappings),
+          new InputWalker() {
+            @Override
+            public SortedMap<PathFragment, ActionInput> getLeavesInputMapping()
+                throws IOException {
+              TreeMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+              addFilesetManifests(filesetMappings, inputMap, baseDirectory);
+              return inputMap;
+            }
+
+            @Override
+            public void visitNonLeaves(InputVisitor childVisitor) {}
+          });
+    }
+  }
+
+  private void walkNestedSetInputs(
+      PathFragment baseDirectory,
+      NestedSet<? extends ActionInput> someInputFiles,
+      ArtifactExpander artifactExpander,
+      InputVisitor visitor)
+      throws IOException {
+    visitor.visit(
+        ImmutableList.of(baseDirectory, someInputFiles.toNode()),
+        new InputWalker() {
+          @Override
+          public SortedMap<PathFragment, ActionInput> getLeavesInputMapping() {
+            TreeMap<PathFragment, ActionInput> inputMap = new TreeMap<>();
+            List<ActionInput> inputs =
+                ActionInputHelper.expandArtifacts(
+                    NestedSetBuilder.wrap(Order.STABLE_ORDER, someInputFiles.getLeaves()),
+                    artifactExpander);
+            for (ActionInput input : inputs) {
+              addMapping(inputMap, input.getExecPath(), input, baseDirectory);
+            }
+            return inputMap;
+          }
+
+          @Override
+          public void visitNonLeaves(InputVisitor childVisitor) throws IOException {
+            for (NestedSet<? extends ActionInput> subInputs : someInputFiles.getNonLeaves()) {
+              walkNestedSetInputs(baseDirectory, subInputs, artifactExpander, childVisitor);
+            }
+          }
+        });
+  }
+
   /**
    * Convert the inputs and runfiles of the given spawn to a map from exec-root relative paths to
    * {@link ActionInput}s. The returned map does not contain tree artifacts as they are expanded to
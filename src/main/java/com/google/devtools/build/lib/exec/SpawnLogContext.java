@@ -15,8 +15,13 @@ package com.google.devtools.build.lib.exec;
 
 import build.bazel.remote.execution.v2.Platform;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.flogger.GoogleLogger;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.devtools.build.lib.actions.ActionContext;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ExecException;
@@ -38,7 +43,6 @@ import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Duration;
 import java.util.ArrayList;
@@ -54,14 +58,29 @@ import javax.annotation.Nullable;
 
 /**
  * A logging utility for spawns.
+ *
+ * <p>The inputs of a spawn are often inputs of many other spawns too, so the logged entry of each
+ * input file is remembered and reused by the following spawns, rather than looking up its digest
+ * again.
  */
 public class SpawnLogContext implements ActionContext {
 
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** The most input files whose logged entries are remembered. */
+  private static final int MAX_CACHED_INPUTS = 100_000;
+
   private final Path execRoot;
   private final MessageOutputStream executionLog;
   @Nullable private final RemoteOptions remoteOptions;
 
+  /**
+   * The logged entries of input files by exec path. An input file doesn't change during a build,
+   * and a new context is created for each one.
+   */
+  private final Cache<String, File> inputFiles =
+      CacheBuilder.newBuilder().maximumSize(MAX_CACHED_INPUTS).build();
+
   public SpawnLogContext(
       Path execRoot, MessageOutputStream executionLog, @Nullable RemoteOptions remoteOptions) {
     this.execRoot = execRoot;
@@ -94,12 +113,26 @@ public class SpawnLogContext implements ActionContext {
         if (input instanceof VirtualActionInput.EmptyActionInput) {
           continue;
         }
+        // Virtual inputs, like parameter files, are specific to the spawn.
+        boolean isVirtual = input instanceof VirtualActionInput;
+        File inputFile = isVirtual ? null : inputFiles.getIfPresent(input.getExecPathString());
+        if (inputFile != null) {
+          builder.addInputs(inputFile);
+          continue;
+        }
         Path inputPath = execRoot.getRelative(input.getExecPathString());
         if (inputPath.isDirectory()) {
           listDirectoryContents(inputPath, builder::addInputs, metadataProvider);
         } else {
-          Digest digest = computeDigest(input, null, metadataProvider);
-          builder.addInputsBuilder().setPath(input.getExecPathString()).setDigest(digest);
+          inputFile =
+              File.newBuilder()
+                  .setPath(input.getExecPathString())
+                  .setDigest(computeDigest(input, null, metadataProvider))
+                  .build();
+          if (!isVirtual) {
+            inputFiles.put(input.getExecPathString(), inputFile);
+          }
+          builder.addInputs(inputFile);
         }
       }
     } catch (IOException e) {
@@ -208,18 +241,15 @@ public class SpawnLogContext implements ActionContext {
     DigestHashFunction hashFunction = execRoot.getFileSystem().getDigestFunction();
     Digest.Builder digest = Digest.newBuilder().setHashFunctionName(hashFunction.toString());
     if (input != null) {
-      if (input instanceof VirtualActionInput) {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        ((VirtualActionInput) input).writeTo(buffer);
-        byte[] blob = buffer.toByteArray();
-        return digest
-            .setHash(hashFunction.getHashFunction().hashBytes(blob).toString())
-            .setSizeBytes(blob.length)
-            .build();
-      }
       // Try to access the cached metadata, otherwise fall back to local computation.
       try {
-        FileArtifactValue metadata = metadataProvider.getMetadata(input);
+        FileArtifactValue metadata =
+            input instanceof VirtualActionInput
+                ? ((VirtualActionInput) input).getMetadata()
+                : null;
+        if (metadata == null) {
+          metadata = metadataProvider.getMetadata(input);
+        }
         if (metadata != null) {
           byte[] hash = metadata.getDigest();
           if (hash != null) {
@@ -232,6 +262,14 @@ public class SpawnLogContext implements ActionContext {
       } catch (IOException | IllegalStateException e) {
         // Pass through to local computation.
       }
+      if (input instanceof VirtualActionInput) {
+        // Hash the contents as they are written, rather than materializing them first.
+        HashingOutputStream hashingOut =
+            new HashingOutputStream(hashFunction.getHashFunction(), ByteStreams.nullOutputStream());
+        CountingOutputStream out = new CountingOutputStream(hashingOut);
+        ((VirtualActionInput) input).writeTo(out);
+        return digest.setHash(hashingOut.hash().toString()).setSizeBytes(out.getCount()).build();
+      }
     }
     if (path == null) {
       path = execRoot.getRelative(input.getExecPath());
@@ -212,6 +212,13 @@ public interface SpawnRunner {
     SortedMap<PathFragment, ActionInput> getInputMapping(PathFragment baseDirectory)
         throws IOException;
 
+    /**
+     * Returns the {@link SpawnInputExpander} that computes the input mapping of the spawn, for
+     * callers that walk the inputs in the shape of the input {@link
+     * com.google.devtools.build.lib.collect.nestedset.NestedSet} rather than as a flat map.
+     */
+    SpawnInputExpander getSpawnInputExpander();
+
     /** Reports a progress update to the Spawn strategy. */
     void report(ProgressStatus state, String name);
 
@@ -35,6 +35,7 @@ import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.events.Event;
@@ -554,13 +555,28 @@ class IncludeParser {
   /** The externally-scoped immutable hints helper that is shared by all scanners. */
   private final Hints hints;
 
+  /** The inclusions of previously parsed files by content digest, or null if not persisted. */
+  @Nullable private final IncludeScanningIndex index;
+
   /**
    * Constructs a new FileParser.
    *
    * @param hints regexps for converting computed includes into simple strings
    */
   public IncludeParser(Hints hints) {
+    this(hints, /*index=*/ null);
+  }
+
+  /**
+   * Constructs a new FileParser.
+   *
+   * @param hints regexps for converting computed includes into simple strings
+   * @param index the index of the inclusions of previously parsed files, which is looked up and
+   *     extended by the file contents digest
+   */
+  IncludeParser(Hints hints, @Nullable IncludeScanningIndex index) {
     this.hints = hints;
+    this.index = index;
   }
 
   /**
@@ -878,9 +894,19 @@ class IncludeParser {
     } else {
       try (SilentCloseable c =
           Profiler.instance().profile(ProfilerTask.SCANNER, file.getExecPathString())) {
-        inclusions =
-            extractInclusions(
-                FileSystemUtils.readContent(actionExecutionContext.getInputPath(file)));
+        byte[] digest = index != null ? getDigest(file, actionExecutionContext) : null;
+        List<Inclusion> indexed = digest != null ? index.get(digest, getFileType()) : null;
+        if (indexed != null) {
+          inclusions = new ArrayList<>(indexed);
+        } else {
+          List<Inclusion> parsed =
+              extractInclusions(
+                  FileSystemUtils.readContent(actionExecutionContext.getInputPath(file)));
+          if (digest != null) {
+            index.put(digest, getFileType(), parsed);
+          }
+          inclusions = parsed;
+        }
       } catch (IOException e) {
         if (remoteIncludeScanner != null && grepIncludes != null) {
           logger.atWarning().withCause(e).log(
@@ -904,6 +930,14 @@ class IncludeParser {
     return ImmutableList.copyOf(inclusions);
   }
 
+  /** Returns the contents digest of {@code file} from the action inputs, if it has one. */
+  @Nullable
+  private static byte[] getDigest(Artifact file, ActionExecutionContext actionExecutionContext)
+      throws IOException {
+    FileArtifactValue metadata = actionExecutionContext.getMetadataProvider().getMetadata(file);
+    return metadata != null ? metadata.getDigest() : null;
+  }
+
   /**
    * Returns type of the scanned file.
    *
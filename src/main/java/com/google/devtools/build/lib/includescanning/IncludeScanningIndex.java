@@ -0,0 +1,330 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.hash.HashCode;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.devtools.build.lib.includescanning.IncludeParser.GrepIncludesFileType;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * A persistent index from the content digests of scanned files to the inclusions that were
+ * extracted from them, so that files with unchanged contents are not parsed again, even after a
+ * server restart.
+ *
+ * <p>The index file is mapped into memory and looked up by binary search, so that loading it does
+ * not read the whole file. Inclusions of files that are parsed during a command are kept in memory
+ * until {@link #save} merges them into a new index file, which copies the existing entries as they
+ * are.
+ *
+ * <p>The file starts with a header of a magic number, a version, the length of the keys and the
+ * number of entries. The entries follow, sorted by key, each with the offset of its inclusions.
+ * The key of an entry is the digest of a file followed by the type of the parser.
+ */
+final class IncludeScanningIndex {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x49534958;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int MAX_UNSIGNED_SHORT = 0xffff;
+
+  private static final Comparator<byte[]> KEY_ORDER = UnsignedBytes.lexicographicalComparator();
+  private static final Kind[] KINDS = Kind.values();
+
+  private final Path file;
+  @Nullable private final ByteBuffer mapped;
+  private final int keyLength;
+  private final int entryCount;
+  private final Map<HashCode, ImmutableList<Inclusion>> added = new ConcurrentHashMap<>();
+
+  private IncludeScanningIndex(
+      Path file, @Nullable ByteBuffer mapped, int keyLength, int entryCount) {
+    this.file = file;
+    this.mapped = mapped;
+    this.keyLength = keyLength;
+    this.entryCount = entryCount;
+  }
+
+  /** Maps the index stored in {@code file}, or returns an empty index if there is none. */
+  static IncludeScanningIndex load(Path file) {
+    ByteBuffer mapped;
+    try (FileChannel channel =
+        FileChannel.open(file.getPathFile().toPath(), StandardOpenOption.READ)) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      return new IncludeScanningIndex(file, null, 0, 0);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to load the include scanning index %s", file);
+      return new IncludeScanningIndex(file, null, 0, 0);
+    }
+    if (mapped.capacity() < HEADER_SIZE
+        || mapped.getInt(0) != MAGIC
+        || mapped.getInt(4) != VERSION) {
+      logger.atWarning().log("Ignoring the include scanning index %s of an unknown format", file);
+      return new IncludeScanningIndex(file, null, 0, 0);
+    }
+    int keyLength = mapped.getInt(8);
+    int entryCount = mapped.getInt(12);
+    if (keyLength <= 0
+        || entryCount < 0
+        || HEADER_SIZE + (long) entryCount * (keyLength + 4) > mapped.capacity()) {
+      logger.atWarning().log("Ignoring the truncated include scanning index %s", file);
+      return new IncludeScanningIndex(file, null, 0, 0);
+    }
+    return new IncludeScanningIndex(file, mapped, keyLength, entryCount);
+  }
+
+  Path getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the inclusions of a file with the given digest that were extracted by a parser of the
+   * given type, or null if they are not in the index.
+   */
+  @Nullable
+  List<Inclusion> get(byte[] digest, GrepIncludesFileType fileType) {
+    byte[] key = key(digest, fileType);
+    ImmutableList<Inclusion> inclusions = added.get(HashCode.fromBytes(key));
+    if (inclusions != null || mapped == null || key.length != keyLength) {
+      return inclusions;
+    }
+    int low = 0;
+    int high = entryCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = entryOffset(mid);
+      int cmp = compareKey(entry, key);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        try {
+          return readInclusions(mapped.getInt(entry + keyLength));
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+          logger.atWarning().withCause(e).log("Corrupt include scanning index %s", file);
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  /** Adds the inclusions of a file that was parsed during this command. */
+  void put(byte[] digest, GrepIncludesFileType fileType, List<Inclusion> inclusions) {
+    if (inclusions.size() > MAX_UNSIGNED_SHORT) {
+      return;
+    }
+    for (Inclusion inclusion : inclusions) {
+      if (inclusion.getPathString().length() > MAX_UNSIGNED_SHORT) {
+        return;
+      }
+    }
+    added.putIfAbsent(HashCode.fromBytes(key(digest, fileType)), ImmutableList.copyOf(inclusions));
+  }
+
+  /** Returns whether inclusions were added since the index was loaded. */
+  boolean hasAdditions() {
+    return !added.isEmpty();
+  }
+
+  /**
+   * Writes the mapped and the added entries to a new index file, which atomically replaces the old
+   * one. Both are already sorted, so they are merged in a single pass, and the inclusions of the
+   * mapped entries are copied without being decoded.
+   */
+  void save() throws IOException {
+    List<byte[]> addedKeys = new ArrayList<>(added.size());
+    for (HashCode key : added.keySet()) {
+      addedKeys.add(key.asBytes());
+    }
+    if (addedKeys.isEmpty() && mapped == null) {
+      return;
+    }
+    // The digest function changed if the keys have another length, which invalidates all older
+    // entries.
+    int newKeyLength = addedKeys.isEmpty() ? keyLength : addedKeys.get(0).length;
+    addedKeys.removeIf(key -> key.length != newKeyLength);
+    addedKeys.sort(KEY_ORDER);
+    int mappedCount = mapped != null && keyLength == newKeyLength ? entryCount : 0;
+    int[] mappedDataLengths = new int[mappedCount];
+    try {
+      for (int i = 0; i < mappedCount; i++) {
+        mappedDataLengths[i] = inclusionsLength(mappedDataOffset(i));
+      }
+    } catch (IndexOutOfBoundsException e) {
+      logger.atWarning().withCause(e).log("Dropping the corrupt include scanning index %s", file);
+      mappedCount = 0;
+    }
+
+    // The entries in key order: the index of a mapped entry, or the complement of the index of an
+    // added entry. An added entry replaces a mapped entry with the same key.
+    int[] order = new int[mappedCount + addedKeys.size()];
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < mappedCount || j < addedKeys.size()) {
+      int cmp;
+      if (i == mappedCount) {
+        cmp = 1;
+      } else if (j == addedKeys.size()) {
+        cmp = -1;
+      } else {
+        cmp = compareKey(entryOffset(i), addedKeys.get(j));
+      }
+      if (cmp < 0) {
+        order[size++] = i++;
+      } else {
+        if (cmp == 0) {
+          i++;
+        }
+        order[size++] = ~j++;
+      }
+    }
+    List<byte[]> addedData = new ArrayList<>(addedKeys.size());
+    for (byte[] key : addedKeys) {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      writeInclusions(new DataOutputStream(data), added.get(HashCode.fromBytes(key)));
+      addedData.add(data.toByteArray());
+    }
+
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(tmpFile.getOutputStream(), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(newKeyLength);
+      out.writeInt(size);
+      int dataOffset = HEADER_SIZE + size * (newKeyLength + 4);
+      for (int k = 0; k < size; k++) {
+        int entry = order[k];
+        if (entry >= 0) {
+          copyMapped(out, entryOffset(entry), newKeyLength);
+          out.writeInt(dataOffset);
+          dataOffset += mappedDataLengths[entry];
+        } else {
+          out.write(addedKeys.get(~entry));
+          out.writeInt(dataOffset);
+          dataOffset += addedData.get(~entry).length;
+        }
+      }
+      for (int k = 0; k < size; k++) {
+        int entry = order[k];
+        if (entry >= 0) {
+          copyMapped(out, mappedDataOffset(entry), mappedDataLengths[entry]);
+        } else {
+          out.write(addedData.get(~entry));
+        }
+      }
+    }
+    tmpFile.renameTo(file);
+  }
+
+  private int entryOffset(int index) {
+    return HEADER_SIZE + index * (keyLength + 4);
+  }
+
+  private int mappedDataOffset(int index) {
+    return mapped.getInt(entryOffset(index) + keyLength);
+  }
+
+  /** Returns the length of the encoded inclusions at {@code offset}, without decoding them. */
+  private int inclusionsLength(int offset) {
+    int count = mapped.getShort(offset) & MAX_UNSIGNED_SHORT;
+    int end = offset + 2;
+    for (int i = 0; i < count; i++) {
+      end += 3 + (mapped.getShort(end + 1) & MAX_UNSIGNED_SHORT);
+    }
+    if (end > mapped.capacity()) {
+      throw new IndexOutOfBoundsException("Inclusions at " + offset + " end after the file");
+    }
+    return end - offset;
+  }
+
+  private void copyMapped(DataOutputStream out, int offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    ByteBuffer source = mapped.duplicate();
+    source.position(offset);
+    source.get(bytes);
+    out.write(bytes);
+  }
+
+  private static byte[] key(byte[] digest, GrepIncludesFileType fileType) {
+    return Bytes.concat(digest, new byte[] {(byte) fileType.ordinal()});
+  }
+
+  private int compareKey(int offset, byte[] key) {
+    for (int i = 0; i < keyLength; i++) {
+      int cmp = UnsignedBytes.compare(mapped.get(offset + i), key[i]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return 0;
+  }
+
+  private List<Inclusion> readInclusions(int offset) {
+    int count = mapped.getShort(offset) & MAX_UNSIGNED_SHORT;
+    offset += 2;
+    ImmutableList.Builder<Inclusion> inclusions = ImmutableList.builderWithExpectedSize(count);
+    for (int i = 0; i < count; i++) {
+      Kind kind = KINDS[mapped.get(offset)];
+      int length = mapped.getShort(offset + 1) & MAX_UNSIGNED_SHORT;
+      offset += 3;
+      byte[] path = new byte[length];
+      for (int j = 0; j < length; j++) {
+        path[j] = mapped.get(offset + j);
+      }
+      offset += length;
+      inclusions.add(Inclusion.create(new String(path, ISO_8859_1), kind));
+    }
+    return inclusions.build();
+  }
+
+  private static void writeInclusions(DataOutputStream out, List<Inclusion> inclusions)
+      throws IOException {
+    out.writeShort(inclusions.size());
+    for (Inclusion inclusion : inclusions) {
+      byte[] path = inclusion.getPathString().getBytes(ISO_8859_1);
+      out.writeByte(inclusion.kind.ordinal());
+      out.writeShort(path.length);
+      out.write(path);
+    }
+  }
+}
@@ -53,6 +53,7 @@ import com.google.devtools.build.lib.skyframe.MutableSupplier;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.DetailedExitCode;
 import com.google.devtools.build.lib.vfs.IORuntimeException;
+import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
@@ -63,6 +64,7 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import javax.annotation.Nullable;
 
 /**
  * Module that provides implementations of {@link CppIncludeExtractionContext},
@@ -74,10 +76,14 @@ public class IncludeScanningModule extends BlazeModule {
   private static final PathFragment INCLUDE_HINTS_FILENAME =
       PathFragment.create("tools/cpp/INCLUDE_HINTS");
 
+  private static final String INCLUDE_SCANNING_INDEX_FILENAME = "include_scanning_index";
+
   private final MutableSupplier<SpawnIncludeScanner> spawnIncludeScannerSupplier =
       new MutableSupplier<>();
   private final MutableSupplier<ArtifactFactory> artifactFactory = new MutableSupplier<>();
   private IncludeScannerLifecycleManager lifecycleManager;
+  // Kept across commands, so that the index file is only mapped again after it was saved.
+  private IncludeScanningIndex includeScanningIndex;
 
   protected PathFragment getIncludeHintsFilename() {
     return INCLUDE_HINTS_FILENAME;
@@ -102,8 +108,16 @@ public class IncludeScanningModule extends BlazeModule {
   @Override
   @ThreadHostile
   public void executorInit(CommandEnvironment env, BuildRequest request, ExecutorBuilder builder) {
+    IncludeScanningIndex index = null;
+    if (request.getOptions(IncludeScanningOptions.class).includeScanningIndex) {
+      Path indexFile = env.getOutputBase().getChild(INCLUDE_SCANNING_INDEX_FILENAME);
+      if (includeScanningIndex == null || !includeScanningIndex.getFile().equals(indexFile)) {
+        includeScanningIndex = IncludeScanningIndex.load(indexFile);
+      }
+      index = includeScanningIndex;
+    }
     lifecycleManager =
-        new IncludeScannerLifecycleManager(env, request, spawnIncludeScannerSupplier);
+        new IncludeScannerLifecycleManager(env, request, spawnIncludeScannerSupplier, index);
     builder.addExecutorLifecycleListener(lifecycleManager);
   }
 
@@ -124,6 +138,15 @@ public class IncludeScanningModule extends BlazeModule {
     spawnIncludeScannerSupplier.set(null);
     artifactFactory.set(null);
     lifecycleManager = null;
+    if (includeScanningIndex != null && includeScanningIndex.hasAdditions()) {
+      try {
+        includeScanningIndex.save();
+        includeScanningIndex = IncludeScanningIndex.load(includeScanningIndex.getFile());
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to save the include scanning index %s", includeScanningIndex.getFile());
+      }
+    }
   }
 
   @Override
@@ -224,15 +247,18 @@ public class IncludeScanningModule extends BlazeModule {
     private final BuildRequest buildRequest;
 
     private final Supplier<SpawnIncludeScanner> spawnScannerSupplier;
+    @Nullable private final IncludeScanningIndex includeScanningIndex;
     private IncludeScannerSupplier includeScannerSupplier;
     private ExecutorService includePool;
 
     public IncludeScannerLifecycleManager(
         CommandEnvironment env,
         BuildRequest buildRequest,
-        MutableSupplier<SpawnIncludeScanner> spawnScannerSupplier) {
+        MutableSupplier<SpawnIncludeScanner> spawnScannerSupplier,
+        @Nullable IncludeScanningIndex includeScanningIndex) {
       this.env = env;
       this.buildRequest = buildRequest;
+      this.includeScanningIndex = includeScanningIndex;
 
       IncludeScanningOptions options = buildRequest.getOptions(IncludeScanningOptions.class);
       spawnScannerSupplier.set(
@@ -265,7 +291,8 @@ public class IncludeScanningModule extends BlazeModule {
                         env.getSkyframeExecutor()
                             .evaluateSkyKeyForExecutionSetup(
                                 env.getReporter(), IncludeHintsFunction.INCLUDE_HINTS_KEY),
-                    env.getSkyframeBuildView().getArtifactFactory())));
+                    env.getSkyframeBuildView().getArtifactFactory()),
+                includeScanningIndex));
       } catch (ExecException e) {
         throw new AbruptExitException(
             DetailedExitCode.of(
@@ -100,4 +100,18 @@ public class IncludeScanningOptions extends OptionsBase {
               + " \"auto\" means to use a reasonable value derived from the machine's hardware"
               + " profile (e.g. the number of processors).")
   public int includeScanningParallelism;
+
+  @Option(
+      name = "experimental_include_scanning_index",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.EXECUTION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      help =
+          "If enabled, the inclusions extracted from each scanned file are stored in an index in"
+              + " the output base, keyed by the digest of the file contents, so that files are"
+              + " not parsed again after a server restart.")
+  public boolean includeScanningIndex;
 }
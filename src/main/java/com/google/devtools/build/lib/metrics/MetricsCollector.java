@@ -13,6 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.metrics;
 
+import static com.google.common.collect.ImmutableList.toImmutableList;
+
+import com.google.common.collect.ImmutableList;
 import com.google.common.eventbus.AllowConcurrentEvents;
 import com.google.common.eventbus.Subscribe;
 import com.google.devtools.build.lib.actions.ActionCompletionEvent;
@@ -27,6 +30,7 @@ import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.Bui
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.CumulativeMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.MemoryMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.PackageMetrics;
+import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.SkyFunctionResourceUsage;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TargetMetrics;
 import com.google.devtools.build.lib.buildeventstream.BuildEventStreamProtos.BuildMetrics.TimingMetrics;
 import com.google.devtools.build.lib.buildtool.BuildPrecompleteEvent;
@@ -156,6 +160,7 @@ class MetricsCollector {
         .setCumulativeMetrics(createCumulativeMetrics())
         .setArtifactMetrics(artifactMetrics.build())
         .setBuildGraphMetrics(buildGraphMetrics.build())
+        .addAllSkyFunctionResourceUsage(createSkyFunctionResourceUsage())
         .build();
   }
 
@@ -184,6 +189,24 @@ class MetricsCollector {
         .build();
   }
 
+  private static ImmutableList<SkyFunctionResourceUsage> createSkyFunctionResourceUsage() {
+    com.google.devtools.build.lib.profiler.SkyFunctionResourceUsage resourceUsage =
+        Profiler.instance().getSkyFunctionResourceUsage();
+    if (resourceUsage == null) {
+      return ImmutableList.of();
+    }
+    return resourceUsage.getSummaries().stream()
+        .map(
+            summary ->
+                SkyFunctionResourceUsage.newBuilder()
+                    .setName(summary.getName())
+                    .setComputations(summary.getComputations())
+                    .setCpuTimeInMs(Duration.ofNanos(summary.getCpuTimeNanos()).toMillis())
+                    .setAllocatedBytes(summary.getAllocatedBytes())
+                    .build())
+        .collect(toImmutableList());
+  }
+
   private TimingMetrics finishTimingMetrics() {
     Duration elapsedWallTime = Profiler.elapsedTimeMaybe();
     if (elapsedWallTime != null) {
@@ -19,6 +19,7 @@ import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
@@ -41,6 +42,7 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * Caches the results of glob expansion for a package.
@@ -57,6 +59,13 @@ public class GlobCache {
    */
   private final Map<Pair<String, Boolean>, Future<List<Path>>> globCache = new HashMap<>();
 
+  /** The cache across servers, if enabled. */
+  @Nullable private final PersistentGlobCache persistentGlobCache;
+
+  /** The recorders of the running globs whose results are added to {@link #persistentGlobCache}. */
+  private final Map<Pair<String, Boolean>, PersistentGlobCache.Recorder> recorders =
+      new HashMap<>();
+
   /**
    * The directory in which our package's BUILD file resides.
    */
@@ -103,6 +112,32 @@ public class GlobCache {
       AtomicReference<? extends UnixGlob.FilesystemCalls> syscalls,
       Executor globExecutor,
       int maxDirectoriesToEagerlyVisit) {
+    this(
+        packageDirectory,
+        packageId,
+        ignoredGlobPrefixes,
+        locator,
+        syscalls,
+        globExecutor,
+        maxDirectoriesToEagerlyVisit,
+        /*persistentGlobCache=*/ null);
+  }
+
+  /**
+   * Like {@link #GlobCache(Path, PackageIdentifier, ImmutableSet, CachingPackageLocator,
+   * AtomicReference, Executor, int)}, but also looks up globs in, and adds their results to, {@code
+   * persistentGlobCache} if it is not null.
+   */
+  public GlobCache(
+      final Path packageDirectory,
+      final PackageIdentifier packageId,
+      final ImmutableSet<PathFragment> ignoredGlobPrefixes,
+      final CachingPackageLocator locator,
+      AtomicReference<? extends UnixGlob.FilesystemCalls> syscalls,
+      Executor globExecutor,
+      int maxDirectoriesToEagerlyVisit,
+      @Nullable PersistentGlobCache persistentGlobCache) {
+    this.persistentGlobCache = persistentGlobCache;
     this.packageDirectory = Preconditions.checkNotNull(packageDirectory);
     this.packageId = Preconditions.checkNotNull(packageId);
     this.globExecutor = Preconditions.checkNotNull(globExecutor);
@@ -144,6 +179,15 @@ public class GlobCache {
   Future<List<Path>> getGlobUnsortedAsync(String pattern, boolean excludeDirs)
       throws BadGlobException {
     Future<List<Path>> cached = globCache.get(Pair.of(pattern, excludeDirs));
+    if (cached == null && persistentGlobCache != null) {
+      List<Path> persisted =
+          persistentGlobCache.getIfUnchanged(
+              packageDirectory, pattern, excludeDirs, childDirectoryPredicate, syscalls.get());
+      if (persisted != null) {
+        cached = Futures.immediateFuture(persisted);
+        setGlobPaths(pattern, excludeDirs, cached);
+      }
+    }
     if (cached == null) {
       if (maxDirectoriesToEagerlyVisit > -1
           && !globalStarted.getAndSet(true)) {
@@ -166,6 +210,10 @@ public class GlobCache {
       throws IOException, BadGlobException, InterruptedException {
     Future<List<Path>> futureResult = getGlobUnsortedAsync(pattern, excludeDirs);
     List<Path> globPaths = fromFuture(futureResult);
+    PersistentGlobCache.Recorder recorder = recorders.remove(Pair.of(pattern, excludeDirs));
+    if (recorder != null) {
+      recorder.put(globPaths);
+    }
     // Replace the UnixGlob.GlobFuture with a completed future object, to allow
     // garbage collection of the GlobFuture and GlobVisitor objects.
     if (!(futureResult instanceof SettableFuture<?>)) {
@@ -207,13 +255,23 @@ public class GlobCache {
     if (error != null) {
       throw new BadGlobException(error + " (in glob pattern '" + pattern + "')");
     }
+    Predicate<Path> directoryPredicate = childDirectoryPredicate;
+    AtomicReference<? extends UnixGlob.FilesystemCalls> filesystemCalls = syscalls;
+    if (persistentGlobCache != null) {
+      PersistentGlobCache.Recorder recorder =
+          persistentGlobCache.newRecorder(
+              packageDirectory, pattern, excludeDirs, childDirectoryPredicate, syscalls.get());
+      recorders.put(Pair.of(pattern, excludeDirs), recorder);
+      directoryPredicate = recorder.directoryPredicate();
+      filesystemCalls = new AtomicReference<>(recorder);
+    }
     try {
       return UnixGlob.forPath(packageDirectory)
           .addPattern(pattern)
           .setExcludeDirectories(excludeDirs)
-          .setDirectoryFilter(childDirectoryPredicate)
+          .setDirectoryFilter(directoryPredicate)
           .setExecutor(globExecutor)
-          .setFilesystemCalls(syscalls)
+          .setFilesystemCalls(filesystemCalls)
           .globAsync();
     } catch (UnixGlob.BadPattern ex) {
       throw new BadGlobException(ex.getMessage());
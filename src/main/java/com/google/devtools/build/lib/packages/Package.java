@@ -1751,9 +1751,10 @@ public class Package {
       }
 
       // Freeze targets and distributions.
+      AttributeContainer.SharedValues sharedValues = new AttributeContainer.SharedValues();
       for (Target t : targets.values()) {
         if (t instanceof Rule) {
-          ((Rule) t).freeze();
+          ((Rule) t).freeze(sharedValues);
         }
       }
       targets = Maps.unmodifiableBiMap(targets);
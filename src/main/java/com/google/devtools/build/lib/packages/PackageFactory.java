@@ -52,6 +52,7 @@ import java.util.Set;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import net.starlark.java.eval.Dict;
 import net.starlark.java.eval.EvalException;
 import net.starlark.java.eval.Module;
@@ -116,6 +117,7 @@ public final class PackageFactory {
   private ForkJoinPool executor;
 
   private int maxDirectoriesToEagerlyVisitInGlobbing;
+  @Nullable private PersistentGlobCache persistentGlobCache;
 
   private final ImmutableList<EnvironmentExtension> environmentExtensions;
   private final ImmutableMap<String, PackageArgument<?>> packageArguments;
@@ -242,6 +244,14 @@ public final class PackageFactory {
     this.maxDirectoriesToEagerlyVisitInGlobbing = maxDirectoriesToEagerlyVisitInGlobbing;
   }
 
+  /**
+   * Sets the cache of glob results across servers that legacy globbing uses, or null to not use
+   * one.
+   */
+  public void setPersistentGlobCache(@Nullable PersistentGlobCache persistentGlobCache) {
+    this.persistentGlobCache = persistentGlobCache;
+  }
+
   /** Returns the immutable, unordered set of names of all the known rule classes. */
   public Set<String> getRuleClassNames() {
     return ruleFactory.getRuleClassNames();
@@ -466,7 +476,8 @@ public final class PackageFactory {
             locator,
             syscalls,
             executor,
-            maxDirectoriesToEagerlyVisitInGlobbing));
+            maxDirectoriesToEagerlyVisitInGlobbing,
+            persistentGlobCache));
   }
 
   /**
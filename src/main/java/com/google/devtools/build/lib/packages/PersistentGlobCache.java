@@ -0,0 +1,587 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * A cache of glob results in a file in the output base, so that a new server doesn't have to
+ * traverse the source tree again to evaluate the globs of unchanged packages.
+ *
+ * <p>Each result is stored together with what the glob observed of the file system: the
+ * modification time and inode of every directory it listed, the type of every path it stat'ed, and
+ * which subdirectories it entered as part of the package. A result is only used if all of these
+ * are unchanged, which costs one stat per directory instead of a listing.
+ *
+ * <p>Results are keyed by the package directory, the pattern and whether directories are excluded.
+ * Excludes are applied to the results of the individual patterns, like for {@link GlobCache}.
+ *
+ * <p>The file is a log of records, each of which sets or removes the result of a key. Loading only
+ * indexes the records by key; a result is decoded when it is first looked up. Saving appends the
+ * results that changed, and only rewrites the file once most of its records are superseded.
+ *
+ * <p>Only globs evaluated by the legacy globber use the cache, and only in non-incremental mode.
+ * In incremental mode, a glob that the legacy globber evaluates on a Skyframe cache miss is also
+ * evaluated as a {@code GlobValue}, which is kept in the Skyframe graph, so the cache would not
+ * save any file system traversal.
+ */
+@ThreadSafe
+public final class PersistentGlobCache {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x474c4f42;
+  private static final int VERSION = 2;
+
+  /** The length of a record that removes the result of its key. */
+  private static final int REMOVED = -1;
+
+  /** The number of superseded records from which the file is rewritten rather than appended to. */
+  private static final int MIN_SUPERSEDED_RECORDS_TO_COMPACT = 1000;
+
+  /**
+   * Directories modified this recently before they were listed are not trusted, because a later
+   * modification within the granularity of the modification time would go unnoticed.
+   */
+  private static final long RACY_MODIFICATION_MILLIS = TimeUnit.SECONDS.toMillis(2);
+
+  private final Path file;
+  private final ConcurrentHashMap<Key, Slot> slots;
+  /** The keys whose result was set or removed since the file was last written. */
+  private final Set<Key> unsaved = ConcurrentHashMap.newKeySet();
+  /** The number of records in the file, including superseded ones. */
+  private int records;
+  /** Whether the file must be rewritten, because it is missing, unreadable or has a bad tail. */
+  private boolean rewrite;
+
+  private PersistentGlobCache(
+      Path file, ConcurrentHashMap<Key, Slot> slots, int records, boolean rewrite) {
+    this.file = file;
+    this.slots = slots;
+    this.records = records;
+    this.rewrite = rewrite;
+  }
+
+  /** Returns the cache stored in {@code file}, or an empty cache if it cannot be read. */
+  public static PersistentGlobCache load(Path file) {
+    ConcurrentHashMap<Key, Slot> slots = new ConcurrentHashMap<>();
+    byte[] contents;
+    try {
+      contents = FileSystemUtils.readContent(file);
+    } catch (FileNotFoundException e) {
+      return new PersistentGlobCache(file, slots, 0, /*rewrite=*/ true);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Ignoring unreadable glob cache %s", file);
+      return new PersistentGlobCache(file, slots, 0, /*rewrite=*/ true);
+    }
+    ByteArrayInputStream bytes = new ByteArrayInputStream(contents);
+    DataInputStream in = new DataInputStream(bytes);
+    int records = 0;
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        logger.atInfo().log("Ignoring glob cache %s of another version", file);
+        return new PersistentGlobCache(file, slots, 0, /*rewrite=*/ true);
+      }
+      while (bytes.available() > 0) {
+        Key key = Key.read(in);
+        int length = in.readInt();
+        int offset = contents.length - bytes.available();
+        if (length == REMOVED) {
+          slots.remove(key);
+        } else if (length < 0 || length > bytes.available()) {
+          throw new IOException("Bad record length " + length + " at " + offset);
+        } else {
+          slots.put(key, new Slot(contents, offset, length));
+          in.skipBytes(length);
+        }
+        records++;
+      }
+    } catch (IOException e) {
+      // Keeps the records before a truncated or corrupt one, which a crash may have left behind.
+      logger.atWarning().withCause(e).log("Ignoring the tail of glob cache %s", file);
+      return new PersistentGlobCache(file, slots, records, /*rewrite=*/ true);
+    }
+    return new PersistentGlobCache(file, slots, records, /*rewrite=*/ false);
+  }
+
+  public Path getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the cached result of a glob, if the parts of the file system that the glob observed are
+   * unchanged.
+   *
+   * @param directoryPredicate the predicate that the glob would use to decide whether to enter a
+   *     subdirectory
+   * @param syscalls the file system calls that the glob would use
+   */
+  @Nullable
+  List<Path> getIfUnchanged(
+      Path packageDirectory,
+      String pattern,
+      boolean excludeDirs,
+      Predicate<Path> directoryPredicate,
+      UnixGlob.FilesystemCalls syscalls) {
+    Key key = new Key(packageDirectory.getPathString(), pattern, excludeDirs);
+    Slot slot = slots.get(key);
+    if (slot == null) {
+      return null;
+    }
+    try {
+      Entry entry = slot.getEntry(packageDirectory.getFileSystem());
+      if (entry.isUnchanged(directoryPredicate, syscalls)) {
+        return entry.result;
+      }
+    } catch (IOException e) {
+      // Evaluate the glob again, which reports the error if it persists, and replaces the record
+      // if it could not be decoded.
+    }
+    if (slots.remove(key, slot)) {
+      unsaved.add(key);
+    }
+    return null;
+  }
+
+  /**
+   * Returns file system calls that record what a glob observes through {@code syscalls}, to be
+   * added to the cache with {@link Recorder#put} once the glob is done.
+   */
+  Recorder newRecorder(
+      Path packageDirectory,
+      String pattern,
+      boolean excludeDirs,
+      Predicate<Path> directoryPredicate,
+      UnixGlob.FilesystemCalls syscalls) {
+    return new Recorder(
+        new Key(packageDirectory.getPathString(), pattern, excludeDirs),
+        directoryPredicate,
+        syscalls);
+  }
+
+  /**
+   * Appends the results that changed since the cache was loaded or last saved to its file, or
+   * rewrites the file if most of its records are superseded.
+   */
+  public synchronized void saveIfModified() throws IOException {
+    int superseded = records + unsaved.size() - slots.size();
+    if (rewrite || superseded >= Math.max(MIN_SUPERSEDED_RECORDS_TO_COMPACT, slots.size())) {
+      compact();
+      return;
+    }
+    if (unsaved.isEmpty()) {
+      return;
+    }
+    ImmutableSet<Key> keys = ImmutableSet.copyOf(unsaved);
+    unsaved.removeAll(keys);
+    // A failed append may leave a partial record, which the next load drops together with the
+    // records after it.
+    rewrite = true;
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(file.getOutputStream(/*append=*/ true), 1 << 16))) {
+      for (Key key : keys) {
+        key.write(out);
+        Slot slot = slots.get(key);
+        if (slot == null) {
+          out.writeInt(REMOVED);
+        } else {
+          byte[] encoded = slot.encode();
+          out.writeInt(encoded.length);
+          out.write(encoded);
+        }
+        records++;
+      }
+    } catch (IOException e) {
+      unsaved.addAll(keys);
+      throw e;
+    }
+    rewrite = false;
+  }
+
+  /**
+   * Writes a new file with only the current results. Results that were not looked up are copied
+   * without being decoded.
+   */
+  private void compact() throws IOException {
+    ImmutableMap<Key, Slot> snapshot = ImmutableMap.copyOf(slots);
+    unsaved.clear();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    ImmutableMap.Builder<Key, int[]> locations = ImmutableMap.builder();
+    for (Map.Entry<Key, Slot> e : snapshot.entrySet()) {
+      e.getKey().write(out);
+      byte[] encoded = e.getValue().encode();
+      out.writeInt(encoded.length);
+      locations.put(e.getKey(), new int[] {out.size(), encoded.length});
+      out.write(encoded);
+    }
+    byte[] contents = bytes.toByteArray();
+    Path tmpFile = file.getParentDirectory().getChild(file.getBaseName() + ".tmp");
+    try {
+      FileSystemUtils.writeContent(tmpFile, contents);
+      tmpFile.renameTo(file);
+    } catch (IOException e) {
+      unsaved.addAll(snapshot.keySet());
+      rewrite = true;
+      throw e;
+    }
+    // Drops the decoded results, and the contents of the old file, from memory.
+    for (Map.Entry<Key, int[]> e : locations.build().entrySet()) {
+      int[] location = e.getValue();
+      slots.replace(
+          e.getKey(), snapshot.get(e.getKey()), new Slot(contents, location[0], location[1]));
+    }
+    records = snapshot.size();
+    rewrite = false;
+  }
+
+  /** A result, which is decoded from the contents of the file when it is first needed. */
+  private static final class Slot {
+    @Nullable private final byte[] contents;
+    private final int offset;
+    private final int length;
+    @Nullable private volatile Entry entry;
+
+    private Slot(byte[] contents, int offset, int length) {
+      this.contents = contents;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private Slot(Entry entry) {
+      this.contents = null;
+      this.offset = 0;
+      this.length = 0;
+      this.entry = entry;
+    }
+
+    private Entry getEntry(FileSystem fileSystem) throws IOException {
+      Entry result = entry;
+      if (result == null) {
+        result =
+            Entry.read(
+                new DataInputStream(new ByteArrayInputStream(contents, offset, length)),
+                fileSystem);
+        entry = result;
+      }
+      return result;
+    }
+
+    private byte[] encode() throws IOException {
+      if (contents != null) {
+        byte[] encoded = new byte[length];
+        System.arraycopy(contents, offset, encoded, 0, length);
+        return encoded;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      entry.write(new DataOutputStream(bytes));
+      return bytes.toByteArray();
+    }
+  }
+
+  private static final class Key {
+    private final String packageDirectory;
+    private final String pattern;
+    private final boolean excludeDirs;
+
+    private Key(String packageDirectory, String pattern, boolean excludeDirs) {
+      this.packageDirectory = packageDirectory;
+      this.pattern = pattern;
+      this.excludeDirs = excludeDirs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) o;
+      return excludeDirs == that.excludeDirs
+          && packageDirectory.equals(that.packageDirectory)
+          && pattern.equals(that.pattern);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(packageDirectory, pattern, excludeDirs);
+    }
+
+    private static Key read(DataInputStream in) throws IOException {
+      return new Key(in.readUTF(), in.readUTF(), in.readBoolean());
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      out.writeUTF(packageDirectory);
+      out.writeUTF(pattern);
+      out.writeBoolean(excludeDirs);
+    }
+  }
+
+  /** A glob result with the observations it depends on. */
+  private static final class Entry {
+    private final ImmutableList<Path> result;
+    private final ImmutableMap<Path, DirectoryState> listedDirectories;
+    private final ImmutableMap<Path, Byte> statTypes;
+    private final ImmutableMap<Path, Byte> followedStatTypes;
+    private final ImmutableMap<Path, Boolean> enteredDirectories;
+
+    private Entry(
+        ImmutableList<Path> result,
+        ImmutableMap<Path, DirectoryState> listedDirectories,
+        ImmutableMap<Path, Byte> statTypes,
+        ImmutableMap<Path, Byte> followedStatTypes,
+        ImmutableMap<Path, Boolean> enteredDirectories) {
+      this.result = result;
+      this.listedDirectories = listedDirectories;
+      this.statTypes = statTypes;
+      this.followedStatTypes = followedStatTypes;
+      this.enteredDirectories = enteredDirectories;
+    }
+
+    private boolean isUnchanged(
+        Predicate<Path> directoryPredicate, UnixGlob.FilesystemCalls syscalls) throws IOException {
+      for (Map.Entry<Path, DirectoryState> e : listedDirectories.entrySet()) {
+        FileStatus stat = syscalls.statIfFound(e.getKey(), Symlinks.FOLLOW);
+        if (stat == null || !e.getValue().matches(stat)) {
+          return false;
+        }
+      }
+      for (Map.Entry<Path, Byte> e : statTypes.entrySet()) {
+        if (typeCode(syscalls.statIfFound(e.getKey(), Symlinks.NOFOLLOW)) != e.getValue()) {
+          return false;
+        }
+      }
+      for (Map.Entry<Path, Byte> e : followedStatTypes.entrySet()) {
+        if (typeCode(syscalls.statIfFound(e.getKey(), Symlinks.FOLLOW)) != e.getValue()) {
+          return false;
+        }
+      }
+      for (Map.Entry<Path, Boolean> e : enteredDirectories.entrySet()) {
+        if (directoryPredicate.apply(e.getKey()) != e.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+      out.writeInt(result.size());
+      for (Path path : result) {
+        out.writeUTF(path.getPathString());
+      }
+      out.writeInt(listedDirectories.size());
+      for (Map.Entry<Path, DirectoryState> e : listedDirectories.entrySet()) {
+        out.writeUTF(e.getKey().getPathString());
+        out.writeLong(e.getValue().lastModifiedTime);
+        out.writeLong(e.getValue().nodeId);
+      }
+      writeTypes(out, statTypes);
+      writeTypes(out, followedStatTypes);
+      out.writeInt(enteredDirectories.size());
+      for (Map.Entry<Path, Boolean> e : enteredDirectories.entrySet()) {
+        out.writeUTF(e.getKey().getPathString());
+        out.writeBoolean(e.getValue());
+      }
+    }
+
+    private static void writeTypes(DataOutputStream out, Map<Path, Byte> types)
+        throws IOException {
+      out.writeInt(types.size());
+      for (Map.Entry<Path, Byte> e : types.entrySet()) {
+        out.writeUTF(e.getKey().getPathString());
+        out.writeByte(e.getValue());
+      }
+    }
+
+    private static Entry read(DataInputStream in, FileSystem fileSystem) throws IOException {
+      int resultSize = in.readInt();
+      ImmutableList.Builder<Path> result = ImmutableList.builderWithExpectedSize(resultSize);
+      for (int i = 0; i < resultSize; i++) {
+        result.add(fileSystem.getPath(in.readUTF()));
+      }
+      int listedSize = in.readInt();
+      ImmutableMap.Builder<Path, DirectoryState> listed =
+          ImmutableMap.builderWithExpectedSize(listedSize);
+      for (int i = 0; i < listedSize; i++) {
+        listed.put(
+            fileSystem.getPath(in.readUTF()), new DirectoryState(in.readLong(), in.readLong()));
+      }
+      ImmutableMap<Path, Byte> statTypes = readTypes(in, fileSystem);
+      ImmutableMap<Path, Byte> followedStatTypes = readTypes(in, fileSystem);
+      int enteredSize = in.readInt();
+      ImmutableMap.Builder<Path, Boolean> entered =
+          ImmutableMap.builderWithExpectedSize(enteredSize);
+      for (int i = 0; i < enteredSize; i++) {
+        entered.put(fileSystem.getPath(in.readUTF()), in.readBoolean());
+      }
+      return new Entry(
+          result.build(), listed.build(), statTypes, followedStatTypes, entered.build());
+    }
+
+    private static ImmutableMap<Path, Byte> readTypes(DataInputStream in, FileSystem fileSystem)
+        throws IOException {
+      int size = in.readInt();
+      ImmutableMap.Builder<Path, Byte> types = ImmutableMap.builderWithExpectedSize(size);
+      for (int i = 0; i < size; i++) {
+        types.put(fileSystem.getPath(in.readUTF()), in.readByte());
+      }
+      return types.build();
+    }
+  }
+
+  private static final class DirectoryState {
+    private final long lastModifiedTime;
+    private final long nodeId;
+
+    private DirectoryState(long lastModifiedTime, long nodeId) {
+      this.lastModifiedTime = lastModifiedTime;
+      this.nodeId = nodeId;
+    }
+
+    private boolean matches(FileStatus stat) throws IOException {
+      return stat.isDirectory()
+          && stat.getLastModifiedTime() == lastModifiedTime
+          && stat.getNodeId() == nodeId;
+    }
+  }
+
+  /** Returns a code for the type of a file that is stable across releases. */
+  private static byte typeCode(@Nullable FileStatus stat) {
+    Dirent.Type type = UnixGlob.statusToDirentType(stat);
+    if (type == null) {
+      return 0;
+    }
+    switch (type) {
+      case FILE:
+        return 1;
+      case DIRECTORY:
+        return 2;
+      case SYMLINK:
+        return 3;
+      case UNKNOWN:
+        return 4;
+    }
+    throw new IllegalStateException(type.toString());
+  }
+
+  /**
+   * File system calls and a directory predicate for a single glob, which record what the glob
+   * observes.
+   *
+   * <p>The calls go through the same file system calls as the glob, so that the recorded states are
+   * those the glob saw, and so that a later lookup shares the stats of the per-build syscall cache.
+   */
+  final class Recorder implements UnixGlob.FilesystemCalls {
+    private final Key key;
+    private final Predicate<Path> directoryPredicate;
+    private final UnixGlob.FilesystemCalls syscalls;
+    private final Map<Path, DirectoryState> listedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, Byte> statTypes = new ConcurrentHashMap<>();
+    private final Map<Path, Byte> followedStatTypes = new ConcurrentHashMap<>();
+    private final Map<Path, Boolean> enteredDirectories = new ConcurrentHashMap<>();
+    private volatile boolean racy;
+
+    private Recorder(
+        Key key, Predicate<Path> directoryPredicate, UnixGlob.FilesystemCalls syscalls) {
+      this.key = key;
+      this.directoryPredicate = directoryPredicate;
+      this.syscalls = syscalls;
+    }
+
+    @Override
+    public Collection<Dirent> readdir(Path path) throws IOException {
+      // The state is recorded before listing the directory, so that a concurrent change is
+      // noticed the next time.
+      long nowMillis = System.currentTimeMillis();
+      FileStatus stat = syscalls.statIfFound(path, Symlinks.FOLLOW);
+      if (stat == null || !stat.isDirectory()) {
+        racy = true;
+      } else {
+        if (stat.getLastModifiedTime() > nowMillis - RACY_MODIFICATION_MILLIS) {
+          racy = true;
+        }
+        listedDirectories.put(
+            path, new DirectoryState(stat.getLastModifiedTime(), stat.getNodeId()));
+      }
+      return syscalls.readdir(path);
+    }
+
+    @Override
+    public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+      FileStatus stat = syscalls.statIfFound(path, symlinks);
+      (symlinks == Symlinks.FOLLOW ? followedStatTypes : statTypes).put(path, typeCode(stat));
+      return stat;
+    }
+
+    @Override
+    public Dirent.Type getType(Path path, Symlinks symlinks) throws IOException {
+      return UnixGlob.statusToDirentType(statIfFound(path, symlinks));
+    }
+
+    /** The directory predicate for the glob, which records the directories it is asked about. */
+    Predicate<Path> directoryPredicate() {
+      return directory -> {
+        boolean entered = directoryPredicate.apply(directory);
+        enteredDirectories.put(directory, entered);
+        return entered;
+      };
+    }
+
+    /** Adds the result of the glob to the cache, unless the glob may have missed a change. */
+    void put(List<Path> result) {
+      if (racy) {
+        return;
+      }
+      slots.put(
+          key,
+          new Slot(
+              new Entry(
+                  ImmutableList.copyOf(result),
+                  ImmutableMap.copyOf(listedDirectories),
+                  ImmutableMap.copyOf(statTypes),
+                  ImmutableMap.copyOf(followedStatTypes),
+                  ImmutableMap.copyOf(enteredDirectories))));
+      unsaved.add(key);
+    }
+  }
+}
@@ -637,8 +637,8 @@ public class Rule implements Target, DependencyFilter.AttributeInfoProvider {
     return transitions;
   }
 
-  void freeze() {
-    attributes = attributes.freeze();
+  void freeze(AttributeContainer.SharedValues sharedValues) {
+    attributes = attributes.freeze(sharedValues);
   }
 
   /**
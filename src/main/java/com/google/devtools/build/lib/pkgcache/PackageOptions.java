@@ -179,6 +179,19 @@ public class PackageOptions extends OptionsBase {
   )
   public int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  @Option(
+      name = "experimental_persistent_glob_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      help =
+          "If enabled, glob results are kept in a file in the output base together with the"
+              + " modification times of the directories they were read from, so that a new server"
+              + " only stats these directories to reuse the results of unchanged globs. Only has an"
+              + " effect with --notrack_incremental_state, since otherwise globs are kept in the"
+              + " Skyframe graph instead.")
+  public boolean persistentGlobCache;
+
   @Option(
     name = "fetch",
     defaultValue = "true",
@@ -0,0 +1,164 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An output stream that compresses its data with gzip on a thread of its own, so that the writing
+ * thread doesn't wait for the compression.
+ *
+ * <p>The data is handed to the compressing thread in a fixed number of preallocated chunks. If the
+ * compression falls behind, the writing thread waits for a free chunk. Not thread-safe: only one
+ * thread may write to the stream.
+ */
+final class BackgroundGzipOutputStream extends OutputStream {
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int CHUNK_COUNT = 8;
+
+  private static final class Chunk {
+    private final byte[] bytes = new byte[CHUNK_SIZE];
+    private int length;
+  }
+
+  /** Tells the compressing thread to finish the stream. */
+  private static final Chunk END = new Chunk();
+
+  private final OutputStream out;
+  private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+  private final BlockingQueue<Chunk> filledChunks = new ArrayBlockingQueue<>(CHUNK_COUNT + 1);
+  private final Thread thread;
+
+  private Chunk current;
+  private boolean closed;
+  private volatile IOException failure;
+
+  BackgroundGzipOutputStream(OutputStream out) {
+    this.out = out;
+    for (int i = 0; i < CHUNK_COUNT - 1; i++) {
+      freeChunks.add(new Chunk());
+    }
+    this.current = new Chunk();
+    this.thread = new Thread(this::compress, "profile-compression-thread");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (current.length == CHUNK_SIZE) {
+      handOff();
+    }
+    current.bytes[current.length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (current.length == CHUNK_SIZE) {
+        handOff();
+      }
+      int copied = Math.min(len, CHUNK_SIZE - current.length);
+      System.arraycopy(b, off, current.bytes, current.length, copied);
+      current.length += copied;
+      off += copied;
+      len -= copied;
+    }
+  }
+
+  /**
+   * Hands the buffered data to the compressing thread. Unlike for other streams, the data may not
+   * have reached the underlying stream yet when this returns.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (current.length > 0) {
+      handOff();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    flush();
+    try {
+      filledChunks.put(END);
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing the profile");
+    }
+    checkFailure();
+  }
+
+  private void handOff() throws IOException {
+    checkFailure();
+    try {
+      filledChunks.put(current);
+      current = freeChunks.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while compressing the profile");
+    }
+    current.length = 0;
+  }
+
+  private void checkFailure() throws IOException {
+    if (failure != null) {
+      throw new IOException("Failed to compress the profile", failure);
+    }
+  }
+
+  private void compress() {
+    GZIPOutputStream gzip = null;
+    try {
+      gzip = new GZIPOutputStream(out, CHUNK_SIZE);
+    } catch (IOException e) {
+      failure = e;
+    }
+    try {
+      Chunk chunk;
+      while ((chunk = filledChunks.take()) != END) {
+        if (failure == null) {
+          try {
+            gzip.write(chunk.bytes, 0, chunk.length);
+          } catch (IOException e) {
+            failure = e;
+          }
+        }
+        // Keep returning the chunks after a failure, so that the writing thread doesn't block.
+        freeChunks.put(chunk);
+      }
+      if (failure == null) {
+        gzip.close();
+      } else {
+        out.close();
+      }
+    } catch (IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    } catch (InterruptedException e) {
+      // The writing thread has given up on the stream.
+    }
+  }
+}
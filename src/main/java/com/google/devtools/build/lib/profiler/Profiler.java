@@ -39,17 +39,19 @@ import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nullable;
 
 /**
  * Blaze internal profiler. Provides facility to report various Blaze tasks and store them
@@ -58,7 +60,7 @@ import java.util.zip.GZIPOutputStream;
  * <p>Implemented as singleton so any caller should use Profiler.instance() to obtain reference.
  *
  * <p>Internally, profiler uses two data structures - ThreadLocal task stack to track nested tasks
- * and single ConcurrentLinkedQueue to gather all completed tasks.
+ * and a ring buffer per thread to hand the completed tasks to the thread writing the profile.
  *
  * <p>Also, due to the nature of the provided functionality (instrumentation of all Blaze
  * components), build.lib.profiler package will be used by almost every other Blaze package, so
@@ -78,8 +80,6 @@ public final class Profiler {
 
   private static final int HISTOGRAM_BUCKETS = 20;
 
-  private static final TaskData POISON_PILL = new TaskData(0, 0, null, "poison pill");
-
   private static final long ACTION_COUNT_BUCKET_MS = 200;
 
   /** File format enum. */
@@ -261,6 +261,9 @@ public final class Profiler {
   private TimeSeries actionCountTimeSeries;
   private long actionCountStartTime;
 
+  /** The resources used by SkyFunctions, if they are being collected. */
+  @Nullable private volatile SkyFunctionResourceUsage skyFunctionResourceUsage;
+
   private Profiler() {
     initHistograms();
     for (ProfilerTask task : ProfilerTask.values()) {
@@ -352,6 +355,8 @@ public final class Profiler {
    *     some tasks may get aggregated if they finished quick enough
    * @param clock a {@code BlazeClock.instance()}
    * @param execStartTimeNanos execution start time in nanos obtained from {@code clock.nanoTime()}
+   * @param collectSkyFunctionResourceUsage iff true, accumulate the CPU time and the allocations of
+   *     the SkyFunction computations, see {@link #getSkyFunctionResourceUsage}
    */
   public synchronized void start(
       ImmutableSet<ProfilerTask> profiledTasks,
@@ -365,10 +370,13 @@ public final class Profiler {
       boolean enabledCpuUsageProfiling,
       boolean slimProfile,
       boolean includePrimaryOutput,
-      boolean includeTargetLabel)
+      boolean includeTargetLabel,
+      boolean collectSkyFunctionResourceUsage)
       throws IOException {
     Preconditions.checkState(!isActive(), "Profiler already active");
     initHistograms();
+    this.skyFunctionResourceUsage =
+        collectSkyFunctionResourceUsage ? SkyFunctionResourceUsage.createIfSupported() : null;
 
     this.profiledTasks = profiledTasks;
     this.clock = clock;
@@ -397,18 +405,20 @@ public final class Profiler {
                   outputBase,
                   buildID,
                   includePrimaryOutput,
-                  includeTargetLabel);
+                  includeTargetLabel,
+                  skyFunctionResourceUsage);
           break;
         case JSON_TRACE_FILE_COMPRESSED_FORMAT:
           writer =
               new JsonTraceFileWriter(
-                  new GZIPOutputStream(stream),
+                  new BackgroundGzipOutputStream(stream),
                   execStartTimeNanos,
                   slimProfile,
                   outputBase,
                   buildID,
                   includePrimaryOutput,
-                  includeTargetLabel);
+                  includeTargetLabel,
+                  skyFunctionResourceUsage);
       }
       writer.start();
     }
@@ -490,6 +500,7 @@ public final class Profiler {
       writer = null;
     }
     initHistograms();
+    skyFunctionResourceUsage = null;
     profileStartTime = 0L;
     profileCpuStartTime = null;
 
@@ -500,6 +511,15 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Returns the accumulated resource usage of the SkyFunctions, or null if it is not being
+   * collected. It is written at the end of the JSON profile.
+   */
+  @Nullable
+  public SkyFunctionResourceUsage getSkyFunctionResourceUsage() {
+    return skyFunctionResourceUsage;
+  }
+
   /**
    *  Returns true iff profiling is currently enabled.
    */
@@ -745,19 +765,46 @@ public final class Profiler {
     }
   }
 
+  /**
+   * Writes the tasks to the profile on a thread of its own.
+   *
+   * <p>Every thread that records tasks hands them to the writer through a ring buffer of its own,
+   * so recording a task neither locks nor allocates. The memory used for the tasks waiting to be
+   * written is bounded: if the writer falls behind, the recording threads wait for it.
+   */
   private abstract static class FileWriter implements Runnable {
-    protected final BlockingQueue<TaskData> queue;
+    /** The number of tasks that each recording thread can have waiting to be written. */
+    private static final int RING_BUFFER_CAPACITY = 4096;
+
+    /** How long the writer sleeps when there is nothing to write. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /** How long a recording thread waits for space in its full ring buffer before looking again. */
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /** A ring buffer and the thread that records tasks into it. */
+    private static final class ThreadRingBuffer {
+      final Thread owner = Thread.currentThread();
+      final SingleProducerRingBuffer<TaskData> tasks =
+          new SingleProducerRingBuffer<>(RING_BUFFER_CAPACITY);
+    }
+
     protected final Thread thread;
     protected IOException savedException;
 
+    private final ThreadLocal<ThreadRingBuffer> ringBuffer = new ThreadLocal<>();
+    private final Queue<ThreadRingBuffer> ringBuffers = new ConcurrentLinkedQueue<>();
+    private volatile boolean shutdownRequested;
+    private volatile boolean finished;
+
     FileWriter() {
-      this.queue = new LinkedBlockingQueue<>();
       this.thread = new Thread(this, "profile-writer-thread");
     }
 
     public void shutdown() throws IOException {
-      // Add poison pill to queue and then wait for writer thread to shut down.
-      queue.add(POISON_PILL);
+      // Let the writer thread write the remaining tasks and then wait for it to shut down.
+      shutdownRequested = true;
+      LockSupport.unpark(thread);
       try {
         thread.join();
       } catch (InterruptedException e) {
@@ -774,7 +821,82 @@ public final class Profiler {
     }
 
     public void enqueue(TaskData data) {
-      queue.add(data);
+      ThreadRingBuffer current = ringBuffer.get();
+      if (current == null) {
+        current = new ThreadRingBuffer();
+        ringBuffer.set(current);
+        ringBuffers.add(current);
+        threadStarted();
+      }
+      put(current, data);
+    }
+
+    /**
+     * Called when the current thread records its first task, before the task is enqueued. May
+     * {@link #enqueue} tasks describing the thread.
+     */
+    protected void threadStarted() {}
+
+    private void put(ThreadRingBuffer current, TaskData data) {
+      while (!current.tasks.offer(data)) {
+        if (finished) {
+          // Nobody will write the task any more.
+          return;
+        }
+        LockSupport.unpark(thread);
+        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+      }
+    }
+
+    /**
+     * Passes the waiting tasks to {@link #writeTasks} until {@link #shutdown} is called, and then
+     * returns after the remaining tasks are passed too. Only called by the writer thread.
+     */
+    protected final void takeTasks(TaskConsumer writeTasks) throws IOException {
+      while (true) {
+        // Read the flag first, so that no task enqueued before the shutdown is left behind.
+        boolean lastRound = shutdownRequested;
+        boolean tookAny = false;
+        Iterator<ThreadRingBuffer> iterator = ringBuffers.iterator();
+        while (iterator.hasNext()) {
+          ThreadRingBuffer current = iterator.next();
+          boolean ownerAlive = current.owner.isAlive();
+          TaskData data;
+          while ((data = current.tasks.poll()) != null) {
+            tookAny = true;
+            writeTasks.accept(data);
+          }
+          if (!ownerAlive) {
+            // The thread of a drained ring buffer that was dead before draining won't add tasks.
+            iterator.remove();
+          }
+        }
+        if (!tookAny) {
+          if (lastRound || Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+      }
+    }
+
+    /** Discards the tasks enqueued until the shutdown, after the profile could not be written. */
+    protected final void discardTasks() {
+      try {
+        takeTasks(data -> {});
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /** Lets the recording threads know that the writer thread is done. */
+    protected final void finish() {
+      finished = true;
+    }
+
+    /** Consumes the tasks taken by {@link #takeTasks}. */
+    protected interface TaskConsumer {
+      void accept(TaskData data) throws IOException;
     }
   }
 
@@ -782,13 +904,12 @@ public final class Profiler {
   private static class JsonTraceFileWriter extends FileWriter {
     private final OutputStream outStream;
     private final long profileStartTimeNanos;
-    private final ThreadLocal<Boolean> metadataPosted =
-        ThreadLocal.withInitial(() -> Boolean.FALSE);
     private final boolean slimProfile;
     private final boolean includePrimaryOutput;
     private final boolean includeTargetLabel;
     private final UUID buildID;
     private final String outputBase;
+    @Nullable private final SkyFunctionResourceUsage skyFunctionResourceUsage;
 
     // The JDK never returns 0 as thread id so we use that as fake thread id for the critical path.
     private static final long CRITICAL_PATH_THREAD_ID = 0;
@@ -820,7 +941,8 @@ public final class Profiler {
         String outputBase,
         UUID buildID,
         boolean includePrimaryOutput,
-        boolean includeTargetLabel) {
+        boolean includeTargetLabel,
+        @Nullable SkyFunctionResourceUsage skyFunctionResourceUsage) {
       this.outStream = outStream;
       this.profileStartTimeNanos = profileStartTimeNanos;
       this.slimProfile = slimProfile;
@@ -828,27 +950,28 @@ public final class Profiler {
       this.outputBase = outputBase;
       this.includePrimaryOutput = includePrimaryOutput;
       this.includeTargetLabel = includeTargetLabel;
+      this.skyFunctionResourceUsage = skyFunctionResourceUsage;
     }
 
+    // Only accessed by the writer thread.
+    private final HashMap<Long, MergedEvent> eventsPerThread = new HashMap<>();
+    private int eventCount = 0;
+
     @Override
-    public void enqueue(TaskData data) {
-      if (!metadataPosted.get()) {
-        metadataPosted.set(Boolean.TRUE);
-        // Create a TaskData object that is special-cased below.
-        queue.add(
-            new TaskData(
-                /* id= */ 0,
-                /* startTimeNanos= */ -1,
-                ProfilerTask.THREAD_NAME,
-                Thread.currentThread().getName()));
-        queue.add(
-            new TaskData(
-                /* id= */ 0,
-                /* startTimeNanos= */ -1,
-                ProfilerTask.THREAD_SORT_INDEX,
-                String.valueOf(getSortIndex(Thread.currentThread().getName()))));
-      }
-      queue.add(data);
+    protected void threadStarted() {
+      // Create TaskData objects that are special-cased below.
+      enqueue(
+          new TaskData(
+              /* id= */ 0,
+              /* startTimeNanos= */ -1,
+              ProfilerTask.THREAD_NAME,
+              Thread.currentThread().getName()));
+      enqueue(
+          new TaskData(
+              /* id= */ 0,
+              /* startTimeNanos= */ -1,
+              ProfilerTask.THREAD_SORT_INDEX,
+              String.valueOf(getSortIndex(Thread.currentThread().getName()))));
     }
 
     private static final class MergedEvent {
@@ -999,6 +1122,21 @@ public final class Profiler {
       return threadName.startsWith("grpc-command");
     }
 
+    private static void writeSkyFunctionResourceUsage(
+        JsonWriter writer, SkyFunctionResourceUsage resourceUsage) throws IOException {
+      writer.name("skyFunctionResourceUsage");
+      writer.beginArray();
+      for (SkyFunctionResourceUsage.Summary summary : resourceUsage.getSummaries()) {
+        writer.beginObject();
+        writer.name("name").value(summary.getName());
+        writer.name("computations").value(summary.getComputations());
+        writer.name("cpuTimeMs").value(TimeUnit.NANOSECONDS.toMillis(summary.getCpuTimeNanos()));
+        writer.name("allocatedBytes").value(summary.getAllocatedBytes());
+        writer.endObject();
+      }
+      writer.endArray();
+    }
+
     private static boolean isGCThread(String threadName) {
       return threadName.equals("Service Thread");
     }
@@ -1011,7 +1149,7 @@ public final class Profiler {
     @Override
     public void run() {
       try {
-        boolean receivedPoisonPill = false;
+        boolean receivedAllTasks = false;
         try (JsonWriter writer =
             new JsonWriter(
                 // The buffer size of 262144 is chosen at random.
@@ -1026,7 +1164,6 @@ public final class Profiler {
           writer.endObject();
           writer.name("traceEvents");
           writer.beginArray();
-          TaskData data;
 
           // Generate metadata event for the critical path as thread 0 in disguise.
           writer.setIndent("  ");
@@ -1055,124 +1192,129 @@ public final class Profiler {
           writer.endObject();
           writer.endObject();
 
-          HashMap<Long, MergedEvent> eventsPerThread = new HashMap<>();
-          int eventCount = 0;
-          while ((data = queue.take()) != POISON_PILL) {
-            Preconditions.checkNotNull(data);
-            eventCount++;
-            if (data.type == ProfilerTask.THREAD_NAME) {
-              writer.setIndent("  ");
-              writer.beginObject();
-              writer.setIndent("");
-              writer.name("name").value("thread_name");
-              writer.name("ph").value("M");
-              writer.name("pid").value(1);
-              writer.name("tid").value(data.threadId);
-              writer.name("args");
-
-              writer.beginObject();
-              writer.name("name").value(getReadableName(data.description));
-              writer.endObject();
-
-              writer.endObject();
-              continue;
-            }
-
-            if (data.type == ProfilerTask.THREAD_SORT_INDEX) {
-              writer.setIndent("  ");
-              writer.beginObject();
-              writer.setIndent("");
-              writer.name("name").value("thread_sort_index");
-              writer.name("ph").value("M");
-              writer.name("pid").value(1);
-              writer.name("tid").value(data.threadId);
-              writer.name("args");
-
-              writer.beginObject();
-              writer.name("sort_index").value(data.description);
-              writer.endObject();
-
-              writer.endObject();
-              continue;
-            }
-
-            if (data.type == ProfilerTask.LOCAL_CPU_USAGE
-                || data.type == ProfilerTask.LOCAL_MEMORY_USAGE
-                || data.type == ProfilerTask.ACTION_COUNTS) {
-              // Skip counts equal to zero. They will show up as a thin line in the profile.
-              if ("0.0".equals(data.description)) {
-                continue;
-              }
-              writer.setIndent("  ");
-              writer.beginObject();
-              writer.setIndent("");
-              writer.name("name").value(data.type.description);
-              if (data.type == ProfilerTask.LOCAL_MEMORY_USAGE) {
-                // Make this more distinct in comparison to other counter colors.
-                writer.name("cname").value("olive");
-              }
-              writer.name("ph").value("C");
-              writer
-                  .name("ts")
-                  .value(
-                      TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
-              writer.name("pid").value(1);
-              writer.name("tid").value(data.threadId);
-              writer.name("args");
-
-              writer.beginObject();
-              switch (data.type) {
-                case LOCAL_CPU_USAGE:
-                  writer.name("cpu").value(data.description);
-                  break;
-                case LOCAL_MEMORY_USAGE:
-                  writer.name("memory").value(data.description);
-                  break;
-                case ACTION_COUNTS:
-                  writer.name("action").value(data.description);
-                  break;
-                default:
-                  // won't happen
-              }
-              writer.endObject();
-
-              writer.endObject();
-              continue;
-            }
-            if (slimProfile
-                && eventCount > SLIM_PROFILE_EVENT_THRESHOLD
-                && data.duration > 0
-                && data.duration < SLIM_PROFILE_MAXIMAL_DURATION_NS
-                && data.type != ProfilerTask.CRITICAL_PATH_COMPONENT) {
-              eventsPerThread.putIfAbsent(data.threadId, new MergedEvent());
-              TaskData taskData = eventsPerThread.get(data.threadId).maybeMerge(data);
-              if (taskData != null) {
-                writeTask(writer, taskData);
-              }
-            } else {
-              writeTask(writer, data);
-            }
-          }
+          takeTasks(data -> writeTaskData(writer, data));
           for (Profiler.JsonTraceFileWriter.MergedEvent value : eventsPerThread.values()) {
             TaskData taskData = value.getAndReset();
             if (taskData != null) {
               writeTask(writer, taskData);
             }
           }
-          receivedPoisonPill = true;
+          receivedAllTasks = true;
           writer.setIndent("  ");
           writer.endArray();
+          if (skyFunctionResourceUsage != null) {
+            writeSkyFunctionResourceUsage(writer, skyFunctionResourceUsage);
+          }
           writer.endObject();
         } catch (IOException e) {
           this.savedException = e;
-          if (!receivedPoisonPill) {
-            while (queue.take() != POISON_PILL) {
-              // We keep emptying the queue, but we can't write anything.
-            }
+          if (!receivedAllTasks) {
+            // We keep emptying the ring buffers, but we can't write anything.
+            discardTasks();
           }
         }
-      } catch (InterruptedException e) {
-        // Exit silently.
+      } finally {
+        finish();
+      }
+    }
+
+    private void writeTaskData(JsonWriter writer, TaskData data) throws IOException {
+      Preconditions.checkNotNull(data);
+      eventCount++;
+      if (data.type == ProfilerTask.THREAD_NAME) {
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.setIndent("");
+        writer.name("name").value("thread_name");
+        writer.name("ph").value("M");
+        writer.name("pid").value(1);
+        writer.name("tid").value(data.threadId);
+        writer.name("args");
+
+        writer.beginObject();
+        writer.name("name").value(getReadableName(data.description));
+        writer.endObject();
+
+        writer.endObject();
+        return;
+      }
+
+      if (data.type == ProfilerTask.THREAD_SORT_INDEX) {
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.setIndent("");
+        writer.name("name").value("thread_sort_index");
+        writer.name("ph").value("M");
+        writer.name("pid").value(1);
+        writer.name("tid").value(data.threadId);
+        writer.name("args");
+
+        writer.beginObject();
+        writer.name("sort_index").value(data.description);
+        writer.endObject();
+
+        writer.endObject();
+        return;
+      }
+
+      if (data.type == ProfilerTask.LOCAL_CPU_USAGE
+          || data.type == ProfilerTask.LOCAL_MEMORY_USAGE
+          || data.type == ProfilerTask.WORKER_MEMORY_USAGE
+          || data.type == ProfilerTask.ACTION_COUNTS) {
+        // Skip counts equal to zero. They will show up as a thin line in the profile.
+        if ("0.0".equals(data.description)) {
+          return;
+        }
+        writer.setIndent("  ");
+        writer.beginObject();
+        writer.setIndent("");
+        writer.name("name").value(data.type.description);
+        if (data.type == ProfilerTask.LOCAL_MEMORY_USAGE) {
+          // Make this more distinct in comparison to other counter colors.
+          writer.name("cname").value("olive");
+        }
+        writer.name("ph").value("C");
+        writer
+            .name("ts")
+            .value(TimeUnit.NANOSECONDS.toMicros(data.startTimeNanos - profileStartTimeNanos));
+        writer.name("pid").value(1);
+        writer.name("tid").value(data.threadId);
+        writer.name("args");
+
+        writer.beginObject();
+        switch (data.type) {
+          case LOCAL_CPU_USAGE:
+            writer.name("cpu").value(data.description);
+            break;
+          case LOCAL_MEMORY_USAGE:
+            writer.name("memory").value(data.description);
+            break;
+          case WORKER_MEMORY_USAGE:
+            writer.name("worker memory").value(data.description);
+            break;
+          case ACTION_COUNTS:
+            writer.name("action").value(data.description);
+            break;
+          default:
+            // won't happen
+        }
+        writer.endObject();
+
+        writer.endObject();
+        return;
+      }
+      if (slimProfile
+          && eventCount > SLIM_PROFILE_EVENT_THRESHOLD
+          && data.duration > 0
+          && data.duration < SLIM_PROFILE_MAXIMAL_DURATION_NS
+          && data.type != ProfilerTask.CRITICAL_PATH_COMPONENT) {
+        eventsPerThread.putIfAbsent(data.threadId, new MergedEvent());
+        TaskData taskData = eventsPerThread.get(data.threadId).maybeMerge(data);
+        if (taskData != null) {
+          writeTask(writer, taskData);
+        }
+      } else {
+        writeTask(writer, data);
       }
     }
   }
@@ -67,6 +67,7 @@ public enum ProfilerTask {
   ACTION_COUNTS("action counters"),
   LOCAL_CPU_USAGE("cpu counters"),
   LOCAL_MEMORY_USAGE("memory counters"),
+  WORKER_MEMORY_USAGE("worker memory counters"),
   STARLARK_PARSER("Starlark Parser", Threshold.FIFTY_MILLIS),
   STARLARK_USER_FN("Starlark user function call", Threshold.FIFTY_MILLIS),
   STARLARK_BUILTIN_FN("Starlark builtin function call", Threshold.FIFTY_MILLIS),
@@ -0,0 +1,76 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
+
+/**
+ * A bounded queue without locks, for exactly one thread that offers elements and one thread that
+ * polls them.
+ *
+ * <p>The slots of the queue are allocated up front, so the queue uses the same amount of memory
+ * however many elements pass through it.
+ */
+final class SingleProducerRingBuffer<T> {
+  private final Object[] slots;
+  private final int mask;
+
+  /** The number of elements polled so far. Only written by the consuming thread. */
+  private final AtomicLong head = new AtomicLong();
+
+  /** The number of elements offered so far. Only written by the producing thread. */
+  private final AtomicLong tail = new AtomicLong();
+
+  /** @param capacity the maximum number of elements in the queue, a power of two */
+  SingleProducerRingBuffer(int capacity) {
+    Preconditions.checkArgument(
+        capacity > 0 && Integer.bitCount(capacity) == 1, "not a power of two: %s", capacity);
+    this.slots = new Object[capacity];
+    this.mask = capacity - 1;
+  }
+
+  /** Adds {@code element}, unless the queue is full. Only called by the producing thread. */
+  boolean offer(T element) {
+    long currentTail = tail.get();
+    if (currentTail - head.get() == slots.length) {
+      return false;
+    }
+    slots[(int) currentTail & mask] = element;
+    // Publishes the element to the consuming thread.
+    tail.lazySet(currentTail + 1);
+    return true;
+  }
+
+  /** Removes the oldest element, or returns null if the queue is empty. */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  T poll() {
+    long currentHead = head.get();
+    if (currentHead == tail.get()) {
+      return null;
+    }
+    int index = (int) currentHead & mask;
+    T element = (T) slots[index];
+    slots[index] = null;
+    // Frees the slot for the producing thread.
+    head.lazySet(currentHead + 1);
+    return element;
+  }
+
+  boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+}
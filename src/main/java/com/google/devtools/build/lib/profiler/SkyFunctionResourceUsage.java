@@ -0,0 +1,149 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static java.util.Comparator.comparingLong;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * Accumulates the CPU time used and the bytes allocated by the threads computing SkyFunctions, by
+ * SkyFunction name.
+ *
+ * <p>The counters of the computing thread are read from the {@link ThreadMXBean} before and after
+ * each computation. These reads are cheap enough to do for every computation, so the totals are
+ * exact rather than sampled.
+ */
+@ThreadSafe
+public final class SkyFunctionResourceUsage {
+
+  /** The resources used by the computations of one SkyFunction. */
+  public static final class Summary {
+    private final String name;
+    private final long computations;
+    private final long cpuTimeNanos;
+    private final long allocatedBytes;
+
+    Summary(String name, long computations, long cpuTimeNanos, long allocatedBytes) {
+      this.name = name;
+      this.computations = computations;
+      this.cpuTimeNanos = cpuTimeNanos;
+      this.allocatedBytes = allocatedBytes;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns how often the SkyFunction was computed, counting each restart. */
+    public long getComputations() {
+      return computations;
+    }
+
+    public long getCpuTimeNanos() {
+      return cpuTimeNanos;
+    }
+
+    public long getAllocatedBytes() {
+      return allocatedBytes;
+    }
+  }
+
+  private static final class Counters {
+    private final LongAdder computations = new LongAdder();
+    private final LongAdder cpuTimeNanos = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+  }
+
+  private final ThreadMXBean threadBean;
+  private final ConcurrentHashMap<String, Counters> countersByName = new ConcurrentHashMap<>();
+
+  private SkyFunctionResourceUsage(ThreadMXBean threadBean) {
+    this.threadBean = threadBean;
+  }
+
+  /**
+   * Returns a new instance, or null if the JVM cannot measure the CPU time and the allocations of
+   * threads.
+   */
+  @Nullable
+  static SkyFunctionResourceUsage createIfSupported() {
+    if (!(ManagementFactory.getThreadMXBean() instanceof ThreadMXBean)) {
+      return null;
+    }
+    ThreadMXBean threadBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+    if (!threadBean.isCurrentThreadCpuTimeSupported()
+        || !threadBean.isThreadAllocatedMemorySupported()) {
+      return null;
+    }
+    if (!threadBean.isThreadCpuTimeEnabled()) {
+      threadBean.setThreadCpuTimeEnabled(true);
+    }
+    if (!threadBean.isThreadAllocatedMemoryEnabled()) {
+      threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+    return new SkyFunctionResourceUsage(threadBean);
+  }
+
+  /** Returns the CPU time used by the current thread so far, for {@link #record}. */
+  public long getCurrentThreadCpuTimeNanos() {
+    return threadBean.getCurrentThreadCpuTime();
+  }
+
+  /** Returns the bytes allocated by the current thread so far, for {@link #record}. */
+  public long getCurrentThreadAllocatedBytes() {
+    return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Adds the resources used by the current thread since the given values of {@link
+   * #getCurrentThreadCpuTimeNanos} and {@link #getCurrentThreadAllocatedBytes} to the SkyFunction
+   * {@code name}.
+   */
+  public void record(String name, long startCpuTimeNanos, long startAllocatedBytes) {
+    long cpuTimeNanos = getCurrentThreadCpuTimeNanos() - startCpuTimeNanos;
+    long allocatedBytes = getCurrentThreadAllocatedBytes() - startAllocatedBytes;
+    Counters counters = countersByName.get(name);
+    if (counters == null) {
+      counters = countersByName.computeIfAbsent(name, k -> new Counters());
+    }
+    counters.computations.increment();
+    counters.cpuTimeNanos.add(cpuTimeNanos);
+    counters.allocatedBytes.add(allocatedBytes);
+  }
+
+  /** Returns the resources used so far by each SkyFunction, most allocating first. */
+  public ImmutableList<Summary> getSummaries() {
+    return countersByName.entrySet().stream()
+        .map(SkyFunctionResourceUsage::toSummary)
+        .sorted(comparingLong(Summary::getAllocatedBytes).reversed())
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private static Summary toSummary(Map.Entry<String, Counters> entry) {
+    Counters counters = entry.getValue();
+    return new Summary(
+        entry.getKey(),
+        counters.computations.sum(),
+        counters.cpuTimeNanos.sum(),
+        counters.allocatedBytes.sum());
+  }
+}
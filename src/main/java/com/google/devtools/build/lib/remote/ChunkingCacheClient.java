@@ -0,0 +1,431 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.FileNode;
+import build.bazel.remote.execution.v2.OutputDirectory;
+import build.bazel.remote.execution.v2.OutputFile;
+import build.bazel.remote.execution.v2.Tree;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FluentFuture;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.common.RemoteActionExecutionContext;
+import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
+import com.google.devtools.build.lib.remote.util.DigestOutputStream;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.Utils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * A {@link RemoteCacheClient} that stores large blobs as content-defined chunks, so that uploading
+ * a blob that is similar to one uploaded before only transfers the chunks that changed.
+ *
+ * <p>The chunks of a blob are stored in the CAS of the underlying cache. Their digests are stored
+ * in order, as the output files of a manifest in the action cache, under a key derived from the
+ * digest of the blob. The blob itself is not stored, and is reassembled from its chunks on
+ * download. Since the remote API has no notion of chunks, this is only suitable for remote caching
+ * without remote execution, where this client is the only reader of the blobs it uploads.
+ *
+ * <p>For the same reason, an action result that references a chunked blob is not stored under its
+ * action key, where other clients would find a result whose outputs are missing from the CAS, but
+ * under a key derived from it. Storing the whole blob as well would defeat the purpose of
+ * chunking. On a miss, looking up an action result therefore takes a second round trip.
+ */
+public final class ChunkingCacheClient implements RemoteCacheClient {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  @VisibleForTesting static final int MIN_CHUNK_SIZE = 128 * 1024;
+  @VisibleForTesting static final int AVG_CHUNK_SIZE = 512 * 1024;
+  @VisibleForTesting static final int MAX_CHUNK_SIZE = 2 * 1024 * 1024;
+
+  /** The maximum number of chunks of a blob that are held in memory and uploaded concurrently. */
+  private static final int MAX_CONCURRENT_CHUNK_UPLOADS = 16;
+
+  private static final String MANIFEST_KEY_PREFIX = "content-defined-chunks:";
+  private static final String RESULT_KEY_PREFIX = "content-defined-chunks-result:";
+
+  private final RemoteCacheClient delegate;
+  private final DigestUtil digestUtil;
+  private final ContentDefinedChunker chunker;
+  private final long minBlobSize;
+  private final boolean verifyDownloads;
+  // Reads and hashes the chunks of blobs being uploaded.
+  private final ListeningExecutorService executor =
+      MoreExecutors.listeningDecorator(
+          Executors.newFixedThreadPool(
+              Runtime.getRuntime().availableProcessors(),
+              new ThreadFactoryBuilder().setNameFormat("remote-chunking-%d").build()));
+
+  /**
+   * @param minBlobSize the size from which blobs are chunked; smaller blobs are passed through to
+   *     {@code delegate} as is.
+   */
+  public ChunkingCacheClient(
+      RemoteCacheClient delegate,
+      DigestUtil digestUtil,
+      ContentDefinedChunker chunker,
+      long minBlobSize,
+      boolean verifyDownloads) {
+    Preconditions.checkArgument(minBlobSize > 0, "minBlobSize must be positive: %s", minBlobSize);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.digestUtil = digestUtil;
+    this.chunker = chunker;
+    this.minBlobSize = minBlobSize;
+    this.verifyDownloads = verifyDownloads;
+  }
+
+  public ChunkingCacheClient(
+      RemoteCacheClient delegate,
+      DigestUtil digestUtil,
+      long minBlobSize,
+      boolean verifyDownloads) {
+    this(
+        delegate,
+        digestUtil,
+        new ContentDefinedChunker(MIN_CHUNK_SIZE, AVG_CHUNK_SIZE, MAX_CHUNK_SIZE),
+        minBlobSize,
+        verifyDownloads);
+  }
+
+  @VisibleForTesting
+  ActionKey manifestKey(Digest digest) {
+    return new ActionKey(
+        digestUtil.computeAsUtf8(MANIFEST_KEY_PREFIX + DigestUtil.toString(digest)));
+  }
+
+  @VisibleForTesting
+  ActionKey chunkedResultKey(ActionKey actionKey) {
+    return new ActionKey(
+        digestUtil.computeAsUtf8(RESULT_KEY_PREFIX + DigestUtil.toString(actionKey.getDigest())));
+  }
+
+  /** Whether the blob with the given digest is stored as chunks, and not in the CAS. */
+  private boolean isChunked(Digest digest) {
+    return digest.getSizeBytes() >= minBlobSize;
+  }
+
+  @Override
+  public ListenableFuture<ActionResult> downloadActionResult(
+      RemoteActionExecutionContext context, ActionKey actionKey, boolean inlineOutErr) {
+    return FluentFuture.from(delegate.downloadActionResult(context, actionKey, inlineOutErr))
+        .catching(CacheNotFoundException.class, (e) -> null, directExecutor())
+        .transformAsync(
+            (actionResult) -> {
+              if (actionResult != null) {
+                return Futures.immediateFuture(actionResult);
+              }
+              return delegate.downloadActionResult(
+                  context, chunkedResultKey(actionKey), inlineOutErr);
+            },
+            directExecutor());
+  }
+
+  @Override
+  public void uploadActionResult(
+      RemoteActionExecutionContext context, ActionKey actionKey, ActionResult actionResult)
+      throws IOException, InterruptedException {
+    if (referencesChunkedBlob(context, actionResult)) {
+      actionKey = chunkedResultKey(actionKey);
+    }
+    delegate.uploadActionResult(context, actionKey, actionResult);
+  }
+
+  private boolean referencesChunkedBlob(
+      RemoteActionExecutionContext context, ActionResult actionResult)
+      throws IOException, InterruptedException {
+    if (isChunked(actionResult.getStdoutDigest()) || isChunked(actionResult.getStderrDigest())) {
+      return true;
+    }
+    for (OutputFile file : actionResult.getOutputFilesList()) {
+      if (isChunked(file.getDigest())) {
+        return true;
+      }
+    }
+    for (OutputDirectory dir : actionResult.getOutputDirectoriesList()) {
+      if (isChunked(dir.getTreeDigest())) {
+        return true;
+      }
+      // The tree has already been uploaded, and is small enough to be in the CAS as is.
+      ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+      Utils.getFromFuture(delegate.downloadBlob(context, dir.getTreeDigest(), treeBytes));
+      Tree tree = Tree.parseFrom(treeBytes.toByteArray());
+      if (referencesChunkedBlob(tree.getRoot())) {
+        return true;
+      }
+      for (Directory child : tree.getChildrenList()) {
+        if (referencesChunkedBlob(child)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean referencesChunkedBlob(Directory dir) {
+    for (FileNode file : dir.getFilesList()) {
+      if (isChunked(file.getDigest())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public ListenableFuture<Void> uploadFile(
+      RemoteActionExecutionContext context, Digest digest, Path file) {
+    if (digest.getSizeBytes() < minBlobSize) {
+      return delegate.uploadFile(context, digest, file);
+    }
+    return uploadChunked(context, digest, FileSystemUtils.asByteSource(file));
+  }
+
+  @Override
+  public ListenableFuture<Void> uploadBlob(
+      RemoteActionExecutionContext context, Digest digest, ByteString data) {
+    if (digest.getSizeBytes() < minBlobSize) {
+      return delegate.uploadBlob(context, digest, data);
+    }
+    return uploadChunked(
+        context,
+        digest,
+        new ByteSource() {
+          @Override
+          public InputStream openStream() {
+            return data.newInput();
+          }
+        });
+  }
+
+  private ListenableFuture<Void> uploadChunked(
+      RemoteActionExecutionContext context, Digest digest, ByteSource source) {
+    ChunkedUpload upload = new ChunkedUpload(context, digest, source);
+    ListenableFuture<Void> future = upload.uploadWindows();
+    future.addListener(upload::close, directExecutor());
+    return future;
+  }
+
+  /**
+   * Uploads a blob as chunks, reading it only once: a window of chunks is read and hashed on the
+   * executor, the missing ones are uploaded, and only then is the next window read.
+   */
+  private final class ChunkedUpload {
+    private final RemoteActionExecutionContext context;
+    private final Digest digest;
+    private final ByteSource source;
+    private final DigestOutputStream blobDigest =
+        digestUtil.newDigestOutputStream(ByteStreams.nullOutputStream());
+    private final ActionResult.Builder manifest = ActionResult.newBuilder();
+    private InputStream in;
+    private ContentDefinedChunker.ChunkReader reader;
+    private boolean closed;
+    private int numUploaded;
+
+    ChunkedUpload(RemoteActionExecutionContext context, Digest digest, ByteSource source) {
+      this.context = context;
+      this.digest = digest;
+      this.source = source;
+    }
+
+    ListenableFuture<Void> uploadWindows() {
+      ListenableFuture<Map<Digest, ByteString>> window = executor.submit(this::readWindow);
+      return FluentFuture.from(window)
+          .transformAsync(
+              (chunks) -> {
+                if (chunks.isEmpty()) {
+                  return uploadManifest();
+                }
+                return Futures.transformAsync(
+                    uploadMissing(chunks), (unused) -> uploadWindows(), directExecutor());
+              },
+              directExecutor());
+    }
+
+    /**
+     * Reads the next {@link #MAX_CONCURRENT_CHUNK_UPLOADS} chunks, or fewer at the end of the blob,
+     * and adds them to the manifest.
+     */
+    private synchronized Map<Digest, ByteString> readWindow() throws IOException {
+      Preconditions.checkState(!closed, "Upload of %s was cancelled", digest);
+      if (reader == null) {
+        in = source.openStream();
+        reader = chunker.newReader(in);
+      }
+      Map<Digest, ByteString> window = new LinkedHashMap<>();
+      for (int i = 0; i < MAX_CONCURRENT_CHUNK_UPLOADS; i++) {
+        int length = reader.next();
+        if (length == 0) {
+          break;
+        }
+        byte[] buf = reader.buffer();
+        blobDigest.write(buf, 0, length);
+        Digest chunk = digestUtil.compute(buf, 0, length);
+        manifest.addOutputFiles(
+            OutputFile.newBuilder()
+                .setPath(Integer.toString(manifest.getOutputFilesCount()))
+                .setDigest(chunk));
+        window.putIfAbsent(chunk, ByteString.copyFrom(buf, 0, length));
+      }
+      return window;
+    }
+
+    private ListenableFuture<Void> uploadMissing(Map<Digest, ByteString> window) {
+      return Futures.transformAsync(
+          delegate.findMissingDigests(context, window.keySet()),
+          (missing) -> {
+            List<ListenableFuture<Void>> uploads = new ArrayList<>(missing.size());
+            for (Digest chunk : missing) {
+              uploads.add(delegate.uploadBlob(context, chunk, window.get(chunk)));
+            }
+            numUploaded += missing.size();
+            return Futures.whenAllSucceed(uploads).call(() -> null, directExecutor());
+          },
+          directExecutor());
+    }
+
+    private ListenableFuture<Void> uploadManifest() throws IOException {
+      Digest actual = blobDigest.digest();
+      if (!actual.equals(digest)) {
+        throw new IOException(
+            String.format(
+                "Blob %s changed during upload, to %s",
+                DigestUtil.toString(digest), DigestUtil.toString(actual)));
+      }
+      return executor.submit(
+          () -> {
+            delegate.uploadActionResult(context, manifestKey(digest), manifest.build());
+            logger.atFine().log(
+                "Uploaded %d of %d chunks of %s",
+                numUploaded, manifest.getOutputFilesCount(), DigestUtil.toString(digest));
+            return null;
+          });
+    }
+
+    synchronized void close() {
+      closed = true;
+      if (in == null) {
+        return;
+      }
+      try {
+        in.close();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to close %s", source);
+      }
+    }
+  }
+
+  @Override
+  public ListenableFuture<Void> downloadBlob(
+      RemoteActionExecutionContext context, Digest digest, OutputStream out) {
+    ListenableFuture<Void> download = delegate.downloadBlob(context, digest, out);
+    if (digest.getSizeBytes() < minBlobSize) {
+      return download;
+    }
+    return Futures.catchingAsync(
+        download,
+        CacheNotFoundException.class,
+        (notFound) ->
+            FluentFuture.from(
+                    delegate.downloadActionResult(
+                        context, manifestKey(digest), /* inlineOutErr= */ false))
+                .catching(CacheNotFoundException.class, (e) -> null, directExecutor())
+                .transformAsync(
+                    (manifest) -> {
+                      if (manifest == null) {
+                        return Futures.immediateFailedFuture(notFound);
+                      }
+                      return downloadChunks(context, digest, manifest, out);
+                    },
+                    directExecutor()),
+        directExecutor());
+  }
+
+  private ListenableFuture<Void> downloadChunks(
+      RemoteActionExecutionContext context,
+      Digest digest,
+      ActionResult manifest,
+      OutputStream out) {
+    ImmutableList.Builder<Digest> chunks = ImmutableList.builder();
+    for (OutputFile file : manifest.getOutputFilesList()) {
+      chunks.add(file.getDigest());
+    }
+    DigestOutputStream digestOut = digestUtil.newDigestOutputStream(out);
+    return FluentFuture.from(downloadChunks(context, chunks.build(), 0, digestOut))
+        .transformAsync(
+            (unused) -> {
+              digestOut.flush();
+              if (verifyDownloads) {
+                Utils.verifyBlobContents(digest, digestOut.digest());
+              }
+              return Futures.immediateFuture(null);
+            },
+            directExecutor());
+  }
+
+  /** Downloads the chunks from {@code index} on, one after the other. */
+  private ListenableFuture<Void> downloadChunks(
+      RemoteActionExecutionContext context,
+      ImmutableList<Digest> chunks,
+      int index,
+      OutputStream out) {
+    if (index == chunks.size()) {
+      return Futures.immediateFuture(null);
+    }
+    return Futures.transformAsync(
+        delegate.downloadBlob(context, chunks.get(index), out),
+        (unused) -> downloadChunks(context, chunks, index + 1, out),
+        directExecutor());
+  }
+
+  @Override
+  public ListenableFuture<ImmutableSet<Digest>> findMissingDigests(
+      RemoteActionExecutionContext context, Iterable<Digest> digests) {
+    // Chunked blobs are reported as missing, so that they are uploaded again through uploadFile or
+    // uploadBlob, which only upload the chunks that are actually missing.
+    return delegate.findMissingDigests(context, digests);
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    delegate.close();
+  }
+}
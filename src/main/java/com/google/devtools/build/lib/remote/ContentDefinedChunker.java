@@ -0,0 +1,160 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits data into chunks at content-defined boundaries, using the FastCDC algorithm with
+ * normalized chunking. Unlike the fixed-size slices of {@link Chunker}, the boundaries only depend
+ * on the bytes around them, so that an insertion or deletion in a large blob only changes the
+ * chunks that overlap the edit.
+ *
+ * <p>The boundaries must be stable across releases, since chunks are shared through the remote
+ * cache. Do not change the gear table or the mask computation.
+ */
+public final class ContentDefinedChunker {
+
+  /** Consumes the chunks found by {@link #split}. */
+  public interface ChunkConsumer {
+    void accept(byte[] buf, int offset, int length) throws IOException;
+  }
+
+  /** Random values for each byte value, mixed into the rolling hash. */
+  private static final long[] GEAR = new long[256];
+
+  static {
+    // splitmix64 with a fixed seed.
+    long state = 0x4641535443444321L;
+    for (int i = 0; i < GEAR.length; i++) {
+      state += 0x9e3779b97f4a7c15L;
+      long z = state;
+      z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+      z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+      GEAR[i] = z ^ (z >>> 31);
+    }
+  }
+
+  private final int minSize;
+  private final int avgSize;
+  private final int maxSize;
+  // Boundaries are harder to hit before the average size, and easier after it, which narrows the
+  // distribution of chunk sizes.
+  private final long smallMask;
+  private final long largeMask;
+
+  /**
+   * @param avgSize the targeted average chunk size, which must be a power of two.
+   */
+  public ContentDefinedChunker(int minSize, int avgSize, int maxSize) {
+    checkArgument(Integer.bitCount(avgSize) == 1, "avgSize must be a power of two: %s", avgSize);
+    checkArgument(
+        0 < minSize && minSize <= avgSize && avgSize <= maxSize,
+        "Bad chunk sizes: %s, %s, %s",
+        minSize,
+        avgSize,
+        maxSize);
+    int bits = Integer.numberOfTrailingZeros(avgSize);
+    checkArgument(bits >= 4, "avgSize too small: %s", avgSize);
+    this.minSize = minSize;
+    this.avgSize = avgSize;
+    this.maxSize = maxSize;
+    this.smallMask = highBits(bits + 2);
+    this.largeMask = highBits(bits - 2);
+  }
+
+  // The gear hash shifts left, so its high bits depend on the most bytes.
+  private static long highBits(int n) {
+    return -1L << (64 - n);
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Returns the length of the first chunk of {@code buf[0, length)}, where {@code length} is either
+   * at least {@link #getMaxSize} or the length of the remaining data.
+   */
+  int cut(byte[] buf, int length) {
+    if (length <= minSize) {
+      return length;
+    }
+    int end = Math.min(length, maxSize);
+    int normal = Math.min(avgSize, end);
+    long hash = 0;
+    int i = minSize;
+    for (; i < normal; i++) {
+      hash = (hash << 1) + GEAR[buf[i] & 0xff];
+      if ((hash & smallMask) == 0) {
+        return i + 1;
+      }
+    }
+    for (; i < end; i++) {
+      hash = (hash << 1) + GEAR[buf[i] & 0xff];
+      if ((hash & largeMask) == 0) {
+        return i + 1;
+      }
+    }
+    return end;
+  }
+
+  /**
+   * Reads {@code in} to the end and passes its chunks to {@code consumer} in order. The buffer
+   * passed to the consumer is reused for the next chunk.
+   */
+  public void split(InputStream in, ChunkConsumer consumer) throws IOException {
+    ChunkReader reader = newReader(in);
+    for (int length = reader.next(); length > 0; length = reader.next()) {
+      consumer.accept(reader.buffer(), 0, length);
+    }
+  }
+
+  /** Returns a reader that yields the chunks of {@code in} one at a time, as they are needed. */
+  public ChunkReader newReader(InputStream in) {
+    return new ChunkReader(in);
+  }
+
+  /** Reads the chunks of a stream on demand. Not thread-safe. */
+  public final class ChunkReader {
+    private final InputStream in;
+    private final byte[] buf = new byte[maxSize];
+    private int filled = 0;
+    private int length = 0;
+
+    private ChunkReader(InputStream in) {
+      this.in = in;
+    }
+
+    /**
+     * Advances to the next chunk, and returns its length, or 0 at the end of the stream. The chunk
+     * is at the start of {@link #buffer}, until the next call.
+     */
+    public int next() throws IOException {
+      System.arraycopy(buf, length, buf, 0, filled - length);
+      filled -= length;
+      filled += ByteStreams.read(in, buf, filled, buf.length - filled);
+      length = filled == 0 ? 0 : cut(buf, filled);
+      return length;
+    }
+
+    public byte[] buffer() {
+      return buf;
+    }
+  }
+}
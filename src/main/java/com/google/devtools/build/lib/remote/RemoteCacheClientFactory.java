@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskAndRemoteCacheClient;
 import com.google.devtools.build.lib.remote.disk.DiskCacheClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheGarbageCollector;
 import com.google.devtools.build.lib.remote.http.HttpCacheClient;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -45,10 +46,16 @@ public final class RemoteCacheClientFactory {
       boolean remoteVerifyDownloads,
       DigestUtil digestUtil,
       RemoteCacheClient remoteCacheClient,
-      RemoteOptions options)
+      RemoteOptions options,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
       throws IOException {
     DiskCacheClient diskCacheClient =
-        createDiskCache(workingDirectory, diskCachePath, remoteVerifyDownloads, digestUtil);
+        createDiskCache(
+            workingDirectory,
+            diskCachePath,
+            remoteVerifyDownloads,
+            digestUtil,
+            diskCacheGarbageCollector);
     return new DiskAndRemoteCacheClient(diskCacheClient, remoteCacheClient, options);
   }
 
@@ -58,17 +65,41 @@ public final class RemoteCacheClientFactory {
       Path workingDirectory,
       DigestUtil digestUtil)
       throws IOException {
+    return create(
+        options, creds, workingDirectory, digestUtil, /* diskCacheGarbageCollector= */ null);
+  }
+
+  /**
+   * Creates a cache client as {@link #create(RemoteOptions, Credentials, Path, DigestUtil)} does,
+   * whose disk cache, if any, reports its accesses to {@code diskCacheGarbageCollector}.
+   */
+  public static RemoteCacheClient create(
+      RemoteOptions options,
+      @Nullable Credentials creds,
+      Path workingDirectory,
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
+      throws IOException {
     Preconditions.checkNotNull(workingDirectory, "workingDirectory");
     if (isHttpCache(options) && isDiskCache(options)) {
       return createDiskAndHttpCache(
-          workingDirectory, options.diskCache, options, creds, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options,
+          creds,
+          digestUtil,
+          diskCacheGarbageCollector);
     }
     if (isHttpCache(options)) {
       return createHttp(options, creds, digestUtil);
     }
     if (isDiskCache(options)) {
       return createDiskCache(
-          workingDirectory, options.diskCache, options.remoteVerifyDownloads, digestUtil);
+          workingDirectory,
+          options.diskCache,
+          options.remoteVerifyDownloads,
+          digestUtil,
+          diskCacheGarbageCollector);
     }
     throw new IllegalArgumentException(
         "Unrecognized RemoteOptions configuration: remote Http cache URL and/or local disk cache"
@@ -96,6 +127,7 @@ public final class RemoteCacheClientFactory {
               uri,
               Math.toIntExact(options.remoteTimeout.getSeconds()),
               options.remoteMaxConnections,
+              options.remoteCacheHttp2,
               options.remoteVerifyDownloads,
               ImmutableList.copyOf(options.remoteHeaders),
               digestUtil,
@@ -108,6 +140,7 @@ public final class RemoteCacheClientFactory {
             uri,
             Math.toIntExact(options.remoteTimeout.getSeconds()),
             options.remoteMaxConnections,
+            options.remoteCacheHttp2,
             options.remoteVerifyDownloads,
             ImmutableList.copyOf(options.remoteHeaders),
             digestUtil,
@@ -122,14 +155,15 @@ public final class RemoteCacheClientFactory {
       Path workingDirectory,
       PathFragment diskCachePath,
       boolean verifyDownloads,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector garbageCollector)
       throws IOException {
     Path cacheDir =
         workingDirectory.getRelative(Preconditions.checkNotNull(diskCachePath, "diskCachePath"));
     if (!cacheDir.exists()) {
       cacheDir.createDirectoryAndParents();
     }
-    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil);
+    return new DiskCacheClient(cacheDir, verifyDownloads, digestUtil, garbageCollector);
   }
 
   private static RemoteCacheClient createDiskAndHttpCache(
@@ -137,7 +171,8 @@ public final class RemoteCacheClientFactory {
       PathFragment diskCachePath,
       RemoteOptions options,
       Credentials cred,
-      DigestUtil digestUtil)
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector)
       throws IOException {
     Path cacheDir =
         workingDirectory.getRelative(Preconditions.checkNotNull(diskCachePath, "diskCachePath"));
@@ -152,7 +187,8 @@ public final class RemoteCacheClientFactory {
         options.remoteVerifyDownloads,
         digestUtil,
         httpCache,
-        options);
+        options,
+        diskCacheGarbageCollector);
   }
 
   public static boolean isDiskCache(RemoteOptions options) {
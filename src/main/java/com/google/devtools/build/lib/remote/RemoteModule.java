@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.bazel.repository.downloader.Downloader;
 import com.google.devtools.build.lib.buildeventstream.BuildEventArtifactUploader;
 import com.google.devtools.build.lib.buildeventstream.LocalFilesArtifactUploader;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.clock.BlazeClock;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.Reporter;
@@ -61,6 +62,7 @@ import com.google.devtools.build.lib.packages.TargetUtils;
 import com.google.devtools.build.lib.remote.RemoteServerCapabilities.ServerCapabilitiesRequirement;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient;
 import com.google.devtools.build.lib.remote.common.RemoteExecutionClient;
+import com.google.devtools.build.lib.remote.disk.DiskCacheGarbageCollector;
 import com.google.devtools.build.lib.remote.downloader.GrpcRemoteDownloader;
 import com.google.devtools.build.lib.remote.logging.LoggingInterceptor;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
@@ -97,12 +99,14 @@ import io.reactivex.rxjava3.plugins.RxJavaPlugins;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
 
 /** RemoteModule provides distributed cache and remote execution for Bazel. */
 public final class RemoteModule extends BlazeModule {
@@ -141,6 +145,9 @@ public final class RemoteModule extends BlazeModule {
 
   private final MutableSupplier<Downloader> remoteDownloaderSupplier = new MutableSupplier<>();
 
+  /** Keeps the --disk_cache directory within its budget, across commands. */
+  @Nullable private DiskCacheGarbageCollector diskCacheGarbageCollector;
+
   @Override
   public void serverInit(OptionsParsingResult startupOptions, ServerBuilder builder) {
     builder.addBuildEventArtifactUploaderFactory(
@@ -194,7 +201,8 @@ public final class RemoteModule extends BlazeModule {
       CommandEnvironment env,
       AuthAndTLSOptions authAndTlsOptions,
       RemoteOptions remoteOptions,
-      DigestUtil digestUtil) {
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector diskCacheGarbageCollector) {
     Credentials creds;
     try {
       creds =
@@ -215,7 +223,8 @@ public final class RemoteModule extends BlazeModule {
               remoteOptions,
               creds,
               Preconditions.checkNotNull(env.getWorkingDirectory(), "workingDirectory"),
-              digestUtil);
+              digestUtil,
+              diskCacheGarbageCollector);
     } catch (IOException e) {
       handleInitFailure(env, e, Code.CACHE_INIT_FAILURE);
       return;
@@ -251,6 +260,10 @@ public final class RemoteModule extends BlazeModule {
     }
 
     boolean enableDiskCache = RemoteCacheClientFactory.isDiskCache(remoteOptions);
+    if (!enableDiskCache) {
+      // Don't keep collecting a directory that this build no longer uses as its disk cache.
+      shutDownDiskCacheGarbageCollector();
+    }
     boolean enableHttpCache = RemoteCacheClientFactory.isHttpCache(remoteOptions);
     boolean enableRemoteExecution = shouldEnableRemoteExecution(remoteOptions);
     // If --remote_cache is empty but --remote_executor is not, endpoint for cache should be the one
@@ -290,8 +303,12 @@ public final class RemoteModule extends BlazeModule {
         env.getOutputBase().getRelative(env.getRuntime().getProductName() + "-remote-logs");
     cleanAndCreateRemoteLogsDir(logDir);
 
+    DiskCacheGarbageCollector diskCacheGarbageCollector =
+        enableDiskCache ? getDiskCacheGarbageCollector(env, remoteOptions) : null;
+
     if ((enableHttpCache || enableDiskCache) && !enableGrpcCache) {
-      initHttpAndDiskCache(env, authAndTlsOptions, remoteOptions, digestUtil);
+      initHttpAndDiskCache(
+          env, authAndTlsOptions, remoteOptions, digestUtil, diskCacheGarbageCollector);
       return;
     }
 
@@ -534,6 +551,14 @@ public final class RemoteModule extends BlazeModule {
               remoteOptions.remoteInstanceName,
               remoteOptions.remoteAcceptCached));
     } else {
+      if (remoteOptions.remoteCacheChunkingThreshold > 0) {
+        cacheClient =
+            new ChunkingCacheClient(
+                cacheClient,
+                digestUtil,
+                remoteOptions.remoteCacheChunkingThreshold,
+                remoteOptions.remoteVerifyDownloads);
+      }
       if (enableDiskCache) {
         try {
           cacheClient =
@@ -543,7 +568,8 @@ public final class RemoteModule extends BlazeModule {
                   remoteOptions.remoteVerifyDownloads,
                   digestUtil,
                   cacheClient,
-                  remoteOptions);
+                  remoteOptions,
+                  diskCacheGarbageCollector);
         } catch (IOException e) {
           handleInitFailure(env, e, Code.CACHE_INIT_FAILURE);
           return;
@@ -570,6 +596,36 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  /**
+   * Returns the garbage collector of the --disk_cache directory, or null if the cache has no
+   * budget. The collector is kept across commands, so that the cache directory is only scanned
+   * again when its location or budget changes.
+   */
+  @Nullable
+  private DiskCacheGarbageCollector getDiskCacheGarbageCollector(
+      CommandEnvironment env, RemoteOptions remoteOptions) {
+    Path cacheDir = env.getWorkingDirectory().getRelative(remoteOptions.diskCache);
+    long maxSize = remoteOptions.diskCacheMaxSize;
+    Duration maxAge = remoteOptions.diskCacheMaxAge;
+    if (diskCacheGarbageCollector != null
+        && !diskCacheGarbageCollector.hasBudget(cacheDir, maxSize, maxAge)) {
+      shutDownDiskCacheGarbageCollector();
+    }
+    if (diskCacheGarbageCollector == null && (maxSize > 0 || !maxAge.isZero())) {
+      diskCacheGarbageCollector =
+          new DiskCacheGarbageCollector(cacheDir, maxSize, maxAge, BlazeClock.instance());
+      diskCacheGarbageCollector.start();
+    }
+    return diskCacheGarbageCollector;
+  }
+
+  private void shutDownDiskCacheGarbageCollector() {
+    if (diskCacheGarbageCollector != null) {
+      diskCacheGarbageCollector.shutdown();
+      diskCacheGarbageCollector = null;
+    }
+  }
+
   private static void handleInitFailure(
       CommandEnvironment env, IOException e, Code remoteExecutionCode) {
     env.getReporter().handle(Event.error(e.getMessage()));
@@ -729,6 +785,11 @@ public final class RemoteModule extends BlazeModule {
     }
   }
 
+  @Override
+  public void blazeShutdown() {
+    shutDownDiskCacheGarbageCollector();
+  }
+
   @Override
   public void afterCommand() throws AbruptExitException {
     IOException failure = null;
@@ -944,6 +1005,12 @@ public final class RemoteModule extends BlazeModule {
     return actionContextProvider;
   }
 
+  @VisibleForTesting
+  @Nullable
+  DiskCacheGarbageCollector getDiskCacheGarbageCollector() {
+    return diskCacheGarbageCollector;
+  }
+
   /**
    * Create a new {@link Credentials} object by parsing the .netrc file with following order to
    * search it:
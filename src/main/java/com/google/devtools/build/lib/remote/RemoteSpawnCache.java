@@ -52,6 +52,7 @@ import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
 import com.google.devtools.build.lib.remote.common.RemoteActionExecutionContext;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -65,7 +66,6 @@ import java.util.Collection;
 import java.util.HashSet;
 import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.SortedMap;
 import javax.annotation.Nullable;
 
 /** A remote {@link SpawnCache} implementation. */
@@ -85,6 +85,7 @@ final class RemoteSpawnCache implements SpawnCache {
   private final Set<String> reportedErrors = new HashSet<>();
 
   private final DigestUtil digestUtil;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
 
   /**
    * If {@link RemoteOutputsMode#TOPLEVEL} is specified it contains the artifacts that should be
@@ -110,6 +111,10 @@ final class RemoteSpawnCache implements SpawnCache {
     this.buildRequestId = buildRequestId;
     this.commandId = commandId;
     this.digestUtil = digestUtil;
+    this.merkleTreeCache =
+        options.remoteMerkleTreeCache
+            ? new MerkleTreeCache(options.remoteMerkleTreeCacheSize, execRoot, digestUtil)
+            : null;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
   }
 
@@ -125,10 +130,18 @@ final class RemoteSpawnCache implements SpawnCache {
 
     Stopwatch totalTime = Stopwatch.createStarted();
 
-    SortedMap<PathFragment, ActionInput> inputMap =
-        context.getInputMapping(PathFragment.create(execRoot.getBaseName()));
-    MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+    PathFragment baseDirectory = PathFragment.create(execRoot.getBaseName());
+    MerkleTree merkleTree;
+    if (merkleTreeCache != null) {
+      merkleTree = merkleTreeCache.buildInputMerkleTree(spawn, context, baseDirectory);
+    } else {
+      merkleTree =
+          MerkleTree.build(
+              context.getInputMapping(baseDirectory),
+              context.getMetadataProvider(),
+              execRoot,
+              digestUtil);
+    }
     SpawnMetrics.Builder spawnMetrics =
         SpawnMetrics.Builder.forRemoteExec()
             .setInputBytes(merkleTree.getInputBytes())
@@ -314,7 +327,7 @@ final class RemoteSpawnCache implements SpawnCache {
         public void close() {}
 
         private void checkForConcurrentModifications() throws IOException {
-          for (ActionInput input : inputMap.values()) {
+          for (ActionInput input : context.getInputMapping(baseDirectory).values()) {
             if (input instanceof VirtualActionInput) {
               continue;
             }
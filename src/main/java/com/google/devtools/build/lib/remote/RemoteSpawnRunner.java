@@ -72,6 +72,7 @@ import com.google.devtools.build.lib.remote.common.RemoteActionExecutionContext;
 import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
 import com.google.devtools.build.lib.remote.common.RemoteExecutionClient;
 import com.google.devtools.build.lib.remote.merkletree.MerkleTree;
+import com.google.devtools.build.lib.remote.merkletree.MerkleTreeCache;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.remote.options.RemoteOutputsMode;
 import com.google.devtools.build.lib.remote.util.DigestUtil;
@@ -122,6 +123,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
   private final String commandId;
   private final DigestUtil digestUtil;
   private final Path logDir;
+  @Nullable private final MerkleTreeCache merkleTreeCache;
 
   /**
    * If {@link RemoteOutputsMode#TOPLEVEL} is specified it contains the artifacts that should be
@@ -158,6 +160,10 @@ public class RemoteSpawnRunner implements SpawnRunner {
     this.retrier = createExecuteRetrier(remoteOptions, retryService);
     this.digestUtil = digestUtil;
     this.logDir = logDir;
+    this.merkleTreeCache =
+        remoteOptions.remoteMerkleTreeCache
+            ? new MerkleTreeCache(remoteOptions.remoteMerkleTreeCacheSize, execRoot, digestUtil)
+            : null;
     this.filesToDownload = Preconditions.checkNotNull(filesToDownload, "filesToDownload");
   }
 
@@ -216,13 +222,21 @@ public class RemoteSpawnRunner implements SpawnRunner {
     // The "root directory" of the action from the point of view of RBE is the parent directory of
     // the execroot locally. This is so that paths of artifacts in external repositories don't
     // start with an uplevel reference...
-    SortedMap<PathFragment, ActionInput> inputMap =
-        context.getInputMapping(PathFragment.create(execRoot.getBaseName()));
+    PathFragment baseDirectory = PathFragment.create(execRoot.getBaseName());
 
     // ...however, MerkleTree.build() uses its execRoot parameter to resolve artifacts based on
     // ActionInput.getExecPath(), so it needs the execroot and not its parent directory.
-    final MerkleTree merkleTree =
-        MerkleTree.build(inputMap, context.getMetadataProvider(), execRoot, digestUtil);
+    final MerkleTree merkleTree;
+    if (merkleTreeCache != null) {
+      merkleTree = merkleTreeCache.buildInputMerkleTree(spawn, context, baseDirectory);
+    } else {
+      merkleTree =
+          MerkleTree.build(
+              context.getInputMapping(baseDirectory),
+              context.getMetadataProvider(),
+              execRoot,
+              digestUtil);
+    }
     SpawnMetrics.Builder spawnMetrics =
         SpawnMetrics.Builder.forRemoteExec()
             .setInputBytes(merkleTree.getInputBytes())
@@ -305,7 +319,6 @@ public class RemoteSpawnRunner implements SpawnRunner {
           remoteActionExecutionContext,
           spawn,
           context,
-          inputMap,
           actionKey,
           action,
           command,
@@ -405,7 +418,6 @@ public class RemoteSpawnRunner implements SpawnRunner {
           remoteActionExecutionContext,
           spawn,
           context,
-          inputMap,
           actionKey,
           action,
           command,
@@ -590,7 +602,6 @@ public class RemoteSpawnRunner implements SpawnRunner {
       RemoteActionExecutionContext remoteActionExecutionContext,
       Spawn spawn,
       SpawnExecutionContext context,
-      SortedMap<PathFragment, ActionInput> inputMap,
       ActionKey actionKey,
       Action action,
       Command command,
@@ -607,7 +618,7 @@ public class RemoteSpawnRunner implements SpawnRunner {
           remoteActionExecutionContext,
           spawn,
           context,
-          inputMap,
+          context.getInputMapping(PathFragment.create(execRoot.getBaseName())),
           actionKey,
           action,
           command,
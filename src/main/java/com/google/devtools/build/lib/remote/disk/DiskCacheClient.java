@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.remote.disk;
 
 import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
@@ -40,14 +41,33 @@ public class DiskCacheClient implements RemoteCacheClient {
   private static final String AC_DIRECTORY = "ac";
   private static final String CAS_DIRECTORY = "cas";
 
+  /** The directories below the cache root that hold cache entries. */
+  static final ImmutableList<String> CACHE_DIRECTORIES =
+      ImmutableList.of(AC_DIRECTORY, CAS_DIRECTORY);
+
   private final Path root;
   private final boolean verifyDownloads;
   private final DigestUtil digestUtil;
+  @Nullable private final DiskCacheGarbageCollector garbageCollector;
 
   public DiskCacheClient(Path root, boolean verifyDownloads, DigestUtil digestUtil) {
+    this(root, verifyDownloads, digestUtil, /* garbageCollector= */ null);
+  }
+
+  /**
+   * Creates a disk cache client that reports every access to {@code garbageCollector}, which keeps
+   * the cache within its budget. The garbage collector is owned by the caller, and usually outlives
+   * the client.
+   */
+  public DiskCacheClient(
+      Path root,
+      boolean verifyDownloads,
+      DigestUtil digestUtil,
+      @Nullable DiskCacheGarbageCollector garbageCollector) {
     this.root = root;
     this.verifyDownloads = verifyDownloads;
     this.digestUtil = digestUtil;
+    this.garbageCollector = garbageCollector;
   }
 
   /** Returns {@code true} if the provided {@code key} is stored in the CAS. */
@@ -64,6 +84,9 @@ public class DiskCacheClient implements RemoteCacheClient {
     Path target = toPath(digest.getHash(), isActionCache);
     target.getParentDirectory().createDirectoryAndParents();
     src.renameTo(target);
+    if (garbageCollector != null) {
+      garbageCollector.recordWrite(target, target.getFileSize());
+    }
   }
 
   private ListenableFuture<Void> download(Digest digest, OutputStream out, boolean isActionCache) {
@@ -73,6 +96,9 @@ public class DiskCacheClient implements RemoteCacheClient {
     } else {
       try (InputStream in = p.getInputStream()) {
         ByteStreams.copy(in, out);
+        if (garbageCollector != null) {
+          garbageCollector.recordAccess(p);
+        }
         return Futures.immediateFuture(null);
       } catch (IOException e) {
         return Futures.immediateFailedFuture(e);
@@ -163,17 +189,24 @@ public class DiskCacheClient implements RemoteCacheClient {
   private void saveFile(String key, InputStream in, boolean actionResult) throws IOException {
     Path target = toPath(key, actionResult);
     if (target.exists()) {
+      if (garbageCollector != null) {
+        garbageCollector.recordAccess(target);
+      }
       return;
     }
     target.getParentDirectory().createDirectoryAndParents();
 
     // Write a temporary file first, and then rename, to avoid data corruption in case of a crash.
     Path temp = toPathNoSplit(UUID.randomUUID().toString());
+    long size;
     try (OutputStream out = temp.getOutputStream()) {
-      ByteStreams.copy(in, out);
+      size = ByteStreams.copy(in, out);
     }
     // TODO(ulfjack): Fsync temp here before we rename it to avoid data loss in the case of machine
     // crashes (the OS may reorder the writes and the rename).
     temp.renameTo(target);
+    if (garbageCollector != null) {
+      garbageCollector.recordWrite(target, size);
+    }
   }
 }
@@ -0,0 +1,403 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Keeps the directory of a {@link DiskCacheClient} within a size and age budget by deleting the
+ * least recently used entries.
+ *
+ * <p>The collector maintains an access-ordered index of the cache entries, which is seeded by a
+ * background scan of the cache directory and kept up to date by {@link #recordAccess} and {@link
+ * #recordWrite}. Whenever the budget is exceeded, a background task deletes entries in small
+ * batches, starting from the least recently used one, until the cache is below {@link
+ * #LOW_WATERMARK} of the maximum size. Builds never wait for a collection.
+ *
+ * <p>A collector is meant to outlive the commands that use the cache: the directory is scanned
+ * once, when the collector is started, and entries that exceed the maximum age are collected
+ * periodically, at a pace given by {@link #getCollectionInterval}, even while no command runs.
+ *
+ * <p>The cache directory may be shared by several Bazel servers. Every access therefore also
+ * updates the modification time of the entry on disk, and entries are re-stat'ed before they are
+ * deleted so that an entry used by another server since it was indexed is kept.
+ */
+public final class DiskCacheGarbageCollector {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** The fraction of the maximum size that a collection shrinks the cache to. */
+  @VisibleForTesting static final double LOW_WATERMARK = 0.9;
+
+  /** The maximum number of entries deleted while holding the index lock. */
+  private static final int BATCH_SIZE = 1000;
+
+  /** Bounds of the interval between two collections of entries that exceed the maximum age. */
+  private static final Duration MIN_COLLECTION_INTERVAL = Duration.ofMinutes(1);
+
+  private static final Duration MAX_COLLECTION_INTERVAL = Duration.ofHours(1);
+
+  private final Path root;
+  private final long maxSizeBytes;
+  private final long maxAgeMillis;
+  private final Clock clock;
+  private final ScheduledExecutorService executorService;
+
+  /** Index of the cache entries in access order, from least to most recently used. */
+  @GuardedBy("this")
+  private LinkedHashMap<Path, Entry> index =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+
+  @GuardedBy("this")
+  private long totalSizeBytes;
+
+  @GuardedBy("this")
+  private boolean started;
+
+  @GuardedBy("this")
+  private boolean scanned;
+
+  @GuardedBy("this")
+  private boolean collectionScheduled;
+
+  private static final class Entry {
+    private final long sizeBytes;
+    private long lastAccessMillis;
+
+    private Entry(long sizeBytes, long lastAccessMillis) {
+      this.sizeBytes = sizeBytes;
+      this.lastAccessMillis = lastAccessMillis;
+    }
+  }
+
+  /**
+   * Creates a new garbage collector for the cache stored at {@code root}.
+   *
+   * @param maxSizeBytes the maximum total size of the cache entries, or 0 for no limit
+   * @param maxAge the maximum time since an entry was last used, or {@link Duration#ZERO} for no
+   *     limit
+   */
+  public DiskCacheGarbageCollector(Path root, long maxSizeBytes, Duration maxAge, Clock clock) {
+    this(
+        root,
+        maxSizeBytes,
+        maxAge,
+        clock,
+        Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                .setNameFormat("disk-cache-gc-%d")
+                .setDaemon(true)
+                .setPriority(Thread.MIN_PRIORITY)
+                .build()));
+  }
+
+  @VisibleForTesting
+  DiskCacheGarbageCollector(
+      Path root,
+      long maxSizeBytes,
+      Duration maxAge,
+      Clock clock,
+      ScheduledExecutorService executorService) {
+    checkArgument(maxSizeBytes >= 0, "maxSizeBytes must not be negative");
+    checkArgument(!maxAge.isNegative(), "maxAge must not be negative");
+    this.root = root;
+    this.maxSizeBytes = maxSizeBytes;
+    this.maxAgeMillis = maxAge.toMillis();
+    this.clock = clock;
+    this.executorService = executorService;
+  }
+
+  /** Returns whether this collector enforces the given budget on the cache at {@code root}. */
+  public boolean hasBudget(Path root, long maxSizeBytes, Duration maxAge) {
+    return this.root.equals(root)
+        && this.maxSizeBytes == maxSizeBytes
+        && this.maxAgeMillis == maxAge.toMillis();
+  }
+
+  /**
+   * Starts indexing the existing cache entries in the background, collects garbage once the index
+   * is complete, and schedules the periodic collection of entries that exceed the maximum age.
+   * Calling this method again has no effect.
+   */
+  public void start() {
+    synchronized (this) {
+      if (started) {
+        return;
+      }
+      started = true;
+    }
+    submit(
+        () -> {
+          scan();
+          collect();
+        });
+    if (maxAgeMillis > 0) {
+      long intervalMillis = getCollectionInterval().toMillis();
+      try {
+        executorService.scheduleWithFixedDelay(
+            this::collect, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Already shut down.
+      }
+    }
+  }
+
+  /**
+   * Returns the delay between two periodic collections: a tenth of the maximum age, but at least a
+   * minute and at most an hour.
+   */
+  @VisibleForTesting
+  Duration getCollectionInterval() {
+    Duration interval = Duration.ofMillis(maxAgeMillis / 10);
+    if (interval.compareTo(MIN_COLLECTION_INTERVAL) < 0) {
+      return MIN_COLLECTION_INTERVAL;
+    }
+    if (interval.compareTo(MAX_COLLECTION_INTERVAL) > 0) {
+      return MAX_COLLECTION_INTERVAL;
+    }
+    return interval;
+  }
+
+  /** Records that the entry at {@code path} was read from the cache. */
+  public void recordAccess(Path path) {
+    long now = clock.currentTimeMillis();
+    synchronized (this) {
+      Entry entry = index.get(path);
+      if (entry != null) {
+        entry.lastAccessMillis = now;
+      }
+    }
+    try {
+      // Let other servers sharing the cache directory see that the entry is in use.
+      path.setLastModifiedTime(now);
+    } catch (IOException e) {
+      // The entry may have been evicted concurrently, there is nothing to keep alive.
+    }
+  }
+
+  /** Records that an entry of {@code sizeBytes} was written to {@code path}. */
+  public void recordWrite(Path path, long sizeBytes) {
+    boolean overBudget;
+    synchronized (this) {
+      Entry previous = index.put(path, new Entry(sizeBytes, clock.currentTimeMillis()));
+      if (previous != null) {
+        totalSizeBytes -= previous.sizeBytes;
+      }
+      totalSizeBytes += sizeBytes;
+      overBudget = scanned && maxSizeBytes > 0 && totalSizeBytes > maxSizeBytes;
+    }
+    if (overBudget) {
+      scheduleCollection();
+    }
+  }
+
+  /** Returns the total size of the indexed cache entries. */
+  public synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  /** Stops any background work. An in-progress collection is interrupted between two batches. */
+  public void shutdown() {
+    executorService.shutdownNow();
+  }
+
+  @VisibleForTesting
+  public boolean isShutdown() {
+    return executorService.isShutdown();
+  }
+
+  private void scheduleCollection() {
+    synchronized (this) {
+      if (collectionScheduled) {
+        return;
+      }
+      collectionScheduled = true;
+    }
+    submit(this::collect);
+  }
+
+  private void submit(Runnable task) {
+    try {
+      executorService.execute(task);
+    } catch (RejectedExecutionException e) {
+      // Shut down, a collector with a different budget took over the cache.
+    }
+  }
+
+  /** Walks the cache directory and merges the entries found into the index. */
+  @VisibleForTesting
+  void scan() {
+    List<ScannedEntry> scannedEntries = new ArrayList<>();
+    try {
+      for (String cacheFolder : DiskCacheClient.CACHE_DIRECTORIES) {
+        Path dir = root.getChild(cacheFolder);
+        if (!dir.isDirectory()) {
+          continue;
+        }
+        for (Dirent prefix : dir.readdir(Symlinks.NOFOLLOW)) {
+          if (prefix.getType() != Dirent.Type.DIRECTORY) {
+            continue;
+          }
+          Path prefixDir = dir.getChild(prefix.getName());
+          for (Dirent file : prefixDir.readdir(Symlinks.NOFOLLOW)) {
+            if (file.getType() != Dirent.Type.FILE) {
+              continue;
+            }
+            Path path = prefixDir.getChild(file.getName());
+            FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+            if (stat != null) {
+              scannedEntries.add(
+                  new ScannedEntry(path, stat.getSize(), stat.getLastModifiedTime()));
+            }
+          }
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+        }
+      }
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to scan disk cache at %s", root);
+    }
+    scannedEntries.sort(Comparator.comparingLong(e -> e.lastModifiedMillis));
+
+    synchronized (this) {
+      // Entries accessed while the scan was running are more recent than any scanned entry.
+      LinkedHashMap<Path, Entry> merged =
+          new LinkedHashMap<>(
+              Math.max(16, (int) ((scannedEntries.size() + index.size()) / 0.75f) + 1),
+              0.75f,
+              /* accessOrder= */ true);
+      long mergedSizeBytes = 0;
+      for (ScannedEntry scannedEntry : scannedEntries) {
+        if (!index.containsKey(scannedEntry.path)) {
+          merged.put(
+              scannedEntry.path,
+              new Entry(scannedEntry.sizeBytes, scannedEntry.lastModifiedMillis));
+          mergedSizeBytes += scannedEntry.sizeBytes;
+        }
+      }
+      for (Map.Entry<Path, Entry> entry : index.entrySet()) {
+        merged.put(entry.getKey(), entry.getValue());
+        mergedSizeBytes += entry.getValue().sizeBytes;
+      }
+      index = merged;
+      totalSizeBytes = mergedSizeBytes;
+      scanned = true;
+    }
+  }
+
+  /** Deletes least recently used entries until the cache is within its budget. */
+  @VisibleForTesting
+  void collect() {
+    synchronized (this) {
+      collectionScheduled = false;
+      if (!scanned) {
+        // The initial scan collects once it is done.
+        return;
+      }
+    }
+    long targetSizeBytes = maxSizeBytes > 0 ? (long) (maxSizeBytes * LOW_WATERMARK) : Long.MAX_VALUE;
+    boolean done = false;
+    // Entries that are kept or fail to be deleted leave the head of the index, so this terminates.
+    while (!done && !Thread.currentThread().isInterrupted()) {
+      List<Path> victims = new ArrayList<>();
+      synchronized (this) {
+        long now = clock.currentTimeMillis();
+        long sizeAfterBatch = totalSizeBytes;
+        Iterator<Map.Entry<Path, Entry>> it = index.entrySet().iterator();
+        while (victims.size() < BATCH_SIZE && it.hasNext()) {
+          Map.Entry<Path, Entry> next = it.next();
+          boolean tooOld =
+              maxAgeMillis > 0 && now - next.getValue().lastAccessMillis > maxAgeMillis;
+          if (!tooOld && sizeAfterBatch <= targetSizeBytes) {
+            break;
+          }
+          victims.add(next.getKey());
+          sizeAfterBatch -= next.getValue().sizeBytes;
+        }
+        done = victims.isEmpty();
+      }
+      for (Path victim : victims) {
+        evict(victim);
+      }
+    }
+  }
+
+  private void evict(Path path) {
+    Entry entry;
+    long lastAccessMillis;
+    synchronized (this) {
+      entry = index.get(path);
+      if (entry == null) {
+        return;
+      }
+      lastAccessMillis = entry.lastAccessMillis;
+    }
+    try {
+      FileStatus stat = path.statIfFound(Symlinks.NOFOLLOW);
+      if (stat != null && stat.getLastModifiedTime() > lastAccessMillis) {
+        // Used by another server sharing the cache since we indexed it.
+        synchronized (this) {
+          entry.lastAccessMillis = stat.getLastModifiedTime();
+        }
+        return;
+      }
+      if (stat != null) {
+        path.delete();
+      }
+    } catch (IOException e) {
+      // Forget about the entry rather than retrying it in every collection.
+      logger.atWarning().withCause(e).log("Failed to evict %s from the disk cache", path);
+    }
+    synchronized (this) {
+      if (index.remove(path, entry)) {
+        totalSizeBytes -= entry.sizeBytes;
+      }
+    }
+  }
+
+  private static final class ScannedEntry {
+    private final Path path;
+    private final long sizeBytes;
+    private final long lastModifiedMillis;
+
+    private ScannedEntry(Path path, long sizeBytes, long lastModifiedMillis) {
+      this.path = path;
+      this.sizeBytes = sizeBytes;
+      this.lastModifiedMillis = lastModifiedMillis;
+    }
+  }
+}
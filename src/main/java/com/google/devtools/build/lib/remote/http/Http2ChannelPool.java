@@ -0,0 +1,279 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.http;
+
+import com.google.common.base.Preconditions;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link ChannelPool} that hands out HTTP/2 streams, multiplexed over a fixed number of
+ * connections.
+ *
+ * <p>Each acquired channel is a new stream, which carries a single request and is closed when it
+ * is released. Cleartext connections use HTTP/2 with prior knowledge (h2c) and TLS connections
+ * negotiate HTTP/2 with ALPN. New streams are assigned to the connections in turn, and streams in
+ * excess of the server's {@code SETTINGS_MAX_CONCURRENT_STREAMS} wait until earlier streams on the
+ * same connection complete.
+ *
+ * <p>Writes to a stream are limited by its flow control window, so that uploads don't buffer more
+ * data than the server accepts. Flushes of the streams on a connection are consolidated, so that
+ * the requests for many small blobs are written together rather than one at a time.
+ */
+final class Http2ChannelPool implements ChannelPool {
+
+  /** The receive window of each stream, so that a download doesn't wait for every 64KiB sent. */
+  private static final int STREAM_WINDOW_SIZE = 1024 * 1024;
+
+  /** The receive window of each connection, shared by all of its streams. */
+  private static final int CONNECTION_WINDOW_SIZE = 16 * 1024 * 1024;
+
+  /** The most flushes of a connection that are consolidated into one. */
+  private static final int MAX_CONSOLIDATED_FLUSHES = 256;
+
+  private final Bootstrap bootstrap;
+  @Nullable private final SslContext sslCtx;
+
+  @GuardedBy("this")
+  private final Future<Channel>[] connections;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  private final AtomicInteger nextConnection = new AtomicInteger();
+
+  /**
+   * @param bootstrap the bootstrap for the connections, whose handler is replaced
+   * @param sslCtx the TLS context, which must negotiate {@link ApplicationProtocolNames#HTTP_2}
+   *     with ALPN, or null to connect without TLS
+   * @param hostname the host name to verify the certificate of the server against
+   * @param port the port of the server
+   * @param connectionCount the number of connections to multiplex the streams over
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  Http2ChannelPool(
+      Bootstrap bootstrap,
+      @Nullable SslContext sslCtx,
+      String hostname,
+      int port,
+      int connectionCount) {
+    Preconditions.checkArgument(connectionCount > 0, "connectionCount must be positive");
+    this.sslCtx = sslCtx;
+    this.connections = new Future[connectionCount];
+    this.bootstrap =
+        bootstrap
+            .clone()
+            .handler(
+                new ChannelInitializer<Channel>() {
+                  @Override
+                  protected void initChannel(Channel ch) {
+                    ChannelPipeline p = ch.pipeline();
+                    if (sslCtx != null) {
+                      p.addLast("ssl-handler", sslCtx.newHandler(ch.alloc(), hostname, port));
+                    }
+                    p.addLast(
+                        new FlushConsolidationHandler(
+                            MAX_CONSOLIDATED_FLUSHES, /* consolidateWhenNoReadInProgress= */ true));
+                    p.addLast(
+                        Http2FrameCodecBuilder.forClient()
+                            .initialSettings(
+                                Http2Settings.defaultSettings()
+                                    .pushEnabled(false)
+                                    .initialWindowSize(STREAM_WINDOW_SIZE))
+                            .encoderEnforceMaxConcurrentStreams(true)
+                            .build());
+                    p.addLast(new ConnectionWindowUpdater());
+                    p.addLast(new Http2MultiplexHandler(new RejectPushedStreams()));
+                  }
+                });
+  }
+
+  /**
+   * Grows the receive window of the connection. The windows of the streams are set by the
+   * initial SETTINGS, but the window of the connection can only grow through a WINDOW_UPDATE
+   * frame, which must follow the connection preface.
+   */
+  private static final class ConnectionWindowUpdater extends ChannelInboundHandlerAdapter {
+    @Override
+    @SuppressWarnings("FutureReturnValueIgnored")
+    public void channelActive(ChannelHandlerContext ctx) {
+      // The codec before this handler has sent the preface when the channel became active.
+      ctx.writeAndFlush(
+          new DefaultHttp2WindowUpdateFrame(
+              CONNECTION_WINDOW_SIZE - Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+      ctx.pipeline().remove(this);
+      ctx.fireChannelActive();
+    }
+  }
+
+  /** Closes the streams that the server opens, as the client disables server push. */
+  private static final class RejectPushedStreams extends ChannelInitializer<Channel> {
+    @Override
+    protected void initChannel(Channel ch) {
+      ch.close();
+    }
+  }
+
+  @Override
+  public Future<Channel> acquire() {
+    return acquire(bootstrap.config().group().next().newPromise());
+  }
+
+  @Override
+  @SuppressWarnings("FutureReturnValueIgnored")
+  public Future<Channel> acquire(Promise<Channel> promise) {
+    Future<Channel> connection;
+    try {
+      int index = Math.floorMod(nextConnection.getAndIncrement(), connections.length);
+      connection = getConnection(index);
+    } catch (IOException e) {
+      return promise.setFailure(e);
+    }
+    connection.addListener(
+        (Future<Channel> connected) -> {
+          if (!connected.isSuccess()) {
+            promise.tryFailure(connected.cause());
+            return;
+          }
+          new Http2StreamChannelBootstrap(connected.getNow())
+              .open()
+              .addListener(
+                  (Future<Http2StreamChannel> opened) -> {
+                    if (opened.isSuccess()) {
+                      promise.trySuccess(opened.getNow());
+                    } else {
+                      promise.tryFailure(opened.cause());
+                    }
+                  });
+        });
+    return promise;
+  }
+
+  /** Returns the connection with the given index, connecting it if it isn't usable anymore. */
+  private synchronized Future<Channel> getConnection(int index) throws IOException {
+    if (closed) {
+      throw new IOException("The channel pool is closed");
+    }
+    Future<Channel> connection = connections[index];
+    if (connection == null || (connection.isDone() && !isUsable(connection))) {
+      connection = connect();
+      connections[index] = connection;
+    }
+    return connection;
+  }
+
+  private static boolean isUsable(Future<Channel> connection) {
+    if (!connection.isSuccess() || !connection.getNow().isActive()) {
+      return false;
+    }
+    Http2FrameCodec codec = connection.getNow().pipeline().get(Http2FrameCodec.class);
+    return codec != null && !codec.connection().goAwayReceived();
+  }
+
+  @SuppressWarnings("FutureReturnValueIgnored")
+  private Future<Channel> connect() {
+    ChannelFuture connectFuture = bootstrap.connect();
+    Channel ch = connectFuture.channel();
+    Promise<Channel> ready = ch.eventLoop().newPromise();
+    connectFuture.addListener(
+        (ChannelFuture connected) -> {
+          if (!connected.isSuccess()) {
+            ready.setFailure(connected.cause());
+            return;
+          }
+          if (sslCtx == null) {
+            ready.setSuccess(ch);
+            return;
+          }
+          SslHandler sslHandler = ch.pipeline().get(SslHandler.class);
+          sslHandler
+              .handshakeFuture()
+              .addListener(
+                  (Future<Channel> handshake) -> {
+                    if (!handshake.isSuccess()) {
+                      ready.setFailure(handshake.cause());
+                    } else if (!ApplicationProtocolNames.HTTP_2.equals(
+                        sslHandler.applicationProtocol())) {
+                      ch.close();
+                      ready.setFailure(
+                          new IOException(
+                              "The remote cache doesn't support HTTP/2, negotiated protocol: "
+                                  + sslHandler.applicationProtocol()));
+                    } else {
+                      ready.setSuccess(ch);
+                    }
+                  });
+        });
+    ready.addListener(
+        (Future<Channel> f) -> {
+          if (!f.isSuccess()) {
+            ch.close();
+          }
+        });
+    return ready;
+  }
+
+  /** Closes the stream. */
+  @Override
+  public Future<Void> release(Channel channel) {
+    return release(channel, channel.eventLoop().newPromise());
+  }
+
+  @Override
+  @SuppressWarnings("FutureReturnValueIgnored")
+  public Future<Void> release(Channel channel, Promise<Void> promise) {
+    channel.close().addListener(f -> promise.trySuccess(null));
+    return promise;
+  }
+
+  @Override
+  @SuppressWarnings("FutureReturnValueIgnored")
+  public synchronized void close() {
+    closed = true;
+    for (Future<Channel> connection : connections) {
+      if (connection != null) {
+        connection.addListener(
+            (Future<Channel> f) -> {
+              if (f.isSuccess()) {
+                f.getNow().close();
+              }
+            });
+      }
+    }
+  }
+}
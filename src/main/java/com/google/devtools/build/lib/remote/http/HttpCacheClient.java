@@ -17,6 +17,7 @@ import build.bazel.remote.execution.v2.ActionResult;
 import build.bazel.remote.execution.v2.Digest;
 import com.google.auth.Credentials;
 import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.flogger.GoogleLogger;
@@ -59,11 +60,19 @@ import io.netty.handler.codec.http.HttpRequestEncoder;
 import io.netty.handler.codec.http.HttpResponse;
 import io.netty.handler.codec.http.HttpResponseDecoder;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
 import io.netty.handler.ssl.OpenSsl;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.handler.timeout.ReadTimeoutException;
 import io.netty.handler.timeout.WriteTimeoutException;
@@ -80,7 +89,7 @@ import java.net.URI;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -91,7 +100,7 @@ import javax.annotation.concurrent.GuardedBy;
 import javax.net.ssl.SSLEngine;
 
 /**
- * Implementation of {@link RemoteCacheClient} that can talk to a HTTP/1.1 backend.
+ * Implementation of {@link RemoteCacheClient} that can talk to a HTTP/1.1 or HTTP/2 backend.
  *
  * <p>Blobs (Binary large objects) are uploaded using the {@code PUT} method. Action cache blobs are
  * stored under the path {@code /ac/base16-key}. CAS (Content Addressable Storage) blobs are stored
@@ -108,6 +117,10 @@ import javax.net.ssl.SSLEngine;
  *
  * <p>TLS is supported and enabled automatically when using HTTPS as the URI scheme.
  *
+ * <p>HTTP/2 is used if requested when the client is created. Then the requests are multiplexed as
+ * streams over a small number of connections, see {@link Http2ChannelPool}. Without TLS, the
+ * server must accept HTTP/2 with prior knowledge (h2c). With TLS, HTTP/2 is negotiated with ALPN.
+ *
  * <p>Uploads do not use {@code Expect: 100-CONTINUE} headers, as this would incur an additional
  * roundtrip for every upload and with little practical value as we would expect most uploads to be
  * accepted.
@@ -122,7 +135,20 @@ public final class HttpCacheClient implements RemoteCacheClient {
   private static final Pattern INVALID_TOKEN_ERROR =
       Pattern.compile("\\s*error\\s*=\\s*\"?invalid_token\"?");
 
-  private final ConcurrentHashMap<String, Boolean> storedBlobs = new ConcurrentHashMap<>();
+  /**
+   * The most blobs that are remembered as uploaded, so that they are not uploaded again. The ones
+   * least recently uploaded or skipped are forgotten first.
+   */
+  private static final int MAX_STORED_BLOBS = 100_000;
+
+  /**
+   * The number of HTTP/2 connections, one per event loop thread. Each one carries many concurrent
+   * requests.
+   */
+  private static final int HTTP2_CONNECTIONS = 2;
+
+  private final ConcurrentMap<String, Boolean> storedBlobs =
+      CacheBuilder.newBuilder().maximumSize(MAX_STORED_BLOBS).<String, Boolean>build().asMap();
 
   private final EventLoopGroup eventLoop;
   private final ChannelPool channelPool;
@@ -130,6 +156,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
   private final int timeoutSeconds;
   private final ImmutableList<Entry<String, String>> extraHttpHeaders;
   private final boolean useTls;
+  private final boolean useHttp2;
   private final boolean verifyDownloads;
   private final DigestUtil digestUtil;
 
@@ -150,6 +177,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       URI uri,
       int timeoutSeconds,
       int remoteMaxConnections,
+      boolean useHttp2,
       boolean verifyDownloads,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
@@ -161,6 +189,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
         uri,
         timeoutSeconds,
         remoteMaxConnections,
+        useHttp2,
         verifyDownloads,
         extraHttpHeaders,
         digestUtil,
@@ -173,6 +202,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       URI uri,
       int timeoutSeconds,
       int remoteMaxConnections,
+      boolean useHttp2,
       boolean verifyDownloads,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
@@ -186,6 +216,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
           uri,
           timeoutSeconds,
           remoteMaxConnections,
+          useHttp2,
           verifyDownloads,
           extraHttpHeaders,
           digestUtil,
@@ -198,6 +229,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
           uri,
           timeoutSeconds,
           remoteMaxConnections,
+          useHttp2,
           verifyDownloads,
           extraHttpHeaders,
           digestUtil,
@@ -214,6 +246,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       URI uri,
       int timeoutSeconds,
       int remoteMaxConnections,
+      boolean useHttp2,
       boolean verifyDownloads,
       ImmutableList<Entry<String, String>> extraHttpHeaders,
       DigestUtil digestUtil,
@@ -221,6 +254,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
       @Nullable SocketAddress socketAddress)
       throws Exception {
     useTls = uri.getScheme().equals("https");
+    this.useHttp2 = useHttp2;
     if (uri.getPort() == -1) {
       int port = useTls ? 443 : 80;
       uri =
@@ -243,7 +277,18 @@ public final class HttpCacheClient implements RemoteCacheClient {
       // OpenSsl gives us a > 2x speed improvement on fast networks, but requires netty tcnative
       // to be there which is not available on all platforms and environments.
       SslProvider sslProvider = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
-      sslCtx = SslContextBuilder.forClient().sslProvider(sslProvider).build();
+      SslContextBuilder sslCtxBuilder = SslContextBuilder.forClient().sslProvider(sslProvider);
+      if (useHttp2) {
+        sslCtxBuilder
+            .ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+            .applicationProtocolConfig(
+                new ApplicationProtocolConfig(
+                    Protocol.ALPN,
+                    SelectorFailureBehavior.NO_ADVERTISE,
+                    SelectedListenerFailureBehavior.ACCEPT,
+                    ApplicationProtocolNames.HTTP_2));
+      }
+      sslCtx = sslCtxBuilder.build();
     } else {
       sslCtx = null;
     }
@@ -275,7 +320,13 @@ public final class HttpCacheClient implements RemoteCacheClient {
             }
           }
         };
-    if (remoteMaxConnections > 0) {
+    if (useHttp2) {
+      int connections =
+          remoteMaxConnections > 0
+              ? Math.min(remoteMaxConnections, HTTP2_CONNECTIONS)
+              : HTTP2_CONNECTIONS;
+      channelPool = new Http2ChannelPool(clientBootstrap, sslCtx, hostname, port, connections);
+    } else if (remoteMaxConnections > 0) {
       channelPool = new FixedChannelPool(clientBootstrap, channelPoolHandler, remoteMaxConnections);
     } else {
       channelPool = new SimpleChannelPool(clientBootstrap, channelPoolHandler);
@@ -312,14 +363,20 @@ public final class HttpCacheClient implements RemoteCacheClient {
                 pipeline.addFirst(
                     "timeout-handler",
                     new IdleTimeoutHandler(timeoutSeconds, WriteTimeoutException.INSTANCE));
-                pipeline.addLast(new HttpResponseDecoder());
+                if (useHttp2) {
+                  pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(/* isServer= */ false));
+                } else {
+                  pipeline.addLast(new HttpResponseDecoder());
+                }
                 // The 10KiB limit was chosen arbitrarily. We only expect HTTP servers to respond
                 // with an error message in the body, and that should always be less than 10KiB. If
                 // the response is larger than 10KiB, HttpUploadHandler will catch the
                 // TooLongFrameException that HttpObjectAggregator throws and convert it to an
                 // IOException.
                 pipeline.addLast(new HttpObjectAggregator(10 * 1024));
-                pipeline.addLast(new HttpRequestEncoder());
+                if (!useHttp2) {
+                  pipeline.addLast(new HttpRequestEncoder());
+                }
                 pipeline.addLast(new ChunkedWriteHandler());
                 synchronized (credentialsLock) {
                   pipeline.addLast(new HttpUploadHandler(creds, extraHttpHeaders));
@@ -344,7 +401,8 @@ public final class HttpCacheClient implements RemoteCacheClient {
 
   @SuppressWarnings("FutureReturnValueIgnored")
   private void releaseUploadChannel(Channel ch) {
-    if (ch.isOpen()) {
+    // An HTTP/2 stream is closed on release, so its handlers needn't be removed.
+    if (ch.isOpen() && !useHttp2) {
       try {
         ch.pipeline().remove(IdleTimeoutHandler.class);
         ch.pipeline().remove(HttpResponseDecoder.class);
@@ -386,7 +444,11 @@ public final class HttpCacheClient implements RemoteCacheClient {
                 pipeline.addFirst(
                     "timeout-handler",
                     new IdleTimeoutHandler(timeoutSeconds, ReadTimeoutException.INSTANCE));
-                pipeline.addLast(new HttpClientCodec());
+                if (useHttp2) {
+                  pipeline.addLast(new Http2StreamFrameToHttpObjectCodec(/* isServer= */ false));
+                } else {
+                  pipeline.addLast(new HttpClientCodec());
+                }
                 pipeline.addLast("inflater", new HttpContentDecompressor());
                 synchronized (credentialsLock) {
                   pipeline.addLast(new HttpDownloadHandler(creds, extraHttpHeaders));
@@ -412,7 +474,7 @@ public final class HttpCacheClient implements RemoteCacheClient {
 
   @SuppressWarnings("FutureReturnValueIgnored")
   private void releaseDownloadChannel(Channel ch) {
-    if (ch.isOpen()) {
+    if (ch.isOpen() && !useHttp2) {
       // The channel might have been closed due to an error, in which case its pipeline
       // has already been cleared. Closed channels can't be reused.
       try {
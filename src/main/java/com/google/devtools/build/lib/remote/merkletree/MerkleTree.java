@@ -21,6 +21,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.profiler.Profiler;
@@ -30,9 +31,13 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.protobuf.ByteString;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.annotation.Nullable;
 
@@ -194,6 +199,133 @@ public class MerkleTree {
         digestDirectoryMap, digestPathMap, rootDigest, tree.numFiles(), inputBytes.get());
   }
 
+  /**
+   * Merges the given merkle trees into a single one, as if the union of their inputs was passed to
+   * {@link #build}. Subtrees that are identical in all merged trees are reused as is, so merging
+   * only computes digests for the directories where the trees differ.
+   *
+   * <p>If several trees contain a file at the same path, the one in the tree that comes last
+   * wins, consistent with the input mapping of a spawn.
+   */
+  public static MerkleTree merge(Collection<MerkleTree> merkleTrees, DigestUtil digestUtil) {
+    List<MerkleTree> nonEmptyTrees = new ArrayList<>(merkleTrees.size());
+    for (MerkleTree merkleTree : merkleTrees) {
+      if (merkleTree.getDirectoryByDigest(merkleTree.getRootDigest()) != null) {
+        nonEmptyTrees.add(merkleTree);
+      }
+    }
+    if (nonEmptyTrees.isEmpty()) {
+      return new MerkleTree(
+          ImmutableMap.of(), ImmutableMap.of(), digestUtil.compute(new byte[0]), 0, 0);
+    }
+    if (nonEmptyTrees.size() == 1) {
+      return nonEmptyTrees.get(0);
+    }
+
+    Map<Digest, Directory> allDirectories = new HashMap<>();
+    Map<Digest, PathOrBytes> allFiles = new HashMap<>();
+    List<Digest> rootDigests = new ArrayList<>(nonEmptyTrees.size());
+    for (MerkleTree merkleTree : nonEmptyTrees) {
+      allDirectories.putAll(merkleTree.digestDirectoryMap);
+      allFiles.putAll(merkleTree.digestFileMap);
+      rootDigests.add(merkleTree.getRootDigest());
+    }
+    Digest rootDigest = mergeDirectories(rootDigests, allDirectories, digestUtil);
+
+    // Only keep the directories and files that are reachable from the new root, and count the
+    // files and bytes of every directory once even if it appears at several paths.
+    Map<Digest, Directory> digestDirectoryMap = new HashMap<>();
+    Map<Digest, PathOrBytes> digestFileMap = new HashMap<>();
+    Map<Digest, long[]> sizes = new HashMap<>();
+    long[] rootSizes =
+        collectReachable(
+            rootDigest, allDirectories, allFiles, digestDirectoryMap, digestFileMap, sizes);
+    return new MerkleTree(
+        digestDirectoryMap,
+        digestFileMap,
+        rootDigest,
+        rootSizes[0],
+        rootSizes[1] + rootDigest.getSizeBytes());
+  }
+
+  /**
+   * Returns the digest of the directory that contains the union of the entries of the directories
+   * with the given digests, adding any newly created directories to {@code directories}.
+   */
+  private static Digest mergeDirectories(
+      List<Digest> digests, Map<Digest, Directory> directories, DigestUtil digestUtil) {
+    if (digests.size() == 1 || Sets.newHashSet(digests).size() == 1) {
+      return digests.get(0);
+    }
+    SortedMap<String, FileNode> files = new TreeMap<>();
+    SortedMap<String, List<Digest>> subdirectories = new TreeMap<>();
+    for (Digest digest : digests) {
+      Directory directory = Preconditions.checkNotNull(directories.get(digest), digest);
+      for (FileNode file : directory.getFilesList()) {
+        files.put(file.getName(), file);
+      }
+      for (DirectoryNode dir : directory.getDirectoriesList()) {
+        subdirectories.computeIfAbsent(dir.getName(), k -> new ArrayList<>()).add(dir.getDigest());
+      }
+    }
+    Directory.Builder b = Directory.newBuilder().addAllFiles(files.values());
+    for (Map.Entry<String, List<Digest>> subdirectory : subdirectories.entrySet()) {
+      Preconditions.checkState(
+          !files.containsKey(subdirectory.getKey()),
+          "%s is both a file and a directory in the merged input trees",
+          subdirectory.getKey());
+      b.addDirectories(
+          DirectoryNode.newBuilder()
+              .setName(subdirectory.getKey())
+              .setDigest(mergeDirectories(subdirectory.getValue(), directories, digestUtil)));
+    }
+    Directory merged = b.build();
+    Digest mergedDigest = digestUtil.compute(merged);
+    directories.put(mergedDigest, merged);
+    return mergedDigest;
+  }
+
+  /**
+   * Copies the directories and files reachable from {@code digest} into {@code
+   * digestDirectoryMap} and {@code digestFileMap}, and returns the number of files and bytes below
+   * it, computed the same way as in {@link #build(DirectoryTree, DigestUtil)}.
+   */
+  private static long[] collectReachable(
+      Digest digest,
+      Map<Digest, Directory> allDirectories,
+      Map<Digest, PathOrBytes> allFiles,
+      Map<Digest, Directory> digestDirectoryMap,
+      Map<Digest, PathOrBytes> digestFileMap,
+      Map<Digest, long[]> sizes) {
+    long[] result = sizes.get(digest);
+    if (result != null) {
+      return result;
+    }
+    Directory directory = Preconditions.checkNotNull(allDirectories.get(digest), digest);
+    digestDirectoryMap.put(digest, directory);
+    long files = directory.getFilesCount();
+    long bytes = 0;
+    for (FileNode file : directory.getFilesList()) {
+      digestFileMap.put(file.getDigest(), allFiles.get(file.getDigest()));
+      bytes += file.getDigest().getSizeBytes();
+    }
+    for (DirectoryNode dir : directory.getDirectoriesList()) {
+      long[] dirSizes =
+          collectReachable(
+              dir.getDigest(),
+              allDirectories,
+              allFiles,
+              digestDirectoryMap,
+              digestFileMap,
+              sizes);
+      files += dirSizes[0];
+      bytes += dirSizes[1] + dir.getDigest().getSizeBytes();
+    }
+    result = new long[] {files, bytes};
+    sizes.put(digest, result);
+    return result;
+  }
+
   private static FileNode buildProto(DirectoryTree.FileNode file) {
     return FileNode.newBuilder()
         .setName(file.getPathSegment())
@@ -0,0 +1,111 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.exec.SpawnInputExpander.InputWalker;
+import com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionContext;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.SilentCloseable;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the input {@link MerkleTree}s of spawns, memoizing the merkle trees of the parts of the
+ * input hierarchy that are shared between spawns.
+ *
+ * <p>Spawns typically share most of their inputs through common {@link
+ * com.google.devtools.build.lib.collect.nestedset.NestedSet} nodes, e.g. the transitive headers of
+ * a C++ library or the classpath of a Java library. Instead of building the merkle tree from the
+ * flat input mapping, this builds a merkle tree per nested set node, caches it, and merges the
+ * merkle trees of the children of a node.
+ *
+ * <p>The cached merkle trees reference the metadata of the inputs at the time they were built, so
+ * an instance must not outlive the build it was created for.
+ */
+public final class MerkleTreeCache {
+
+  private final Cache<Object, MerkleTree> cache;
+  private final Path execRoot;
+  private final DigestUtil digestUtil;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param maximumSize the maximum number of merkle trees to cache, or 0 for a cache whose size is
+   *     only bounded by the available memory
+   */
+  public MerkleTreeCache(long maximumSize, Path execRoot, DigestUtil digestUtil) {
+    Caffeine<Object, Object> builder = Caffeine.newBuilder();
+    if (maximumSize > 0) {
+      builder.maximumSize(maximumSize);
+    } else {
+      builder.softValues();
+    }
+    this.cache = builder.build();
+    this.execRoot = execRoot;
+    this.digestUtil = digestUtil;
+  }
+
+  /**
+   * Returns the merkle tree of the inputs of {@code spawn}, as if built from {@code
+   * context.getInputMapping(baseDirectory)}.
+   */
+  public MerkleTree buildInputMerkleTree(
+      Spawn spawn, SpawnExecutionContext context, PathFragment baseDirectory) throws IOException {
+    try (SilentCloseable c = Profiler.instance().profile("MerkleTreeCache.buildInputMerkleTree")) {
+      MetadataProvider metadataProvider = context.getMetadataProvider();
+      List<MerkleTree> subMerkleTrees = new ArrayList<>();
+      context
+          .getSpawnInputExpander()
+          .walkInputs(
+              spawn,
+              context.getArtifactExpander(),
+              baseDirectory,
+              metadataProvider,
+              (nodeKey, walker) ->
+                  subMerkleTrees.add(getOrBuild(nodeKey, walker, metadataProvider)));
+      return MerkleTree.merge(subMerkleTrees, digestUtil);
+    }
+  }
+
+  private MerkleTree getOrBuild(
+      Object nodeKey, InputWalker walker, MetadataProvider metadataProvider) throws IOException {
+    MerkleTree merkleTree = cache.getIfPresent(nodeKey);
+    if (merkleTree == null) {
+      // Concurrent spawns may build the same merkle tree, but they'll compute the same result.
+      merkleTree = build(walker, metadataProvider);
+      cache.put(nodeKey, merkleTree);
+    }
+    return merkleTree;
+  }
+
+  private MerkleTree build(InputWalker walker, MetadataProvider metadataProvider)
+      throws IOException {
+    List<MerkleTree> subMerkleTrees = new ArrayList<>();
+    subMerkleTrees.add(
+        MerkleTree.build(walker.getLeavesInputMapping(), metadataProvider, execRoot, digestUtil));
+    walker.visitNonLeaves(
+        (subNodeKey, subWalker) ->
+            subMerkleTrees.add(getOrBuild(subNodeKey, subWalker, metadataProvider)));
+    return MerkleTree.merge(subMerkleTrees, digestUtil);
+  }
+}
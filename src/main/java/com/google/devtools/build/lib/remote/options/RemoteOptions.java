@@ -101,6 +101,18 @@ public final class RemoteOptions extends OptionsBase {
               + "TLS. See https://docs.bazel.build/versions/master/remote-caching.html")
   public String remoteCache;
 
+  @Option(
+      name = "experimental_remote_cache_http2",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS},
+      help =
+          "If enabled, Bazel talks HTTP/2 to an http:// or https:// --remote_cache, multiplexing "
+              + "its requests over a few connections instead of sending one request per "
+              + "connection at a time. An http:// cache must accept HTTP/2 without an upgrade "
+              + "(h2c); an https:// cache must negotiate HTTP/2 with ALPN.")
+  public boolean remoteCacheHttp2;
+
   @Option(
       name = "experimental_remote_downloader",
       defaultValue = "null",
@@ -283,6 +295,64 @@ public final class RemoteOptions extends OptionsBase {
               + "If the directory does not exist, it will be created.")
   public PathFragment diskCache;
 
+  @Option(
+      name = "experimental_disk_cache_max_size",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to a positive value, the maximum size in bytes of the --disk_cache directory. "
+              + "Once the limit is exceeded, the least recently used entries are deleted in the "
+              + "background until the cache is back below 90% of the limit.")
+  public long diskCacheMaxSize;
+
+  @Option(
+      name = "experimental_disk_cache_max_age",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to a non-zero duration, entries of the --disk_cache directory that have not been "
+              + "used for longer than this are deleted in the background. Following units can be "
+              + "used: Days (d), hours (h), minutes (m), seconds (s), and milliseconds (ms).")
+  public Duration diskCacheMaxAge;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set to true, Merkle tree calculations will be memoized to improve the remote cache "
+              + "hit checking speed. The memory foot print of the cache is controlled by "
+              + "--experimental_remote_merkle_tree_cache_size.")
+  public boolean remoteMerkleTreeCache;
+
+  @Option(
+      name = "experimental_remote_merkle_tree_cache_size",
+      defaultValue = "1000",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "The number of Merkle trees to memoize when --experimental_remote_merkle_tree_cache is "
+              + "set. If set to 0, the cache is only bounded by the available memory, and entries "
+              + "are dropped when the garbage collector runs low on memory.")
+  public long remoteMerkleTreeCacheSize;
+
+  @Option(
+      name = "experimental_remote_cache_chunking_threshold",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.REMOTE,
+      effectTags = {OptionEffectTag.UNKNOWN},
+      help =
+          "If set to a positive value, blobs of at least this many bytes are split into "
+              + "content-defined chunks when they are uploaded to the remote cache, and only the "
+              + "chunks missing from the cache are uploaded. Such blobs are only stored as chunks, "
+              + "so other clients cannot read them unless they set this flag as well. Requires a "
+              + "cache that accepts action results whose outputs are not in the CAS, and has no "
+              + "effect with remote execution.")
+  public long remoteCacheChunkingThreshold;
+
   @Option(
       name = "experimental_guard_against_concurrent_changes",
       defaultValue = "false",
@@ -55,6 +55,11 @@ public class DigestUtil {
     return buildDigest(hashFn.getHashFunction().hashBytes(blob).toString(), blob.length);
   }
 
+  public Digest compute(byte[] buf, int offset, int length) {
+    return buildDigest(
+        hashFn.getHashFunction().hashBytes(buf, offset, length).toString(), length);
+  }
+
   public Digest compute(Path file) throws IOException {
     return compute(file, file.getFileSize());
   }
@@ -394,7 +394,8 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
             options.enableCpuUsageProfiling,
             options.slimProfile,
             options.includePrimaryOutput,
-            options.profileIncludeTargetLabel);
+            options.profileIncludeTargetLabel,
+            options.profileSkyFunctionResourceUsage);
         // Instead of logEvent() we're calling the low level function to pass the timings we took in
         // the launcher. We're setting the INIT phase marker so that it follows immediately the
         // LAUNCH phase.
@@ -676,6 +677,13 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
       }
     }
 
+    // Started last, since the graph must not change while the snapshot is written.
+    if (commonOptions.skyframeSnapshot
+        && commonOptions.keepStateAfterBuild
+        && !Thread.currentThread().isInterrupted()) {
+      workspace.scheduleGraphSnapshotIfOlderThan(commonOptions.skyframeSnapshotInterval);
+    }
+
     env.getReporter().clearEventBus();
     retainedHeapLimiter.resetEventHandler();
     actionKeyContext.clear();
@@ -715,9 +723,15 @@ public final class BlazeRuntime implements BugReport.BlazeRuntimeInterface {
     return commandMap;
   }
 
-  /** Invokes {@link BlazeModule#blazeShutdown()} on all registered modules. */
+  /**
+   * Writes the Skyframe graph snapshot if requested, and invokes {@link
+   * BlazeModule#blazeShutdown()} on all registered modules.
+   */
   public void shutdown() {
     try {
+      if (workspace != null) {
+        workspace.writeGraphSnapshotIfRequested();
+      }
       for (BlazeModule module : blazeModules) {
         module.blazeShutdown();
       }
@@ -21,11 +21,15 @@ import com.google.common.collect.Range;
 import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.common.flogger.GoogleLogger;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.MappedActionCache;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.BinTools;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
@@ -38,7 +42,11 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.common.options.OptionsParsingResult;
 import com.google.protobuf.Any;
 import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import javax.annotation.Nullable;
 
@@ -67,6 +75,21 @@ public final class BlazeWorkspace {
   private ActionCache actionCache;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
+  /** Whether the last command asked for a Skyframe graph snapshot when the server shuts down. */
+  private volatile boolean writeGraphSnapshotOnShutdown;
+  /** Whether the first command of the server has already considered restoring a snapshot. */
+  private boolean graphSnapshotRestoreAttempted;
+  /** When the Skyframe graph snapshot was last written, or the server started. */
+  private volatile long lastGraphSnapshotMillis;
+  /** Writes the periodic Skyframe graph snapshots while the server is idle. */
+  private final ExecutorService graphSnapshotWriter =
+      Executors.newSingleThreadExecutor(
+          new ThreadFactoryBuilder()
+              .setNameFormat("skyframe-snapshot-writer-%d")
+              .setDaemon(true)
+              .build());
+  /** The periodic snapshot write started after the last command, if any. */
+  @Nullable private Future<?> pendingGraphSnapshotWrite;
 
   private final String outputBaseFilesystemTypeName;
 
@@ -86,6 +109,7 @@ public final class BlazeWorkspace {
 
     this.directories = directories;
     this.skyframeExecutor = skyframeExecutor;
+    this.lastGraphSnapshotMillis = runtime.getClock().currentTimeMillis();
 
     if (directories.inWorkspace()) {
       writeOutputBaseReadmeFile();
@@ -162,6 +186,89 @@ public final class BlazeWorkspace {
     return getOutputBase().getChild("action_cache");
   }
 
+  /** Returns the path of the Skyframe graph snapshot that survives server restarts. */
+  private Path getGraphSnapshotPath() {
+    return getOutputBase().getChild("skyframe_snapshot");
+  }
+
+  void setWriteGraphSnapshotOnShutdown(boolean writeGraphSnapshotOnShutdown) {
+    this.writeGraphSnapshotOnShutdown = writeGraphSnapshotOnShutdown;
+  }
+
+  /**
+   * Restores the Skyframe graph snapshot left behind by the previous server, if this is the first
+   * command of this server and {@code requested}. Later commands never read the snapshot, which is
+   * then only kept up to date for the next server.
+   */
+  void restoreGraphSnapshotIfFirstCommand(ExtendedEventHandler eventHandler, boolean requested)
+      throws InterruptedException {
+    if (graphSnapshotRestoreAttempted) {
+      return;
+    }
+    graphSnapshotRestoreAttempted = true;
+    if (requested) {
+      skyframeExecutor.restoreGraphSnapshot(eventHandler, getGraphSnapshotPath());
+    }
+  }
+
+  /**
+   * Writes the Skyframe graph snapshot for the next server, if the last command asked for it. Must
+   * only be called when no command is running.
+   */
+  void writeGraphSnapshotIfRequested() {
+    cancelGraphSnapshotWrite();
+    if (!writeGraphSnapshotOnShutdown) {
+      return;
+    }
+    try {
+      skyframeExecutor.writeGraphSnapshot(getGraphSnapshotPath());
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to write Skyframe graph snapshot");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Starts writing the Skyframe graph snapshot in the background if the last one was written more
+   * than {@code interval} ago, so that a server that doesn't shut down cleanly leaves a recent
+   * snapshot behind. Must only be called at the end of a command; the next command cancels the
+   * write with {@link #cancelGraphSnapshotWrite} before it touches the graph.
+   */
+  void scheduleGraphSnapshotIfOlderThan(Duration interval) {
+    long now = runtime.getClock().currentTimeMillis();
+    if (interval.isZero() || now - lastGraphSnapshotMillis < interval.toMillis()) {
+      return;
+    }
+    pendingGraphSnapshotWrite =
+        graphSnapshotWriter.submit(
+            () -> {
+              try {
+                skyframeExecutor.writeGraphSnapshot(getGraphSnapshotPath());
+                lastGraphSnapshotMillis = now;
+              } catch (IOException e) {
+                logger.atWarning().withCause(e).log("Failed to write Skyframe graph snapshot");
+              } catch (InterruptedException e) {
+                // Cancelled by the next command. The previous snapshot is left in place.
+              }
+            });
+  }
+
+  /**
+   * Interrupts the background snapshot write, if any, and waits for it to stop, so that the graph
+   * may be modified again. An interrupted write leaves the previous snapshot file unchanged.
+   */
+  private void cancelGraphSnapshotWrite() {
+    if (pendingGraphSnapshotWrite == null) {
+      return;
+    }
+    pendingGraphSnapshotWrite.cancel(/*mayInterruptIfRunning=*/ true);
+    pendingGraphSnapshotWrite = null;
+    // Cancelling doesn't wait for the write to stop, but the single writer thread only runs this
+    // no-op once it did.
+    Futures.getUnchecked(graphSnapshotWriter.submit(() -> {}));
+  }
+
   void recordLastExecutionTime(long commandStartTime) {
     long currentTimeMillis = runtime.getClock().currentTimeMillis();
     lastExecutionRange =
@@ -195,6 +302,7 @@ public final class BlazeWorkspace {
       long waitTimeInMs,
       long commandStartTime,
       List<Any> commandExtensions) {
+    cancelGraphSnapshotWrite();
     CommandEnvironment env =
         new CommandEnvironment(
             runtime,
@@ -238,11 +346,22 @@ public final class BlazeWorkspace {
    * method may recreate instance between different build requests, so return value should not be
    * cached.
    */
-  ActionCache getPersistentActionCache(Reporter reporter) throws IOException {
+  ActionCache getPersistentActionCache(Reporter reporter, boolean useMappedActionCache)
+      throws IOException {
+    if (actionCache != null && (actionCache instanceof MappedActionCache) != useMappedActionCache) {
+      // The other implementation uses separate files, which must be up to date when it is used
+      // again, possibly by another server.
+      try (AutoProfiler p = profiledAndLogged("Saving action cache", ProfilerTask.INFO)) {
+        actionCache.save();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to save action cache before switching it");
+      }
+      actionCache = null;
+    }
     if (actionCache == null) {
       try (AutoProfiler p = profiledAndLogged("Loading action cache", ProfilerTask.INFO)) {
         try {
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(useMappedActionCache);
         } catch (IOException e) {
           logger.atWarning().withCause(e).log("Failed to load action cache");
           LoggingUtil.logToRemote(
@@ -255,13 +374,19 @@ public final class BlazeWorkspace {
                       + getCacheDirectory()
                       + "/*.bad'. "
                       + "Bazel will now reset action cache data, causing a full rebuild"));
-          actionCache = new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+          actionCache = createActionCache(useMappedActionCache);
         }
       }
     }
     return actionCache;
   }
 
+  private ActionCache createActionCache(boolean useMappedActionCache) throws IOException {
+    return useMappedActionCache
+        ? new MappedActionCache(getCacheDirectory(), runtime.getClock())
+        : new CompactPersistentActionCache(getCacheDirectory(), runtime.getClock());
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
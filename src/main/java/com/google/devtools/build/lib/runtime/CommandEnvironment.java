@@ -596,7 +596,8 @@ public class CommandEnvironment {
   }
 
   public ActionCache getPersistentActionCache() throws IOException {
-    return workspace.getPersistentActionCache(reporter);
+    return workspace.getPersistentActionCache(
+        reporter, options.getOptions(CommonCommandOptions.class).useMappedActionCache);
   }
 
   /** Returns the top-down action cache to use, or null. */
@@ -772,6 +773,13 @@ public class CommandEnvironment {
         commonOptions.keepStateAfterBuild, commonOptions.trackIncrementalState,
         viewOptions != null && viewOptions.discardAnalysisCache,
         reporter);
+    workspace.setWriteGraphSnapshotOnShutdown(commonOptions.skyframeSnapshot);
+    try {
+      workspace.restoreGraphSnapshotIfFirstCommand(reporter, commonOptions.skyframeSnapshot);
+    } catch (InterruptedException e) {
+      // The command notices the interrupt later.
+      Thread.currentThread().interrupt();
+    }
 
     // Start the performance and memory profilers.
     runtime.beforeCommand(this, commonOptions);
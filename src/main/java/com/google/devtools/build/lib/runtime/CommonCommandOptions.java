@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Converters.AssignmentConverter;
+import com.google.devtools.common.options.Converters.DurationConverter;
 import com.google.devtools.common.options.EnumConverter;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionDocumentationCategory;
@@ -31,6 +32,7 @@ import com.google.devtools.common.options.OptionMetadataTag;
 import com.google.devtools.common.options.OptionsBase;
 import com.google.devtools.common.options.OptionsParsingException;
 import com.google.devtools.common.options.TriState;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -117,6 +119,46 @@ public class CommonCommandOptions extends OptionsBase {
       help = "Whether profiling slow operations is always turned on")
   public boolean alwaysProfileSlowOperations;
 
+  @Option(
+      name = "experimental_mapped_action_cache",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.BAZEL_INTERNAL_CONFIGURATION},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If enabled, the action cache is stored in memory-mapped files and indexed off-heap "
+              + "instead of being loaded into the Java heap. The two action cache implementations "
+              + "use separate files, so switching between them loses the cached actions.")
+  public boolean useMappedActionCache;
+
+  @Option(
+      name = "experimental_skyframe_snapshot",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "If enabled, the loading and analysis results are written to the output base when the "
+              + "server shuts down, and the next server starts from them instead of an empty "
+              + "graph. Files that changed in the meantime are found by checking all files at "
+              + "the first build.")
+  public boolean skyframeSnapshot;
+
+  @Option(
+      name = "experimental_skyframe_snapshot_interval",
+      defaultValue = "15m",
+      converter = DurationConverter.class,
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {OptionEffectTag.LOADING_AND_ANALYSIS},
+      metadataTags = {OptionMetadataTag.EXPERIMENTAL},
+      help =
+          "With --experimental_skyframe_snapshot, the snapshot is also written in the "
+              + "background after a command if the last one is older than this, so that a server "
+              + "that is killed rather than shut down still leaves a recent snapshot behind. The "
+              + "next command cancels an unfinished write. Zero disables these writes, leaving "
+              + "only the one at shutdown.")
+  public Duration skyframeSnapshotInterval;
+
   /** Converter for UUID. Accepts values as specified by {@link UUID#fromString(String)}. */
   public static class UUIDConverter implements Converter<UUID> {
 
@@ -287,6 +329,17 @@ public class CommonCommandOptions extends OptionsBase {
       help = "Includes target label in action events' JSON profile data.")
   public boolean profileIncludeTargetLabel;
 
+  @Option(
+      name = "experimental_profile_skyfunction_resource_usage",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.LOGGING,
+      effectTags = {OptionEffectTag.AFFECTS_OUTPUTS, OptionEffectTag.BAZEL_MONITORING},
+      help =
+          "If enabled, the CPU time used and the bytes allocated while computing each kind of "
+              + "Skyframe node are summarized at the end of the JSON profile and in the "
+              + "BuildMetrics event of the Build Event Protocol.")
+  public boolean profileSkyFunctionResourceUsage;
+
   @Option(
       name = "experimental_announce_profile_path",
       defaultValue = "false",
@@ -337,6 +337,17 @@ public class SandboxOptions extends OptionsBase {
               + " grows to the size specified by this flag when the server is idle.")
   public int asyncTreeDeleteIdleThreads;
 
+  @Option(
+      name = "experimental_reuse_sandbox_directories",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.EXECUTION_STRATEGY,
+      effectTags = {OptionEffectTag.EXECUTION},
+      help =
+          "If set to true, the execution roots of finished symlinked sandboxes are kept and reused"
+              + " by later actions with the same mnemonic, which only update the symlinks of the"
+              + " inputs that differ instead of creating the whole input tree.")
+  public boolean reuseSandboxDirectories;
+
   @Option(
       name = "experimental_delay_virtual_input_materialization",
       defaultValue = "false",
@@ -0,0 +1,86 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.sandbox;
+
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the execution roots of finished sandboxed spawns, so that later spawns with the same
+ * mnemonic can reuse them instead of creating their input trees from scratch.
+ *
+ * <p>Spawns with the same mnemonic tend to have mostly the same inputs, so that a reused execution
+ * root only needs a few symlinks to be changed. Stashed directories are moved around with renames,
+ * and live under the sandbox base of a single spawn runner, which is deleted after every command.
+ */
+final class SandboxStash {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private final Path stashBase;
+  private final AtomicInteger stashCount = new AtomicInteger();
+  private final Map<String, ConcurrentLinkedDeque<Path>> stashes = new ConcurrentHashMap<>();
+
+  SandboxStash(Path stashBase) {
+    this.stashBase = stashBase;
+  }
+
+  /**
+   * Moves a stashed execution root of a spawn with the given mnemonic to {@code target}, which must
+   * not exist.
+   *
+   * @return whether a stashed directory was moved, otherwise {@code target} was left untouched
+   */
+  boolean takeStashedSandbox(String mnemonic, Path target) {
+    ConcurrentLinkedDeque<Path> stash = stashes.get(mnemonic);
+    if (stash == null) {
+      return false;
+    }
+    Path stashed;
+    // Most recently stashed first, as it is the most likely to be in the file system caches.
+    while ((stashed = stash.pollLast()) != null) {
+      try {
+        stashed.renameTo(target);
+        return true;
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to reuse stashed sandbox %s", stashed);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Moves the execution root {@code sandboxExecRootBase} of a finished spawn into the stash.
+   *
+   * @return whether the directory was stashed, otherwise the caller still needs to delete it
+   */
+  boolean stashSandbox(String mnemonic, Path sandboxExecRootBase) {
+    Path target =
+        stashBase.getRelative(mnemonic).getChild(Integer.toString(stashCount.incrementAndGet()));
+    try {
+      target.getParentDirectory().createDirectoryAndParents();
+      sandboxExecRootBase.renameTo(target);
+    } catch (IOException e) {
+      logger.atWarning().withCause(e).log("Failed to stash sandbox %s", sandboxExecRootBase);
+      return false;
+    }
+    stashes.computeIfAbsent(mnemonic, m -> new ConcurrentLinkedDeque<>()).addLast(target);
+    return true;
+  }
+}
@@ -14,11 +14,18 @@
 
 package com.google.devtools.build.lib.sandbox;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.exec.TreeDeleter;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxInputs;
 import com.google.devtools.build.lib.sandbox.SandboxHelpers.SandboxOutputs;
+import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,9 +34,22 @@ import javax.annotation.Nullable;
 /**
  * Creates an execRoot for a Spawn that contains input files as symlinks to their original
  * destination.
+ *
+ * <p>If a {@link SandboxStash} is given, the execRoot of a finished spawn with the same mnemonic is
+ * reused: the symlinks that already point to the right inputs are kept, everything else in it is
+ * deleted, and only the missing inputs are created.
  */
 public class SymlinkedSandboxedSpawn extends AbstractContainerizingSandboxedSpawn {
 
+  private final SandboxInputs inputs;
+  private final SandboxOutputs outputs;
+  private final Set<Path> writableDirs;
+  @Nullable private final SandboxStash stash;
+  private final String mnemonic;
+
+  /** Inputs that are already in place in a reused execRoot. */
+  private Set<Path> inputsInPlace = ImmutableSet.of();
+
   public SymlinkedSandboxedSpawn(
       Path sandboxPath,
       Path sandboxExecRoot,
@@ -40,6 +60,32 @@ public class SymlinkedSandboxedSpawn extends AbstractContainerizingSandboxedSpaw
       Set<Path> writableDirs,
       TreeDeleter treeDeleter,
       @Nullable Path statisticsPath) {
+    this(
+        sandboxPath,
+        sandboxExecRoot,
+        arguments,
+        environment,
+        inputs,
+        outputs,
+        writableDirs,
+        treeDeleter,
+        statisticsPath,
+        /*stash=*/ null,
+        /*mnemonic=*/ "");
+  }
+
+  public SymlinkedSandboxedSpawn(
+      Path sandboxPath,
+      Path sandboxExecRoot,
+      List<String> arguments,
+      Map<String, String> environment,
+      SandboxInputs inputs,
+      SandboxOutputs outputs,
+      Set<Path> writableDirs,
+      TreeDeleter treeDeleter,
+      @Nullable Path statisticsPath,
+      @Nullable SandboxStash stash,
+      String mnemonic) {
     super(
         sandboxPath,
         sandboxExecRoot,
@@ -50,6 +96,125 @@ public class SymlinkedSandboxedSpawn extends AbstractContainerizingSandboxedSpaw
         writableDirs,
         treeDeleter,
         statisticsPath);
+    this.inputs = inputs;
+    this.outputs = outputs;
+    this.writableDirs = writableDirs;
+    this.stash = stash;
+    this.mnemonic = mnemonic;
+  }
+
+  @Override
+  public void createFileSystem() throws IOException {
+    if (stash != null) {
+      Path sandboxExecRoot = getSandboxExecRoot();
+      Path sandboxExecRootBase = sandboxExecRoot.getParentDirectory();
+      // The spawn runner creates an empty execRoot, which a stashed one replaces.
+      sandboxExecRoot.delete();
+      sandboxExecRootBase.delete();
+      if (stash.takeStashedSandbox(mnemonic, sandboxExecRootBase)) {
+        inputsInPlace = cleanExistingSandbox(sandboxExecRootBase);
+      }
+      sandboxExecRoot.createDirectoryAndParents();
+    }
+    super.createFileSystem();
+  }
+
+  /**
+   * Deletes everything in the reused execRoot under {@code root} that is not needed by this spawn,
+   * and returns the inputs that are already in place. Only the directories that contain inputs or
+   * outputs are visited, all others are deleted as a whole.
+   */
+  private Set<Path> cleanExistingSandbox(Path root) throws IOException {
+    Path sandboxExecRoot = getSandboxExecRoot();
+    Map<Path, PathFragment> wantedSymlinks = new HashMap<>();
+    for (Map.Entry<PathFragment, Path> entry : inputs.getFiles().entrySet()) {
+      // Empty files are always recreated.
+      if (entry.getValue() != null) {
+        wantedSymlinks.put(
+            sandboxExecRoot.getRelative(entry.getKey()), entry.getValue().asFragment());
+      }
+    }
+    for (Map.Entry<PathFragment, PathFragment> entry : inputs.getSymlinks().entrySet()) {
+      wantedSymlinks.put(sandboxExecRoot.getRelative(entry.getKey()), entry.getValue());
+    }
+
+    Set<Path> wantedDirs = new HashSet<>();
+    addWithAncestors(sandboxExecRoot, root, wantedDirs);
+    for (Path path : wantedSymlinks.keySet()) {
+      addWithAncestors(path.getParentDirectory(), root, wantedDirs);
+    }
+    for (PathFragment file : outputs.files()) {
+      addWithAncestors(sandboxExecRoot.getRelative(file).getParentDirectory(), root, wantedDirs);
+    }
+    for (PathFragment dir : outputs.dirs()) {
+      addWithAncestors(sandboxExecRoot.getRelative(dir), root, wantedDirs);
+    }
+    for (Path dir : writableDirs) {
+      addWithAncestors(dir, root, wantedDirs);
+    }
+
+    Set<Path> present = new HashSet<>();
+    cleanRecursively(root, wantedSymlinks, wantedDirs, present);
+    return present;
+  }
+
+  private static void addWithAncestors(Path dir, Path root, Set<Path> dirs) {
+    while (dir.startsWith(root) && !dir.equals(root) && dirs.add(dir)) {
+      dir = dir.getParentDirectory();
+    }
+  }
+
+  private static void cleanRecursively(
+      Path dir, Map<Path, PathFragment> wantedSymlinks, Set<Path> wantedDirs, Set<Path> present)
+      throws IOException {
+    for (Dirent dirent : dir.readdir(Symlinks.NOFOLLOW)) {
+      Path path = dir.getChild(dirent.getName());
+      switch (dirent.getType()) {
+        case SYMLINK:
+          PathFragment target = wantedSymlinks.get(path);
+          if (target != null && target.equals(path.readSymbolicLink())) {
+            present.add(path);
+          } else {
+            path.delete();
+          }
+          break;
+        case DIRECTORY:
+          if (wantedDirs.contains(path)) {
+            cleanRecursively(path, wantedSymlinks, wantedDirs, present);
+          } else {
+            path.deleteTree();
+          }
+          break;
+        default:
+          path.delete();
+      }
+    }
+  }
+
+  @Override
+  protected void createInputs(SandboxInputs inputs) throws IOException {
+    if (inputsInPlace.isEmpty()) {
+      super.createInputs(inputs);
+      return;
+    }
+    Path sandboxExecRoot = getSandboxExecRoot();
+    super.createInputs(
+        new SandboxInputs(
+            Maps.filterKeys(
+                inputs.getFiles(), f -> !inputsInPlace.contains(sandboxExecRoot.getRelative(f))),
+            ImmutableSet.of(),
+            Maps.filterKeys(
+                inputs.getSymlinks(),
+                f -> !inputsInPlace.contains(sandboxExecRoot.getRelative(f)))));
+  }
+
+  @Override
+  public void delete() {
+    if (stash != null) {
+      stash.stashSandbox(mnemonic, getSandboxExecRoot().getParentDirectory());
+    }
+    // Deletes the rest of the sandbox, or all of it if the execRoot could not be stashed.
+    super.delete();
   }
 
   @Override
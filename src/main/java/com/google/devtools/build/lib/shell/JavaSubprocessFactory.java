@@ -14,20 +14,26 @@
 
 package com.google.devtools.build.lib.shell;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.lib.shell.SubprocessBuilder.StreamAction;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ProcessBuilder.Redirect;
+import java.lang.reflect.Method;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 
 /**
  * A subprocess factory that uses {@link java.lang.ProcessBuilder}.
  */
 public class JavaSubprocessFactory implements SubprocessFactory {
 
+  // Process#pid() only exists from JDK 9 on, and this code is compiled for JDK 8.
+  @Nullable private static final Method PROCESS_PID = getProcessPidMethod();
+
   /**
    * A subprocess backed by a {@link java.lang.Process}.
    */
@@ -70,6 +76,11 @@ public class JavaSubprocessFactory implements SubprocessFactory {
       return process.isAlive();
     }
 
+    @Override
+    public long getProcessId() {
+      return JavaSubprocessFactory.getProcessId(process, PROCESS_PID);
+    }
+
     @Override
     public boolean timedout() {
       return deadlineExceeded.get();
@@ -192,4 +203,32 @@ public class JavaSubprocessFactory implements SubprocessFactory {
         throw new IllegalStateException();
     }
   }
+
+  @Nullable
+  @VisibleForTesting
+  static Method getProcessPidMethod() {
+    try {
+      return Process.class.getMethod("pid");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the id of {@code process} as returned by {@code pidMethod}, or -1 if there is no such
+   * method or the platform does not support it.
+   */
+  @VisibleForTesting
+  static long getProcessId(Process process, @Nullable Method pidMethod) {
+    if (pidMethod == null) {
+      return -1;
+    }
+    try {
+      return (Long) pidMethod.invoke(process);
+    } catch (ReflectiveOperationException e) {
+      // Process#pid() throws UnsupportedOperationException, wrapped here, if the platform does not
+      // support it.
+      return -1;
+    }
+  }
 }
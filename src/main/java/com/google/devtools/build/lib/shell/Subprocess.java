@@ -45,6 +45,11 @@ public interface Subprocess extends Closeable {
   /** Returns true if the process is still alive. Does not block or cause any side effects. */
   boolean isAlive();
 
+  /** Returns the id of the process, or -1 if it is not known. */
+  default long getProcessId() {
+    return -1;
+  }
+
   /**
    * Returns if the process timed out.
    */
@@ -358,7 +358,11 @@ public class FilesystemValueChecker {
         try {
           FileArtifactValue newData =
               ActionMetadataHandler.fileArtifactValueFromArtifact(artifact, stat, tsgm);
-          if (newData.couldBeModifiedSince(lastKnownData)) {
+          boolean trustRemoteValue =
+              newData.getType() == FileStateType.NONEXISTENT
+                  && lastKnownData.isRemote()
+                  && trustRemoteArtifacts;
+          if (!trustRemoteValue && newData.couldBeModifiedSince(lastKnownData)) {
             updateIntraBuildModifiedCounter(stat != null ? stat.getLastChangeTime() : -1);
             modifiedOutputFilesCounter.getAndIncrement();
             dirtyKeys.add(key);
@@ -0,0 +1,241 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.common.collect.TreeMultiset;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.skyframe.serialization.AutoRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecRegistry;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.skyframe.GraphSnapshot;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Reads and writes {@link GraphSnapshot}s of the Skyframe graph, so that a server can start with
+ * the loading and analysis results of its predecessor.
+ *
+ * <p>Keys and values are serialized with {@link ObjectCodecs}. Nodes whose key or value cannot be
+ * serialized are left out, together with the nodes that transitively depend on them, and counted
+ * by function in a warning. Deps refer to earlier nodes of the file by index, so that each key is
+ * only serialized once.
+ *
+ * <p>A snapshot is only read back by a server of the same installation, since codecs may change
+ * between versions.
+ */
+final class GraphSnapshotFile {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int MAGIC = 0x534b5953; // "SKYS"
+  private static final int FORMAT_VERSION = 1;
+
+  private GraphSnapshotFile() {}
+
+  /**
+   * Returns the codecs for the keys and values of snapshots of a graph over {@code fileSystem}.
+   *
+   * <p>{@code likelyPopularRoot} is written as a single bit, so it must be the same root for the
+   * server writing a snapshot and the one reading it, such as the workspace root.
+   */
+  static ObjectCodecs createCodecs(
+      FileSystem fileSystem,
+      Root likelyPopularRoot,
+      ImmutableMap<Class<?>, Object> otherDependencies) {
+    // Paths refer to their file system, which is the same object for every path of the server.
+    ObjectCodecRegistry registry =
+        AutoRegistry.get().getBuilder().addReferenceConstant(fileSystem).build();
+    return new ObjectCodecs(
+        registry,
+        ImmutableMap.<Class<?>, Object>builder()
+            .put(FileSystem.class, fileSystem)
+            .put(
+                Root.RootCodecDependencies.class,
+                new Root.RootCodecDependencies(likelyPopularRoot))
+            .putAll(otherDependencies)
+            .build());
+  }
+
+  /**
+   * Writes the serializable part of {@code nodes}, which must come after their deps, to {@code
+   * path}, replacing it atomically. Returns the number of nodes written.
+   */
+  static int write(
+      Path path, String installMD5, List<GraphSnapshot.Node> nodes, ObjectCodecs codecs)
+      throws IOException, InterruptedException {
+    Path tmpPath = path.getParentDirectory().getChild(path.getBaseName() + ".tmp");
+    Map<SkyKey, Integer> indexes = new HashMap<>();
+    Multiset<String> unserializable = TreeMultiset.create();
+    int dependents = 0;
+    try (OutputStream out = new BufferedOutputStream(tmpPath.getOutputStream())) {
+      CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
+      codedOut.writeFixed32NoTag(MAGIC);
+      codedOut.writeUInt32NoTag(FORMAT_VERSION);
+      codedOut.writeStringNoTag(installMD5);
+      for (GraphSnapshot.Node node : nodes) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        int[][] depIndexes = depIndexes(node, indexes);
+        if (depIndexes == null) {
+          dependents++;
+          continue;
+        }
+        ByteString key = trySerialize(codecs, node.getKey(), node, unserializable);
+        ByteString value =
+            key == null ? null : trySerialize(codecs, node.getValue(), node, unserializable);
+        if (value == null) {
+          continue;
+        }
+        codedOut.writeBytesNoTag(key);
+        codedOut.writeBytesNoTag(value);
+        codedOut.writeUInt32NoTag(depIndexes.length);
+        for (int[] group : depIndexes) {
+          codedOut.writeUInt32NoTag(group.length);
+          for (int index : group) {
+            codedOut.writeUInt32NoTag(index);
+          }
+        }
+        indexes.put(node.getKey(), indexes.size());
+      }
+      codedOut.flush();
+    } catch (IOException | InterruptedException e) {
+      tmpPath.delete();
+      throw e;
+    }
+    tmpPath.renameTo(path);
+    if (unserializable.isEmpty()) {
+      logger.atInfo().log("Wrote %d Skyframe nodes to %s", indexes.size(), path);
+    } else {
+      logger.atWarning().log(
+          "Wrote %d Skyframe nodes to %s, left out %d unserializable ones (by function: %s) and"
+              + " %d that depend on them",
+          indexes.size(), path, unserializable.size(), unserializable, dependents);
+    }
+    return indexes.size();
+  }
+
+  /** Returns the indexes of the deps of {@code node}, or null if some dep wasn't written. */
+  @Nullable
+  private static int[][] depIndexes(GraphSnapshot.Node node, Map<SkyKey, Integer> indexes) {
+    ImmutableList<ImmutableList<SkyKey>> depGroups = node.getDepGroups();
+    int[][] result = new int[depGroups.size()][];
+    for (int i = 0; i < result.length; i++) {
+      ImmutableList<SkyKey> group = depGroups.get(i);
+      result[i] = new int[group.size()];
+      for (int j = 0; j < result[i].length; j++) {
+        Integer index = indexes.get(group.get(j));
+        if (index == null) {
+          return null;
+        }
+        result[i][j] = index;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the serialized {@code subject}, or null if it can't be serialized, in which case the
+   * function of the node is added to {@code unserializable}.
+   */
+  @Nullable
+  private static ByteString trySerialize(
+      ObjectCodecs codecs,
+      Object subject,
+      GraphSnapshot.Node node,
+      Multiset<String> unserializable) {
+    try {
+      return codecs.serialize(subject);
+    } catch (SerializationException | RuntimeException e) {
+      // Codecs whose dependencies aren't available fail with unchecked exceptions.
+      String functionName = node.getKey().functionName().getName();
+      if (unserializable.add(functionName, 1) == 0) {
+        // The first failure of each function explains the others.
+        logger.atWarning().withCause(e).log("Not writing %s to the snapshot", node.getKey());
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Reads the nodes written by {@link #write}, in the same order, or returns null if the file was
+   * written by a different installation or format version.
+   */
+  @Nullable
+  static ImmutableList<GraphSnapshot.Node> read(Path path, String installMD5, ObjectCodecs codecs)
+      throws IOException, SerializationException {
+    try (InputStream in = new BufferedInputStream(path.getInputStream())) {
+      CodedInputStream codedIn = CodedInputStream.newInstance(in);
+      codedIn.setSizeLimit(Integer.MAX_VALUE);
+      if (codedIn.readFixed32() != MAGIC
+          || codedIn.readUInt32() != FORMAT_VERSION
+          || !codedIn.readString().equals(installMD5)) {
+        return null;
+      }
+      List<SkyKey> keys = new ArrayList<>();
+      ImmutableList.Builder<GraphSnapshot.Node> nodes = ImmutableList.builder();
+      while (!codedIn.isAtEnd()) {
+        SkyKey key = deserialize(codecs, codedIn.readBytes(), SkyKey.class);
+        SkyValue value = deserialize(codecs, codedIn.readBytes(), SkyValue.class);
+        int numGroups = codedIn.readUInt32();
+        ImmutableList.Builder<ImmutableList<SkyKey>> depGroups =
+            ImmutableList.builderWithExpectedSize(numGroups);
+        for (int i = 0; i < numGroups; i++) {
+          int size = codedIn.readUInt32();
+          ImmutableList.Builder<SkyKey> group = ImmutableList.builderWithExpectedSize(size);
+          for (int j = 0; j < size; j++) {
+            int index = codedIn.readUInt32();
+            if (index >= keys.size()) {
+              throw new SerializationException("Bad dep index " + index + " of " + key);
+            }
+            group.add(keys.get(index));
+          }
+          depGroups.add(group.build());
+        }
+        keys.add(key);
+        nodes.add(new GraphSnapshot.Node(key, value, depGroups.build()));
+      }
+      return nodes.build();
+    }
+  }
+
+  private static <T> T deserialize(ObjectCodecs codecs, ByteString bytes, Class<T> type)
+      throws SerializationException {
+    Object result = codecs.deserialize(bytes);
+    if (!type.isInstance(result)) {
+      throw new SerializationException("Expected " + type.getSimpleName() + ", got " + result);
+    }
+    return type.cast(result);
+  }
+}
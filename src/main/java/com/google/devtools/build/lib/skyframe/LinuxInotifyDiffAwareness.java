@@ -0,0 +1,176 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.jni.JniLoader;
+import com.google.devtools.build.lib.util.OS;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A {@link DiffAwareness} that uses inotify directly to watch the filesystem, in lieu of {@link
+ * WatchServiceDiffAwareness}.
+ *
+ * <p>The WatchService walks and registers every directory of the workspace in Java, and its queue
+ * of events is small, so that it overflows on large changes. Here, the directories are registered
+ * by native code, a thread drains the events of the kernel queue in large batches as they arrive,
+ * and only the subtrees of new directories are rescanned. When events are lost anyway, the diff is
+ * {@link com.google.devtools.build.lib.vfs.ModifiedFileSet#EVERYTHING_MODIFIED} for the next build
+ * only, as inotify does not tell which events were lost. If a directory cannot be watched, usually
+ * because the user ran out of inotify watches, the watcher is broken and replaced by a new one that
+ * registers the whole tree again.
+ *
+ * <p>Enabled on Linux with the {@code experimental_inotify_diff_awareness} system property.
+ */
+public final class LinuxInotifyDiffAwareness extends LocalDiffAwareness {
+
+  // Keep a pointer to a native structure in the JNI code (the run loop owns that structure).
+  private long nativePointer;
+
+  private Thread runLoop;
+
+  private boolean opened;
+
+  private boolean closed;
+
+  LinuxInotifyDiffAwareness(String watchRoot) {
+    super(watchRoot);
+  }
+
+  /** Returns whether {@link LocalDiffAwareness.Factory} should create a watcher of this type. */
+  static boolean isEnabled() {
+    return OS.getCurrent() == OS.LINUX
+        && JNI_AVAILABLE
+        && Boolean.getBoolean("experimental_inotify_diff_awareness");
+  }
+
+  /** Creates the inotify instance for watching <code>root</code>, called by {@link #init}. */
+  private native void create(String root) throws IOException;
+
+  /**
+   * Registers the watches and runs the main loop to listen for inotify events, until {@link
+   * #doClose} is called.
+   *
+   * @param listening latch that is decremented when all directories have been registered. The
+   *     caller must wait until this happens before polling for events to ensure no events are lost
+   *     between when this function returns and when the queue is listening.
+   */
+  private native void run(CountDownLatch listening);
+
+  private void init() throws IOException {
+    Preconditions.checkState(!opened);
+    create(watchRootPath.toAbsolutePath().toString());
+    opened = true;
+
+    CountDownLatch listening = new CountDownLatch(1);
+    runLoop = new Thread(() -> run(listening), "linux-inotify");
+    runLoop.setDaemon(true);
+    runLoop.start();
+    try {
+      listening.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Close this watch service, this service should not be used any longer after closing. */
+  @Override
+  public void close() {
+    if (opened) {
+      Preconditions.checkState(!closed);
+      closed = true;
+      try {
+        doClose();
+      } catch (IOException e) {
+        // The run loop cannot be stopped, but nothing polls it anymore.
+        return;
+      }
+      try {
+        runLoop.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static final boolean JNI_AVAILABLE;
+
+  /** JNI code stopping the main loop, which then releases the native structure. */
+  private native void doClose() throws IOException;
+
+  /**
+   * JNI code returning the list of absolute path modified since last call.
+   *
+   * @return the list of paths modified since the last call, or null if we can't precisely tell what
+   *     changed
+   * @throws IOException if a directory could not be watched, in this and every later call
+   */
+  private native String[] poll() throws IOException;
+
+  static {
+    boolean loadJniWorked = false;
+    try {
+      JniLoader.loadJni();
+      loadJniWorked = true;
+    } catch (UnsatisfiedLinkError ignored) {
+      // The bootstrap binary does not have the JNI code; see MacOSXFsEventsDiffAwareness.
+    }
+    JNI_AVAILABLE = loadJniWorked;
+  }
+
+  @Override
+  public View getCurrentView(OptionsProvider options) throws BrokenDiffAwarenessException {
+    // See WatchServiceDiffAwareness#getCurrentView for an explanation of this logic.
+    boolean watchFs = options.getOptions(Options.class).watchFS;
+    if (watchFs && !opened) {
+      try {
+        init();
+      } catch (IOException e) {
+        throw new BrokenDiffAwarenessException(
+            "Error encountered with local file system watcher " + e);
+      }
+    } else if (!watchFs && opened) {
+      close();
+      throw new BrokenDiffAwarenessException("Switched off --watchfs again");
+    } else if (!opened) {
+      return EVERYTHING_MODIFIED;
+    }
+    Preconditions.checkState(!closed);
+    String[] polledPaths;
+    try {
+      polledPaths = poll();
+    } catch (IOException e) {
+      close();
+      throw new BrokenDiffAwarenessException(
+          "Error encountered with local file system watcher " + e);
+    }
+    if (polledPaths == null) {
+      // Skips a position, so that the diff from the previous view is everything, but the diff to
+      // the next view is precise again.
+      newView(ImmutableSet.of());
+      return newView(ImmutableSet.of());
+    } else {
+      ImmutableSet.Builder<Path> paths = ImmutableSet.builderWithExpectedSize(polledPaths.length);
+      for (String path : polledPaths) {
+        paths.add(Paths.get(path));
+      }
+      return newView(paths.build());
+    }
+  }
+}
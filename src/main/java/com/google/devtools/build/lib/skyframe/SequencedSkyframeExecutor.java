@@ -725,13 +725,17 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
       ModifiedFileSet modifiedOutputFiles,
       @Nullable Range<Long> lastExecutionTimeRange,
       boolean trustRemoteArtifacts,
-      int fsvcThreads)
+      int fsvcThreads,
+      @Nullable BatchStat fallbackBatchStatter)
       throws InterruptedException {
     long startTime = System.nanoTime();
     FilesystemValueChecker fsvc =
         new FilesystemValueChecker(
             Preconditions.checkNotNull(tsgm.get()), lastExecutionTimeRange, fsvcThreads);
     BatchStat batchStatter = outputService == null ? null : outputService.getBatchStatter();
+    if (batchStatter == null) {
+      batchStatter = fallbackBatchStatter;
+    }
     recordingDiffer.invalidate(
         fsvc.getDirtyActionValues(
             memoizingEvaluator.getValues(),
@@ -54,6 +54,8 @@ import com.google.devtools.build.lib.actions.Actions;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ArtifactPathResolver;
+import com.google.devtools.build.lib.actions.ArtifactResolver;
+import com.google.devtools.build.lib.actions.ArtifactResolver.ArtifactResolverSupplier;
 import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.CommandLineExpansionException;
 import com.google.devtools.build.lib.actions.CompletionContext.PathResolverFactory;
@@ -123,6 +125,7 @@ import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.Package.Builder.PackageSettings;
 import com.google.devtools.build.lib.packages.Package.ConfigSettingVisibilityPolicy;
 import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PersistentGlobCache;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.packages.RuleVisibility;
 import com.google.devtools.build.lib.packages.WorkspaceFileValue;
@@ -153,6 +156,7 @@ import com.google.devtools.build.lib.server.FailureDetails.TargetPatterns;
 import com.google.devtools.build.lib.skyframe.AspectValueKey.AspectKey;
 import com.google.devtools.build.lib.skyframe.DirtinessCheckerUtils.FileDirtinessChecker;
 import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.ExternalFileAction;
+import com.google.devtools.build.lib.skyframe.ExternalFilesHelper.FileType;
 import com.google.devtools.build.lib.skyframe.FileFunction.NonexistentFileReceiver;
 import com.google.devtools.build.lib.skyframe.MetadataConsumerForMetrics.FilesMetricConsumer;
 import com.google.devtools.build.lib.skyframe.PackageFunction.ActionOnIOExceptionReadingBuildFile;
@@ -161,12 +165,15 @@ import com.google.devtools.build.lib.skyframe.PackageFunction.LoadedPackageCache
 import com.google.devtools.build.lib.skyframe.PackageLookupFunction.CrossRepositoryLabelViolationStrategy;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.skyframe.serialization.SerializationException;
 import com.google.devtools.build.lib.skyframe.trimming.TrimmedConfigurationCache;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.DetailedExitCode;
 import com.google.devtools.build.lib.util.ResourceUsage;
 import com.google.devtools.build.lib.util.TestType;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.BatchStat;
 import com.google.devtools.build.lib.vfs.Dirent;
 import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
@@ -186,6 +193,8 @@ import com.google.devtools.build.skyframe.EvaluationContext;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
 import com.google.devtools.build.skyframe.EvaluationResult;
 import com.google.devtools.build.skyframe.EventFilter;
+import com.google.devtools.build.skyframe.FunctionHermeticity;
+import com.google.devtools.build.skyframe.GraphSnapshot;
 import com.google.devtools.build.skyframe.GraphInconsistencyReceiver;
 import com.google.devtools.build.skyframe.ImmutableDiff;
 import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
@@ -237,6 +246,8 @@ import net.starlark.java.eval.StarlarkSemantics;
 public abstract class SkyframeExecutor implements WalkableGraphFactory, ConfigurationsCollector {
   private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
 
+  private static final String GLOB_CACHE_FILENAME = "glob_cache";
+
   // We delete any value that can hold an action -- all subclasses of ActionLookupKey.
   // Also remove ArtifactNestedSetValues to prevent memory leak (b/143940221).
   protected static final Predicate<SkyKey> ANALYSIS_INVALIDATING_PREDICATE =
@@ -313,6 +324,12 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
   protected final AtomicReference<ImmutableSet<PackageIdentifier>> deletedPackages =
       new AtomicReference<>(ImmutableSet.<PackageIdentifier>of());
   private final AtomicReference<EventBus> eventBus = new AtomicReference<>();
+
+  /**
+   * The glob cache kept in the output base, if {@code --experimental_persistent_glob_cache} and
+   * incremental state is not tracked.
+   */
+  @Nullable private PersistentGlobCache persistentGlobCache;
   protected final AtomicReference<TimestampGranularityMonitor> tsgm = new AtomicReference<>();
   protected final AtomicReference<Map<String, String>> clientEnv = new AtomicReference<>();
 
@@ -852,6 +869,128 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
    */
   public void notifyCommandComplete(ExtendedEventHandler eventHandler) throws InterruptedException {
     memoizingEvaluator.noteEvaluationsAtSameVersionMayBeFinished(eventHandler);
+    if (persistentGlobCache != null) {
+      try {
+        persistentGlobCache.saveIfModified();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log(
+            "Failed to save glob cache %s", persistentGlobCache.getFile());
+      }
+    }
+  }
+
+  /**
+   * Writes the loading and analysis part of the graph to {@code path}, for {@link
+   * #restoreGraphSnapshot} by a later server. Nodes whose keys or values cannot be serialized are
+   * left out, along with the nodes that depend on them.
+   */
+  public void writeGraphSnapshot(Path path) throws IOException, InterruptedException {
+    try (AutoProfiler p = GoogleAutoProfilerUtils.logged("writing Skyframe graph snapshot")) {
+      GraphSnapshotFile.write(
+          path,
+          directories.getInstallMD5().toString(),
+          memoizingEvaluator.takeSnapshot(this::canSnapshot),
+          createGraphSnapshotCodecs());
+    }
+  }
+
+  /**
+   * Adds the nodes written by {@link #writeGraphSnapshot} to the graph, if the graph is empty and
+   * hasn't been evaluated since it was created. Files that changed since the snapshot was written
+   * are found by the first build, because without a previous {@link DiffAwareness} view, it checks
+   * all the files in the graph.
+   *
+   * <p>The snapshot is not read if the graph can't take it, and is deleted once it was restored, or
+   * found to be unusable because it is of another installation or can't be read.
+   */
+  public void restoreGraphSnapshot(ExtendedEventHandler eventHandler, Path path)
+      throws InterruptedException {
+    if (!memoizingEvaluator.canRestoreSnapshot() || !path.exists()) {
+      return;
+    }
+    boolean consumed = true;
+    try (AutoProfiler p = GoogleAutoProfilerUtils.logged("restoring Skyframe graph snapshot")) {
+      ImmutableList<GraphSnapshot.Node> nodes =
+          GraphSnapshotFile.read(
+              path,
+              directories.getInstallMD5().toString(),
+              createGraphSnapshotCodecs());
+      if (nodes == null) {
+        logger.atInfo().log("Ignoring Skyframe graph snapshot of another installation");
+      } else if (memoizingEvaluator.restoreSnapshot(nodes)) {
+        logger.atInfo().log("Restored %d Skyframe nodes from %s", nodes.size(), path);
+      } else {
+        consumed = false; // Keep it for the next server.
+      }
+    } catch (IOException | SerializationException e) {
+      logger.atWarning().withCause(e).log("Failed to read Skyframe graph snapshot %s", path);
+      eventHandler.handle(
+          Event.warn("Ignoring unreadable Skyframe graph snapshot: " + e.getMessage()));
+    }
+    if (consumed) {
+      try {
+        path.delete();
+      } catch (IOException e) {
+        logger.atWarning().withCause(e).log("Failed to delete %s", path);
+      }
+    }
+  }
+
+  /**
+   * Returns the codecs of keys and values in graph snapshots. Roots are serialized relative to the
+   * workspace, and artifacts are resolved with this executor's artifact factory. Configuration
+   * keys, whose options diffs are only known to the server that created them, and packages, which
+   * need a {@link com.google.devtools.build.lib.packages.PackageCodecDependencies}, aren't
+   * serializable; subclasses may add dependencies for them with {@link
+   * #getGraphSnapshotCodecDependencies}.
+   */
+  private ObjectCodecs createGraphSnapshotCodecs() {
+    Root workspaceRoot =
+        directories.getWorkspace() != null
+            ? Root.fromPath(directories.getWorkspace())
+            : Root.absoluteRoot(fileSystem);
+    return GraphSnapshotFile.createCodecs(
+        fileSystem, workspaceRoot, getGraphSnapshotCodecDependencies());
+  }
+
+  /**
+   * Returns the dependencies of the codecs of keys and values in graph snapshots, besides the file
+   * system and its roots. Nodes whose codecs need other dependencies are left out of snapshots.
+   */
+  protected ImmutableMap<Class<?>, Object> getGraphSnapshotCodecDependencies() {
+    return ImmutableMap.of(
+        RuleClassProvider.class,
+        ruleClassProvider,
+        ArtifactResolverSupplier.class,
+        new ArtifactResolverSupplier() {
+          @Override
+          public ArtifactResolver get() {
+            return artifactFactory;
+          }
+
+          @Override
+          public Artifact.DerivedArtifact intern(Artifact.DerivedArtifact original) {
+            return original;
+          }
+        });
+  }
+
+  /**
+   * Whether the node of {@code key} may be in a graph snapshot. Nodes that depend on anything but
+   * their deps, and whose changes the next server would not detect, must not be.
+   */
+  private boolean canSnapshot(SkyKey key) {
+    SkyFunctionName functionName = key.functionName();
+    if (functionName.equals(FileStateValue.FILE_STATE)
+        || functionName.equals(SkyFunctions.DIRECTORY_LISTING_STATE)) {
+      // Checked against the file system by the next server, except for outputs of actions, which
+      // are only checked after builds that executed actions.
+      return externalFilesHelper.getAndNoteFileType((RootedPath) key.argument())
+          != FileType.OUTPUT;
+    }
+    // Re-injected by the next server, or found to be unchanged.
+    return functionName.equals(SkyFunctions.PRECOMPUTED)
+        || functionName.getHermeticity() == FunctionHermeticity.HERMETIC;
   }
 
   /**
@@ -1394,6 +1533,18 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
     this.pkgFactory.setGlobbingThreads(packageOptions.globbingThreads);
     this.pkgFactory.setMaxDirectoriesToEagerlyVisitInGlobbing(
         packageOptions.maxDirectoriesToEagerlyVisitInGlobbing);
+    // With incremental state, globs that miss the graph still go to the legacy globber, but the
+    // package also depends on their GlobValues, which Skyframe evaluates, keeps and invalidates on
+    // its own. A persistent cache hit would not save that traversal, so it is only used without.
+    if (packageOptions.persistentGlobCache && !tracksStateForIncrementality()) {
+      if (persistentGlobCache == null) {
+        persistentGlobCache =
+            PersistentGlobCache.load(directories.getOutputBase().getChild(GLOB_CACHE_FILENAME));
+      }
+    } else {
+      persistentGlobCache = null;
+    }
+    this.pkgFactory.setPersistentGlobCache(persistentGlobCache);
     emittedEventState.clear();
 
     // Clear internal caches used by SkyFunctions used for package loading. If the SkyFunctions
@@ -2809,7 +2960,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory, Configur
       ModifiedFileSet modifiedOutputFiles,
       @Nullable Range<Long> lastExecutionTimeRange,
       boolean trustRemoteArtifacts,
-      int fsvcThreads)
+      int fsvcThreads,
+      @Nullable BatchStat fallbackBatchStatter)
       throws AbruptExitException, InterruptedException;
 
   /**
@@ -128,6 +128,16 @@ public final class NativePosixFiles {
    */
   public static native ErrnoFileStatus errnoLstat(String path);
 
+  /**
+   * Native wrapper around POSIX stat(2) or lstat(2) syscalls for many files, which crosses into
+   * native code only once.
+   *
+   * @param paths the files to stat.
+   * @param followSymlinks whether to call stat() rather than lstat().
+   * @return an ErrnoFileStatus instance for each path, in the same order.
+   */
+  public static native ErrnoFileStatus[] errnoStatBatch(String[] paths, boolean followSymlinks);
+
   /**
    * Native wrapper around POSIX utime(2) syscall.
    *
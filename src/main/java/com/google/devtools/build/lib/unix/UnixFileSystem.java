@@ -240,6 +240,37 @@ public class UnixFileSystem extends AbstractFileSystemWithCustomStat {
     }
   }
 
+  @Override
+  protected List<FileStatus> statIfFoundBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    String[] names = new String[paths.size()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = paths.get(i).getPathString();
+    }
+    long startTime = Profiler.nanoTimeMaybe();
+    ErrnoFileStatus[] stats;
+    try {
+      // A single call into native code for the whole batch.
+      stats = NativePosixFiles.errnoStatBatch(names, followSymlinks);
+    } finally {
+      profiler.logSimpleTask(startTime, ProfilerTask.VFS_STAT, names.length + " files");
+    }
+    List<FileStatus> result = new ArrayList<>(stats.length);
+    for (int i = 0; i < stats.length; i++) {
+      ErrnoFileStatus stat = stats[i];
+      if (!stat.hasError()) {
+        result.add(new UnixFileStatus(stat));
+      } else if (stat.getErrno() == ErrnoFileStatus.ENOENT
+          || stat.getErrno() == ErrnoFileStatus.ENOTDIR) {
+        result.add(null);
+      } else {
+        // Stats the file again to throw the proper exception, as in statIfFound.
+        result.add(statIfFound(paths.get(i), followSymlinks));
+      }
+    }
+    return result;
+  }
+
   @Override
   protected boolean isReadable(Path path) throws IOException {
     return (statInternal(path, true).getPermissions() & 0400) != 0;
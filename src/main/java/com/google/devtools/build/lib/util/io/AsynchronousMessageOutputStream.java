@@ -0,0 +1,133 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.Message;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link MessageOutputStream} that serializes and writes the messages on a thread of its own, so
+ * that the writing threads don't wait for the serialization, the compression or the file system.
+ *
+ * <p>Unlike {@link AsynchronousFileOutputStream}, the messages are queued as they are rather than
+ * serialized by the writing threads, and the queue is bounded: if the writer thread falls behind,
+ * the writing threads wait for it instead of buffering an unbounded amount of data.
+ */
+@ThreadSafe
+public final class AsynchronousMessageOutputStream implements MessageOutputStream {
+  /** The default number of messages waiting to be written. */
+  private static final int DEFAULT_CAPACITY = 4096;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Tells the writer thread to close the stream. */
+  private static final Object END = new Object();
+
+  private final BlockingQueue<Object> queue;
+  private final Thread writerThread;
+
+  private volatile boolean closed;
+  private volatile Throwable failure;
+
+  /**
+   * Returns a stream writing to {@code path}, which compresses the messages with gzip if {@code
+   * compress} is true.
+   */
+  public static AsynchronousMessageOutputStream create(Path path, boolean compress)
+      throws IOException {
+    OutputStream out = path.getOutputStream();
+    try {
+      if (compress) {
+        out = new GZIPOutputStream(out, BUFFER_SIZE);
+      }
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+    return new AsynchronousMessageOutputStream(path.toString(), out, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param name the name of the destination, for the name of the writer thread
+   * @param out the destination, which is closed with this stream
+   * @param capacity the most messages waiting to be written
+   */
+  public AsynchronousMessageOutputStream(String name, OutputStream out, int capacity) {
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.writerThread = new Thread(() -> writeAll(out), "async-message-writer:" + name);
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Queues the message to be written, waiting while the queue is full.
+   *
+   * <p>Messages written after a failure of an earlier write are dropped; the failure is thrown by
+   * {@link #close}.
+   */
+  @Override
+  public void write(Message m) {
+    Preconditions.checkNotNull(m);
+    Preconditions.checkState(!closed, "The stream is closed");
+    if (failure == null) {
+      Uninterruptibles.putUninterruptibly(queue, m);
+    }
+  }
+
+  /** Writes the queued messages, closes the stream and throws the first failure, if any. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    Uninterruptibles.putUninterruptibly(queue, END);
+    Uninterruptibles.joinUninterruptibly(writerThread);
+    if (failure != null) {
+      Throwables.throwIfInstanceOf(failure, IOException.class);
+      Throwables.throwIfUnchecked(failure);
+      throw new IllegalStateException(failure);
+    }
+  }
+
+  private void writeAll(OutputStream out) {
+    try (OutputStream bufferedOut = new BufferedOutputStream(out, BUFFER_SIZE)) {
+      Object next;
+      while ((next = Uninterruptibles.takeUninterruptibly(queue)) != END) {
+        if (failure == null) {
+          try {
+            ((Message) next).writeDelimitedTo(bufferedOut);
+          } catch (IOException | RuntimeException e) {
+            failure = e;
+          }
+        }
+        // Keep taking the messages after a failure, so that the writing threads don't block.
+      }
+    } catch (IOException | RuntimeException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+  }
+}
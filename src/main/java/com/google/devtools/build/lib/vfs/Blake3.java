@@ -0,0 +1,313 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * The state of an incremental BLAKE3 hash computation, following the reference implementation at
+ * https://github.com/BLAKE3-team/BLAKE3.
+ *
+ * <p>BLAKE3 hashes its input in chunks of {@link #CHUNK_LEN} bytes that form the leaves of a
+ * binary tree. Besides hashing the input in order, this class can therefore take the chaining
+ * value of a whole subtree computed elsewhere, see {@link #addSubtree}, so that the subtrees of a
+ * large input can be hashed in parallel.
+ *
+ * <p>Not thread-safe.
+ */
+final class Blake3 {
+  static final int OUT_LEN = 32;
+  static final int BLOCK_LEN = 64;
+  static final int CHUNK_LEN = 1024;
+
+  private static final int CHUNK_START = 1;
+  private static final int CHUNK_END = 2;
+  private static final int PARENT = 4;
+  private static final int ROOT = 8;
+
+  private static final int[] IV = {
+    0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+  };
+
+  private static final int[] MSG_PERMUTATION = {
+    2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8
+  };
+
+  /** The message word indices used by each round, so that the words need not be permuted. */
+  private static final int[][] SCHEDULE = new int[7][16];
+
+  static {
+    for (int i = 0; i < 16; i++) {
+      SCHEDULE[0][i] = i;
+    }
+    for (int round = 1; round < SCHEDULE.length; round++) {
+      for (int i = 0; i < 16; i++) {
+        SCHEDULE[round][i] = SCHEDULE[round - 1][MSG_PERMUTATION[i]];
+      }
+    }
+  }
+
+  /** Enough for 2^54 chunks, which is more than any input of at most 2^64 bytes has. */
+  private static final int MAX_DEPTH = 54;
+
+  // The state of the current chunk.
+  private final int[] chunkCv = new int[8];
+  private final byte[] block = new byte[BLOCK_LEN];
+  private long chunkCounter;
+  private int blockLen;
+  private int blocksCompressed;
+
+  /** The chaining values of the completed subtrees, eight words each. */
+  private final int[] cvStack = new int[MAX_DEPTH * 8];
+
+  private int cvStackLen;
+
+  // Scratch space, so that hashing doesn't allocate.
+  private final int[] words = new int[16];
+  private final int[] state = new int[16];
+  private final int[] cv = new int[8];
+
+  Blake3() {
+    reset();
+  }
+
+  void reset() {
+    startChunk(0);
+    cvStackLen = 0;
+  }
+
+  Blake3 copy() {
+    Blake3 copy = new Blake3();
+    System.arraycopy(chunkCv, 0, copy.chunkCv, 0, chunkCv.length);
+    System.arraycopy(block, 0, copy.block, 0, block.length);
+    copy.chunkCounter = chunkCounter;
+    copy.blockLen = blockLen;
+    copy.blocksCompressed = blocksCompressed;
+    System.arraycopy(cvStack, 0, copy.cvStack, 0, cvStackLen * 8);
+    copy.cvStackLen = cvStackLen;
+    return copy;
+  }
+
+  void update(byte[] input, int offset, int length) {
+    while (length > 0) {
+      if (chunkLength() == CHUNK_LEN) {
+        // Only now that more input follows is it known that the chunk isn't the root.
+        finishChunk(cv);
+        long totalChunks = chunkCounter + 1;
+        addChainingValue(cv, totalChunks);
+        startChunk(totalChunks);
+      }
+      int taken = Math.min(CHUNK_LEN - chunkLength(), length);
+      updateChunk(input, offset, taken);
+      offset += taken;
+      length -= taken;
+    }
+  }
+
+  /**
+   * Adds the chaining value of the subtree of the next {@code 2^log2Chunks} chunks, as computed by
+   * {@link #subtreeChainingValue}. Must only be called on a chunk boundary that is a multiple of
+   * the subtree size, and only if more input follows the subtree.
+   */
+  void addSubtree(int[] subtreeCv, int log2Chunks) {
+    checkState(chunkLength() == 0, "not on a chunk boundary");
+    checkState((chunkCounter & ((1L << log2Chunks) - 1)) == 0, "subtree not aligned");
+    addChainingValue(subtreeCv, (chunkCounter >>> log2Chunks) + 1);
+    startChunk(chunkCounter + (1L << log2Chunks));
+  }
+
+  /**
+   * Returns the chaining value of the complete subtree formed by the {@code length} bytes of
+   * {@code input}, a power of two multiple of {@link #CHUNK_LEN}, that start at chunk {@code
+   * firstChunk} of the whole input.
+   */
+  static int[] subtreeChainingValue(byte[] input, int offset, int length, long firstChunk) {
+    Blake3 subtree = new Blake3();
+    subtree.startChunk(firstChunk);
+    subtree.update(input, offset, length);
+    int[] result = new int[8];
+    subtree.finish(/*root=*/ false, result, null, 0);
+    return result;
+  }
+
+  /** Writes the {@link #OUT_LEN} bytes of the hash of the input so far to {@code out}. */
+  void digest(byte[] out, int offset) {
+    finish(/*root=*/ true, null, out, offset);
+  }
+
+  private int chunkLength() {
+    return BLOCK_LEN * blocksCompressed + blockLen;
+  }
+
+  private int chunkStartFlag() {
+    return blocksCompressed == 0 ? CHUNK_START : 0;
+  }
+
+  private void startChunk(long counter) {
+    System.arraycopy(IV, 0, chunkCv, 0, 8);
+    chunkCounter = counter;
+    blockLen = 0;
+    blocksCompressed = 0;
+  }
+
+  private void updateChunk(byte[] input, int offset, int length) {
+    while (length > 0) {
+      if (blockLen == BLOCK_LEN) {
+        compressBlock(block, 0);
+        blockLen = 0;
+      }
+      if (blockLen == 0 && length > BLOCK_LEN) {
+        // A full block that isn't the last one of the chunk, which needs no copying.
+        compressBlock(input, offset);
+        offset += BLOCK_LEN;
+        length -= BLOCK_LEN;
+        continue;
+      }
+      int taken = Math.min(BLOCK_LEN - blockLen, length);
+      System.arraycopy(input, offset, block, blockLen, taken);
+      blockLen += taken;
+      offset += taken;
+      length -= taken;
+    }
+  }
+
+  private void compressBlock(byte[] input, int offset) {
+    loadWords(input, offset, words);
+    compress(chunkCv, 0, words, chunkCounter, BLOCK_LEN, chunkStartFlag(), state);
+    System.arraycopy(state, 0, chunkCv, 0, 8);
+    blocksCompressed++;
+  }
+
+  /** Computes the chaining value of the current chunk, which must not be the root. */
+  private void finishChunk(int[] out) {
+    loadLastBlock();
+    compress(chunkCv, 0, words, chunkCounter, blockLen, chunkStartFlag() | CHUNK_END, state);
+    System.arraycopy(state, 0, out, 0, 8);
+  }
+
+  private void addChainingValue(int[] newCv, long totalChunks) {
+    System.arraycopy(newCv, 0, cv, 0, 8);
+    // Each trailing zero bit of the number of chunks completes another subtree.
+    while ((totalChunks & 1) == 0) {
+      cvStackLen--;
+      parentChainingValue(cvStack, cvStackLen * 8, cv);
+      totalChunks >>>= 1;
+    }
+    System.arraycopy(cv, 0, cvStack, cvStackLen * 8, 8);
+    cvStackLen++;
+  }
+
+  /** Replaces {@code right} with the chaining value of its parent with the given left sibling. */
+  private void parentChainingValue(int[] left, int leftOffset, int[] right) {
+    System.arraycopy(left, leftOffset, words, 0, 8);
+    System.arraycopy(right, 0, words, 8, 8);
+    compress(IV, 0, words, 0, BLOCK_LEN, PARENT, state);
+    System.arraycopy(state, 0, right, 0, 8);
+  }
+
+  /**
+   * Merges the current chunk with the stacked subtrees, writing either the chaining value of the
+   * result to {@code cvOut} or, if {@code root}, its root hash to {@code out}.
+   */
+  private void finish(boolean root, int[] cvOut, byte[] out, int offset) {
+    // The output node is described by its input chaining value, its block, its length and flags.
+    int[] nodeCv = chunkCv;
+    int nodeCvOffset = 0;
+    long nodeCounter = chunkCounter;
+    int nodeBlockLen = blockLen;
+    int nodeFlags = chunkStartFlag() | CHUNK_END;
+    loadLastBlock();
+    for (int i = cvStackLen - 1; i >= 0; i--) {
+      compress(nodeCv, nodeCvOffset, words, nodeCounter, nodeBlockLen, nodeFlags, state);
+      System.arraycopy(cvStack, i * 8, words, 0, 8);
+      System.arraycopy(state, 0, words, 8, 8);
+      nodeCv = IV;
+      nodeCvOffset = 0;
+      nodeCounter = 0;
+      nodeBlockLen = BLOCK_LEN;
+      nodeFlags = PARENT;
+    }
+    if (root) {
+      // The root output is numbered by output block rather than by chunk.
+      compress(nodeCv, nodeCvOffset, words, 0, nodeBlockLen, nodeFlags | ROOT, state);
+      for (int i = 0; i < OUT_LEN / 4; i++) {
+        int word = state[i];
+        out[offset + 4 * i] = (byte) word;
+        out[offset + 4 * i + 1] = (byte) (word >>> 8);
+        out[offset + 4 * i + 2] = (byte) (word >>> 16);
+        out[offset + 4 * i + 3] = (byte) (word >>> 24);
+      }
+    } else {
+      compress(nodeCv, nodeCvOffset, words, nodeCounter, nodeBlockLen, nodeFlags, state);
+      System.arraycopy(state, 0, cvOut, 0, 8);
+    }
+  }
+
+  /** Loads the buffered block of the current chunk into {@link #words}, padded with zeros. */
+  private void loadLastBlock() {
+    for (int i = blockLen; i < BLOCK_LEN; i++) {
+      block[i] = 0;
+    }
+    loadWords(block, 0, words);
+  }
+
+  private static void loadWords(byte[] bytes, int offset, int[] out) {
+    for (int i = 0; i < 16; i++) {
+      int j = offset + 4 * i;
+      out[i] =
+          (bytes[j] & 0xff)
+              | (bytes[j + 1] & 0xff) << 8
+              | (bytes[j + 2] & 0xff) << 16
+              | (bytes[j + 3] & 0xff) << 24;
+    }
+  }
+
+  /** The BLAKE3 compression function, writing all 16 words of the result to {@code out}. */
+  private static void compress(
+      int[] cv, int cvOffset, int[] m, long counter, int blockLen, int flags, int[] out) {
+    int[] v = out;
+    System.arraycopy(cv, cvOffset, v, 0, 8);
+    System.arraycopy(IV, 0, v, 8, 4);
+    v[12] = (int) counter;
+    v[13] = (int) (counter >>> 32);
+    v[14] = blockLen;
+    v[15] = flags;
+    for (int[] s : SCHEDULE) {
+      g(v, 0, 4, 8, 12, m[s[0]], m[s[1]]);
+      g(v, 1, 5, 9, 13, m[s[2]], m[s[3]]);
+      g(v, 2, 6, 10, 14, m[s[4]], m[s[5]]);
+      g(v, 3, 7, 11, 15, m[s[6]], m[s[7]]);
+      g(v, 0, 5, 10, 15, m[s[8]], m[s[9]]);
+      g(v, 1, 6, 11, 12, m[s[10]], m[s[11]]);
+      g(v, 2, 7, 8, 13, m[s[12]], m[s[13]]);
+      g(v, 3, 4, 9, 14, m[s[14]], m[s[15]]);
+    }
+    for (int i = 0; i < 8; i++) {
+      v[i] ^= v[i + 8];
+      v[i + 8] ^= cv[cvOffset + i];
+    }
+  }
+
+  private static void g(int[] v, int a, int b, int c, int d, int mx, int my) {
+    v[a] = v[a] + v[b] + mx;
+    v[d] = Integer.rotateRight(v[d] ^ v[a], 16);
+    v[c] = v[c] + v[d];
+    v[b] = Integer.rotateRight(v[b] ^ v[c], 12);
+    v[a] = v[a] + v[b] + my;
+    v[d] = Integer.rotateRight(v[d] ^ v[a], 8);
+    v[c] = v[c] + v[d];
+    v[b] = Integer.rotateRight(v[b] ^ v[c], 7);
+  }
+}
@@ -0,0 +1,188 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import javax.annotation.Nullable;
+
+/**
+ * Computes BLAKE3 digests of files, hashing the segments of large files on several threads.
+ *
+ * <p>The calling thread reads the file one segment at a time. Every segment but the last is a
+ * complete subtree of the BLAKE3 tree, so its chaining value can be computed independently of the
+ * others; see {@link Blake3#addSubtree}. The number of segments waiting to be hashed is bounded
+ * across all files by {@link #SEGMENT_PERMITS}. When no permit is left, the calling thread hashes
+ * the segment itself. Files that fit into a single segment are hashed on the calling thread,
+ * through a buffer no larger than {@link #STREAM_BUFFER_SIZE}.
+ */
+final class Blake3FileDigester {
+  /** The number of chunks in a segment is 2 to the power of this. */
+  private static final int SEGMENT_CHUNKS_LOG2 = 10;
+
+  /** The size of the segments hashed by one task, 1 MiB. */
+  @VisibleForTesting static final int SEGMENT_SIZE = Blake3.CHUNK_LEN << SEGMENT_CHUNKS_LOG2;
+
+  /** The largest buffer used to hash files that fit into a single segment. */
+  @VisibleForTesting static final int STREAM_BUFFER_SIZE = 16 * Blake3.CHUNK_LEN;
+
+  private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+  /** Bounds the memory held by segments waiting to be hashed, across all files. */
+  private static final Semaphore SEGMENT_PERMITS =
+      new Semaphore(PARALLELISM > 1 ? 2 * PARALLELISM : 0);
+
+  /** Holds the thread pool, so that it's only created once there is a large file to hash. */
+  private static final class ExecutorHolder {
+    private static final ExecutorService EXECUTOR =
+        Executors.newFixedThreadPool(
+            PARALLELISM,
+            new ThreadFactoryBuilder().setNameFormat("blake3-digest-%d").setDaemon(true).build());
+  }
+
+  /** A segment whose chaining value is computed or being computed. */
+  private static final class Segment {
+    private final Future<int[]> chainingValue;
+
+    /** The buffer still read by the task computing the chaining value, if any. */
+    @Nullable private final byte[] buffer;
+
+    private Segment(Future<int[]> chainingValue, @Nullable byte[] buffer) {
+      this.chainingValue = chainingValue;
+      this.buffer = buffer;
+    }
+  }
+
+  private Blake3FileDigester() {}
+
+  /** Returns the BLAKE3 digest of the remaining bytes of {@code in}, of unknown size. */
+  static byte[] digest(InputStream in) throws IOException {
+    return digest(in, Long.MAX_VALUE);
+  }
+
+  /**
+   * Returns the BLAKE3 digest of the remaining bytes of {@code in}, which are expected to be {@code
+   * expectedSize} bytes. The expected size only chooses how the bytes are hashed: the digest is
+   * that of all remaining bytes even if their number differs.
+   */
+  static byte[] digest(InputStream in, long expectedSize) throws IOException {
+    if (expectedSize <= SEGMENT_SIZE) {
+      return digestSequentially(in, expectedSize);
+    }
+    Blake3 hasher = new Blake3();
+    byte[] current = new byte[SEGMENT_SIZE];
+    int currentLength = ByteStreams.read(in, current, 0, SEGMENT_SIZE);
+    if (currentLength == SEGMENT_SIZE) {
+      ArrayDeque<Segment> pending = new ArrayDeque<>();
+      ArrayDeque<byte[]> freeBuffers = new ArrayDeque<>();
+      try {
+        long firstChunk = 0;
+        while (true) {
+          byte[] next = freeBuffers.isEmpty() ? new byte[SEGMENT_SIZE] : freeBuffers.pop();
+          int nextLength = ByteStreams.read(in, next, 0, SEGMENT_SIZE);
+          if (nextLength == 0) {
+            // The current segment is the last one, and thus not a complete subtree.
+            break;
+          }
+          pending.add(startSegment(current, firstChunk, freeBuffers));
+          firstChunk += 1 << SEGMENT_CHUNKS_LOG2;
+          // Add the chaining values as soon as possible, so that the queue stays short.
+          while (!pending.isEmpty() && pending.peek().chainingValue.isDone()) {
+            addSegment(hasher, pending.remove(), freeBuffers);
+          }
+          current = next;
+          currentLength = nextLength;
+          if (currentLength < SEGMENT_SIZE) {
+            break;
+          }
+        }
+        while (!pending.isEmpty()) {
+          addSegment(hasher, pending.remove(), freeBuffers);
+        }
+      } finally {
+        // Only reached with pending segments if reading the file failed.
+        for (Segment segment : pending) {
+          if (segment.buffer != null) {
+            segment.chainingValue.cancel(/*mayInterruptIfRunning=*/ false);
+            SEGMENT_PERMITS.release();
+          }
+        }
+      }
+    }
+    hasher.update(current, 0, currentLength);
+    byte[] digest = new byte[Blake3.OUT_LEN];
+    hasher.digest(digest, 0);
+    return digest;
+  }
+
+  private static byte[] digestSequentially(InputStream in, long expectedSize) throws IOException {
+    Blake3 hasher = new Blake3();
+    byte[] buffer =
+        new byte[(int) Math.min(Math.max(expectedSize, Blake3.CHUNK_LEN), STREAM_BUFFER_SIZE)];
+    int length;
+    while ((length = in.read(buffer)) != -1) {
+      hasher.update(buffer, 0, length);
+    }
+    byte[] digest = new byte[Blake3.OUT_LEN];
+    hasher.digest(digest, 0);
+    return digest;
+  }
+
+  private static Segment startSegment(byte[] buffer, long firstChunk, ArrayDeque<byte[]> free) {
+    if (SEGMENT_PERMITS.tryAcquire()) {
+      return new Segment(
+          ExecutorHolder.EXECUTOR.submit(
+              () -> Blake3.subtreeChainingValue(buffer, 0, SEGMENT_SIZE, firstChunk)),
+          buffer);
+    }
+    int[] chainingValue = Blake3.subtreeChainingValue(buffer, 0, SEGMENT_SIZE, firstChunk);
+    free.push(buffer);
+    return new Segment(Futures.immediateFuture(chainingValue), /*buffer=*/ null);
+  }
+
+  private static void addSegment(Blake3 hasher, Segment segment, ArrayDeque<byte[]> free)
+      throws IOException {
+    int[] chainingValue;
+    try {
+      chainingValue = segment.chainingValue.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while computing a digest");
+    } catch (ExecutionException e) {
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      if (segment.buffer != null) {
+        SEGMENT_PERMITS.release();
+      }
+    }
+    if (segment.buffer != null) {
+      free.push(segment.buffer);
+    }
+    hasher.addSubtree(chainingValue, SEGMENT_CHUNKS_LOG2);
+  }
+}
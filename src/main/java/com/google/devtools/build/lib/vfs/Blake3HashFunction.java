@@ -0,0 +1,212 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.hash.Funnel;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link HashFunction} for BLAKE3 with a 256-bit output, see {@link Blake3}.
+ *
+ * <p>Like Guava's hash functions, primitives are hashed as their little-endian bytes.
+ */
+final class Blake3HashFunction implements HashFunction {
+  static final Blake3HashFunction INSTANCE = new Blake3HashFunction();
+
+  private Blake3HashFunction() {}
+
+  @Override
+  public Hasher newHasher() {
+    return new Blake3Hasher();
+  }
+
+  @Override
+  public Hasher newHasher(int expectedInputSize) {
+    checkArgument(
+        expectedInputSize >= 0, "expectedInputSize must be >= 0 but was %s", expectedInputSize);
+    return newHasher();
+  }
+
+  @Override
+  public HashCode hashInt(int input) {
+    return newHasher().putInt(input).hash();
+  }
+
+  @Override
+  public HashCode hashLong(long input) {
+    return newHasher().putLong(input).hash();
+  }
+
+  @Override
+  public HashCode hashBytes(byte[] input) {
+    return hashBytes(input, 0, input.length);
+  }
+
+  @Override
+  public HashCode hashBytes(byte[] input, int off, int len) {
+    return newHasher().putBytes(input, off, len).hash();
+  }
+
+  @Override
+  public HashCode hashBytes(ByteBuffer input) {
+    return newHasher().putBytes(input).hash();
+  }
+
+  @Override
+  public HashCode hashUnencodedChars(CharSequence input) {
+    return newHasher().putUnencodedChars(input).hash();
+  }
+
+  @Override
+  public HashCode hashString(CharSequence input, Charset charset) {
+    return newHasher().putString(input, charset).hash();
+  }
+
+  @Override
+  public <T> HashCode hashObject(T instance, Funnel<? super T> funnel) {
+    return newHasher().putObject(instance, funnel).hash();
+  }
+
+  @Override
+  public int bits() {
+    return Blake3.OUT_LEN * 8;
+  }
+
+  @Override
+  public String toString() {
+    return "Blake3HashFunction";
+  }
+
+  private static final class Blake3Hasher implements Hasher {
+    private final Blake3 state = new Blake3();
+    private final ByteBuffer scratch = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private boolean done;
+
+    private Hasher update(int length) {
+      state.update(scratch.array(), 0, length);
+      scratch.clear();
+      return this;
+    }
+
+    @Override
+    public Hasher putByte(byte b) {
+      scratch.put(b);
+      return update(1);
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes) {
+      return putBytes(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public Hasher putBytes(byte[] bytes, int off, int len) {
+      checkArgument(off >= 0 && len >= 0 && off + len <= bytes.length);
+      state.update(bytes, off, len);
+      return this;
+    }
+
+    @Override
+    public Hasher putBytes(ByteBuffer bytes) {
+      if (bytes.hasArray()) {
+        state.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        bytes.position(bytes.limit());
+      } else {
+        byte[] buffer = new byte[Math.min(bytes.remaining(), Blake3.CHUNK_LEN)];
+        while (bytes.hasRemaining()) {
+          int length = Math.min(bytes.remaining(), buffer.length);
+          bytes.get(buffer, 0, length);
+          state.update(buffer, 0, length);
+        }
+      }
+      return this;
+    }
+
+    @Override
+    public Hasher putShort(short s) {
+      scratch.putShort(s);
+      return update(2);
+    }
+
+    @Override
+    public Hasher putInt(int i) {
+      scratch.putInt(i);
+      return update(4);
+    }
+
+    @Override
+    public Hasher putLong(long l) {
+      scratch.putLong(l);
+      return update(8);
+    }
+
+    @Override
+    public Hasher putFloat(float f) {
+      return putInt(Float.floatToRawIntBits(f));
+    }
+
+    @Override
+    public Hasher putDouble(double d) {
+      return putLong(Double.doubleToRawLongBits(d));
+    }
+
+    @Override
+    public Hasher putBoolean(boolean b) {
+      return putByte(b ? (byte) 1 : (byte) 0);
+    }
+
+    @Override
+    public Hasher putChar(char c) {
+      scratch.putChar(c);
+      return update(2);
+    }
+
+    @Override
+    public Hasher putUnencodedChars(CharSequence charSequence) {
+      for (int i = 0; i < charSequence.length(); i++) {
+        putChar(charSequence.charAt(i));
+      }
+      return this;
+    }
+
+    @Override
+    public Hasher putString(CharSequence charSequence, Charset charset) {
+      return putBytes(charSequence.toString().getBytes(charset));
+    }
+
+    @Override
+    public <T> Hasher putObject(T instance, Funnel<? super T> funnel) {
+      funnel.funnel(instance, this);
+      return this;
+    }
+
+    @Override
+    public HashCode hash() {
+      checkState(!done, "Cannot re-use a Hasher after calling hash() on it");
+      done = true;
+      byte[] digest = new byte[Blake3.OUT_LEN];
+      state.digest(digest, 0);
+      return HashCode.fromBytes(digest);
+    }
+  }
+}
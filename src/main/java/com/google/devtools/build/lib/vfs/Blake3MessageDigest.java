@@ -0,0 +1,63 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import java.security.MessageDigest;
+
+/** A {@link MessageDigest} for BLAKE3 with a 256-bit output, see {@link Blake3}. */
+final class Blake3MessageDigest extends MessageDigest implements Cloneable {
+  private final byte[] oneByte = new byte[1];
+  private Blake3 state = new Blake3();
+
+  Blake3MessageDigest() {
+    super("BLAKE3");
+  }
+
+  @Override
+  protected int engineGetDigestLength() {
+    return Blake3.OUT_LEN;
+  }
+
+  @Override
+  protected void engineUpdate(byte input) {
+    oneByte[0] = input;
+    state.update(oneByte, 0, 1);
+  }
+
+  @Override
+  protected void engineUpdate(byte[] input, int offset, int len) {
+    state.update(input, offset, len);
+  }
+
+  @Override
+  protected byte[] engineDigest() {
+    byte[] digest = new byte[Blake3.OUT_LEN];
+    state.digest(digest, 0);
+    state.reset();
+    return digest;
+  }
+
+  @Override
+  protected void engineReset() {
+    state.reset();
+  }
+
+  @Override
+  public Object clone() throws CloneNotSupportedException {
+    Blake3MessageDigest clone = (Blake3MessageDigest) super.clone();
+    clone.state = state.copy();
+    return clone;
+  }
+}
@@ -0,0 +1,43 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.vfs;
+
+import java.security.Provider;
+
+/**
+ * Makes {@link Blake3MessageDigest} available as the "BLAKE3" {@link java.security.MessageDigest},
+ * which the JDK doesn't provide.
+ */
+final class Blake3Provider extends Provider {
+  static final String ALGORITHM = "BLAKE3";
+
+  @SuppressWarnings("deprecation") // The replacement constructor needs JDK 9.
+  Blake3Provider() {
+    super("BazelBlake3", 1.0, "BLAKE3 message digest");
+    putService(
+        new Service(
+            this,
+            "MessageDigest",
+            ALGORITHM,
+            Blake3MessageDigest.class.getName(),
+            /*aliases=*/ null,
+            /*attributes=*/ null) {
+          @Override
+          public Object newInstance(Object constructorParameter) {
+            return new Blake3MessageDigest();
+          }
+        });
+  }
+}
@@ -25,6 +25,7 @@ import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.OptionsParsingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.Security;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -68,6 +69,12 @@ public class DigestHashFunction {
   public static final DigestHashFunction SHA1 = register(Hashing.sha1(), "SHA-1", "SHA1");
   public static final DigestHashFunction SHA256 = register(Hashing.sha256(), "SHA-256", "SHA256");
 
+  /**
+   * BLAKE3 with a 256-bit output. Its MessageDigest is provided by {@link Blake3Provider}, and file
+   * digests are computed with {@link Blake3FileDigester}, which hashes large files in parallel.
+   */
+  public static final DigestHashFunction BLAKE3 = registerBlake3();
+
   private final HashFunction hashFunction;
   private final DigestLength digestLength;
   private final String name;
@@ -127,6 +134,13 @@ public class DigestHashFunction {
     return hashFunction;
   }
 
+  private static DigestHashFunction registerBlake3() {
+    // Has no effect if a provider of the same name has already been added, e.g. by another class
+    // loader.
+    Security.addProvider(new Blake3Provider());
+    return register(Blake3HashFunction.INSTANCE, Blake3Provider.ALGORITHM);
+  }
+
   /** Converts a string to its registered {@link DigestHashFunction}. */
   public static class DigestFunctionConverter implements Converter<DigestHashFunction> {
     @Override
@@ -29,6 +29,7 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -319,6 +320,12 @@ public abstract class FileSystem {
    * @throws IOException if the digest could not be computed for any reason
    */
   protected byte[] getDigest(final Path path) throws IOException {
+    if (digestFunction == DigestHashFunction.BLAKE3) {
+      long size = getFileSize(path, /*followSymlinks=*/ true);
+      try (InputStream in = getInputStream(path)) {
+        return Blake3FileDigester.digest(in, size);
+      }
+    }
     return new ByteSource() {
       @Override
       public InputStream openStream() throws IOException {
@@ -521,6 +528,21 @@ public abstract class FileSystem {
     }
   }
 
+  /**
+   * Like {@link #statIfFound} for each of {@code paths}, in the same order. File systems that can
+   * stat many files in fewer system calls or native calls should override this method.
+   *
+   * @return a list with the status of each path, or null for the paths that are not found
+   */
+  protected List<FileStatus> statIfFoundBatch(List<Path> paths, boolean followSymlinks)
+      throws IOException {
+    List<FileStatus> stats = new ArrayList<>(paths.size());
+    for (Path path : paths) {
+      stats.add(statIfFound(path, followSymlinks));
+    }
+    return stats;
+  }
+
   /**
    * Returns true iff {@code path} denotes an existing directory. See
    * {@link Path#isDirectory(Symlinks)} for specification.
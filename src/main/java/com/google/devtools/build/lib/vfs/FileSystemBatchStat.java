@@ -0,0 +1,51 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link BatchStat} that stats the files below an exec root with {@link
+ * FileSystem#statIfFoundBatch}, for file systems that do not have an {@link OutputService} with its
+ * own batch stat.
+ *
+ * <p>Digests are never included; callers compute them when needed, as they do for single stats.
+ */
+public final class FileSystemBatchStat implements BatchStat {
+
+  private final Path execRoot;
+
+  public FileSystemBatchStat(Path execRoot) {
+    this.execRoot = execRoot;
+  }
+
+  @Override
+  public List<FileStatusWithDigest> batchStat(
+      boolean includeDigest, boolean includeLinks, Iterable<PathFragment> paths)
+      throws IOException {
+    List<Path> absolutePaths = new ArrayList<>();
+    for (PathFragment path : paths) {
+      absolutePaths.add(execRoot.getRelative(path));
+    }
+    List<FileStatus> stats =
+        execRoot.getFileSystem().statIfFoundBatch(absolutePaths, /*followSymlinks=*/ !includeLinks);
+    List<FileStatusWithDigest> result = new ArrayList<>(stats.size());
+    for (FileStatus stat : stats) {
+      result.add(FileStatusWithDigestAdapter.adapt(stat));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,297 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.flogger.GoogleLogger;
+import com.google.common.io.Files;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.clock.Clock;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongUnaryOperator;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.EvictionConfig;
+import org.apache.commons.pool2.impl.EvictionPolicy;
+
+/**
+ * Sizes the singleplex worker pools by demand and memory use, instead of keeping the number of
+ * workers per key given by {@code --worker_max_instances}.
+ *
+ * <p>A pool starts with one worker per key, and grows by one worker each time a borrower has waited
+ * {@link #BORROW_WAIT_STEP} for a worker, up to the number given by {@code --worker_max_instances}.
+ * The resident set sizes of the worker processes are sampled from {@code /proc}. While their sum
+ * exceeds the memory budget, the pools don't grow, and workers are destroyed and their pools shrunk
+ * as they become idle. Workers that use much more memory than the other workers of their mnemonic
+ * are replaced once they are idle. The total resident set size is recorded in the profile.
+ */
+@ThreadSafe
+final class AdaptiveWorkerPoolPolicy implements EvictionPolicy<Worker> {
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  /** How long a borrower waits for a worker before its pool grows. */
+  static final Duration BORROW_WAIT_STEP = Duration.ofMillis(100);
+
+  /** How often the pools look for idle workers to evict. */
+  private static final Duration EVICTION_INTERVAL = Duration.ofSeconds(1);
+
+  /** How often the memory use of the workers is sampled. */
+  @VisibleForTesting static final long SAMPLE_INTERVAL_NANOS = Duration.ofSeconds(1).toNanos();
+
+  /**
+   * A worker is bloated if it uses this many times more memory than the average of the other
+   * workers of its mnemonic.
+   */
+  private static final int BLOATED_FACTOR = 2;
+
+  /** The memory budget for all workers in kilobytes, or 0 if there is none. */
+  private final long memoryBudgetKb;
+
+  private final Clock clock;
+  /** Returns the resident set size of a process id in kilobytes, or -1 if it does not exist. */
+  private final LongUnaryOperator residentSetReader;
+
+  private final ConcurrentHashMap<Worker, TrackedWorker> workers = new ConcurrentHashMap<>();
+  private final AtomicLong lastSampleNanos = new AtomicLong();
+  private final AtomicLong totalResidentSetKb = new AtomicLong();
+
+  private static final class TrackedWorker {
+    private final SimpleWorkerPool pool;
+    private volatile long residentSetKb;
+
+    private TrackedWorker(SimpleWorkerPool pool) {
+      this.pool = pool;
+    }
+  }
+
+  /** @param memoryBudgetMb the memory budget for all workers in megabytes, or 0 if there is none */
+  AdaptiveWorkerPoolPolicy(int memoryBudgetMb) {
+    this(memoryBudgetMb, BlazeClock.instance(), AdaptiveWorkerPoolPolicy::readResidentSetKb);
+  }
+
+  @VisibleForTesting
+  AdaptiveWorkerPoolPolicy(int memoryBudgetMb, Clock clock, LongUnaryOperator residentSetReader) {
+    this.memoryBudgetKb = memoryBudgetMb * 1024L;
+    this.clock = clock;
+    this.residentSetReader = residentSetReader;
+    this.lastSampleNanos.set(clock.nanoTime() - SAMPLE_INTERVAL_NANOS);
+  }
+
+  /** Lets this policy size {@code pool}, which starts with one worker per key. */
+  void manage(SimpleWorkerPool pool) {
+    setLimit(pool, 1);
+    // The evictor would otherwise create idle workers up to this number.
+    pool.setMinIdlePerKey(0);
+    pool.setEvictionPolicy(this);
+    // Look at all idle workers in every eviction run.
+    pool.setNumTestsPerEvictionRun(-1);
+    pool.setTimeBetweenEvictionRunsMillis(EVICTION_INTERVAL.toMillis());
+  }
+
+  /** Records that {@code worker} was borrowed from {@code pool}. */
+  void borrowed(SimpleWorkerPool pool, Worker worker) {
+    workers.computeIfAbsent(worker, w -> new TrackedWorker(pool));
+  }
+
+  /** Records that {@code worker} is being destroyed. */
+  void destroyed(Worker worker) {
+    TrackedWorker tracked = workers.remove(worker);
+    if (tracked != null) {
+      totalResidentSetKb.addAndGet(-tracked.residentSetKb);
+    }
+  }
+
+  /**
+   * Grows {@code pool} by one worker per key, because a borrower has waited {@link
+   * #BORROW_WAIT_STEP} for a worker. Returns false if the pool is at its maximum size, or the
+   * workers have used up the memory budget.
+   */
+  boolean grow(SimpleWorkerPool pool, String mnemonic) {
+    maybeSample();
+    synchronized (pool) {
+      int limit = pool.getMaxTotalPerKey();
+      if (limit >= pool.getMaxInstances()) {
+        return false;
+      }
+      if (memoryBudgetKb > 0
+          && totalResidentSetKb.get() + averageResidentSetKb(mnemonic, null) > memoryBudgetKb) {
+        return false;
+      }
+      setLimit(pool, limit + 1);
+      logLimitChange(mnemonic, limit + 1, "grew");
+      return true;
+    }
+  }
+
+  /**
+   * Returns whether {@code worker} should be destroyed instead of being returned to {@code pool},
+   * because the pool was shrunk, the worker is bloated, or the workers exceed the memory budget.
+   */
+  boolean shouldDestroyOnReturn(SimpleWorkerPool pool, WorkerKey key, Worker worker) {
+    maybeSample();
+    boolean destroy =
+        pool.getNumActive(key) + pool.getNumIdle(key) > pool.getMaxTotalPerKey()
+            || shouldEvict(pool, worker);
+    if (destroy) {
+      destroyed(worker);
+    }
+    return destroy;
+  }
+
+  /** Called by the evictor of the pools for each idle worker. */
+  @Override
+  public boolean evict(EvictionConfig config, PooledObject<Worker> underTest, int idleCount) {
+    maybeSample();
+    Worker worker = underTest.getObject();
+    TrackedWorker tracked = workers.get(worker);
+    if (tracked == null || !shouldEvict(tracked.pool, worker)) {
+      return false;
+    }
+    destroyed(worker);
+    return true;
+  }
+
+  private boolean shouldEvict(SimpleWorkerPool pool, Worker worker) {
+    String mnemonic = worker.workerKey.getMnemonic();
+    if (isBloated(worker, mnemonic)) {
+      logger.atInfo().log("Replacing bloated %s worker %d", mnemonic, worker.getWorkerId());
+      return true;
+    }
+    if (memoryBudgetKb > 0 && totalResidentSetKb.get() > memoryBudgetKb) {
+      synchronized (pool) {
+        int limit = pool.getMaxTotalPerKey();
+        if (limit > 1) {
+          setLimit(pool, limit - 1);
+          logLimitChange(mnemonic, limit - 1, "shrank");
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private boolean isBloated(Worker worker, String mnemonic) {
+    TrackedWorker tracked = workers.get(worker);
+    if (tracked == null || tracked.residentSetKb == 0) {
+      return false;
+    }
+    long average = averageResidentSetKb(mnemonic, worker);
+    return average > 0 && tracked.residentSetKb > BLOATED_FACTOR * average;
+  }
+
+  /** Returns the average memory use of the workers of a mnemonic, not counting {@code exclude}. */
+  private long averageResidentSetKb(String mnemonic, @Nullable Worker exclude) {
+    long sum = 0;
+    int count = 0;
+    for (Map.Entry<Worker, TrackedWorker> entry : workers.entrySet()) {
+      long residentSetKb = entry.getValue().residentSetKb;
+      if (entry.getKey() != exclude
+          && residentSetKb > 0
+          && entry.getKey().workerKey.getMnemonic().equals(mnemonic)) {
+        sum += residentSetKb;
+        count++;
+      }
+    }
+    return count == 0 ? 0 : sum / count;
+  }
+
+  /** Samples the memory use of all workers, unless it was sampled recently. */
+  private void maybeSample() {
+    long now = clock.nanoTime();
+    long last = lastSampleNanos.get();
+    if (now - last < SAMPLE_INTERVAL_NANOS || !lastSampleNanos.compareAndSet(last, now)) {
+      return;
+    }
+    long total = 0;
+    for (Map.Entry<Worker, TrackedWorker> entry : workers.entrySet()) {
+      long pid = entry.getKey().getProcessId();
+      if (pid < 0) {
+        // Not started yet, or the process id is not available on this platform.
+        continue;
+      }
+      long residentSetKb = residentSetReader.applyAsLong(pid);
+      if (residentSetKb < 0) {
+        // The process is gone.
+        workers.remove(entry.getKey());
+        continue;
+      }
+      entry.getValue().residentSetKb = residentSetKb;
+      total += residentSetKb;
+    }
+    totalResidentSetKb.set(total);
+    Profiler.instance()
+        .logEventAtTime(now, ProfilerTask.WORKER_MEMORY_USAGE, String.valueOf(total / 1024.0));
+  }
+
+  /**
+   * Returns the resident set size of a process in kilobytes, as reported in {@code
+   * /proc/<pid>/status}, or -1 if the process does not exist.
+   */
+  private static long readResidentSetKb(long pid) {
+    return readResidentSetKb(new File("/proc/" + pid + "/status"));
+  }
+
+  /**
+   * Returns the resident set size in kilobytes from the {@code VmRSS} line of a {@code
+   * /proc/<pid>/status} file, or -1 if the file does not exist or can't be parsed.
+   */
+  @VisibleForTesting
+  static long readResidentSetKb(File statusFile) {
+    try {
+      for (String line : Files.readLines(statusFile, US_ASCII)) {
+        if (line.startsWith("VmRSS:")) {
+          String value = line.substring("VmRSS:".length()).trim();
+          int space = value.indexOf(' ');
+          return Long.parseLong(space < 0 ? value : value.substring(0, space));
+        }
+      }
+      // Zombie processes have no memory.
+      return 0;
+    } catch (IOException | NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static void setLimit(SimpleWorkerPool pool, int limit) {
+    pool.setMaxTotalPerKey(limit);
+    pool.setMaxIdlePerKey(limit);
+  }
+
+  private void logLimitChange(String mnemonic, int limit, String change) {
+    logger.atInfo().log(
+        "Worker pool for %s %s to %d workers per key (%d MB used by all workers)",
+        mnemonic, change, limit, totalResidentSetKb.get() / 1024);
+    Profiler.instance()
+        .logEventAtTime(
+            clock.nanoTime(),
+            ProfilerTask.INFO,
+            String.format("Worker pool for %s %s to %d", mnemonic, change, limit));
+  }
+
+  /** Forgets all workers, when the pools are closed. */
+  void clear() {
+    workers.clear();
+    totalResidentSetKb.set(0);
+  }
+}
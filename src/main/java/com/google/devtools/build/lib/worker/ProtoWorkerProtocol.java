@@ -15,33 +15,81 @@ package com.google.devtools.build.lib.worker;
 
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
+import javax.annotation.Nullable;
 
-/** An implementation of a Bazel worker using Proto to communicate with the worker process. */
+/**
+ * An implementation of a Bazel worker using Proto to communicate with the worker process.
+ *
+ * <p>Requests and responses are length-delimited protos. They are written and read through a
+ * {@link CodedOutputStream} and a {@link CodedInputStream} that live as long as the worker, so that
+ * their buffers are reused for all messages instead of being allocated for every message.
+ */
 final class ProtoWorkerProtocol implements WorkerProtocolImpl {
 
+  /** The size of the buffer that requests are serialized into before they are written. */
+  private static final int REQUEST_BUFFER_SIZE = 64 * 1024;
+
   /** The worker process's stdin, which we send requests to. */
   private final OutputStream workersStdin;
 
   /** The worker process's stdout, which we read responses from. */
   private final InputStream workersStdout;
 
+  private final CodedOutputStream requestStream;
+  private final CodedInputStream responseStream;
+
   public ProtoWorkerProtocol(OutputStream workersStdin, InputStream workersStdout) {
     this.workersStdin = workersStdin;
     this.workersStdout = workersStdout;
+    this.requestStream = CodedOutputStream.newInstance(workersStdin, REQUEST_BUFFER_SIZE);
+    this.responseStream = CodedInputStream.newInstance(workersStdout);
   }
 
   @Override
   public void putRequest(WorkRequest request) throws IOException {
-    request.writeDelimitedTo(workersStdin);
+    writeDelimited(request);
+    flush();
+  }
+
+  /** Writes all requests with a single write to the worker, unless they exceed the buffer. */
+  @Override
+  public void putRequests(List<WorkRequest> requests) throws IOException {
+    for (WorkRequest request : requests) {
+      writeDelimited(request);
+    }
+    flush();
+  }
+
+  private void writeDelimited(WorkRequest request) throws IOException {
+    requestStream.writeUInt32NoTag(request.getSerializedSize());
+    request.writeTo(requestStream);
+  }
+
+  private void flush() throws IOException {
+    requestStream.flush();
     workersStdin.flush();
   }
 
   @Override
+  @Nullable
   public WorkResponse getResponse() throws IOException {
-    return WorkResponse.parseDelimitedFrom(workersStdout);
+    if (responseStream.isAtEnd()) {
+      // The worker closed its stdout.
+      return null;
+    }
+    int size = responseStream.readRawVarint32();
+    int oldLimit = responseStream.pushLimit(size);
+    WorkResponse response = WorkResponse.parseFrom(responseStream);
+    responseStream.popLimit(oldLimit);
+    // The stream would otherwise fail once it read more than its size limit in total.
+    responseStream.resetSizeCounter();
+    return response;
   }
 
   @Override
@@ -15,6 +15,9 @@ package com.google.devtools.build.lib.worker;
 
 import com.google.common.base.Throwables;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.NoSuchElementException;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
@@ -28,8 +31,20 @@ import org.apache.commons.pool2.impl.GenericKeyedObjectPoolConfig;
 @ThreadSafe
 final class SimpleWorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
 
+  /** The number of workers per key that the pool was configured with. */
+  private final int maxInstances;
+
   public SimpleWorkerPool(WorkerFactory factory, GenericKeyedObjectPoolConfig<Worker> config) {
     super(factory, config);
+    this.maxInstances = config.getMaxTotalPerKey();
+  }
+
+  /**
+   * Returns the number of workers per key that the pool was configured with, which is the most that
+   * an adaptively sized pool grows to.
+   */
+  int getMaxInstances() {
+    return maxInstances;
   }
 
   @Override
@@ -42,6 +57,27 @@ final class SimpleWorkerPool extends GenericKeyedObjectPool<WorkerKey, Worker> {
     }
   }
 
+  /**
+   * Like {@link #borrowObject(WorkerKey)}, but returns null if no worker became available within
+   * {@code maxWait}.
+   */
+  @Nullable
+  Worker borrowObject(WorkerKey key, Duration maxWait) throws IOException, InterruptedException {
+    long startNanos = System.nanoTime();
+    try {
+      return super.borrowObject(key, maxWait.toMillis());
+    } catch (NoSuchElementException e) {
+      // Also thrown if a new worker fails validation, which must not be mistaken for a timeout.
+      if (System.nanoTime() - startNanos >= maxWait.toNanos()) {
+        return null;
+      }
+      throw new RuntimeException("unexpected", e);
+    } catch (Throwable t) {
+      Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
+      throw new RuntimeException("unexpected", t);
+    }
+  }
+
   @Override
   public void invalidateObject(WorkerKey key, Worker obj) throws IOException, InterruptedException {
     try {
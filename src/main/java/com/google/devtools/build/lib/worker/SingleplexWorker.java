@@ -145,6 +145,11 @@ class SingleplexWorker extends Worker {
     }
   }
 
+  @Override
+  long getProcessId() {
+    return process != null ? process.getProcessId() : -1;
+  }
+
   /** Returns true if this process is dead but we didn't deliberately kill it. */
   @Override
   boolean diedUnexpectedly() {
@@ -58,6 +58,11 @@ public abstract class Worker {
     return logFile;
   }
 
+  /** Returns the id of the worker process, or -1 if it is not known or not started yet. */
+  long getProcessId() {
+    return -1;
+  }
+
   HashCode getWorkerFilesCombinedHash() {
     return workerKey.getWorkerFilesCombinedHash();
   }
@@ -51,6 +51,8 @@ public class WorkerModule extends BlazeModule {
   private WorkerOptions options;
   private ImmutableMap<String, Integer> workerPoolConfig;
   private ImmutableMap<String, Integer> multiplexPoolConfig;
+  private boolean workerAdaptivePool;
+  private int workerMemoryLimitMb;
 
   @Override
   public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
@@ -114,7 +116,10 @@ public class WorkerModule extends BlazeModule {
 
     // If the config changed compared to the last run, we have to create a new pool.
     if ((workerPoolConfig != null && !workerPoolConfig.equals(newConfig))
-        || (multiplexPoolConfig != null && !multiplexPoolConfig.equals(newMultiplexConfig))) {
+        || (multiplexPoolConfig != null && !multiplexPoolConfig.equals(newMultiplexConfig))
+        || (workerPool != null
+            && (workerAdaptivePool != options.workerAdaptivePool
+                || workerMemoryLimitMb != options.workerMemoryLimitMb))) {
       shutdownPool(
           "Worker configuration has changed, restarting worker pool...", /* alwaysLog= */ true);
     }
@@ -122,9 +127,15 @@ public class WorkerModule extends BlazeModule {
     if (workerPool == null) {
       workerPoolConfig = newConfig;
       multiplexPoolConfig = newMultiplexConfig;
+      workerAdaptivePool = options.workerAdaptivePool;
+      workerMemoryLimitMb = options.workerMemoryLimitMb;
       workerPool =
           new WorkerPool(
-              workerFactory, workerPoolConfig, multiplexPoolConfig, options.highPriorityWorkers);
+              workerFactory,
+              workerPoolConfig,
+              multiplexPoolConfig,
+              options.highPriorityWorkers,
+              workerAdaptivePool ? new AdaptiveWorkerPoolPolicy(workerMemoryLimitMb) : null);
     }
   }
 
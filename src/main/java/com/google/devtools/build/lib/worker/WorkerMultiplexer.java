@@ -93,6 +93,9 @@ public class WorkerMultiplexer {
   /** A separate thread that sends requests. */
   private Thread requestSender;
 
+  /** The requests that the {@code requestSender} thread sends with a single write. */
+  private final List<WorkRequest> requestBatch = new ArrayList<>();
+
   /** A separate thread that receives responses. */
   private Thread responseReceiver;
 
@@ -161,7 +164,7 @@ public class WorkerMultiplexer {
       this.requestSender =
           new Thread(
               () -> {
-                while (process.isAlive() && sendRequest()) {}
+                while (process.isAlive() && sendRequests()) {}
               });
       this.requestSender.setName("multiplexer-request-sender-" + id);
       this.requestSender.start();
@@ -278,28 +281,33 @@ public class WorkerMultiplexer {
   }
 
   /**
-   * Sends a single pending request, if there are any. Blocks until a request is available.
+   * Sends all pending requests with a single write, once there are any. Blocks until a request is
+   * available.
    *
    * <p>This is only called by the {@code requestSender} thread and so cannot be interrupted by
    * dynamic execution cancellation, but only by a call to {@link #destroyProcess()}.
    */
-  private boolean sendRequest() {
-    WorkRequest request;
+  private boolean sendRequests() {
+    requestBatch.clear();
     try {
-      request = pendingRequests.take();
+      requestBatch.add(pendingRequests.take());
     } catch (InterruptedException e) {
       return false;
     }
+    // Requests that were queued while the previous batch was written go out together.
+    pendingRequests.drainTo(requestBatch);
     try {
-      workerProtocol.putRequest(request);
+      workerProtocol.putRequests(requestBatch);
     } catch (IOException e) {
-      // We can't know how much of the request was sent, so we have to assume the worker's input
-      // now contains garbage, and this request is lost.
+      // We can't know how much of the requests were sent, so we have to assume the worker's input
+      // now contains garbage, and these requests are lost.
       // TODO(b/177637516): Signal that this action failed for presumably transient reasons.
-      report("Failed to send request " + request.getRequestId());
-      Semaphore s = responseChecker.remove(request.getRequestId());
-      if (s != null) {
-        s.release();
+      for (WorkRequest request : requestBatch) {
+        report("Failed to send request " + request.getRequestId());
+        Semaphore s = responseChecker.remove(request.getRequestId());
+        if (s != null) {
+          s.release();
+        }
       }
       // TODO(b/177637516): Leave process in a moribound state so pending responses can be returned.
       destroyProcess();
@@ -122,6 +122,34 @@ public class WorkerOptions extends OptionsBase {
       allowMultiple = true)
   public List<Map.Entry<String, Integer>> workerMaxMultiplexInstances;
 
+  @Option(
+      name = "experimental_worker_adaptive_pool",
+      defaultValue = "false",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.EXECUTION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      help =
+          "If enabled, the number of instances of non-multiplex workers grows with the time that"
+              + " actions wait for a worker, up to --worker_max_instances, and shrinks when the"
+              + " workers use more memory than --experimental_worker_memory_limit_mb.")
+  public boolean workerAdaptivePool;
+
+  @Option(
+      name = "experimental_worker_memory_limit_mb",
+      defaultValue = "0",
+      documentationCategory = OptionDocumentationCategory.UNDOCUMENTED,
+      effectTags = {
+        OptionEffectTag.EXECUTION,
+        OptionEffectTag.HOST_MACHINE_RESOURCE_OPTIMIZATIONS
+      },
+      help =
+          "The memory in megabytes that all non-multiplex workers together may use with"
+              + " --experimental_worker_adaptive_pool, measured as the resident set size of the"
+              + " worker processes. 0 means no limit.")
+  public int workerMemoryLimitMb;
+
   @Option(
       name = "high_priority_workers",
       defaultValue = "null",
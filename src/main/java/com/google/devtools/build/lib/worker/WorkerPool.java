@@ -19,6 +19,7 @@ import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 import org.apache.commons.pool2.impl.GenericKeyedObjectPool;
 
@@ -49,6 +50,8 @@ final class WorkerPool {
   private final ImmutableMap<String, SimpleWorkerPool> workerPools;
   /** Map of multiplex worker pools, one per mnemonic. */
   private final ImmutableMap<String, SimpleWorkerPool> multiplexPools;
+  /** Sizes the singleplex worker pools, unless they have a fixed size. */
+  @Nullable private final AdaptiveWorkerPoolPolicy adaptivePolicy;
 
   /**
    * @param factory worker factory
@@ -62,9 +65,26 @@ final class WorkerPool {
       Map<String, Integer> config,
       Map<String, Integer> multiplexConfig,
       Iterable<String> highPriorityWorkers) {
+    this(factory, config, multiplexConfig, highPriorityWorkers, /* adaptivePolicy= */ null);
+  }
+
+  /**
+   * @param adaptivePolicy if not null, sizes the singleplex worker pools by demand and memory use
+   *     up to the maximum numbers of workers in {@code config}
+   */
+  public WorkerPool(
+      WorkerFactory factory,
+      Map<String, Integer> config,
+      Map<String, Integer> multiplexConfig,
+      Iterable<String> highPriorityWorkers,
+      @Nullable AdaptiveWorkerPoolPolicy adaptivePolicy) {
     highPriorityWorkerMnemonics = ImmutableSet.copyOf(highPriorityWorkers);
     workerPools = createWorkerPools(factory, config, DEFAULT_MAX_WORKERS);
     multiplexPools = createWorkerPools(factory, multiplexConfig, DEFAULT_MAX_MULTIPLEX_WORKERS);
+    this.adaptivePolicy = adaptivePolicy;
+    if (adaptivePolicy != null) {
+      workerPools.values().forEach(adaptivePolicy::manage);
+    }
   }
 
   private static ImmutableMap<String, SimpleWorkerPool> createWorkerPools(
@@ -126,11 +146,15 @@ final class WorkerPool {
    */
   public Worker borrowObject(WorkerKey key) throws IOException, InterruptedException {
     Worker result;
-    try {
-      result = getPool(key).borrowObject(key);
-    } catch (Throwable t) {
-      Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
-      throw new RuntimeException("unexpected", t);
+    if (adaptivePolicy != null && !key.getProxied()) {
+      result = borrowAdaptively(getPool(key), key);
+    } else {
+      try {
+        result = getPool(key).borrowObject(key);
+      } catch (Throwable t) {
+        Throwables.propagateIfPossible(t, IOException.class, InterruptedException.class);
+        throw new RuntimeException("unexpected", t);
+      }
     }
 
     if (highPriorityWorkerMnemonics.contains(key.getMnemonic())) {
@@ -147,17 +171,46 @@ final class WorkerPool {
     return result;
   }
 
+  // Borrows a worker, and grows the pool each time the caller has waited for a worker for a while.
+  private Worker borrowAdaptively(SimpleWorkerPool pool, WorkerKey key)
+      throws IOException, InterruptedException {
+    while (true) {
+      Worker worker = pool.borrowObject(key, AdaptiveWorkerPoolPolicy.BORROW_WAIT_STEP);
+      if (worker != null) {
+        adaptivePolicy.borrowed(pool, worker);
+        return worker;
+      }
+      adaptivePolicy.grow(pool, key.getMnemonic());
+    }
+  }
+
   public void returnObject(WorkerKey key, Worker obj) {
     if (highPriorityWorkerMnemonics.contains(key.getMnemonic())) {
       decrementHighPriorityWorkerCount();
     }
-    getPool(key).returnObject(key, obj);
+    SimpleWorkerPool pool = getPool(key);
+    if (adaptivePolicy != null
+        && !key.getProxied()
+        && adaptivePolicy.shouldDestroyOnReturn(pool, key, obj)) {
+      try {
+        pool.invalidateObject(key, obj);
+      } catch (IOException e) {
+        // Like returning it, destroying a worker that is no longer needed does not fail the action.
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return;
+    }
+    pool.returnObject(key, obj);
   }
 
   public void invalidateObject(WorkerKey key, Worker obj) throws IOException, InterruptedException {
     if (highPriorityWorkerMnemonics.contains(key.getMnemonic())) {
       decrementHighPriorityWorkerCount();
     }
+    if (adaptivePolicy != null) {
+      adaptivePolicy.destroyed(obj);
+    }
     try {
       getPool(key).invalidateObject(key, obj);
     } catch (Throwable t) {
@@ -192,6 +245,9 @@ final class WorkerPool {
   public void close() {
     workerPools.values().forEach(GenericKeyedObjectPool::close);
     multiplexPools.values().forEach(GenericKeyedObjectPool::close);
+    if (adaptivePolicy != null) {
+      adaptivePolicy.clear();
+    }
   }
 
   /** Stops any ongoing work in the worker pools. This may entail killing the worker processes. */
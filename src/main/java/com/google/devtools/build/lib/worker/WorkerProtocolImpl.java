@@ -17,12 +17,20 @@ import com.google.devtools.build.lib.worker.WorkerProtocol.WorkRequest;
 import com.google.devtools.build.lib.worker.WorkerProtocol.WorkResponse;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.List;
 
 /** Represents the communication between Bazel and a persistent worker. */
 interface WorkerProtocolImpl extends Closeable {
   /** Writes the provided work request to the worker. */
   void putRequest(WorkRequest request) throws IOException;
 
+  /** Writes the provided work requests to the worker, in order. */
+  default void putRequests(List<WorkRequest> requests) throws IOException {
+    for (WorkRequest request : requests) {
+      putRequest(request);
+    }
+  }
+
   /** Reads a response from the worker. */
   WorkResponse getResponse() throws IOException;
 }
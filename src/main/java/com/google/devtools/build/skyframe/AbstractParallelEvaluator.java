@@ -32,6 +32,7 @@ import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.profiler.SkyFunctionResourceUsage;
 import com.google.devtools.build.lib.supplier.InterruptibleSupplier;
 import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationState;
@@ -474,6 +475,13 @@ abstract class AbstractParallelEvaluator {
                 state);
 
         SkyValue value = null;
+        SkyFunctionResourceUsage resourceUsage = Profiler.instance().getSkyFunctionResourceUsage();
+        long startCpuTimeNanos = 0;
+        long startAllocatedBytes = 0;
+        if (resourceUsage != null) {
+          startCpuTimeNanos = resourceUsage.getCurrentThreadCpuTimeNanos();
+          startAllocatedBytes = resourceUsage.getCurrentThreadAllocatedBytes();
+        }
         long startTimeNanos = BlazeClock.instance().nanoTime();
         try {
           try {
@@ -481,6 +489,9 @@ abstract class AbstractParallelEvaluator {
             value = factory.compute(skyKey, env);
           } finally {
             long elapsedTimeNanos = BlazeClock.instance().nanoTime() - startTimeNanos;
+            if (resourceUsage != null) {
+              resourceUsage.record(functionName.getName(), startCpuTimeNanos, startAllocatedBytes);
+            }
             evaluatorContext
                 .getProgressReceiver()
                 .stateEnding(skyKey, NodeState.COMPUTE, elapsedTimeNanos);
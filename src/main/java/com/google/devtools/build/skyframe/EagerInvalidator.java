@@ -47,7 +47,11 @@ public final class EagerInvalidator {
         createDeletingVisitorIfNeeded(
             graph, diff, progressReceiver, state, traverseGraph);
     if (visitor != null) {
-      visitor.run();
+      try {
+        visitor.run();
+      } finally {
+        graph.deletionPassFinished();
+      }
     }
   }
 
@@ -0,0 +1,215 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Copies the done nodes of an in-memory graph, with their values and direct deps, out of the graph
+ * and back into a fresh one. Together with a way to serialize the keys and values, this allows the
+ * graph to outlive the server.
+ *
+ * <p>A snapshot is closed under direct deps: a node is only in the snapshot if all of its deps are.
+ * Restored nodes are at a version older than any evaluation of the new graph, so that the next
+ * evaluation treats them like nodes built by a previous evaluation, and re-evaluates those whose
+ * deps are invalidated. Stored events and posts of the nodes are not part of the snapshot, so they
+ * are not replayed for restored nodes.
+ */
+public final class GraphSnapshot {
+
+  /** The version of the restored nodes, which is older than the first evaluation of a graph. */
+  static final IntVersion RESTORED_VERSION = IntVersion.of(-1);
+
+  private GraphSnapshot() {}
+
+  /** A done node of the graph. */
+  public static final class Node {
+    private final SkyKey key;
+    private final SkyValue value;
+    private final ImmutableList<ImmutableList<SkyKey>> depGroups;
+
+    public Node(SkyKey key, SkyValue value, ImmutableList<ImmutableList<SkyKey>> depGroups) {
+      this.key = Preconditions.checkNotNull(key);
+      this.value = Preconditions.checkNotNull(value, key);
+      this.depGroups = Preconditions.checkNotNull(depGroups, key);
+    }
+
+    public SkyKey getKey() {
+      return key;
+    }
+
+    public SkyValue getValue() {
+      return value;
+    }
+
+    /** The direct deps of the node, in the groups in which they were requested. */
+    public ImmutableList<ImmutableList<SkyKey>> getDepGroups() {
+      return depGroups;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("key", key)
+          .add("value", value)
+          .add("depGroups", depGroups)
+          .toString();
+    }
+  }
+
+  /**
+   * Returns the done nodes of {@code graph} that have a value, that satisfy {@code include}, and
+   * whose direct deps are transitively in the result as well. Each node comes after its deps.
+   *
+   * <p>Must not be called during an evaluation.
+   */
+  static ImmutableList<Node> take(InMemoryGraph graph, Predicate<SkyKey> include)
+      throws InterruptedException {
+    Map<SkyKey, ? extends NodeEntry> entries = graph.getAllValues();
+    // Whether each visited key is in the snapshot.
+    Map<SkyKey, Boolean> included = new HashMap<>();
+    ImmutableList.Builder<Node> nodes = ImmutableList.builder();
+    // An explicit stack, since dependency chains may be deep.
+    Deque<Frame> stack = new ArrayDeque<>();
+    for (SkyKey root : entries.keySet()) {
+      if (included.containsKey(root)) {
+        continue;
+      }
+      stack.push(new Frame(root));
+      while (!stack.isEmpty()) {
+        Frame frame = stack.peek();
+        if (frame.deps == null) {
+          NodeEntry entry = entries.get(frame.key);
+          SkyValue value = includedValue(frame.key, entry, include);
+          if (value == null) {
+            included.put(frame.key, false);
+            stack.pop();
+            continue;
+          }
+          frame.value = value;
+          frame.depGroups =
+              GroupedList.create(((InMemoryNodeEntry) entry).getCompressedDirectDepsForDoneEntry());
+          frame.deps = frame.depGroups.getAllElementsAsIterable().iterator();
+        }
+        if (frame.pendingDep != null) {
+          frame.included = included.get(frame.pendingDep);
+          frame.pendingDep = null;
+        }
+        SkyKey unvisitedDep = null;
+        while (frame.included && frame.deps.hasNext()) {
+          SkyKey dep = frame.deps.next();
+          Boolean depIncluded = included.get(dep);
+          if (depIncluded == null) {
+            unvisitedDep = dep;
+            break;
+          }
+          frame.included = depIncluded;
+        }
+        if (unvisitedDep != null) {
+          // The dep's result is checked when the frame is resumed.
+          frame.pendingDep = unvisitedDep;
+          stack.push(new Frame(unvisitedDep));
+          continue;
+        }
+        included.put(frame.key, frame.included);
+        if (frame.included) {
+          nodes.add(new Node(frame.key, frame.value, copyGroups(frame.depGroups)));
+        }
+        stack.pop();
+      }
+    }
+    return nodes.build();
+  }
+
+  private static SkyValue includedValue(SkyKey key, NodeEntry entry, Predicate<SkyKey> include)
+      throws InterruptedException {
+    if (entry == null
+        || !(entry instanceof InMemoryNodeEntry)
+        || !entry.isDone()
+        || !include.test(key)
+        || entry.getErrorInfo() != null) {
+      return null;
+    }
+    return entry.getValue();
+  }
+
+  private static ImmutableList<ImmutableList<SkyKey>> copyGroups(GroupedList<SkyKey> depGroups) {
+    ImmutableList.Builder<ImmutableList<SkyKey>> groups =
+        ImmutableList.builderWithExpectedSize(depGroups.listSize());
+    for (List<SkyKey> group : depGroups) {
+      groups.add(ImmutableList.copyOf(group));
+    }
+    return groups.build();
+  }
+
+  /** A node being visited by {@link #take}. */
+  private static final class Frame {
+    private final SkyKey key;
+    private SkyValue value;
+    private GroupedList<SkyKey> depGroups;
+    private Iterator<SkyKey> deps;
+    private SkyKey pendingDep;
+    private boolean included = true;
+
+    private Frame(SkyKey key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Adds {@code nodes}, which must come after their deps as in the result of {@link #take}, to
+   * {@code graph} as done nodes at {@link #RESTORED_VERSION}.
+   *
+   * <p>The graph must not contain any of the nodes yet, and must not have been evaluated at any
+   * version.
+   */
+  static void restore(InMemoryGraph graph, Iterable<Node> nodes) throws InterruptedException {
+    for (Node node : nodes) {
+      NodeEntry entry =
+          graph
+              .createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(node.getKey()))
+              .get(node.getKey());
+      Preconditions.checkState(
+          entry.addReverseDepAndCheckIfDone(null) == NodeEntry.DependencyState.NEEDS_SCHEDULING,
+          "Restored node already in graph: %s %s",
+          node,
+          entry);
+      entry.markRebuilding();
+      for (ImmutableList<SkyKey> group : node.getDepGroups()) {
+        entry.addTemporaryDirectDepsGroupToDirtyEntry(group);
+      }
+      for (ImmutableList<SkyKey> group : node.getDepGroups()) {
+        for (SkyKey dep : group) {
+          NodeEntry depEntry = graph.get(node.getKey(), Reason.OTHER, dep);
+          Preconditions.checkState(
+              depEntry != null && depEntry.isDone(), "Dep %s of %s not restored", dep, node);
+          depEntry.addReverseDepAndCheckIfDone(node.getKey());
+          entry.signalDep(RESTORED_VERSION, dep);
+        }
+      }
+      entry.setValue(node.getValue(), RESTORED_VERSION);
+    }
+  }
+}
@@ -46,4 +46,10 @@ public interface InMemoryGraph extends ProcessableGraph {
   Map<SkyKey, ? extends NodeEntry> getAllValues();
 
   Map<SkyKey, ? extends NodeEntry> getAllValuesMutable();
+
+  /**
+   * Notes that a pass deleting nodes with {@link #remove} is over, so that no other node refers to
+   * the deleted ones any more.
+   */
+  default void deletionPassFinished() {}
 }
@@ -18,6 +18,8 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.collect.compacthashmap.CompactHashMap;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -35,8 +37,20 @@ import javax.annotation.Nullable;
  */
 public class InMemoryGraphImpl implements InMemoryGraph {
 
-  protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap = new ConcurrentHashMap<>(1024);
+  /**
+   * Whether nodes store their reverse deps as int ids, enabled with {@code
+   * -Dexperimental_skyframe_int_reverse_deps=1}. See {@link ReverseDepsUtility}.
+   *
+   * <p>Ignored when the JVM uses compressed oops: a reference is then as small as an id, and the
+   * id of each node costs more than the lists of reverse deps save.
+   */
+  private static final boolean USE_KEY_IDS =
+      "1".equals(System.getProperty("experimental_skyframe_int_reverse_deps"))
+          && !usesCompressedOops();
+
+  protected final ConcurrentMap<SkyKey, NodeEntry> nodeMap;
   private final boolean keepEdges;
+  @Nullable private final SkyKeyIds keyIds;
 
   @VisibleForTesting
   public InMemoryGraphImpl() {
@@ -44,12 +58,35 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   public InMemoryGraphImpl(boolean keepEdges) {
+    this(keepEdges, new ConcurrentHashMap<>(1024));
+  }
+
+  /** For alternative graph implementations that store their nodes in a different map. */
+  protected InMemoryGraphImpl(boolean keepEdges, ConcurrentMap<SkyKey, NodeEntry> nodeMap) {
+    this(keepEdges, nodeMap, USE_KEY_IDS);
+  }
+
+  @VisibleForTesting
+  InMemoryGraphImpl(
+      boolean keepEdges, ConcurrentMap<SkyKey, NodeEntry> nodeMap, boolean useKeyIds) {
     this.keepEdges = keepEdges;
+    this.nodeMap = nodeMap;
+    this.keyIds = keepEdges && useKeyIds ? new SkyKeyIds(nodeMap) : null;
   }
 
   @Override
   public void remove(SkyKey skyKey) {
-    nodeMap.remove(skyKey);
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (entry instanceof KeyIdInMemoryNodeEntry) {
+      keyIds.noteDeleted(((KeyIdInMemoryNodeEntry) entry).getKeyId());
+    }
+  }
+
+  @Override
+  public void deletionPassFinished() {
+    if (keyIds != null) {
+      keyIds.freeDeleted();
+    }
   }
 
   @Override
@@ -73,7 +110,16 @@ public class InMemoryGraphImpl implements InMemoryGraph {
   }
 
   protected NodeEntry newNodeEntry(SkyKey key) {
-    return keepEdges ? new InMemoryNodeEntry() : new EdgelessInMemoryNodeEntry();
+    if (!keepEdges) {
+      return new EdgelessInMemoryNodeEntry();
+    }
+    if (keyIds != null) {
+      int keyId = keyIds.assign(key);
+      if (keyId >= 0) {
+        return new KeyIdInMemoryNodeEntry(keyIds, keyId);
+      }
+    }
+    return new InMemoryNodeEntry();
   }
 
   /**
@@ -141,11 +187,28 @@ public class InMemoryGraphImpl implements InMemoryGraph {
     return nodeMap;
   }
 
+  @VisibleForTesting
+  @Nullable
+  SkyKeyIds getKeyIds() {
+    return keyIds;
+  }
+
   @VisibleForTesting
   protected ConcurrentMap<SkyKey, ? extends NodeEntry> getNodeMap() {
     return nodeMap;
   }
 
+  private static boolean usesCompressedOops() {
+    try {
+      HotSpotDiagnosticMXBean bean =
+          ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+      return bean == null || Boolean.parseBoolean(bean.getVMOption("UseCompressedOops").getValue());
+    } catch (IllegalArgumentException e) {
+      // Not a HotSpot JVM.
+      return true;
+    }
+  }
+
   boolean keepsEdges() {
     return keepEdges;
   }
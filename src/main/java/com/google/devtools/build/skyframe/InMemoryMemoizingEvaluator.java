@@ -16,6 +16,7 @@ package com.google.devtools.build.skyframe;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
@@ -110,7 +111,7 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     this.progressReceiver = new DirtyTrackingProgressReceiver(progressReceiver);
     this.graphInconsistencyReceiver = Preconditions.checkNotNull(graphInconsistencyReceiver);
     this.eventFilter = eventFilter;
-    this.graph = new InMemoryGraphImpl(keepEdges);
+    this.graph = ShardedInMemoryGraph.create(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
   }
@@ -207,6 +208,9 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
           .build();
     } finally {
       lastGraphVersion = intVersion;
+      if (graph instanceof ShardedInMemoryGraph) {
+        ((ShardedInMemoryGraph) graph).logAndResetShardStats();
+      }
       setAndCheckEvaluateState(false, roots);
     }
   }
@@ -301,6 +305,29 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return graph.getAllValuesMutable().entrySet();
   }
 
+  @Override
+  public ImmutableList<GraphSnapshot.Node> takeSnapshot(Predicate<SkyKey> include)
+      throws InterruptedException {
+    if (!keepEdges) {
+      return ImmutableList.of();
+    }
+    return GraphSnapshot.take(graph, include);
+  }
+
+  @Override
+  public boolean canRestoreSnapshot() {
+    return lastGraphVersion == null && graph.getAllValues().isEmpty();
+  }
+
+  @Override
+  public boolean restoreSnapshot(Iterable<GraphSnapshot.Node> nodes) throws InterruptedException {
+    if (!canRestoreSnapshot()) {
+      return false;
+    }
+    GraphSnapshot.restore(graph, nodes);
+    return true;
+  }
+
   @Override
   public Map<SkyKey, SkyValue> getDoneValues() {
     return graph.getDoneValues();
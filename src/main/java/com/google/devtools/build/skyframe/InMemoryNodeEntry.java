@@ -102,7 +102,7 @@ public class InMemoryNodeEntry implements NodeEntry {
    * This list stores the reverse dependencies of this node that have been declared so far.
    *
    * <p>In case of a single object we store the object unwrapped, without the list, for
-   * memory-efficiency.
+   * memory-efficiency. {@link ReverseDepsUtility} may also store the list as an array of key ids.
    *
    * <p>When an entry is being re-evaluated, this object stores the reverse deps from the previous
    * evaluation. At the end of evaluation, the changed reverse dep operations from {@link
@@ -379,6 +379,17 @@ public class InMemoryNodeEntry implements NodeEntry {
     this.reverseDeps = reverseDeps;
   }
 
+  /** Sets {@link #reverseDeps}. Does not alter {@link #reverseDepsDataToConsolidate}. */
+  synchronized void setReverseDepIdsForReverseDepsUtil(int[] reverseDepIds) {
+    this.reverseDeps = reverseDepIds;
+  }
+
+  /** Returns the ids that {@link ReverseDepsUtility} stores reverse deps as, if there are any. */
+  @Nullable
+  SkyKeyIds getKeyIdsForReverseDepsUtil() {
+    return null;
+  }
+
   /** Sets {@link #reverseDepsDataToConsolidate}. Does not alter {@link #reverseDeps}. */
   synchronized void setReverseDepsDataToConsolidateForReverseDepsUtil(
       List<Object> dataToConsolidate) {
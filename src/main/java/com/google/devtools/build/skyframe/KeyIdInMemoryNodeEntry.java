@@ -0,0 +1,38 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+/**
+ * An {@link InMemoryNodeEntry} with an id in the {@link SkyKeyIds} of its graph, which stores its
+ * reverse deps as the ids of their keys. See {@link ReverseDepsUtility}.
+ */
+final class KeyIdInMemoryNodeEntry extends InMemoryNodeEntry {
+
+  private final SkyKeyIds keyIds;
+  private final int keyId;
+
+  KeyIdInMemoryNodeEntry(SkyKeyIds keyIds, int keyId) {
+    this.keyIds = keyIds;
+    this.keyId = keyId;
+  }
+
+  int getKeyId() {
+    return keyId;
+  }
+
+  @Override
+  SkyKeyIds getKeyIdsForReverseDepsUtil() {
+    return keyIds;
+  }
+}
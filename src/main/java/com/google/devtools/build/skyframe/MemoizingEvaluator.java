@@ -14,6 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadHostile;
@@ -87,6 +88,29 @@ public interface MemoizingEvaluator {
   // require some care because getValues gives access to the previous value for changed/dirty nodes.
   Map<SkyKey, SkyValue> getValues();
 
+  /**
+   * Returns the done nodes of the graph that satisfy {@code include} and whose deps transitively
+   * do too, in an order suitable for {@link #restoreSnapshot}. Should only be called between
+   * evaluations. Returns an empty list if the graph does not keep edges.
+   */
+  ImmutableList<GraphSnapshot.Node> takeSnapshot(Predicate<SkyKey> include)
+      throws InterruptedException;
+
+  /**
+   * Whether {@link #restoreSnapshot} would add nodes to the graph, that is, whether the evaluator
+   * hasn't evaluated anything and its graph is empty.
+   */
+  boolean canRestoreSnapshot();
+
+  /**
+   * Adds the nodes of a snapshot taken by {@link #takeSnapshot}, possibly by another evaluator, to
+   * the graph, unless the evaluator has already evaluated something. The next evaluation
+   * re-evaluates restored nodes that depend on invalidated nodes as usual.
+   *
+   * @return whether the nodes were added
+   */
+  boolean restoreSnapshot(Iterable<GraphSnapshot.Node> nodes) throws InterruptedException;
+
   /**
    * Returns the node entries in the graph. Should only be called between evaluations. The returned
    * iterable is mutable, but do not mutate it unless you know what you are doing! Naively deleting
@@ -23,11 +23,14 @@ import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.collect.compacthashset.CompactHashSet;
 import com.google.devtools.build.skyframe.KeyToConsolidate.Op;
 import com.google.devtools.build.skyframe.KeyToConsolidate.OpToStoreBare;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * A utility class that allows us to keep the reverse dependencies as an array list instead of a
@@ -50,6 +53,14 @@ import java.util.Set;
  * initially evaluating node itself, using similar logic tuned to those cases, and calls into {@link
  * #consolidateDataAndReturnNewElements(InMemoryNodeEntry, OpToStoreBare)} when transitioning to
  * done.
+ *
+ * <p>Entries that have {@link SkyKeyIds} store more than one reverse dep as an {@code int[]} of the
+ * ids of their keys instead of a list of keys. The first element of the array is the number of
+ * reverse deps, the following ones are their ids, and the rest is spare capacity. Without
+ * compressed oops, this halves the size of every edge and saves the {@link ArrayList} wrapper of
+ * every node with more than one reverse dep, and it gives the garbage collector fewer references
+ * to trace. Reverse deps that have no id, such as keys that are not in the graph, make the entry
+ * fall back to a list.
  */
 abstract class ReverseDepsUtility {
 
@@ -84,14 +95,66 @@ abstract class ReverseDepsUtility {
   }
 
   private static boolean isSingleReverseDep(InMemoryNodeEntry entry) {
-    return !(entry.getReverseDepsRawForReverseDepsUtil() instanceof List);
+    Object reverseDeps = entry.getReverseDepsRawForReverseDepsUtil();
+    return !(reverseDeps instanceof List) && !(reverseDeps instanceof int[]);
   }
 
   @SuppressWarnings("unchecked") // Cast to list.
   private static int getCurrentReverseDepSize(InMemoryNodeEntry entry) {
-    return isSingleReverseDep(entry)
-        ? 1
-        : ((List<SkyKey>) entry.getReverseDepsRawForReverseDepsUtil()).size();
+    Object reverseDeps = entry.getReverseDepsRawForReverseDepsUtil();
+    if (reverseDeps instanceof int[]) {
+      return ((int[]) reverseDeps)[0];
+    }
+    return isSingleReverseDep(entry) ? 1 : ((List<SkyKey>) reverseDeps).size();
+  }
+
+  /** Returns the reverse deps of an entry that doesn't have a single reverse dep as a list. */
+  @SuppressWarnings("unchecked") // Cast to list.
+  private static List<SkyKey> getReverseDepsList(InMemoryNodeEntry entry, Object reverseDeps) {
+    if (reverseDeps instanceof int[]) {
+      int[] ids = (int[]) reverseDeps;
+      SkyKeyIds keyIds = entry.getKeyIdsForReverseDepsUtil();
+      return new AbstractList<SkyKey>() {
+        @Override
+        public SkyKey get(int index) {
+          Preconditions.checkElementIndex(index, ids[0]);
+          return keyIds.getKey(ids[index + 1]);
+        }
+
+        @Override
+        public int size() {
+          return ids[0];
+        }
+      };
+    }
+    return (List<SkyKey>) reverseDeps;
+  }
+
+  /**
+   * Appends the ids of {@code keys} to the reverse dep array {@code ids}, or to a new one if it is
+   * null, and returns the possibly reallocated array. Returns null, leaving {@code ids} as it was,
+   * if one of the keys has no id.
+   */
+  @Nullable
+  private static int[] appendIds(SkyKeyIds keyIds, @Nullable int[] ids, Collection<SkyKey> keys) {
+    int size = ids == null ? 0 : ids[0];
+    int newSize = size + keys.size();
+    if (ids == null || ids.length <= newSize) {
+      // Grow by half, like ArrayList, to amortize the copies of nodes with many reverse deps.
+      int capacity = ids == null ? newSize : Math.max(newSize, size + (size >> 1));
+      ids = ids == null ? new int[capacity + 1] : Arrays.copyOf(ids, capacity + 1);
+    }
+    int index = size + 1;
+    for (SkyKey key : keys) {
+      int id = keyIds.getId(key);
+      if (id < 0) {
+        return null;
+      }
+      // Writes beyond the current size, which are spare capacity until the size is updated.
+      ids[index++] = id;
+    }
+    ids[0] = newSize;
+    return ids;
   }
 
   /**
@@ -117,11 +180,29 @@ abstract class ReverseDepsUtility {
       return;
     }
     Object reverseDeps = entry.getReverseDepsRawForReverseDepsUtil();
-    int reverseDepsSize = isSingleReverseDep(entry) ? 1 : ((List<SkyKey>) reverseDeps).size();
+    int reverseDepsSize = getCurrentReverseDepSize(entry);
     int newSize = reverseDepsSize + newReverseDeps.size();
     if (newSize == 1) {
       entry.setSingleReverseDepForReverseDepsUtil(Iterables.getOnlyElement(newReverseDeps));
-    } else if (reverseDepsSize == 0) {
+      return;
+    }
+    SkyKeyIds keyIds = entry.getKeyIdsForReverseDepsUtil();
+    if (keyIds != null) {
+      int[] ids = appendReverseDepIds(entry, keyIds, reverseDeps, newReverseDeps);
+      if (ids != null) {
+        entry.setReverseDepIdsForReverseDepsUtil(ids);
+        return;
+      }
+      if (reverseDeps instanceof int[]) {
+        // A new reverse dep has no id.
+        List<SkyKey> newList = Lists.newArrayListWithExpectedSize(newSize);
+        newList.addAll(getReverseDepsList(entry, reverseDeps));
+        newList.addAll(newReverseDeps);
+        entry.setReverseDepsForReverseDepsUtil(newList);
+        return;
+      }
+    }
+    if (reverseDepsSize == 0) {
       entry.setReverseDepsForReverseDepsUtil(Lists.newArrayList(newReverseDeps));
     } else if (reverseDepsSize == 1) {
       List<SkyKey> newList = Lists.newArrayListWithExpectedSize(newSize);
@@ -133,6 +214,33 @@ abstract class ReverseDepsUtility {
     }
   }
 
+  /**
+   * Returns the ids of the current reverse deps of {@code entry} followed by those of {@code
+   * newReverseDeps}, in the array of the entry if it has one. Returns null if one of the keys has
+   * no id, or if the entry already stores more than one reverse dep in a list, which stays a list
+   * until the reverse deps are consolidated.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked") // Cast to SkyKey and List.
+  private static int[] appendReverseDepIds(
+      InMemoryNodeEntry entry,
+      SkyKeyIds keyIds,
+      Object reverseDeps,
+      Collection<SkyKey> newReverseDeps) {
+    if (reverseDeps instanceof int[]) {
+      return appendIds(keyIds, (int[]) reverseDeps, newReverseDeps);
+    }
+    if (isSingleReverseDep(entry)) {
+      List<SkyKey> allReverseDeps = new ArrayList<>(newReverseDeps.size() + 1);
+      allReverseDeps.add((SkyKey) reverseDeps);
+      allReverseDeps.addAll(newReverseDeps);
+      return appendIds(keyIds, null, allReverseDeps);
+    }
+    return ((List<SkyKey>) reverseDeps).isEmpty()
+        ? appendIds(keyIds, null, newReverseDeps)
+        : null;
+  }
+
   static void checkReverseDep(InMemoryNodeEntry entry, SkyKey reverseDep) {
     maybeDelayReverseDepOp(entry, ImmutableList.of(reverseDep), Op.CHECK);
   }
@@ -151,8 +259,8 @@ abstract class ReverseDepsUtility {
     if (isSingleReverseDep(entry)) {
       return ImmutableSet.of((SkyKey) entry.getReverseDepsRawForReverseDepsUtil());
     } else {
-      @SuppressWarnings("unchecked")
-      List<SkyKey> reverseDeps = (List<SkyKey>) entry.getReverseDepsRawForReverseDepsUtil();
+      List<SkyKey> reverseDeps =
+          getReverseDepsList(entry, entry.getReverseDepsRawForReverseDepsUtil());
       ImmutableSet<SkyKey> set = ImmutableSet.copyOf(reverseDeps);
       maybeAssertReverseDepsConsistency(
           set.size() == reverseDeps.size(),
@@ -179,8 +287,7 @@ abstract class ReverseDepsUtility {
     if (isSingleReverseDep(entry)) {
       reverseDepsAsSet = CompactHashSet.create((SkyKey) reverseDeps);
     } else {
-      List<SkyKey> reverseDepsAsList = (List<SkyKey>) reverseDeps;
-      reverseDepsAsSet = getReverseDepsSet(entry, reverseDepsAsList);
+      reverseDepsAsSet = getReverseDepsSet(entry, getReverseDepsList(entry, reverseDeps));
     }
     Set<SkyKey> newData = CompactHashSet.create();
     for (Object keyToConsolidate : dataToConsolidate) {
@@ -313,8 +420,7 @@ abstract class ReverseDepsUtility {
       }
       return;
     }
-    List<SkyKey> reverseDepsAsList = (List<SkyKey>) reverseDeps;
-    Set<SkyKey> reverseDepsAsSet = getReverseDepsSet(entry, reverseDepsAsList);
+    Set<SkyKey> reverseDepsAsSet = getReverseDepsSet(entry, getReverseDepsList(entry, reverseDeps));
 
     for (Object keyToConsolidate : dataToConsolidate) {
       SkyKey key = KeyToConsolidate.key(keyToConsolidate);
@@ -370,7 +476,14 @@ abstract class ReverseDepsUtility {
     } else if (reverseDepsAsSet.size() == 1) {
       entry.setSingleReverseDepForReverseDepsUtil(Iterables.getOnlyElement(reverseDepsAsSet));
     } else {
-      entry.setReverseDepsForReverseDepsUtil(new ArrayList<>(reverseDepsAsSet));
+      SkyKeyIds keyIds = entry.getKeyIdsForReverseDepsUtil();
+      // Exactly sized, which releases the spare capacity of nodes that lost reverse deps.
+      int[] ids = keyIds != null ? appendIds(keyIds, null, reverseDepsAsSet) : null;
+      if (ids != null) {
+        entry.setReverseDepIdsForReverseDepsUtil(ids);
+      } else {
+        entry.setReverseDepsForReverseDepsUtil(new ArrayList<>(reverseDepsAsSet));
+      }
     }
   }
 
@@ -400,7 +513,11 @@ abstract class ReverseDepsUtility {
 
   static String toString(InMemoryNodeEntry entry) {
     return MoreObjects.toStringHelper("ReverseDeps")
-        .add("reverseDeps", entry.getReverseDepsRawForReverseDepsUtil())
+        .add(
+            "reverseDeps",
+            isSingleReverseDep(entry)
+                ? entry.getReverseDepsRawForReverseDepsUtil()
+                : getReverseDepsList(entry, entry.getReverseDepsRawForReverseDepsUtil()))
         .add("singleReverseDep", isSingleReverseDep(entry))
         .add("dataToConsolidate", entry.getReverseDepsDataToConsolidateForReverseDepsUtil())
         .toString();
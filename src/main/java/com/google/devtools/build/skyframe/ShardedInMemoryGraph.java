@@ -0,0 +1,150 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.flogger.GoogleLogger;
+import com.google.devtools.build.lib.collect.compacthashmap.CompactHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nullable;
+
+/**
+ * An {@link InMemoryGraphImpl} for large graphs that are built by many threads, whose nodes are
+ * stored in a {@link ShardedNodeMap} that is pre-sized for the expected number of nodes.
+ *
+ * <p>Node creation first looks up every key of a batch without locking, and only inserts the keys
+ * that are missing. The graph counts, per shard, the inserted nodes and the insertions that lost a
+ * race against another thread inserting the same key, which indicates contention on the shard. A
+ * node entry is only created by the thread that wins, since it may take a key id of the graph.
+ *
+ * <p>Enabled with the {@code experimental_skyframe_graph_shards} system property, which is the
+ * number of shards. The {@code experimental_skyframe_graph_expected_size} system property is the
+ * number of nodes that the graph is sized for.
+ */
+public final class ShardedInMemoryGraph extends InMemoryGraphImpl {
+
+  private static final GoogleLogger logger = GoogleLogger.forEnclosingClass();
+
+  private static final int NUM_SHARDS =
+      Integer.getInteger("experimental_skyframe_graph_shards", 0);
+  private static final long EXPECTED_SIZE =
+      Long.getLong("experimental_skyframe_graph_expected_size", 1 << 20);
+
+  private final ShardedNodeMap shardedNodeMap;
+  private final LongAdder[] inserts;
+  private final LongAdder[] lostRaces;
+
+  ShardedInMemoryGraph(boolean keepEdges, int numShards, long expectedSize) {
+    this(
+        keepEdges,
+        new ShardedNodeMap(numShards, expectedSize, Runtime.getRuntime().availableProcessors()));
+  }
+
+  private ShardedInMemoryGraph(boolean keepEdges, ShardedNodeMap nodeMap) {
+    super(keepEdges, nodeMap);
+    this.shardedNodeMap = nodeMap;
+    this.inserts = newCounters(nodeMap.shardCount());
+    this.lostRaces = newCounters(nodeMap.shardCount());
+  }
+
+  private static LongAdder[] newCounters(int size) {
+    LongAdder[] counters = new LongAdder[size];
+    for (int i = 0; i < size; i++) {
+      counters[i] = new LongAdder();
+    }
+    return counters;
+  }
+
+  /**
+   * Returns a sharded graph if the {@code experimental_skyframe_graph_shards} system property is
+   * set, and the default graph otherwise.
+   */
+  static InMemoryGraphImpl create(boolean keepEdges) {
+    return NUM_SHARDS > 0
+        ? new ShardedInMemoryGraph(keepEdges, NUM_SHARDS, EXPECTED_SIZE)
+        : new InMemoryGraphImpl(keepEdges);
+  }
+
+  @Override
+  public Map<SkyKey, NodeEntry> createIfAbsentBatch(
+      @Nullable SkyKey requestor, Reason reason, Iterable<SkyKey> keys) {
+    Map<SkyKey, NodeEntry> result = CompactHashMap.createWithExpectedSize(Iterables.size(keys));
+    for (SkyKey key : keys) {
+      int index = shardedNodeMap.shardIndex(key);
+      ConcurrentHashMap<SkyKey, NodeEntry> shard = shardedNodeMap.shard(index);
+      NodeEntry entry = shard.get(key);
+      if (entry == null) {
+        NodeEntry[] created = new NodeEntry[1];
+        entry = shard.computeIfAbsent(key, k -> created[0] = newNodeEntry(k));
+        if (entry == created[0]) {
+          inserts[index].increment();
+        } else {
+          lostRaces[index].increment();
+        }
+      }
+      result.put(key, entry);
+    }
+    return result;
+  }
+
+  /** Counters of a shard of the graph. */
+  static final class ShardStats {
+    final int size;
+    final long inserts;
+    final long lostRaces;
+
+    private ShardStats(int size, long inserts, long lostRaces) {
+      this.size = size;
+      this.inserts = inserts;
+      this.lostRaces = lostRaces;
+    }
+  }
+
+  /** Returns the counters of each shard, and resets them. */
+  ImmutableList<ShardStats> getAndResetShardStats() {
+    ImmutableList.Builder<ShardStats> stats =
+        ImmutableList.builderWithExpectedSize(inserts.length);
+    for (int i = 0; i < inserts.length; i++) {
+      stats.add(
+          new ShardStats(
+              shardedNodeMap.shard(i).size(),
+              inserts[i].sumThenReset(),
+              lostRaces[i].sumThenReset()));
+    }
+    return stats.build();
+  }
+
+  /** Logs a summary of the shard counters since the last call, and resets them. */
+  void logAndResetShardStats() {
+    ImmutableList<ShardStats> stats = getAndResetShardStats();
+    long totalInserts = 0;
+    long totalLostRaces = 0;
+    int minSize = Integer.MAX_VALUE;
+    int maxSize = 0;
+    long maxLostRaces = 0;
+    for (ShardStats shard : stats) {
+      totalInserts += shard.inserts;
+      totalLostRaces += shard.lostRaces;
+      minSize = Math.min(minSize, shard.size);
+      maxSize = Math.max(maxSize, shard.size);
+      maxLostRaces = Math.max(maxLostRaces, shard.lostRaces);
+    }
+    logger.atInfo().log(
+        "Graph shards: %d, sizes %d to %d, %d inserts, %d lost races (at most %d in a shard)",
+        stats.size(), minSize, maxSize, totalInserts, totalLostRaces, maxLostRaces);
+  }
+}
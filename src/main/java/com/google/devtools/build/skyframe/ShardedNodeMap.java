@@ -0,0 +1,166 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nullable;
+
+/**
+ * A {@link ConcurrentMap} from keys to nodes that is split into a fixed number of independent,
+ * pre-sized {@link ConcurrentHashMap}s by ranges of the key hash.
+ *
+ * <p>Each shard only resizes when it outgrows its own share of the expected size, so that a resize
+ * only stalls the threads that access that shard, and copies a fraction of the graph.
+ */
+final class ShardedNodeMap extends AbstractMap<SkyKey, NodeEntry>
+    implements ConcurrentMap<SkyKey, NodeEntry> {
+
+  private final ConcurrentHashMap<SkyKey, NodeEntry>[] shards;
+  private final int shift;
+
+  /**
+   * @param numShards the number of shards, which is rounded up to a power of two
+   * @param expectedSize the number of nodes that the map is sized for initially
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  ShardedNodeMap(int numShards, long expectedSize, int concurrencyLevel) {
+    Preconditions.checkArgument(numShards > 0 && numShards <= 1 << 16, numShards);
+    int bits = 32 - Integer.numberOfLeadingZeros(numShards - 1);
+    this.shards = new ConcurrentHashMap[1 << bits];
+    this.shift = 32 - bits;
+    int shardCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max(16, expectedSize >> bits));
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new ConcurrentHashMap<>(shardCapacity, 0.75f, concurrencyLevel);
+    }
+  }
+
+  int shardCount() {
+    return shards.length;
+  }
+
+  int shardIndex(Object key) {
+    if (shift == 32) {
+      return 0;
+    }
+    // Spreads the hash, so that the high bits used here are well distributed.
+    return (key.hashCode() * 0x9E3779B9) >>> shift;
+  }
+
+  ConcurrentHashMap<SkyKey, NodeEntry> shard(int index) {
+    return shards[index];
+  }
+
+  private ConcurrentHashMap<SkyKey, NodeEntry> shardFor(Object key) {
+    return shards[shardIndex(key)];
+  }
+
+  @Override
+  @Nullable
+  public NodeEntry get(Object key) {
+    return shardFor(key).get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return shardFor(key).containsKey(key);
+  }
+
+  @Override
+  public NodeEntry put(SkyKey key, NodeEntry value) {
+    return shardFor(key).put(key, value);
+  }
+
+  @Override
+  public NodeEntry putIfAbsent(SkyKey key, NodeEntry value) {
+    return shardFor(key).putIfAbsent(key, value);
+  }
+
+  @Override
+  public NodeEntry remove(Object key) {
+    return shardFor(key).remove(key);
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    return shardFor(key).remove(key, value);
+  }
+
+  @Override
+  public boolean replace(SkyKey key, NodeEntry oldValue, NodeEntry newValue) {
+    return shardFor(key).replace(key, oldValue, newValue);
+  }
+
+  @Override
+  public NodeEntry replace(SkyKey key, NodeEntry value) {
+    return shardFor(key).replace(key, value);
+  }
+
+  @Override
+  public NodeEntry computeIfAbsent(
+      SkyKey key, Function<? super SkyKey, ? extends NodeEntry> function) {
+    return shardFor(key).computeIfAbsent(key, function);
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (ConcurrentHashMap<SkyKey, NodeEntry> shard : shards) {
+      size += shard.mappingCount();
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (ConcurrentHashMap<SkyKey, NodeEntry> shard : shards) {
+      if (!shard.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (ConcurrentHashMap<SkyKey, NodeEntry> shard : shards) {
+      shard.clear();
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<SkyKey, NodeEntry>> entrySet() {
+    return new AbstractSet<Map.Entry<SkyKey, NodeEntry>>() {
+      @Override
+      public Iterator<Map.Entry<SkyKey, NodeEntry>> iterator() {
+        // Weakly consistent, like the iterators of the shards.
+        return Iterators.concat(
+            Iterators.transform(Iterators.forArray(shards), shard -> shard.entrySet().iterator()));
+      }
+
+      @Override
+      public int size() {
+        return ShardedNodeMap.this.size();
+      }
+    };
+  }
+}
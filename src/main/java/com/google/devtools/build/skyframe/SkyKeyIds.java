@@ -0,0 +1,158 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Assigns dense int ids to the keys of the nodes of one graph, so that edges can be stored as
+ * primitive ints instead of references.
+ *
+ * <p>The id of a node is stored in its {@link KeyIdInMemoryNodeEntry}, and found through the map of
+ * the graph, so this only maps ids back to keys. It belongs to its graph and is dropped together
+ * with it.
+ *
+ * <p>The id of a deleted node is not reused right away, since the deletion of other nodes may still
+ * read it from their reverse deps. It is noted with {@link #noteDeleted}, and only freed by {@link
+ * #freeDeleted} once the deletion pass is over, when no reverse deps refer to the node any more.
+ * Freed ids are assigned again before new ones. If all ids are in use, new nodes get no id and
+ * their parents store them in lists.
+ */
+final class SkyKeyIds {
+
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+  private final Map<SkyKey, ? extends NodeEntry> nodeMap;
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /** The key of each id, in fixed-size chunks so that growing does not copy the keys. */
+  private volatile SkyKey[][] chunks = new SkyKey[16][];
+
+  /** Ids that may be assigned again. */
+  @GuardedBy("this")
+  private final IdStack free = new IdStack();
+
+  /** Ids of deleted nodes that are not free yet. */
+  @GuardedBy("this")
+  private final IdStack deleted = new IdStack();
+
+  /** Whether {@link #free} may be non-empty, so that {@link #assign} only locks if it is. */
+  private volatile boolean hasFreeIds;
+
+  SkyKeyIds(Map<SkyKey, ? extends NodeEntry> nodeMap) {
+    this.nodeMap = nodeMap;
+  }
+
+  /** Returns an id for the node of {@code key}, or -1 if all ids are in use. */
+  int assign(SkyKey key) {
+    if (hasFreeIds) {
+      synchronized (this) {
+        if (free.size > 0) {
+          int id = free.pop();
+          hasFreeIds = free.size > 0;
+          chunkFor(id)[id & CHUNK_MASK] = key;
+          return id;
+        }
+      }
+    }
+    int id = nextId.getAndIncrement();
+    if (id < 0) {
+      nextId.set(Integer.MIN_VALUE);
+      return -1;
+    }
+    chunkFor(id)[id & CHUNK_MASK] = key;
+    return id;
+  }
+
+  /**
+   * Notes that the node with the given id was removed from the graph. The id is freed by the next
+   * {@link #freeDeleted}.
+   */
+  synchronized void noteDeleted(int id) {
+    deleted.push(id);
+  }
+
+  /**
+   * Frees the ids of the nodes deleted since the last call, and drops their keys. Must only be
+   * called when no deletion is in progress, so that no reverse deps of other nodes refer to them.
+   */
+  synchronized void freeDeleted() {
+    while (deleted.size > 0) {
+      int id = deleted.pop();
+      chunks[id >>> CHUNK_BITS][id & CHUNK_MASK] = null;
+      free.push(id);
+    }
+    hasFreeIds = free.size > 0;
+  }
+
+  /** Returns the id of the node of {@code key}, or -1 if it is not in the graph or has no id. */
+  int getId(SkyKey key) {
+    NodeEntry entry = nodeMap.get(key);
+    return entry instanceof KeyIdInMemoryNodeEntry
+        ? ((KeyIdInMemoryNodeEntry) entry).getKeyId()
+        : -1;
+  }
+
+  /** Returns the key with the given id, which must have been returned by {@link #getId}. */
+  SkyKey getKey(int id) {
+    // Whoever obtained the id from the node entry happens-after the key was stored.
+    return chunks[id >>> CHUNK_BITS][id & CHUNK_MASK];
+  }
+
+  /** Returns the number of ids that are free to be assigned again. For testing. */
+  synchronized int freeIdCount() {
+    return free.size;
+  }
+
+  private SkyKey[] chunkFor(int id) {
+    int index = id >>> CHUNK_BITS;
+    SkyKey[][] current = chunks;
+    if (index < current.length && current[index] != null) {
+      return current[index];
+    }
+    synchronized (this) {
+      current = chunks;
+      if (index >= current.length) {
+        current = Arrays.copyOf(current, Math.max(2 * current.length, index + 1));
+      }
+      if (current[index] == null) {
+        current[index] = new SkyKey[CHUNK_MASK + 1];
+      }
+      // Publishes the new chunk.
+      chunks = current;
+      return current[index];
+    }
+  }
+
+  /** A growable stack of ids. */
+  private static final class IdStack {
+    private int[] ids = new int[16];
+    private int size;
+
+    void push(int id) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * size);
+      }
+      ids[size++] = id;
+    }
+
+    int pop() {
+      return ids[--size];
+    }
+  }
+}
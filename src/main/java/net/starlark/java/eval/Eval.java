@@ -22,6 +22,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 import net.starlark.java.spelling.SpellChecker;
 import net.starlark.java.syntax.Argument;
 import net.starlark.java.syntax.AssignmentStatement;
@@ -192,11 +193,16 @@ final class Eval {
       }
     }
 
-    // Nested functions use the same globalIndex as their enclosing function,
-    // since both were compiled from the same Program.
+    // Nested functions use the same globalIndex and dotCaches as their enclosing
+    // function, since both were compiled from the same Program.
     StarlarkFunction fn = fn(fr);
     return new StarlarkFunction(
-        rfn, fn.getModule(), fn.globalIndex, Tuple.wrap(defaults), Tuple.wrap(freevars));
+        rfn,
+        fn.getModule(),
+        fn.globalIndex,
+        fn.dotCaches,
+        Tuple.wrap(defaults),
+        Tuple.wrap(freevars));
   }
 
   private static TokenKind execIf(StarlarkThread.Frame fr, IfStatement node)
@@ -572,15 +578,79 @@ final class Eval {
       throws EvalException, InterruptedException {
     Object object = eval(fr, dot.getObject());
     String name = dot.getField().getName();
+    StarlarkSemantics semantics = fr.thread.getSemantics();
     try {
       return Starlark.getattr(
-          fr.thread.mutability(), fr.thread.getSemantics(), object, name, /*defaultValue=*/ null);
+          fr.thread.mutability(),
+          semantics,
+          object,
+          name,
+          lookupMethod(fr, dot, semantics, object),
+          /*defaultValue=*/ null);
     } catch (EvalException ex) {
       fr.setErrorLocation(dot.getDotLocation());
       throw ex;
     }
   }
 
+  /**
+   * An inline cache of the annotated methods named by a DotExpression, for the first few classes of
+   * operand the expression was evaluated with. Most dot expressions only ever see one class, e.g.
+   * the {@code append} in {@code x.append(y)}, so this avoids the general lookup in the common
+   * case. A cache that is full is no longer updated, so an expression that sees many classes pays
+   * only for the general lookup.
+   *
+   * <p>Entries live in {@link StarlarkFunction#dotCaches}, not in the immutable syntax tree. They
+   * are immutable so that threads evaluating the same function may replace them racily.
+   */
+  static final class DotCache {
+    private static final int MAX_CLASSES = 4;
+
+    private final StarlarkSemantics semantics;
+    private final Class<?>[] classes;
+    private final MethodDescriptor[] methods; // null element => class has no such method
+
+    private DotCache(StarlarkSemantics semantics, Class<?>[] classes, MethodDescriptor[] methods) {
+      this.semantics = semantics;
+      this.classes = classes;
+      this.methods = methods;
+    }
+  }
+
+  /**
+   * Returns the StarlarkMethod-annotated field or method of {@code x} named by {@code dot}, or null
+   * if there is none, consulting and updating the inline cache of {@code dot} in the current
+   * function.
+   */
+  @Nullable
+  private static MethodDescriptor lookupMethod(
+      StarlarkThread.Frame fr, DotExpression dot, StarlarkSemantics semantics, Object x) {
+    Class<?> cls = x.getClass();
+    Map<DotExpression, DotCache> dotCaches = fn(fr).dotCaches;
+    DotCache c = dotCaches.get(dot);
+    if (c != null && c.semantics.equals(semantics)) {
+      for (int i = 0; i < c.classes.length; i++) {
+        if (c.classes[i] == cls) {
+          return c.methods[i];
+        }
+      }
+    } else {
+      c = null; // start over with the current semantics
+    }
+    MethodDescriptor method =
+        CallUtils.getAnnotatedMethods(semantics, cls).get(dot.getField().getName());
+    int n = c == null ? 0 : c.classes.length;
+    if (n < DotCache.MAX_CLASSES) {
+      Class<?>[] classes = c == null ? new Class<?>[1] : Arrays.copyOf(c.classes, n + 1);
+      MethodDescriptor[] methods =
+          c == null ? new MethodDescriptor[1] : Arrays.copyOf(c.methods, n + 1);
+      classes[n] = cls;
+      methods[n] = method;
+      dotCaches.put(dot, new DotCache(semantics, classes, methods));
+    }
+    return method;
+  }
+
   private static Object evalCall(StarlarkThread.Frame fr, CallExpression call)
       throws EvalException, InterruptedException {
     fr.thread.checkInterrupt();
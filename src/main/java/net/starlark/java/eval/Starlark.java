@@ -29,6 +29,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import net.starlark.java.annot.StarlarkAnnotations;
@@ -687,8 +688,28 @@ public final class Starlark {
       String name,
       @Nullable Object defaultValue)
       throws EvalException, InterruptedException {
+    return getattr(
+        mu,
+        semantics,
+        x,
+        name,
+        CallUtils.getAnnotatedMethods(semantics, x.getClass()).get(name),
+        defaultValue);
+  }
+
+  /**
+   * Like {@link #getattr(Mutability, StarlarkSemantics, Object, String, Object)}, but with the
+   * StarlarkMethod-annotated field or method of {@code x} named {@code name} already looked up.
+   */
+  static Object getattr(
+      Mutability mu,
+      StarlarkSemantics semantics,
+      Object x,
+      String name,
+      @Nullable MethodDescriptor method,
+      @Nullable Object defaultValue)
+      throws EvalException, InterruptedException {
     // StarlarkMethod-annotated field or method?
-    MethodDescriptor method = CallUtils.getAnnotatedMethods(semantics, x.getClass()).get(name);
     if (method != null) {
       if (method.isStructField()) {
         return method.callField(x, semantics, mu);
@@ -887,6 +908,7 @@ public final class Starlark {
             rfn,
             module,
             globalIndex,
+            /*dotCaches=*/ new ConcurrentHashMap<>(),
             /*defaultValues=*/ Tuple.empty(),
             /*freevars=*/ Tuple.empty());
     return Starlark.fastcall(thread, toplevel, EMPTY, EMPTY);
@@ -935,7 +957,12 @@ public final class Starlark {
     Resolver.Function rfn = prog.getResolvedFunction();
     int[] globalIndex = module.getIndicesOfGlobals(rfn.getGlobals()); // see execFileProgram
     return new StarlarkFunction(
-        rfn, module, globalIndex, /*defaultValues=*/ Tuple.empty(), /*freevars=*/ Tuple.empty());
+        rfn,
+        module,
+        globalIndex,
+        /*dotCaches=*/ new ConcurrentHashMap<>(),
+        /*defaultValues=*/ Tuple.empty(),
+        /*freevars=*/ Tuple.empty());
   }
 
   /**
@@ -18,9 +18,11 @@ import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import javax.annotation.Nullable;
 import net.starlark.java.annot.StarlarkBuiltin;
 import net.starlark.java.spelling.SpellChecker;
+import net.starlark.java.syntax.DotExpression;
 import net.starlark.java.syntax.Expression;
 import net.starlark.java.syntax.ExpressionStatement;
 import net.starlark.java.syntax.Location;
@@ -42,6 +44,10 @@ public final class StarlarkFunction implements StarlarkCallable {
   // See explanation at Starlark.execFileProgram.
   final int[] globalIndex;
 
+  // Inline caches of the evaluator, keyed by the identity of the DotExpressions of the Program.
+  // Shared by all the functions compiled from the same Program. See Eval.DotCache.
+  final Map<DotExpression, Eval.DotCache> dotCaches;
+
   // Default values of optional parameters.
   // Indices correspond to the subsequence of parameters after the initial
   // required parameters and before *args/**kwargs.
@@ -56,11 +62,13 @@ public final class StarlarkFunction implements StarlarkCallable {
       Resolver.Function rfn,
       Module module,
       int[] globalIndex,
+      Map<DotExpression, Eval.DotCache> dotCaches,
       Tuple defaultValues,
       Tuple freevars) {
     this.rfn = rfn;
     this.module = module;
     this.globalIndex = globalIndex;
+    this.dotCaches = dotCaches;
     this.defaultValues = defaultValues;
     this.freevars = freevars;
   }
@@ -0,0 +1,362 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+#include <dirent.h>
+#include <errno.h>
+#include <jni.h>
+#include <poll.h>
+#include <pthread.h>
+#include <string.h>
+#include <sys/eventfd.h>
+#include <sys/inotify.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+#include <string>
+#include <unordered_map>
+#include <unordered_set>
+#include <vector>
+
+#include "src/main/native/unix_jni.h"
+
+namespace {
+
+// Events that are watched on every directory. Events on the directory entries
+// are reported by the watch of their parent directory.
+const uint32_t kWatchMask = IN_ATTRIB | IN_CREATE | IN_DELETE |
+                            IN_DELETE_SELF | IN_MODIFY | IN_MOVE_SELF |
+                            IN_MOVED_FROM | IN_MOVED_TO | IN_DONT_FOLLOW |
+                            IN_EXCL_UNLINK | IN_ONLYDIR;
+
+// Size of the buffer that events are drained into. Every read returns as many
+// events as fit, so that the kernel queue is emptied in few system calls.
+const size_t kEventBufferSize = 256 * 1024;
+
+// A structure to pass around the inotify state and the list of paths.
+struct JNIInotifyDiffAwareness {
+  // The inotify instance.
+  int inotify_fd;
+
+  // Written to by doClose to stop the run loop.
+  int wakeup_fd;
+
+  // The root of the watched tree.
+  std::string root;
+
+  // The watched directories by watch descriptor. Only accessed by the thread
+  // running the run loop.
+  std::unordered_map<int, std::string> dirs;
+
+  // If true, events were lost so we don't know what changed exactly.
+  bool everything_changed;
+
+  // The errno of a watch that could not be added, or 0. Part of the tree is
+  // then not watched, so the watcher is unusable until the tree is registered
+  // again from scratch; poll reports it every time.
+  int watch_error;
+
+  // The directory that could not be watched if watch_error is set.
+  std::string watch_error_dir;
+
+  // Paths that have been changed since last polling.
+  std::unordered_set<std::string> paths;
+
+  // Mutex to protect concurrent accesses to paths and everything_changed.
+  pthread_mutex_t mutex;
+
+  JNIInotifyDiffAwareness(int inotify_fd, int wakeup_fd,
+                          const std::string &root)
+      : inotify_fd(inotify_fd),
+        wakeup_fd(wakeup_fd),
+        root(root),
+        everything_changed(false),
+        watch_error(0) {
+    pthread_mutex_init(&mutex, nullptr);
+  }
+
+  ~JNIInotifyDiffAwareness() {
+    close(inotify_fd);
+    close(wakeup_fd);
+    pthread_mutex_destroy(&mutex);
+  }
+};
+
+std::string Join(const std::string &dir, const char *name) {
+  return dir.back() == '/' ? dir + name : dir + "/" + name;
+}
+
+// Watches dir and every directory below it. If report is true, also adds
+// every entry below dir to changed: a directory that appears while the tree is
+// watched may have been populated before its watch was added.
+//
+// Returns false if a watch could not be added, usually because the user ran
+// out of inotify watches, and records the error for poll.
+bool WatchTree(JNIInotifyDiffAwareness *info, const std::string &dir,
+               bool report, std::vector<std::string> *changed) {
+  std::vector<std::string> pending = {dir};
+  while (!pending.empty()) {
+    std::string current = std::move(pending.back());
+    pending.pop_back();
+    int wd = inotify_add_watch(info->inotify_fd, current.c_str(), kWatchMask);
+    if (wd < 0) {
+      if (errno == ENOENT || errno == ENOTDIR) {
+        // Deleted or replaced meanwhile; the event on its parent reports it.
+        continue;
+      }
+      int error = errno;
+      pthread_mutex_lock(&(info->mutex));
+      if (info->watch_error == 0) {
+        info->watch_error = error;
+        info->watch_error_dir = current;
+      }
+      pthread_mutex_unlock(&(info->mutex));
+      return false;
+    }
+    // The same directory gets the same watch descriptor again if it moved.
+    info->dirs[wd] = current;
+
+    DIR *d = opendir(current.c_str());
+    if (d == nullptr) {
+      continue;
+    }
+    while (struct dirent *entry = readdir(d)) {
+      if (strcmp(entry->d_name, ".") == 0 || strcmp(entry->d_name, "..") == 0) {
+        continue;
+      }
+      std::string path = Join(current, entry->d_name);
+      if (report) {
+        changed->push_back(path);
+      }
+      bool is_dir = entry->d_type == DT_DIR;
+      if (entry->d_type == DT_UNKNOWN) {
+        struct stat st;
+        is_dir = lstat(path.c_str(), &st) == 0 && S_ISDIR(st.st_mode);
+      }
+      if (is_dir) {
+        pending.push_back(std::move(path));
+      }
+    }
+    closedir(d);
+  }
+  return true;
+}
+
+// Stops watching dir and the directories below it, which were moved away. The
+// kernel keeps their watches, which would otherwise report changes outside of
+// the tree under their old paths. If they were moved within the tree, they are
+// watched again under their new paths.
+void UnwatchTree(JNIInotifyDiffAwareness *info, const std::string &dir) {
+  const std::string prefix = Join(dir, "");
+  for (auto it = info->dirs.begin(); it != info->dirs.end();) {
+    if (it->second == dir ||
+        it->second.compare(0, prefix.size(), prefix) == 0) {
+      // The watch is gone if the directory was deleted meanwhile.
+      inotify_rm_watch(info->inotify_fd, it->first);
+      it = info->dirs.erase(it);
+    } else {
+      ++it;
+    }
+  }
+}
+
+// Reads all events that are queued, and records the changed paths. The state
+// shared with poll is only locked once per batch of events.
+void DrainEvents(JNIInotifyDiffAwareness *info, char *buffer) {
+  std::vector<std::string> changed;
+  std::vector<std::string> new_dirs;
+  bool everything_changed = false;
+
+  for (;;) {
+    ssize_t len = read(info->inotify_fd, buffer, kEventBufferSize);
+    if (len <= 0) {
+      // EAGAIN: the queue is empty.
+      break;
+    }
+    for (char *p = buffer; p < buffer + len;) {
+      const struct inotify_event *event =
+          reinterpret_cast<const struct inotify_event *>(p);
+      p += sizeof(struct inotify_event) + event->len;
+
+      if ((event->mask & IN_Q_OVERFLOW) != 0) {
+        // The kernel queue overflowed and we don't know which events were lost.
+        everything_changed = true;
+        continue;
+      }
+      auto it = info->dirs.find(event->wd);
+      if (it == info->dirs.end()) {
+        continue;
+      }
+      if ((event->mask & IN_IGNORED) != 0) {
+        // The directory is gone; its parent reported it.
+        info->dirs.erase(it);
+        continue;
+      }
+      std::string path =
+          event->len > 0 ? Join(it->second, event->name) : it->second;
+      if ((event->mask & (IN_DELETE_SELF | IN_MOVE_SELF)) != 0 &&
+          path == info->root) {
+        everything_changed = true;
+        continue;
+      }
+      if ((event->mask & IN_ISDIR) != 0) {
+        if ((event->mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+          // Watch the new directory, and rescan only its subtree.
+          new_dirs.push_back(path);
+        } else if ((event->mask & IN_MOVED_FROM) != 0) {
+          // We cannot tell which files disappeared with the directory. This
+          // matches fsevents.cc, which gives up on renamed directories too.
+          everything_changed = true;
+          UnwatchTree(info, path);
+        }
+      }
+      changed.push_back(std::move(path));
+    }
+  }
+
+  // A failure to add a watch is recorded by WatchTree, and reported by poll.
+  if (everything_changed) {
+    // Directories created or moved while events were lost are not watched
+    // under their current paths yet. Nothing needs to be reported for them, as
+    // everything is considered changed.
+    WatchTree(info, info->root, /*report=*/false, nullptr);
+  } else {
+    for (const std::string &dir : new_dirs) {
+      if (!WatchTree(info, dir, /*report=*/true, &changed)) {
+        break;
+      }
+    }
+  }
+
+  pthread_mutex_lock(&(info->mutex));
+  if (everything_changed) {
+    info->everything_changed = true;
+  }
+  if (!info->everything_changed) {
+    for (std::string &path : changed) {
+      info->paths.insert(std::move(path));
+    }
+  }
+  pthread_mutex_unlock(&(info->mutex));
+}
+
+JNIInotifyDiffAwareness *GetInfo(JNIEnv *env, jobject inotifyDiffAwareness) {
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  jlong field = env->GetLongField(inotifyDiffAwareness, fid);
+  return reinterpret_cast<JNIInotifyDiffAwareness *>(field);
+}
+
+}  // namespace
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_create(
+    JNIEnv *env, jobject inotifyDiffAwareness, jstring root) {
+  int inotify_fd = inotify_init1(IN_NONBLOCK | IN_CLOEXEC);
+  if (inotify_fd < 0) {
+    blaze_jni::PostException(env, errno, "inotify_init1");
+    return;
+  }
+  int wakeup_fd = eventfd(0, EFD_CLOEXEC);
+  if (wakeup_fd < 0) {
+    int error = errno;
+    close(inotify_fd);
+    blaze_jni::PostException(env, error, "eventfd");
+    return;
+  }
+
+  const char *root_chars = env->GetStringUTFChars(root, nullptr);
+  JNIInotifyDiffAwareness *info =
+      new JNIInotifyDiffAwareness(inotify_fd, wakeup_fd, root_chars);
+  env->ReleaseStringUTFChars(root, root_chars);
+
+  // Save the info pointer to LinuxInotifyDiffAwareness#nativePointer
+  jclass clazz = env->GetObjectClass(inotifyDiffAwareness);
+  jfieldID fid = env->GetFieldID(clazz, "nativePointer", "J");
+  env->SetLongField(inotifyDiffAwareness, fid, reinterpret_cast<jlong>(info));
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_run(
+    JNIEnv *env, jobject inotifyDiffAwareness, jobject listening) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  // A failure is recorded in info, and reported by the first poll.
+  WatchTree(info, info->root, /*report=*/false, nullptr);
+
+  jclass countDownLatchClass = env->GetObjectClass(listening);
+  jmethodID countDownMethod =
+      env->GetMethodID(countDownLatchClass, "countDown", "()V");
+  env->CallVoidMethod(listening, countDownMethod);
+
+  std::vector<char> buffer(kEventBufferSize);
+  struct pollfd fds[2] = {{info->inotify_fd, POLLIN, 0},
+                          {info->wakeup_fd, POLLIN, 0}};
+  for (;;) {
+    if (poll(fds, 2, -1) < 0) {
+      if (errno == EINTR) {
+        continue;
+      }
+      break;
+    }
+    if ((fds[1].revents & POLLIN) != 0) {
+      break;
+    }
+    if ((fds[0].revents & POLLIN) != 0) {
+      DrainEvents(info, buffer.data());
+    }
+  }
+  delete info;
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_poll(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  pthread_mutex_lock(&(info->mutex));
+
+  jobjectArray result;
+  if (info->watch_error != 0) {
+    // Not reset: the watcher stays broken until it is replaced.
+    blaze_jni::PostException(env, info->watch_error,
+                             "inotify_add_watch " + info->watch_error_dir);
+    pthread_mutex_unlock(&(info->mutex));
+    return nullptr;
+  } else if (info->everything_changed) {
+    result = nullptr;
+  } else {
+    jclass classString = env->FindClass("java/lang/String");
+    result = env->NewObjectArray(info->paths.size(), classString, nullptr);
+    int i = 0;
+    for (auto it = info->paths.begin(); it != info->paths.end(); it++, i++) {
+      jstring path = env->NewStringUTF(it->c_str());
+      env->SetObjectArrayElement(result, i, path);
+      env->DeleteLocalRef(path);
+    }
+  }
+
+  info->everything_changed = false;
+  info->paths.clear();
+
+  pthread_mutex_unlock(&(info->mutex));
+  return result;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_com_google_devtools_build_lib_skyframe_LinuxInotifyDiffAwareness_doClose(
+    JNIEnv *env, jobject inotifyDiffAwareness) {
+  JNIInotifyDiffAwareness *info = GetInfo(env, inotifyDiffAwareness);
+  // The run loop deletes info when it stops.
+  uint64_t one = 1;
+  if (write(info->wakeup_fd, &one, sizeof(one)) < 0) {
+    blaze_jni::PostException(env, errno, "write");
+  }
+}
@@ -242,9 +242,7 @@ static jobject NewFileStatus(JNIEnv *env,
       static_cast<int>(stat_ref.st_dev), static_cast<jlong>(stat_ref.st_ino));
 }
 
-static jobject NewErrnoFileStatus(JNIEnv *env,
-                                  int saved_errno,
-                                  const portable_stat_struct &stat_ref) {
+static jclass ErrnoFileStatusClass(JNIEnv *env) {
   static jclass errno_file_status_class = NULL;
   if (errno_file_status_class == NULL) {  // note: harmless race condition
     jclass local =
@@ -252,6 +250,13 @@ static jobject NewErrnoFileStatus(JNIEnv *env,
     CHECK(local != NULL);
     errno_file_status_class = static_cast<jclass>(env->NewGlobalRef(local));
   }
+  return errno_file_status_class;
+}
+
+static jobject NewErrnoFileStatus(JNIEnv *env,
+                                  int saved_errno,
+                                  const portable_stat_struct &stat_ref) {
+  jclass errno_file_status_class = ErrnoFileStatusClass(env);
 
   static jmethodID no_error_ctor = NULL;
   if (no_error_ctor == NULL) {  // note: harmless race condition
@@ -382,6 +387,44 @@ Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoLstat(JNIEnv *env,
   return StatCommon(env, path, portable_lstat, false);
 }
 
+/*
+ * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
+ * Method:    errnoStatBatch
+ * Signature: ([Ljava/lang/String;Z)[Lcom/google/devtools/build/lib/unix/ErrnoFileStatus;
+ */
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_google_devtools_build_lib_unix_NativePosixFiles_errnoStatBatch(
+    JNIEnv *env, jclass clazz, jobjectArray paths, jboolean follow_symlinks) {
+  int (*stat_function)(const char *, portable_stat_struct *) =
+      follow_symlinks ? portable_stat : portable_lstat;
+  jsize length = env->GetArrayLength(paths);
+  jobjectArray result =
+      env->NewObjectArray(length, ErrnoFileStatusClass(env), NULL);
+  if (result == NULL) {
+    return NULL;
+  }
+  for (jsize i = 0; i < length; i++) {
+    jstring path = static_cast<jstring>(env->GetObjectArrayElement(paths, i));
+    const char *path_chars = GetStringLatin1Chars(env, path);
+    portable_stat_struct statbuf;
+    int r;
+    while ((r = stat_function(path_chars, &statbuf)) == -1 && errno == EINTR) {
+    }
+    int saved_errno = r == -1 ? errno : 0;
+    ReleaseStringLatin1Chars(path_chars);
+
+    jobject status = NewErrnoFileStatus(env, saved_errno, statbuf);
+    if (status == NULL) {
+      return NULL;
+    }
+    env->SetObjectArrayElement(result, i, status);
+    // Keeps the number of local references constant for large batches.
+    env->DeleteLocalRef(status);
+    env->DeleteLocalRef(path);
+  }
+  return result;
+}
+
 /*
  * Class:     com.google.devtools.build.lib.unix.NativePosixFiles
  * Method:    utime
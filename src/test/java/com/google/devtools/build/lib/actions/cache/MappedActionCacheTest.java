@@ -0,0 +1,171 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MappedActionCache}. */
+@RunWith(JUnit4.class)
+public class MappedActionCacheTest {
+
+  private final ManualClock clock = new ManualClock();
+  private Path cacheRoot;
+  private MappedActionCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    // The segments are mapped into memory, which requires a real file system.
+    cacheRoot = TestUtils.createUniqueTmpDir(null);
+    cache = new MappedActionCache(cacheRoot, clock);
+  }
+
+  @After
+  public final void deleteCache() throws Exception {
+    cacheRoot.deleteTree();
+  }
+
+  private static ActionCache.Entry newEntry(String actionKey, boolean discoverInputs) {
+    ActionCache.Entry entry =
+        new ActionCache.Entry(actionKey, ImmutableMap.of("k", "v"), discoverInputs);
+    entry.getFileDigest();
+    return entry;
+  }
+
+  @Test
+  public void get_missingKey_returnsNull() {
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void putAndGet() {
+    ActionCache.Entry entry = newEntry("action", /* discoverInputs= */ false);
+    cache.put("key", entry);
+
+    assertThat(cache.get("key").toString()).isEqualTo(entry.toString());
+  }
+
+  @Test
+  public void put_overwritesPreviousEntry() {
+    cache.put("key", newEntry("first", /* discoverInputs= */ false));
+    ActionCache.Entry second = newEntry("second", /* discoverInputs= */ true);
+    cache.put("key", second);
+
+    assertThat(cache.get("key").toString()).isEqualTo(second.toString());
+  }
+
+  @Test
+  public void putAndRemove() {
+    cache.put("key", newEntry("action", /* discoverInputs= */ false));
+    cache.remove("key");
+
+    assertThat(cache.get("key")).isNull();
+  }
+
+  @Test
+  public void save_entriesSurviveReload() throws Exception {
+    ActionCache.Entry kept = newEntry("kept", /* discoverInputs= */ true);
+    cache.put("kept", kept);
+    cache.put("removed", newEntry("removed", /* discoverInputs= */ false));
+    cache.remove("removed");
+    cache.save();
+
+    MappedActionCache reloaded = new MappedActionCache(cacheRoot, clock);
+
+    assertThat(reloaded.get("kept").toString()).isEqualTo(kept.toString());
+    assertThat(reloaded.get("removed")).isNull();
+  }
+
+  @Test
+  public void save_compactsSegmentsThatAreMostlyGarbage() throws Exception {
+    // Fill a little more than one segment with versions of the same few entries.
+    String actionKey = Strings.repeat("x", 1000);
+    for (int i = 0; i < MappedActionCache.SEGMENT_SIZE / 1000 + 100; i++) {
+      cache.put("key" + (i % 10), newEntry(actionKey + i, /* discoverInputs= */ false));
+    }
+    assertThat(cache.getSegmentCount()).isEqualTo(2);
+
+    cache.save();
+
+    assertThat(cache.getSegmentCount()).isEqualTo(1);
+    MappedActionCache reloaded = new MappedActionCache(cacheRoot, clock);
+    for (int i = 0; i < 10; i++) {
+      assertThat(reloaded.get("key" + i).toString())
+          .isEqualTo(cache.get("key" + i).toString());
+    }
+  }
+
+  @Test
+  public void put_entriesSurviveReloadWithoutSave() throws Exception {
+    // As after a crash: the segments are shared mappings, but only the journal holds the indexer.
+    ActionCache.Entry entry = newEntry("action", /* discoverInputs= */ false);
+    cache.put("key", entry);
+
+    MappedActionCache reloaded = new MappedActionCache(cacheRoot, clock);
+
+    assertThat(reloaded.get("key").toString()).isEqualTo(entry.toString());
+  }
+
+  @Test
+  public void clear_removesAllEntries() throws Exception {
+    cache.put("key", newEntry("action", /* discoverInputs= */ false));
+    cache.save();
+    cache.clear();
+
+    assertThat(cache.get("key")).isNull();
+    assertThat(new MappedActionCache(cacheRoot, clock).get("key")).isNull();
+  }
+
+  @Test
+  public void concurrentPutsAndGets() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        int thread = t;
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int i = 0; i < 2000; i++) {
+                    String key = thread + "/" + i;
+                    ActionCache.Entry entry = newEntry(key, /* discoverInputs= */ false);
+                    cache.put(key, entry);
+                    assertThat(cache.get(key).toString()).isEqualTo(entry.toString());
+                  }
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    assertThat(cache.get("7/1999")).isNotNull();
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.bazel;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Lists;
+import com.google.devtools.build.lib.exec.Protos.File;
+import com.google.devtools.build.lib.exec.Protos.SpawnExec;
+import com.google.devtools.build.lib.util.io.AsynchronousMessageOutputStream;
+import com.google.devtools.build.lib.util.io.MessageOutputStream;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SpawnLogModule}. */
+@RunWith(JUnit4.class)
+public final class SpawnLogModuleTest {
+  private final FileSystem fs = new InMemoryFileSystem(DigestHashFunction.SHA256);
+  private final Path rawOutput = fs.getPath("/exec.log.gz");
+
+  private static class ListOutput implements MessageOutputStream {
+    private final List<SpawnExec> list = new ArrayList<>();
+
+    @Override
+    public void write(Message m) {
+      list.add((SpawnExec) m);
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  /** Returns a chain of spawns, each consuming the output of the one before it. */
+  private static List<SpawnExec> createSpawnChain() {
+    List<SpawnExec> spawns = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      spawns.add(
+          SpawnExec.newBuilder()
+              .addInputs(File.newBuilder().setPath(i == 0 ? "leaf" : "out" + (i - 1)))
+              .addListedOutputs("out" + i)
+              .addActualOutputs(File.newBuilder().setPath("out" + i))
+              .build());
+    }
+    return spawns;
+  }
+
+  private List<SpawnExec> writeAndSort(List<SpawnExec> spawns, boolean compressed)
+      throws Exception {
+    AsynchronousMessageOutputStream out =
+        AsynchronousMessageOutputStream.create(rawOutput, compressed);
+    for (SpawnExec spawn : spawns) {
+      out.write(spawn);
+    }
+    out.close();
+    ListOutput sorted = new ListOutput();
+
+    SpawnLogModule.sortRawOutput(rawOutput, compressed, sorted);
+
+    return sorted.list;
+  }
+
+  @Test
+  public void sortRawOutput_compressed() throws Exception {
+    List<SpawnExec> spawns = createSpawnChain();
+
+    // Logged in the reverse order of their dependencies, as no real build would.
+    List<SpawnExec> sorted = writeAndSort(Lists.reverse(spawns), /* compressed= */ true);
+
+    assertThat(sorted).containsExactlyElementsIn(spawns).inOrder();
+  }
+
+  @Test
+  public void sortRawOutput_uncompressed() throws Exception {
+    List<SpawnExec> spawns = createSpawnChain();
+
+    List<SpawnExec> sorted = writeAndSort(Lists.reverse(spawns), /* compressed= */ false);
+
+    assertThat(sorted).containsExactlyElementsIn(spawns).inOrder();
+  }
+}
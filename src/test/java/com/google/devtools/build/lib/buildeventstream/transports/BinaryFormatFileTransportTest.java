@@ -21,6 +21,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -360,6 +361,88 @@ public class BinaryFormatFileTransportTest {
     verify(uploader).release();
   }
 
+  @Test
+  public void testWritesInPostingOrderWhenSerializationIsSlow() throws Exception {
+    // The first event takes longer to serialize than the others, which mustn't overtake it.
+    BuildEventStreamProtos.BuildEvent started =
+        BuildEventStreamProtos.BuildEvent.newBuilder()
+            .setStarted(BuildStarted.newBuilder().setCommand(Strings.repeat("build", 1_000_000)))
+            .build();
+    BuildEvent slowEvent = Mockito.mock(BuildEvent.class);
+    when(slowEvent.asStreamProto(ArgumentMatchers.<BuildEventContext>any())).thenReturn(started);
+    ImmutableList.Builder<BuildEventStreamProtos.BuildEvent> expected = ImmutableList.builder();
+    expected.add(started);
+
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    BinaryFormatFileTransport transport =
+        new BinaryFormatFileTransport(
+            outputStream, defaultOpts, new LocalFilesArtifactUploader(), artifactGroupNamer);
+    transport.sendBuildEvent(slowEvent);
+    for (int i = 0; i < 10; i++) {
+      BuildEventStreamProtos.BuildEvent progress =
+          BuildEventStreamProtos.BuildEvent.newBuilder()
+              .setProgress(Progress.newBuilder().setStdout("progress " + i))
+              .build();
+      BuildEvent event = Mockito.mock(BuildEvent.class);
+      when(event.asStreamProto(ArgumentMatchers.<BuildEventContext>any())).thenReturn(progress);
+      transport.sendBuildEvent(event);
+      expected.add(progress);
+    }
+    transport.close().get();
+
+    try (InputStream in = new FileInputStream(output)) {
+      for (BuildEventStreamProtos.BuildEvent event : expected.build()) {
+        assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(event);
+      }
+      assertThat(in.available()).isEqualTo(0);
+    }
+    FileTransport.Stats stats = transport.getStats();
+    assertThat(stats.writtenEvents).isEqualTo(11);
+    assertThat(stats.queueDepth).isEqualTo(0);
+    assertThat(stats.maxQueueDepth).isAtLeast(1);
+    assertThat(stats.spilledEvents).isEqualTo(0);
+  }
+
+  @Test
+  public void testSpillsEventsBeyondMemoryBudget() throws Exception {
+    BuildEventProtocolOptions opts = Options.getDefaults(BuildEventProtocolOptions.class);
+    opts.fileMaxBufferedBytes = 0;
+    BuildEventStreamProtos.BuildEvent started =
+        BuildEventStreamProtos.BuildEvent.newBuilder()
+            .setStarted(BuildStarted.newBuilder().setCommand("build"))
+            .build();
+    BuildEventStreamProtos.BuildEvent progress =
+        BuildEventStreamProtos.BuildEvent.newBuilder()
+            .setProgress(Progress.newBuilder().setStdout(Strings.repeat("x", 100_000)))
+            .build();
+
+    File output = tmp.newFile();
+    BufferedOutputStream outputStream =
+        new BufferedOutputStream(Files.newOutputStream(Paths.get(output.getAbsolutePath())));
+    BinaryFormatFileTransport transport =
+        new BinaryFormatFileTransport(
+            outputStream, opts, new LocalFilesArtifactUploader(), artifactGroupNamer);
+    when(buildEvent.asStreamProto(ArgumentMatchers.<BuildEventContext>any())).thenReturn(started);
+    transport.sendBuildEvent(buildEvent);
+    when(buildEvent.asStreamProto(ArgumentMatchers.<BuildEventContext>any())).thenReturn(progress);
+    transport.sendBuildEvent(buildEvent);
+    transport.close().get();
+
+    // The spilled events are read back in the order they were posted.
+    try (InputStream in = new FileInputStream(output)) {
+      assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(started);
+      assertThat(BuildEventStreamProtos.BuildEvent.parseDelimitedFrom(in)).isEqualTo(progress);
+      assertThat(in.available()).isEqualTo(0);
+    }
+    FileTransport.Stats stats = transport.getStats();
+    assertThat(stats.writtenEvents).isEqualTo(2);
+    assertThat(stats.spilledEvents).isEqualTo(2);
+    assertThat(stats.spilledBytes).isEqualTo(output.length());
+    assertThat(stats.maxBufferedBytes).isEqualTo(0);
+  }
+
   private static class WithLocalFilesEvent implements BuildEvent {
 
     int id;
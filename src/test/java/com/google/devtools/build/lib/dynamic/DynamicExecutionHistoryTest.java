@@ -0,0 +1,130 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.dynamic;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.actions.DynamicStrategyRegistry.DynamicMode;
+import com.google.devtools.build.lib.dynamic.DynamicExecutionHistory.Decision;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.time.Duration;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DynamicExecutionHistory}. */
+@RunWith(JUnit4.class)
+public class DynamicExecutionHistoryTest {
+  private static final Duration DEFAULT_DELAY = Duration.ofSeconds(1);
+
+  private Path file;
+
+  @Before
+  public void createFile() throws Exception {
+    Path outputBase = new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/output_base");
+    outputBase.createDirectoryAndParents();
+    file = outputBase.getChild("dynamic_execution_history");
+  }
+
+  private static void recordOutcomes(
+      DynamicExecutionHistory history,
+      String mnemonic,
+      DynamicMode winner,
+      int count,
+      long millis) {
+    for (int i = 0; i < count; i++) {
+      history.recordOutcome(mnemonic, winner, Duration.ofMillis(millis));
+    }
+  }
+
+  @Test
+  public void racesUnknownMnemonics() {
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    recordOutcomes(
+        history, "Javac", DynamicMode.REMOTE, DynamicExecutionHistory.MIN_OUTCOMES - 1, 5);
+
+    assertThat(history.decide("Javac")).isEqualTo(Decision.RACE);
+    assertThat(history.decide("CppCompile")).isEqualTo(Decision.RACE);
+    assertThat(history.getLocalDelay("Javac", DEFAULT_DELAY)).isEqualTo(DEFAULT_DELAY);
+  }
+
+  @Test
+  public void runsDominantBranchOnlyButExploresOccasionally() {
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    recordOutcomes(history, "Javac", DynamicMode.REMOTE, 100, 500);
+    recordOutcomes(history, "Genrule", DynamicMode.LOCAL, 100, 50);
+
+    int explorations = 0;
+    for (int i = 0; i < DynamicExecutionHistory.EXPLORATION_INTERVAL; i++) {
+      Decision decision = history.decide("Javac");
+      if (decision == Decision.EXPLORE) {
+        explorations++;
+      } else {
+        assertThat(decision).isEqualTo(Decision.REMOTE_ONLY);
+      }
+    }
+    assertThat(explorations).isEqualTo(1);
+    assertThat(history.decide("Genrule")).isEqualTo(Decision.LOCAL_ONLY);
+  }
+
+  @Test
+  public void delaysLocalBranchByUsualRemoteDuration() {
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    for (int i = 0; i < 20; i++) {
+      recordOutcomes(history, "Javac", DynamicMode.REMOTE, 3, 500);
+      recordOutcomes(history, "Javac", DynamicMode.LOCAL, 2, 2000);
+      recordOutcomes(history, "Genrule", DynamicMode.REMOTE, 2, 500);
+      recordOutcomes(history, "Genrule", DynamicMode.LOCAL, 3, 50);
+    }
+
+    assertThat(history.decide("Javac")).isEqualTo(Decision.RACE);
+    assertThat(history.getLocalDelay("Javac", DEFAULT_DELAY)).isEqualTo(Duration.ofMillis(500));
+    assertThat(history.getLocalDelay("Genrule", DEFAULT_DELAY)).isEqualTo(Duration.ZERO);
+  }
+
+  @Test
+  public void recentOutcomesOutweighOldOnes() {
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    recordOutcomes(history, "Javac", DynamicMode.REMOTE, 1000, 500);
+    assertThat(history.decide("Javac")).isEqualTo(Decision.REMOTE_ONLY);
+
+    // As when the remote executors become overloaded, and explored races are won locally.
+    recordOutcomes(history, "Javac", DynamicMode.LOCAL, 10, 50);
+
+    assertThat(history.decide("Javac")).isEqualTo(Decision.RACE);
+  }
+
+  @Test
+  public void survivesReload() throws Exception {
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    recordOutcomes(history, "Javac", DynamicMode.REMOTE, 100, 500);
+    history.saveIfModified();
+
+    DynamicExecutionHistory reloaded = DynamicExecutionHistory.load(file);
+    assertThat(reloaded.decide("Javac")).isEqualTo(Decision.REMOTE_ONLY);
+    assertThat(reloaded.getLocalDelay("Javac", DEFAULT_DELAY)).isEqualTo(Duration.ofMillis(500));
+  }
+
+  @Test
+  public void ignoresCorruptFile() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(file, "garbage");
+
+    DynamicExecutionHistory history = DynamicExecutionHistory.load(file);
+    assertThat(history.decide("Javac")).isEqualTo(Decision.RACE);
+  }
+}
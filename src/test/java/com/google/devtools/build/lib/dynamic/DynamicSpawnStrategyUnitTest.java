@@ -29,22 +29,28 @@ import static org.mockito.Mockito.when;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.DynamicStrategyRegistry;
+import com.google.devtools.build.lib.actions.DynamicStrategyRegistry.DynamicMode;
 import com.google.devtools.build.lib.actions.SandboxedSpawnStrategy;
 import com.google.devtools.build.lib.actions.SandboxedSpawnStrategy.StopConcurrentSpawns;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.dynamic.DynamicExecutionHistory.Decision;
 import com.google.devtools.build.lib.exec.ExecutionPolicy;
 import com.google.devtools.build.lib.exec.util.SpawnBuilder;
 import com.google.devtools.build.lib.server.FailureDetails.Execution;
 import com.google.devtools.build.lib.server.FailureDetails.FailureDetail;
 import com.google.devtools.build.lib.testutil.TestFileOutErr;
 import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.time.Duration;
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Semaphore;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -205,9 +211,101 @@ public class DynamicSpawnStrategyUnitTest {
     assertThat(results).containsExactly(SUCCESSFUL_SPAWN_RESULT, SUCCESSFUL_SPAWN_RESULT);
   }
 
+  private DynamicExecutionHistory createHistory() {
+    return DynamicExecutionHistory.load(
+        new InMemoryFileSystem(DigestHashFunction.SHA256).getPath("/dynamic_execution_history"));
+  }
+
+  @Test
+  public void exec_learnedLocalOnly_doesNotRunRemoteBranch() throws Exception {
+    Spawn spawn = new SpawnBuilder().withMnemonic("Genrule").build();
+    DynamicExecutionHistory history = createHistory();
+    for (int i = 0; i < DynamicExecutionHistory.MIN_OUTCOMES; i++) {
+      history.recordOutcome("Genrule", DynamicMode.LOCAL, Duration.ofMillis(10));
+    }
+    DynamicSpawnStrategy dynamicSpawnStrategy =
+        createDynamicSpawnStrategy(ExecutionPolicy.ANYWHERE, ignored -> Optional.empty(), history);
+    SandboxedSpawnStrategy local = createMockSpawnStrategy();
+    when(local.exec(eq(spawn), any(), /*stopConcurrentSpawns=*/ isNull()))
+        .thenReturn(ImmutableList.of(SUCCESSFUL_SPAWN_RESULT));
+    SandboxedSpawnStrategy remote = createMockSpawnStrategy();
+    ActionExecutionContext actionExecutionContext = createMockActionExecutionContext(local, remote);
+
+    ImmutableList<SpawnResult> results = dynamicSpawnStrategy.exec(spawn, actionExecutionContext);
+
+    assertThat(results).containsExactly(SUCCESSFUL_SPAWN_RESULT);
+    verify(remote, never()).exec(any(), any(), any());
+  }
+
+  @Test
+  public void exec_learnedRemoteOnly_doesNotRunLocalBranch() throws Exception {
+    Spawn spawn = new SpawnBuilder().withMnemonic("Javac").build();
+    DynamicExecutionHistory history = createHistory();
+    for (int i = 0; i < DynamicExecutionHistory.MIN_OUTCOMES; i++) {
+      history.recordOutcome("Javac", DynamicMode.REMOTE, Duration.ofMillis(10));
+    }
+    DynamicSpawnStrategy dynamicSpawnStrategy =
+        createDynamicSpawnStrategy(ExecutionPolicy.ANYWHERE, mockGetPostProcessingSpawn, history);
+    SandboxedSpawnStrategy local = createMockSpawnStrategy();
+    SandboxedSpawnStrategy remote = createMockSpawnStrategy();
+    when(remote.exec(eq(spawn), any(), /*stopConcurrentSpawns=*/ isNull()))
+        .thenReturn(ImmutableList.of(SUCCESSFUL_SPAWN_RESULT));
+    ActionExecutionContext actionExecutionContext = createMockActionExecutionContext(local, remote);
+
+    ImmutableList<SpawnResult> results = dynamicSpawnStrategy.exec(spawn, actionExecutionContext);
+
+    assertThat(results).containsExactly(SUCCESSFUL_SPAWN_RESULT);
+    verify(local, never()).exec(any(), any(), any());
+    verify(mockGetPostProcessingSpawn, never()).apply(any());
+  }
+
+  @Test
+  public void exec_race_recordsWinner() throws Exception {
+    Spawn spawn = new SpawnBuilder().withMnemonic("Genrule").build();
+    DynamicExecutionHistory history = createHistory();
+    DynamicSpawnStrategy dynamicSpawnStrategy =
+        createDynamicSpawnStrategy(ExecutionPolicy.ANYWHERE, ignored -> Optional.empty(), history);
+    SandboxedSpawnStrategy local = createMockSpawnStrategy();
+    Semaphore remoteStarted = new Semaphore(0);
+    when(local.exec(eq(spawn), any(), /*stopConcurrentSpawns=*/ isNotNull()))
+        .thenAnswer(
+            invocation -> {
+              remoteStarted.acquire();
+              StopConcurrentSpawns stopConcurrentSpawns = invocation.getArgument(2);
+              stopConcurrentSpawns.stop();
+              return ImmutableList.of(SUCCESSFUL_SPAWN_RESULT);
+            });
+    SandboxedSpawnStrategy remote = createMockSpawnStrategy();
+    when(remote.exec(eq(spawn), any(), any()))
+        .thenAnswer(
+            invocation -> {
+              remoteStarted.release();
+              Thread.sleep(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+              throw new AssertionError("Timed out waiting for interruption");
+            });
+    ActionExecutionContext actionExecutionContext = createMockActionExecutionContext(local, remote);
+
+    for (int i = 0; i < DynamicExecutionHistory.MIN_OUTCOMES; i++) {
+      assertThat(history.decide("Genrule")).isEqualTo(Decision.RACE);
+      assertThat(dynamicSpawnStrategy.exec(spawn, actionExecutionContext))
+          .containsExactly(SUCCESSFUL_SPAWN_RESULT);
+    }
+
+    // All races were won locally, so the next spawn only runs locally.
+    assertThat(history.decide("Genrule")).isEqualTo(Decision.LOCAL_ONLY);
+  }
+
   private DynamicSpawnStrategy createDynamicSpawnStrategy(
       ExecutionPolicy executionPolicy,
       Function<Spawn, Optional<Spawn>> getPostProcessingSpawnForLocalExecution) {
+    return createDynamicSpawnStrategy(
+        executionPolicy, getPostProcessingSpawnForLocalExecution, /*history=*/ null);
+  }
+
+  private DynamicSpawnStrategy createDynamicSpawnStrategy(
+      ExecutionPolicy executionPolicy,
+      Function<Spawn, Optional<Spawn>> getPostProcessingSpawnForLocalExecution,
+      @Nullable DynamicExecutionHistory history) {
     checkState(
         executorServiceForCleanup == null,
         "Creating the DynamicSpawnStrategy twice in the same test is not supported.");
@@ -216,7 +314,8 @@ public class DynamicSpawnStrategyUnitTest {
         executorServiceForCleanup,
         new DynamicExecutionOptions(),
         ignored -> executionPolicy,
-        getPostProcessingSpawnForLocalExecution);
+        getPostProcessingSpawnForLocalExecution,
+        history);
   }
 
   private static ActionExecutionContext createMockActionExecutionContext(
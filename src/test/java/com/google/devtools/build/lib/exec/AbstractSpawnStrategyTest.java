@@ -30,6 +30,7 @@ import com.google.devtools.build.lib.actions.ArtifactRoot;
 import com.google.devtools.build.lib.actions.FutureSpawn;
 import com.google.devtools.build.lib.actions.MetadataProvider;
 import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnContinuation;
 import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.SpawnResult.Status;
 import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
@@ -57,6 +58,7 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.Root;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.common.options.Options;
+import com.google.devtools.common.options.OptionsProvider;
 import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
@@ -144,6 +146,55 @@ public class AbstractSpawnStrategyTest {
     verify(spawnRunner).execAsync(any(Spawn.class), any(SpawnExecutionContext.class));
   }
 
+  private void enableAsyncSpawnExecution() {
+    ExecutionOptions executionOptions = Options.getDefaults(ExecutionOptions.class);
+    executionOptions.asyncSpawnExecution = true;
+    OptionsProvider options = mock(OptionsProvider.class);
+    when(options.getOptions(ExecutionOptions.class)).thenReturn(executionOptions);
+    when(actionExecutionContext.getOptions()).thenReturn(options);
+  }
+
+  @Test
+  public void testAsyncSpawnExecution_zeroExit() throws Exception {
+    enableAsyncSpawnExecution();
+    when(actionExecutionContext.getContext(eq(SpawnCache.class))).thenReturn(SpawnCache.NO_CACHE);
+    when(actionExecutionContext.getExecRoot()).thenReturn(execRoot);
+    SpawnResult spawnResult =
+        new SpawnResult.Builder().setStatus(Status.SUCCESS).setRunnerName("test").build();
+    when(spawnRunner.execAsync(any(Spawn.class), any(SpawnExecutionContext.class)))
+        .thenReturn(FutureSpawn.immediate(spawnResult));
+
+    SpawnContinuation continuation =
+        new TestedSpawnStrategy(execRoot, spawnRunner)
+            .beginExecution(SIMPLE_SPAWN, actionExecutionContext);
+    continuation.getFuture().get();
+
+    assertThat(continuation.execute().get()).containsExactly(spawnResult);
+  }
+
+  @Test
+  public void testAsyncSpawnExecution_nonZeroExit() throws Exception {
+    enableAsyncSpawnExecution();
+    when(actionExecutionContext.getContext(eq(SpawnCache.class))).thenReturn(SpawnCache.NO_CACHE);
+    when(actionExecutionContext.getExecRoot()).thenReturn(execRoot);
+    SpawnResult result =
+        new SpawnResult.Builder()
+            .setStatus(Status.NON_ZERO_EXIT)
+            .setExitCode(1)
+            .setFailureDetail(NON_ZERO_EXIT_DETAILS)
+            .setRunnerName("test")
+            .build();
+    when(spawnRunner.execAsync(any(Spawn.class), any(SpawnExecutionContext.class)))
+        .thenReturn(FutureSpawn.immediate(result));
+
+    SpawnContinuation continuation =
+        new TestedSpawnStrategy(execRoot, spawnRunner)
+            .beginExecution(SIMPLE_SPAWN, actionExecutionContext);
+
+    SpawnExecException e = assertThrows(SpawnExecException.class, continuation::execute);
+    assertThat(e.getSpawnResult()).isSameInstanceAs(result);
+  }
+
   @Test
   public void testCacheHit() throws Exception {
     SpawnCache cache = mock(SpawnCache.class);
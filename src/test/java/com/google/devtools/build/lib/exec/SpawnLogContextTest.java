@@ -0,0 +1,165 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnResult;
+import com.google.devtools.build.lib.actions.SpawnResult.Status;
+import com.google.devtools.build.lib.actions.cache.VirtualActionInput;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.exec.Protos.Digest;
+import com.google.devtools.build.lib.exec.Protos.File;
+import com.google.devtools.build.lib.exec.Protos.SpawnExec;
+import com.google.devtools.build.lib.exec.util.SpawnBuilder;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.io.MessageOutputStream;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/** Tests for {@link SpawnLogContext}. */
+@RunWith(JUnit4.class)
+public class SpawnLogContextTest {
+  private static final SpawnResult SUCCESS =
+      new SpawnResult.Builder().setStatus(Status.SUCCESS).setRunnerName("test").build();
+
+  private final FileSystem fs = new InMemoryFileSystem(DigestHashFunction.SHA256);
+  private final Path execRoot = fs.getPath("/execroot");
+  private Scratch scratch;
+  private ArtifactRoot rootDir;
+  private SpawnLogContext spawnLogContext;
+  @Mock private MessageOutputStream messageOutput;
+  @Mock private MetadataProvider metadataProvider;
+
+  @Before
+  public final void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    scratch = new Scratch(fs);
+    rootDir = ArtifactRoot.asSourceRoot(Root.fromPath(scratch.dir("/execroot")));
+    spawnLogContext = new SpawnLogContext(execRoot, messageOutput, /* remoteOptions= */ null);
+  }
+
+  private void logSpawn(Spawn spawn, ActionInput... inputs) throws Exception {
+    ImmutableSortedMap.Builder<PathFragment, ActionInput> inputMap =
+        ImmutableSortedMap.naturalOrder();
+    for (ActionInput input : inputs) {
+      inputMap.put(input.getExecPath(), input);
+    }
+    spawnLogContext.logSpawn(spawn, metadataProvider, inputMap.build(), Duration.ZERO, SUCCESS);
+  }
+
+  private List<SpawnExec> getLoggedSpawns(int count) throws Exception {
+    ArgumentCaptor<SpawnExec> spawnExecs = ArgumentCaptor.forClass(SpawnExec.class);
+    verify(messageOutput, times(count)).write(spawnExecs.capture());
+    return spawnExecs.getAllValues();
+  }
+
+  /** Returns the digest of a virtual input as it was computed before it was streamed. */
+  private static Digest materializedDigest(VirtualActionInput input) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    input.writeTo(buffer);
+    byte[] blob = buffer.toByteArray();
+    return Digest.newBuilder()
+        .setHash(DigestHashFunction.SHA256.getHashFunction().hashBytes(blob).toString())
+        .setSizeBytes(blob.length)
+        .setHashFunctionName("SHA-256")
+        .build();
+  }
+
+  @Test
+  public void logSpawn_sharedInput_reusesLoggedEntry() throws Exception {
+    Artifact shared = ActionsTestUtil.createArtifact(rootDir, scratch.file("/execroot/foo", "1"));
+    Artifact other = ActionsTestUtil.createArtifact(rootDir, scratch.file("/execroot/bar", "2"));
+    when(metadataProvider.getMetadata(any()))
+        .thenAnswer(
+            invocation ->
+                FileArtifactValue.createForTesting((Artifact) invocation.getArgument(0)));
+
+    logSpawn(new SpawnBuilder("/bin/echo", "first").withInput(shared).build(), shared);
+    logSpawn(
+        new SpawnBuilder("/bin/echo", "second").withInput(shared).withInput(other).build(),
+        shared,
+        other);
+
+    List<SpawnExec> spawnExecs = getLoggedSpawns(2);
+    File loggedShared = spawnExecs.get(0).getInputs(0);
+    assertThat(loggedShared.getPath()).isEqualTo("foo");
+    assertThat(loggedShared.getDigest().getSizeBytes()).isEqualTo(2);
+    assertThat(spawnExecs.get(1).getInputsList())
+        .containsExactly(
+            File.newBuilder()
+                .setPath("bar")
+                .setDigest(
+                    Digest.newBuilder()
+                        .setHash(
+                            "53c234e5e8472b6ac51c1ae1cab3fe06fad053beb8ebfd8977b010655bfdd3c3")
+                        .setSizeBytes(2)
+                        .setHashFunctionName("SHA-256"))
+                .build(),
+            loggedShared)
+        .inOrder();
+    // The digest of the shared input was only looked up for the first spawn.
+    verify(metadataProvider, times(1)).getMetadata(shared);
+    verify(metadataProvider, times(1)).getMetadata(other);
+  }
+
+  @Test
+  public void logSpawn_virtualInput_digestsWrittenContents() throws Exception {
+    VirtualActionInput paramFile = ActionsTestUtil.createVirtualActionInput("params", "--foo");
+
+    logSpawn(new SpawnBuilder("/bin/echo", "first").build(), paramFile);
+
+    File loggedParamFile = getLoggedSpawns(1).get(0).getInputs(0);
+    assertThat(loggedParamFile.getPath()).isEqualTo("params");
+    assertThat(loggedParamFile.getDigest()).isEqualTo(materializedDigest(paramFile));
+  }
+
+  @Test
+  public void logSpawn_virtualInput_notReusedByOtherSpawns() throws Exception {
+    VirtualActionInput first = ActionsTestUtil.createVirtualActionInput("params", "--foo");
+    VirtualActionInput second = ActionsTestUtil.createVirtualActionInput("params", "--bar=baz");
+
+    logSpawn(new SpawnBuilder("/bin/echo", "first").build(), first);
+    logSpawn(new SpawnBuilder("/bin/echo", "second").build(), second);
+
+    List<SpawnExec> spawnExecs = getLoggedSpawns(2);
+    assertThat(spawnExecs.get(0).getInputs(0).getDigest()).isEqualTo(materializedDigest(first));
+    assertThat(spawnExecs.get(1).getInputs(0).getDigest()).isEqualTo(materializedDigest(second));
+  }
+}
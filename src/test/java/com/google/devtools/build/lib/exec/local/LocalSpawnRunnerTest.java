@@ -27,6 +27,7 @@ import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import com.google.devtools.build.lib.actions.ActionContext;
@@ -44,6 +45,7 @@ import com.google.devtools.build.lib.actions.SpawnResult;
 import com.google.devtools.build.lib.actions.cache.MetadataInjector;
 import com.google.devtools.build.lib.exec.BinTools;
 import com.google.devtools.build.lib.exec.RunfilesTreeUpdater;
+import com.google.devtools.build.lib.exec.SpawnInputExpander;
 import com.google.devtools.build.lib.exec.SpawnRunner.ProgressStatus;
 import com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionContext;
 import com.google.devtools.build.lib.exec.util.SpawnBuilder;
@@ -263,6 +265,44 @@ public class LocalSpawnRunnerTest {
       return inputMapping;
     }
 
+    @Override
+    public SpawnInputExpander getSpawnInputExpander() {
+      // Expands every spawn to the inputs set on this context, as getInputMapping does.
+      return new SpawnInputExpander(/* execRoot= */ null, /* strict= */ false) {
+        @Override
+        public SortedMap<PathFragment, ActionInput> getInputMapping(
+            Spawn spawn,
+            ArtifactExpander artifactExpander,
+            PathFragment baseDirectory,
+            MetadataProvider actionInputFileCache) {
+          return inputMapping;
+        }
+
+        @Override
+        public void walkInputs(
+            Spawn spawn,
+            ArtifactExpander artifactExpander,
+            PathFragment baseDirectory,
+            MetadataProvider actionInputFileCache,
+            InputVisitor visitor)
+            throws IOException {
+          ImmutableSortedMap<PathFragment, ActionInput> leaves =
+              ImmutableSortedMap.copyOf(inputMapping);
+          visitor.visit(
+              leaves,
+              new InputWalker() {
+                @Override
+                public SortedMap<PathFragment, ActionInput> getLeavesInputMapping() {
+                  return leaves;
+                }
+
+                @Override
+                public void visitNonLeaves(InputVisitor childVisitor) {}
+              });
+        }
+      };
+    }
+
     @Override
     public void report(ProgressStatus state, String name) {
       reportedStatus.add(state);
@@ -30,6 +30,7 @@ import com.google.devtools.build.lib.actions.RunfilesSupplier;
 import com.google.devtools.build.lib.actions.SimpleSpawn;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.analysis.platform.PlatformInfo;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -137,6 +138,11 @@ public final class SpawnBuilder {
     return this;
   }
 
+  public SpawnBuilder withInputs(NestedSet<? extends ActionInput> inputs) {
+    this.inputs.addTransitive(inputs);
+    return this;
+  }
+
   public SpawnBuilder withOutput(ActionInput output) {
     outputs.add(output);
     return this;
@@ -0,0 +1,181 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.includescanning;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.includescanning.IncludeParser.GrepIncludesFileType;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion;
+import com.google.devtools.build.lib.includescanning.IncludeParser.Inclusion.Kind;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link IncludeScanningIndex}. */
+@RunWith(JUnit4.class)
+public class IncludeScanningIndexTest {
+
+  private static final List<Inclusion> FOO_INCLUSIONS =
+      ImmutableList.of(
+          Inclusion.create("foo.h", Kind.QUOTE), Inclusion.create("vector", Kind.ANGLE));
+  private static final List<Inclusion> BAR_INCLUSIONS =
+      ImmutableList.of(Inclusion.create("bar.h", Kind.NEXT_QUOTE));
+
+  private Path root;
+  private Path file;
+
+  @Before
+  public final void createRoot() throws Exception {
+    // The index is mapped into memory, which requires a real file system.
+    root = TestUtils.createUniqueTmpDir(null);
+    file = root.getChild("include_scanning_index");
+  }
+
+  @After
+  public final void deleteRoot() throws Exception {
+    root.deleteTree();
+  }
+
+  private static byte[] digest(int length, int value) {
+    byte[] digest = new byte[length];
+    Arrays.fill(digest, (byte) value);
+    return digest;
+  }
+
+  private IncludeScanningIndex saveAndLoad(IncludeScanningIndex index) throws Exception {
+    index.save();
+    return IncludeScanningIndex.load(file);
+  }
+
+  @Test
+  public void get_noFile_returnsNull() {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+
+    assertThat(index.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+    assertThat(index.hasAdditions()).isFalse();
+  }
+
+  @Test
+  public void get_addedEntry_returnsInclusionsBeforeSave() {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+
+    assertThat(index.get(digest(16, 1), GrepIncludesFileType.CPP)).isEqualTo(FOO_INCLUSIONS);
+    assertThat(index.hasAdditions()).isTrue();
+  }
+
+  @Test
+  public void saveAndLoad_roundTrip() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.put(digest(16, 1), GrepIncludesFileType.SWIG, BAR_INCLUSIONS);
+    index.put(digest(16, 2), GrepIncludesFileType.CPP, ImmutableList.of());
+
+    IncludeScanningIndex loaded = saveAndLoad(index);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isEqualTo(FOO_INCLUSIONS);
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.SWIG)).isEqualTo(BAR_INCLUSIONS);
+    assertThat(loaded.get(digest(16, 2), GrepIncludesFileType.CPP)).isEmpty();
+    assertThat(loaded.get(digest(16, 2), GrepIncludesFileType.SWIG)).isNull();
+    assertThat(loaded.get(digest(16, 3), GrepIncludesFileType.CPP)).isNull();
+    assertThat(loaded.hasAdditions()).isFalse();
+  }
+
+  @Test
+  public void save_mergesAddedEntriesWithMappedEntries() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.put(digest(16, 3), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index = saveAndLoad(index);
+    index.put(digest(16, 2), GrepIncludesFileType.CPP, BAR_INCLUSIONS);
+    index.put(digest(16, 4), GrepIncludesFileType.CPP, BAR_INCLUSIONS);
+
+    IncludeScanningIndex loaded = saveAndLoad(index);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isEqualTo(FOO_INCLUSIONS);
+    assertThat(loaded.get(digest(16, 2), GrepIncludesFileType.CPP)).isEqualTo(BAR_INCLUSIONS);
+    assertThat(loaded.get(digest(16, 3), GrepIncludesFileType.CPP)).isEqualTo(FOO_INCLUSIONS);
+    assertThat(loaded.get(digest(16, 4), GrepIncludesFileType.CPP)).isEqualTo(BAR_INCLUSIONS);
+  }
+
+  @Test
+  public void save_digestLengthChanged_dropsOlderEntries() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index = saveAndLoad(index);
+    index.put(digest(32, 1), GrepIncludesFileType.CPP, BAR_INCLUSIONS);
+
+    IncludeScanningIndex loaded = saveAndLoad(index);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+    assertThat(loaded.get(digest(32, 1), GrepIncludesFileType.CPP)).isEqualTo(BAR_INCLUSIONS);
+  }
+
+  @Test
+  public void load_truncatedHeader_isEmpty() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.save();
+    truncate(10);
+
+    IncludeScanningIndex loaded = IncludeScanningIndex.load(file);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+  }
+
+  @Test
+  public void load_truncatedEntries_isEmpty() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.put(digest(16, 2), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.save();
+    // Cuts into the second entry of the table, after the 16-byte header.
+    truncate(16 + 17 + 4 + 8);
+
+    IncludeScanningIndex loaded = IncludeScanningIndex.load(file);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+  }
+
+  @Test
+  public void corruptInclusions_areMissesAndDroppedOnSave() throws Exception {
+    IncludeScanningIndex index = IncludeScanningIndex.load(file);
+    index.put(digest(16, 1), GrepIncludesFileType.CPP, FOO_INCLUSIONS);
+    index.save();
+    // Cuts into the inclusions, which follow the table.
+    byte[] contents = FileSystemUtils.readContent(file);
+    truncate(contents.length - 3);
+
+    IncludeScanningIndex corrupt = IncludeScanningIndex.load(file);
+    assertThat(corrupt.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+    corrupt.put(digest(16, 2), GrepIncludesFileType.CPP, BAR_INCLUSIONS);
+    IncludeScanningIndex loaded = saveAndLoad(corrupt);
+
+    assertThat(loaded.get(digest(16, 1), GrepIncludesFileType.CPP)).isNull();
+    assertThat(loaded.get(digest(16, 2), GrepIncludesFileType.CPP)).isEqualTo(BAR_INCLUSIONS);
+  }
+
+  private void truncate(int length) throws Exception {
+    byte[] contents = FileSystemUtils.readContent(file);
+    FileSystemUtils.writeContent(file, Arrays.copyOf(contents, length));
+  }
+}
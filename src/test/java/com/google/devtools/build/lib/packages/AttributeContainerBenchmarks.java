@@ -0,0 +1,186 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Like SkyframeBenchmarks, this is a plain program rather than a JMH benchmark, because JMH isn't
+// available to the Bazel build.
+
+/**
+ * Measures the heap retained by the attribute containers of a large synthetic package, before and
+ * after freezing them, and how much of it is taken by the values unique to each rule.
+ *
+ * <p>The synthetic rules resemble those of a large repository: each has a unique name and unique
+ * sources, draws its dependencies from a limited number of lists of labels, and uses one of a few
+ * visibility and tags lists.
+ *
+ * <p>Run it with {@code bazel run //src/test/java/com/google/devtools/build/lib/packages:
+ * AttributeContainerBenchmarks -- --rules 1000000}. The numbers are only comparable between runs on
+ * the same machine with the same JVM flags.
+ */
+public final class AttributeContainerBenchmarks {
+
+  private static final String HELP =
+      "Usage: AttributeContainerBenchmarks [--help] [--rules count] [--attributes count]\n"
+          + "    [--dep_lists count]\n"
+          + "Creates the attribute containers of the specified number of synthetic rules, with\n"
+          + "the specified number of attributes per rule class and distinct dependency lists, and\n"
+          + "reports the heap they retain per rule before and after freezing, and the part of it\n"
+          + "taken by the names and sources unique to each rule.\n";
+
+  // Attribute indices of the synthetic rule class.
+  private static final int NAME = 0;
+  private static final int SRCS = 3;
+  private static final int DEPS = 5;
+  private static final int VISIBILITY = 7;
+  private static final int TAGS = 11;
+  private static final int TESTONLY = 17;
+
+  public static void main(String[] args) {
+    int rules = 1_000_000;
+    int attributes = 40;
+    int depLists = 10_000;
+    for (int i = 0; i < args.length; i++) {
+      String flag = args[i];
+      if (flag.equals("--help")) {
+        System.out.println(HELP);
+        System.exit(0);
+      }
+      if (++i == args.length) {
+        fail("%s needs an argument", flag);
+      }
+      String value = args[i];
+      try {
+        switch (flag) {
+          case "--rules":
+            rules = Integer.parseInt(value);
+            break;
+          case "--attributes":
+            attributes = Integer.parseInt(value);
+            break;
+          case "--dep_lists":
+            depLists = Integer.parseInt(value);
+            break;
+          default:
+            fail("unknown flag: %s", flag);
+        }
+      } catch (NumberFormatException e) {
+        fail("for %s, got '%s': %s", flag, value, e.getMessage());
+      }
+    }
+    if (rules <= 0 || depLists <= 0 || attributes <= TESTONLY || attributes >= 254) {
+      fail("--rules and --dep_lists must be positive, --attributes must be in [18, 253]");
+    }
+
+    Random random = new Random(42);
+    List<ImmutableList<Label>> deps = new ArrayList<>();
+    for (int i = 0; i < depLists; i++) {
+      ImmutableList.Builder<Label> list = ImmutableList.builder();
+      for (int j = 0; j < 1 + random.nextInt(8); j++) {
+        list.add(Label.parseAbsoluteUnchecked("//lib" + random.nextInt(1000) + ":lib"));
+      }
+      deps.add(list.build());
+    }
+    ImmutableList<ImmutableList<Label>> visibilities =
+        ImmutableList.of(
+            ImmutableList.of(Label.parseAbsoluteUnchecked("//visibility:public")),
+            ImmutableList.of(Label.parseAbsoluteUnchecked("//visibility:private")),
+            ImmutableList.of(Label.parseAbsoluteUnchecked("//some/team:__subpackages__")));
+    ImmutableList<ImmutableList<String>> tags =
+        ImmutableList.of(
+            ImmutableList.of(),
+            ImmutableList.of("manual"),
+            ImmutableList.of("manual", "no-remote"));
+
+    long before = usedHeap();
+    // The values that are unique to each rule, and that no container can share.
+    String[] names = new String[rules];
+    Object[] srcs = new Object[rules];
+    for (int i = 0; i < rules; i++) {
+      names[i] = "rule" + i;
+      srcs[i] = ImmutableList.of("rule" + i + ".cc", "rule" + i + ".h");
+    }
+    long unique = usedHeap() - before;
+
+    AttributeContainer[] containers = new AttributeContainer[rules];
+    for (int i = 0; i < rules; i++) {
+      AttributeContainer container = new AttributeContainer.Mutable(attributes);
+      container.setAttributeValue(NAME, names[i], /*explicit=*/ true);
+      container.setAttributeValue(SRCS, srcs[i], /*explicit=*/ true);
+      // Copy the lists, as evaluating each BUILD file call would.
+      container.setAttributeValue(
+          DEPS, ImmutableList.copyOf(deps.get(random.nextInt(depLists))), /*explicit=*/ true);
+      container.setAttributeValue(
+          VISIBILITY,
+          ImmutableList.copyOf(visibilities.get(random.nextInt(visibilities.size()))),
+          /*explicit=*/ random.nextBoolean());
+      container.setAttributeValue(
+          TAGS, ImmutableList.copyOf(tags.get(random.nextInt(tags.size()))), /*explicit=*/ true);
+      if (random.nextInt(10) == 0) {
+        container.setAttributeValue(TESTONLY, Boolean.TRUE, /*explicit=*/ true);
+      }
+      containers[i] = container;
+    }
+    names = null;
+    srcs = null;
+    long mutable = usedHeap() - before;
+
+    freezeAll(containers);
+    long frozen = usedHeap() - before;
+    // Keeps the containers reachable until they are measured.
+    if (containers[rules - 1].getAttributeValue(NAME) == null) {
+      throw new IllegalStateException("lost the name of the last rule");
+    }
+
+    System.out.printf(
+        "%-10s %14s %14s %14s\n", "rules", "unique/rule", "mutable/rule", "frozen/rule");
+    System.out.printf(
+        "%-10d %14s %14s %14s\n",
+        rules,
+        formatBytes(unique / rules),
+        formatBytes(mutable / rules),
+        formatBytes(frozen / rules));
+  }
+
+  /** Freezes the containers like {@link Package.Builder#finishBuild} does. */
+  private static void freezeAll(AttributeContainer[] containers) {
+    AttributeContainer.SharedValues sharedValues = new AttributeContainer.SharedValues();
+    for (int i = 0; i < containers.length; i++) {
+      containers[i] = containers[i].freeze(sharedValues);
+    }
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static String formatBytes(long bytes) {
+    return bytes + "B";
+  }
+
+  private static void fail(String format, Object... args) {
+    System.err.printf(format, args);
+    System.err.println();
+    System.exit(1);
+  }
+}
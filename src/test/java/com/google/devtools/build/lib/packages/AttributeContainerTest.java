@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.packages;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertThrows;
 
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.packages.AttributeContainer.Mutable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -206,4 +208,48 @@ public class AttributeContainerTest {
     container.getRawAttributeValues().set(0, "foo");
     assertThat(container.getRawAttributeValues()).containsExactly("hi");
   }
+
+  @Test
+  public void testFreezeSharesEqualListsOfLabelsAndStrings() {
+    AttributeContainer.SharedValues sharedValues = new AttributeContainer.SharedValues();
+    Label label = Label.parseAbsoluteUnchecked("//pkg:dep");
+    AttributeContainer first = new Mutable(3);
+    first.setAttributeValue(0, ImmutableList.of(label), /*explicit=*/ true);
+    first.setAttributeValue(1, ImmutableList.of("tag"), /*explicit=*/ true);
+    first.setAttributeValue(2, ImmutableList.of(new Object()), /*explicit=*/ true);
+    AttributeContainer second = new Mutable(3);
+    second.setAttributeValue(0, ImmutableList.of(label), /*explicit=*/ false);
+    second.setAttributeValue(1, ImmutableList.of("tag"), /*explicit=*/ true);
+    second.setAttributeValue(2, first.getAttributeValue(2), /*explicit=*/ true);
+
+    AttributeContainer firstFrozen = first.freeze(sharedValues);
+    AttributeContainer secondFrozen = second.freeze(sharedValues);
+
+    assertThat(secondFrozen.getAttributeValue(0))
+        .isSameInstanceAs(firstFrozen.getAttributeValue(0));
+    assertThat(secondFrozen.getAttributeValue(1))
+        .isSameInstanceAs(firstFrozen.getAttributeValue(1));
+    assertThat(secondFrozen.isAttributeValueExplicitlySpecified(0)).isFalse();
+    assertThat(firstFrozen.isAttributeValueExplicitlySpecified(0)).isTrue();
+  }
+
+  @Test
+  public void testFreezeDoesNotShareListsOfOtherValues() {
+    AttributeContainer.SharedValues sharedValues = new AttributeContainer.SharedValues();
+    List<Object> mutableList = new ArrayList<>();
+    AttributeContainer first = new Mutable(2);
+    first.setAttributeValue(0, ImmutableList.of(1), /*explicit=*/ true);
+    first.setAttributeValue(1, mutableList, /*explicit=*/ true);
+    AttributeContainer second = new Mutable(2);
+    second.setAttributeValue(0, ImmutableList.of(1), /*explicit=*/ true);
+    second.setAttributeValue(1, new ArrayList<>(), /*explicit=*/ true);
+
+    AttributeContainer firstFrozen = first.freeze(sharedValues);
+    AttributeContainer secondFrozen = second.freeze(sharedValues);
+
+    assertThat(secondFrozen.getAttributeValue(0))
+        .isNotSameInstanceAs(firstFrozen.getAttributeValue(0));
+    assertThat(firstFrozen.getAttributeValue(1)).isSameInstanceAs(mutableList);
+    assertThat(secondFrozen.getAttributeValue(1)).isNotSameInstanceAs(mutableList);
+  }
 }
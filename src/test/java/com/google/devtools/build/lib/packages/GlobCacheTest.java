@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.packages.Globber.BadGlobException;
 import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.testutil.TestUtils;
 import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.ArrayList;
@@ -49,6 +50,7 @@ public class GlobCacheTest {
   private Path packageDirectory;
   private Path buildFile;
   private GlobCache cache;
+  private PersistentGlobCache persistentGlobCache;
 
   @Before
   public final void createFiles() throws Exception  {
@@ -112,7 +114,105 @@ public class GlobCacheTest {
             },
             null,
             TestUtils.getPool(),
-            -1);
+            -1,
+            persistentGlobCache);
+  }
+
+  /** Loads the persistent glob cache anew, as a new server would, and uses it for new globs. */
+  private void reloadPersistentGlobCache() throws Exception {
+    Path file = scratch.resolve("/output_base/glob_cache");
+    if (persistentGlobCache != null) {
+      persistentGlobCache.saveIfModified();
+    }
+    persistentGlobCache = PersistentGlobCache.load(file);
+    createCache();
+  }
+
+  /** Makes the package directory look unmodified for a while, so that its globs are persisted. */
+  private void makePackageDirectoryOld() throws Exception {
+    packageDirectory.setLastModifiedTime(1000L);
+  }
+
+  @Test
+  public void testPersistentGlobCache_reusesUnchangedDirectory() throws Exception {
+    scratch.dir("/output_base");
+    makePackageDirectoryOld();
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+
+    reloadPersistentGlobCache();
+    // Contents of files don't affect globs, so the globbed directory is not looked at again. A
+    // change that leaves the stat of the directory as it was shows that the result is reused.
+    scratch.file("isolated/third.js");
+    makePackageDirectoryOld();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+  }
+
+  @Test
+  public void testPersistentGlobCache_ignoresChangedDirectory() throws Exception {
+    scratch.dir("/output_base");
+    makePackageDirectoryOld();
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+
+    reloadPersistentGlobCache();
+    scratch.file("isolated/third.js");
+    assertThat(cache.getGlobUnsorted("*.js"))
+        .containsExactly("first.js", "second.js", "third.js");
+  }
+
+  @Test
+  public void testPersistentGlobCache_doesNotPersistRecentlyModifiedDirectory() throws Exception {
+    scratch.dir("/output_base");
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+
+    reloadPersistentGlobCache();
+    scratch.file("isolated/third.js");
+    makePackageDirectoryOld();
+    assertThat(cache.getGlobUnsorted("*.js"))
+        .containsExactly("first.js", "second.js", "third.js");
+  }
+
+  @Test
+  public void testPersistentGlobCache_reusesResultsAppendedToFile() throws Exception {
+    scratch.dir("/output_base");
+    makePackageDirectoryOld();
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.txt")).containsExactly("first.txt", "second.txt");
+
+    reloadPersistentGlobCache();
+    scratch.file("isolated/third.js");
+    scratch.file("isolated/third.txt");
+    makePackageDirectoryOld();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+    assertThat(cache.getGlobUnsorted("*.txt")).containsExactly("first.txt", "second.txt");
+  }
+
+  @Test
+  public void testPersistentGlobCache_dropsTruncatedRecord() throws Exception {
+    scratch.dir("/output_base");
+    makePackageDirectoryOld();
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+    reloadPersistentGlobCache();
+    assertThat(cache.getGlobUnsorted("*.txt")).containsExactly("first.txt", "second.txt");
+    persistentGlobCache.saveIfModified();
+    // As if the server crashed while appending the second record.
+    Path file = persistentGlobCache.getFile();
+    byte[] contents = FileSystemUtils.readContent(file);
+    FileSystemUtils.writeContent(file, Arrays.copyOf(contents, contents.length - 3));
+
+    persistentGlobCache = null;
+    reloadPersistentGlobCache();
+    scratch.file("isolated/third.js");
+    scratch.file("isolated/third.txt");
+    makePackageDirectoryOld();
+    assertThat(cache.getGlobUnsorted("*.js")).containsExactly("first.js", "second.js");
+    assertThat(cache.getGlobUnsorted("*.txt"))
+        .containsExactly("first.txt", "second.txt", "third.txt");
   }
 
   @After
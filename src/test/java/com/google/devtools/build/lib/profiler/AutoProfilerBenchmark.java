@@ -42,7 +42,8 @@ public class AutoProfilerBenchmark {
             /* enabledCpuUsageProfiling= */ false,
             /* slimProfile= */ false,
             /* includePrimaryOutput= */ false,
-            /* includeTargetLabel= */ false);
+            /* includeTargetLabel= */ false,
+            /* collectSkyFunctionResourceUsage= */ false);
   }
 
   @BeforeExperiment
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.profiler;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.devtools.build.lib.profiler.Profiler.Format.JSON_TRACE_FILE_FORMAT;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertThrows;
 
 import com.google.common.collect.ImmutableList;
@@ -35,6 +36,7 @@ import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -95,7 +97,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     return buffer;
   }
 
@@ -112,7 +115,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
   }
 
   @Test
@@ -217,7 +221,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     try (SilentCloseable c = profiler.profile(ProfilerTask.ACTION, "action task")) {
       // Next task takes less than 10 ms but should be recorded anyway.
       long before = clock.nanoTime();
@@ -265,7 +270,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     profiler.logSimpleTask(10000, 20000, ProfilerTask.VFS_STAT, "stat");
     // Unlike the VFS_STAT event above, the remote execution event will not be recorded since we
     // don't record the slowest remote exec events (see ProfilerTask.java).
@@ -386,7 +392,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     profiler.logSimpleTask(10000, 20000, ProfilerTask.VFS_STAT, "stat");
 
     assertThat(ProfilerTask.VFS_STAT.collectsSlowestInstances()).isTrue();
@@ -576,7 +583,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     profiler.logSimpleTask(badClock.nanoTime(), ProfilerTask.INFO, "some task");
     profiler.stop();
   }
@@ -631,7 +639,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     profiler.logSimpleTaskDuration(
         Profiler.nanoTimeMaybe(), Duration.ofSeconds(10), ProfilerTask.INFO, "foo");
     IOException expected = assertThrows(IOException.class, () -> profiler.stop());
@@ -658,7 +667,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     profiler.logSimpleTaskDuration(
         Profiler.nanoTimeMaybe(), Duration.ofSeconds(10), ProfilerTask.INFO, "foo");
     IOException expected = assertThrows(IOException.class, () -> profiler.stop());
@@ -681,7 +691,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ true,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     try (SilentCloseable c = profiler.profileAction(ProfilerTask.ACTION, "test", "foo.out", "")) {
       profiler.logEvent(ProfilerTask.PHASE, "event1");
     }
@@ -712,7 +723,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         /* slimProfile= */ false,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ true);
+        /* includeTargetLabel= */ true,
+        /* collectSkyFunctionResourceUsage= */ false);
     try (SilentCloseable c =
         profiler.profileAction(ProfilerTask.ACTION, "test", "foo.out", "//foo:bar")) {
       profiler.logEvent(ProfilerTask.PHASE, "event1");
@@ -728,6 +740,79 @@ public class ProfilerTest {
         .hasSize(1);
   }
 
+  @Test
+  public void testCompressedProfileWithMoreTasksThanFitInRingBuffer() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    profiler.start(
+        getAllProfilerTasks(),
+        buffer,
+        Profiler.Format.JSON_TRACE_FILE_COMPRESSED_FORMAT,
+        "dummy_output_base",
+        UUID.randomUUID(),
+        true,
+        clock,
+        clock.nanoTime(),
+        /* enabledCpuUsageProfiling= */ false,
+        /* slimProfile= */ false,
+        /* includePrimaryOutput= */ false,
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
+    int taskCount = 20_000;
+    for (int i = 0; i < taskCount; i++) {
+      profiler.logSimpleTask(clock.nanoTime(), ProfilerTask.INFO, "task " + i);
+    }
+    profiler.stop();
+
+    JsonProfile jsonProfile =
+        new JsonProfile(new GZIPInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    assertThat(
+            jsonProfile.getTraceEvents().stream()
+                .filter(traceEvent -> traceEvent.name().startsWith("task "))
+                .count())
+        .isEqualTo(taskCount);
+  }
+
+  @Test
+  public void testSkyFunctionResourceUsage() throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    profiler.start(
+        getAllProfilerTasks(),
+        buffer,
+        JSON_TRACE_FILE_FORMAT,
+        "dummy_output_base",
+        UUID.randomUUID(),
+        true,
+        clock,
+        clock.nanoTime(),
+        /* enabledCpuUsageProfiling= */ false,
+        /* slimProfile= */ false,
+        /* includePrimaryOutput= */ false,
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ true);
+    SkyFunctionResourceUsage resourceUsage = profiler.getSkyFunctionResourceUsage();
+    assertThat(resourceUsage).isNotNull();
+    long startCpuTimeNanos = resourceUsage.getCurrentThreadCpuTimeNanos();
+    long startAllocatedBytes = resourceUsage.getCurrentThreadAllocatedBytes();
+    byte[] allocation = new byte[1 << 20];
+    resourceUsage.record("PACKAGE", startCpuTimeNanos, startAllocatedBytes);
+
+    SkyFunctionResourceUsage.Summary summary =
+        Iterables.getOnlyElement(resourceUsage.getSummaries());
+    assertThat(summary.getName()).isEqualTo("PACKAGE");
+    assertThat(summary.getComputations()).isEqualTo(1);
+    assertThat(summary.getAllocatedBytes()).isAtLeast((long) allocation.length);
+
+    profiler.stop();
+    assertThat(profiler.getSkyFunctionResourceUsage()).isNull();
+    String profile = new String(buffer.toByteArray(), UTF_8);
+    assertThat(profile).contains("\"skyFunctionResourceUsage\"");
+    assertThat(profile).contains("\"name\": \"PACKAGE\"");
+    // The summary doesn't get in the way of reading the profile.
+    JsonProfile jsonProfile = new JsonProfile(new ByteArrayInputStream(buffer.toByteArray()));
+    assertThat(jsonProfile.getTraceEvents()).isNotEmpty();
+  }
+
   private ByteArrayOutputStream getJsonProfileOutputStream(boolean slimProfile) throws IOException {
     ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
     profiler.start(
@@ -742,7 +827,8 @@ public class ProfilerTest {
         /* enabledCpuUsageProfiling= */ false,
         slimProfile,
         /* includePrimaryOutput= */ false,
-        /* includeTargetLabel= */ false);
+        /* includeTargetLabel= */ false,
+        /* collectSkyFunctionResourceUsage= */ false);
     long curTime = Profiler.nanoTimeMaybe();
     for (int i = 0; i < 100_000; i++) {
       Duration duration;
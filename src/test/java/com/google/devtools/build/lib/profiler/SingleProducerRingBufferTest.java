@@ -0,0 +1,72 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.profiler;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SingleProducerRingBuffer}. */
+@RunWith(JUnit4.class)
+public final class SingleProducerRingBufferTest {
+  @Test
+  public void testOfferUntilFull() {
+    SingleProducerRingBuffer<String> ringBuffer = new SingleProducerRingBuffer<>(2);
+    assertThat(ringBuffer.isEmpty()).isTrue();
+    assertThat(ringBuffer.offer("a")).isTrue();
+    assertThat(ringBuffer.offer("b")).isTrue();
+    assertThat(ringBuffer.offer("c")).isFalse();
+    assertThat(ringBuffer.poll()).isEqualTo("a");
+    assertThat(ringBuffer.offer("c")).isTrue();
+    assertThat(ringBuffer.poll()).isEqualTo("b");
+    assertThat(ringBuffer.poll()).isEqualTo("c");
+    assertThat(ringBuffer.poll()).isNull();
+    assertThat(ringBuffer.isEmpty()).isTrue();
+  }
+
+  @Test
+  public void testCapacityMustBePowerOfTwo() {
+    assertThrows(IllegalArgumentException.class, () -> new SingleProducerRingBuffer<String>(3));
+  }
+
+  @Test
+  public void testConcurrentProducerAndConsumer() throws Exception {
+    SingleProducerRingBuffer<Integer> ringBuffer = new SingleProducerRingBuffer<>(16);
+    int count = 100_000;
+    Thread producer =
+        new Thread(
+            () -> {
+              for (int i = 0; i < count; i++) {
+                while (!ringBuffer.offer(i)) {
+                  Thread.yield();
+                }
+              }
+            });
+    producer.start();
+    for (int expected = 0; expected < count; ) {
+      Integer element = ringBuffer.poll();
+      if (element == null) {
+        Thread.yield();
+      } else {
+        assertThat(element).isEqualTo(expected);
+        expected++;
+      }
+    }
+    producer.join();
+    assertThat(ringBuffer.isEmpty()).isTrue();
+  }
+}
@@ -0,0 +1,254 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.remote.util.Utils.getFromFuture;
+import static org.junit.Assert.assertThrows;
+
+import build.bazel.remote.execution.v2.ActionResult;
+import build.bazel.remote.execution.v2.Digest;
+import build.bazel.remote.execution.v2.Directory;
+import build.bazel.remote.execution.v2.FileNode;
+import build.bazel.remote.execution.v2.OutputDirectory;
+import build.bazel.remote.execution.v2.OutputFile;
+import build.bazel.remote.execution.v2.RequestMetadata;
+import build.bazel.remote.execution.v2.Tree;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.common.RemoteActionExecutionContext;
+import com.google.devtools.build.lib.remote.common.RemoteCacheClient.ActionKey;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.InMemoryCacheClient;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ChunkingCacheClient}. */
+@RunWith(JUnit4.class)
+public class ChunkingCacheClientTest {
+
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  private final RemoteActionExecutionContext context =
+      RemoteActionExecutionContext.create(RequestMetadata.getDefaultInstance());
+  // Stands in for the remote cache server.
+  private InMemoryCacheClient server;
+  private ChunkingCacheClient client;
+
+  @Before
+  public void setUp() {
+    server = new InMemoryCacheClient();
+    client =
+        new ChunkingCacheClient(
+            server,
+            DIGEST_UTIL,
+            new ContentDefinedChunker(64, 256, 1024),
+            /* minBlobSize= */ 4096,
+            /* verifyDownloads= */ true);
+  }
+
+  @After
+  public void tearDown() {
+    client.close();
+  }
+
+  private static ByteString randomBlob(int size) {
+    byte[] data = new byte[size];
+    new Random(size).nextBytes(data);
+    return ByteString.copyFrom(data);
+  }
+
+  private ByteString download(Digest digest) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    getFromFuture(client.downloadBlob(context, digest, out));
+    return ByteString.copyFrom(out.toByteArray());
+  }
+
+  @Test
+  public void largeBlob_isStoredAsChunksAndReassembled() throws Exception {
+    ByteString blob = randomBlob(50_000);
+    Digest digest = DIGEST_UTIL.compute(blob.toByteArray());
+
+    getFromFuture(client.uploadBlob(context, digest, blob));
+
+    assertThat(getFromFuture(server.findMissingDigests(context, ImmutableList.of(digest))))
+        .containsExactly(digest);
+    ActionResult manifest =
+        getFromFuture(server.downloadActionResult(context, client.manifestKey(digest), false));
+    assertThat(manifest.getOutputFilesCount()).isGreaterThan(1);
+    assertThat(download(digest)).isEqualTo(blob);
+  }
+
+  @Test
+  public void smallBlob_isPassedThrough() throws Exception {
+    ByteString blob = randomBlob(100);
+    Digest digest = DIGEST_UTIL.compute(blob.toByteArray());
+
+    getFromFuture(client.uploadBlob(context, digest, blob));
+
+    assertThat(getFromFuture(server.findMissingDigests(context, ImmutableList.of(digest))))
+        .isEmpty();
+    assertThat(download(digest)).isEqualTo(blob);
+  }
+
+  @Test
+  public void editedBlob_onlyUploadsChangedChunks() throws Exception {
+    ByteString blob = randomBlob(50_000);
+    getFromFuture(client.uploadBlob(context, DIGEST_UTIL.compute(blob.toByteArray()), blob));
+    ByteString edited =
+        blob.substring(0, 20_000).concat(randomBlob(10)).concat(blob.substring(20_000));
+    Digest editedDigest = DIGEST_UTIL.compute(edited.toByteArray());
+
+    getFromFuture(client.uploadBlob(context, editedDigest, edited));
+
+    ActionResult before =
+        getFromFuture(
+            server.downloadActionResult(
+                context, client.manifestKey(DIGEST_UTIL.compute(blob.toByteArray())), false));
+    ActionResult after =
+        getFromFuture(server.downloadActionResult(context, client.manifestKey(editedDigest), false));
+    long shared =
+        after.getOutputFilesList().stream()
+            .filter(
+                file ->
+                    before.getOutputFilesList().stream()
+                        .anyMatch(old -> old.getDigest().equals(file.getDigest())))
+            .count();
+    assertThat(shared).isAtLeast(after.getOutputFilesCount() - 3);
+    assertThat(download(editedDigest)).isEqualTo(edited);
+  }
+
+  @Test
+  public void missingBlob_failsWithCacheNotFound() throws Exception {
+    Digest digest = DIGEST_UTIL.compute(randomBlob(50_000).toByteArray());
+
+    assertThrows(CacheNotFoundException.class, () -> download(digest));
+  }
+
+  @Test
+  public void uploadFile_readsFileOnce() throws Exception {
+    AtomicInteger opened = new AtomicInteger();
+    InMemoryFileSystem fs =
+        new InMemoryFileSystem(DigestHashFunction.SHA256) {
+          @Override
+          protected synchronized InputStream getInputStream(Path path) throws IOException {
+            opened.incrementAndGet();
+            return super.getInputStream(path);
+          }
+        };
+    ByteString blob = randomBlob(50_000);
+    Path file = fs.getPath("/file");
+    FileSystemUtils.writeContent(file, blob.toByteArray());
+    Digest digest = DIGEST_UTIL.compute(blob.toByteArray());
+
+    getFromFuture(client.uploadFile(context, digest, file));
+
+    assertThat(opened.get()).isEqualTo(1);
+    assertThat(download(digest)).isEqualTo(blob);
+  }
+
+  @Test
+  public void uploadBlob_notMatchingDigest_fails() throws Exception {
+    ByteString blob = randomBlob(50_000);
+    Digest digest = DIGEST_UTIL.compute(randomBlob(60_000).toByteArray());
+
+    assertThrows(IOException.class, () -> getFromFuture(client.uploadBlob(context, digest, blob)));
+    assertThrows(
+        CacheNotFoundException.class,
+        () ->
+            getFromFuture(
+                server.downloadActionResult(context, client.manifestKey(digest), false)));
+  }
+
+  @Test
+  public void actionResultReferencingChunkedBlob_isHiddenFromOtherClients() throws Exception {
+    ByteString blob = randomBlob(50_000);
+    Digest digest = DIGEST_UTIL.compute(blob.toByteArray());
+    getFromFuture(client.uploadBlob(context, digest, blob));
+    ActionKey actionKey = new ActionKey(DIGEST_UTIL.computeAsUtf8("action"));
+    ActionResult result =
+        ActionResult.newBuilder()
+            .addOutputFiles(OutputFile.newBuilder().setPath("out").setDigest(digest))
+            .build();
+
+    client.uploadActionResult(context, actionKey, result);
+
+    assertThrows(
+        CacheNotFoundException.class,
+        () -> getFromFuture(server.downloadActionResult(context, actionKey, false)));
+    assertThat(getFromFuture(client.downloadActionResult(context, actionKey, false)))
+        .isEqualTo(result);
+  }
+
+  @Test
+  public void actionResultReferencingChunkedBlobInTree_isHiddenFromOtherClients()
+      throws Exception {
+    Digest chunked = DIGEST_UTIL.compute(randomBlob(50_000).toByteArray());
+    Tree tree =
+        Tree.newBuilder()
+            .setRoot(Directory.getDefaultInstance())
+            .addChildren(
+                Directory.newBuilder()
+                    .addFiles(FileNode.newBuilder().setName("file").setDigest(chunked)))
+            .build();
+    Digest treeDigest = DIGEST_UTIL.compute(tree.toByteArray());
+    getFromFuture(client.uploadBlob(context, treeDigest, tree.toByteString()));
+    ActionKey actionKey = new ActionKey(DIGEST_UTIL.computeAsUtf8("action"));
+    ActionResult result =
+        ActionResult.newBuilder()
+            .addOutputDirectories(
+                OutputDirectory.newBuilder().setPath("dir").setTreeDigest(treeDigest))
+            .build();
+
+    client.uploadActionResult(context, actionKey, result);
+
+    assertThrows(
+        CacheNotFoundException.class,
+        () -> getFromFuture(server.downloadActionResult(context, actionKey, false)));
+    assertThat(getFromFuture(client.downloadActionResult(context, actionKey, false)))
+        .isEqualTo(result);
+  }
+
+  @Test
+  public void actionResultOfSmallBlobs_isStoredUnderActionKey() throws Exception {
+    ByteString blob = randomBlob(100);
+    Digest digest = DIGEST_UTIL.compute(blob.toByteArray());
+    getFromFuture(client.uploadBlob(context, digest, blob));
+    ActionKey actionKey = new ActionKey(DIGEST_UTIL.computeAsUtf8("action"));
+    ActionResult result =
+        ActionResult.newBuilder()
+            .addOutputFiles(OutputFile.newBuilder().setPath("out").setDigest(digest))
+            .build();
+
+    client.uploadActionResult(context, actionKey, result);
+
+    assertThat(getFromFuture(server.downloadActionResult(context, actionKey, false)))
+        .isEqualTo(result);
+    assertThat(getFromFuture(client.downloadActionResult(context, actionKey, false)))
+        .isEqualTo(result);
+  }
+}
@@ -0,0 +1,100 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.common.collect.Range;
+import com.google.common.primitives.Bytes;
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ContentDefinedChunker}. */
+@RunWith(JUnit4.class)
+public class ContentDefinedChunkerTest {
+
+  private final ContentDefinedChunker chunker = new ContentDefinedChunker(64, 256, 1024);
+
+  private List<ByteString> split(byte[] data) throws IOException {
+    List<ByteString> chunks = new ArrayList<>();
+    chunker.split(
+        new ByteArrayInputStream(data),
+        (buf, offset, length) -> chunks.add(ByteString.copyFrom(buf, offset, length)));
+    return chunks;
+  }
+
+  private static byte[] randomBytes(Random rand, int size) {
+    byte[] data = new byte[size];
+    rand.nextBytes(data);
+    return data;
+  }
+
+  @Test
+  public void split_chunksAddUpToInputAndRespectSizeBounds() throws Exception {
+    byte[] data = randomBytes(new Random(1), 100_000);
+
+    List<ByteString> chunks = split(data);
+
+    ByteArrayOutputStream joined = new ByteArrayOutputStream();
+    for (int i = 0; i < chunks.size(); i++) {
+      int size = chunks.get(i).size();
+      assertThat(size).isAtMost(1024);
+      if (i < chunks.size() - 1) {
+        assertThat(size).isAtLeast(64);
+      }
+      chunks.get(i).writeTo(joined);
+    }
+    assertThat(joined.toByteArray()).isEqualTo(data);
+    // The average is close to the target of 256.
+    assertThat(chunks.size()).isIn(Range.closed(200, 600));
+  }
+
+  @Test
+  public void split_emptyInputHasNoChunks() throws Exception {
+    assertThat(split(new byte[0])).isEmpty();
+  }
+
+  @Test
+  public void split_insertionOnlyChangesNearbyChunks() throws Exception {
+    Random rand = new Random(2);
+    byte[] data = randomBytes(rand, 100_000);
+    byte[] edited =
+        Bytes.concat(
+            Arrays.copyOfRange(data, 0, 50_000),
+            randomBytes(rand, 10),
+            Arrays.copyOfRange(data, 50_000, data.length));
+
+    List<ByteString> before = split(data);
+    List<ByteString> after = split(edited);
+
+    List<ByteString> changed = new ArrayList<>(after);
+    changed.removeAll(before);
+    assertThat(changed.size()).isAtMost(3);
+  }
+
+  @Test
+  public void constructor_rejectsAverageThatIsNotAPowerOfTwo() {
+    assertThrows(IllegalArgumentException.class, () -> new ContentDefinedChunker(64, 300, 1024));
+  }
+}
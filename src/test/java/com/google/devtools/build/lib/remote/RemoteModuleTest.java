@@ -41,6 +41,7 @@ import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.exec.BinTools;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.pkgcache.PackageOptions;
+import com.google.devtools.build.lib.remote.disk.DiskCacheGarbageCollector;
 import com.google.devtools.build.lib.remote.options.RemoteOptions;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
@@ -55,6 +56,7 @@ import com.google.devtools.build.lib.testutil.Scratch;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.vfs.DigestHashFunction;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.common.options.Options;
 import com.google.devtools.common.options.OptionsParser;
@@ -447,6 +449,25 @@ public final class RemoteModuleTest {
     }
   }
 
+  @Test
+  public void testDiskCacheGarbageCollector_shutDownWhenDiskCacheIsDropped() throws Exception {
+    RemoteModule remoteModule = new RemoteModule();
+    RemoteOptions remoteOptions = Options.getDefaults(RemoteOptions.class);
+    remoteOptions.diskCache = PathFragment.create("/disk_cache");
+    remoteOptions.diskCacheMaxSize = 1024;
+    remoteModule.beforeCommand(createTestCommandEnvironment(remoteOptions));
+    DiskCacheGarbageCollector collector = remoteModule.getDiskCacheGarbageCollector();
+    assertThat(collector).isNotNull();
+    remoteModule.afterCommand();
+
+    remoteModule.beforeCommand(
+        createTestCommandEnvironment(Options.getDefaults(RemoteOptions.class)));
+
+    assertThat(remoteModule.getDiskCacheGarbageCollector()).isNull();
+    assertThat(collector.isShutdown()).isTrue();
+    remoteModule.afterCommand();
+  }
+
   @Test
   public void testNetrc_emptyEnv_shouldIgnore() throws Exception {
     Map<String, String> clientEnv = ImmutableMap.of();
@@ -19,6 +19,7 @@ import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -85,6 +86,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
@@ -141,7 +143,7 @@ public class RemoteSpawnCacheTest {
 
         @Override
         public ArtifactExpander getArtifactExpander() {
-          throw new UnsupportedOperationException();
+          return SIMPLE_ARTIFACT_EXPANDER;
         }
 
         @Override
@@ -157,8 +159,13 @@ public class RemoteSpawnCacheTest {
         @Override
         public SortedMap<PathFragment, ActionInput> getInputMapping(PathFragment baseDirectory)
             throws IOException {
-          return new SpawnInputExpander(execRoot, /*strict*/ false)
-              .getInputMapping(simpleSpawn, SIMPLE_ARTIFACT_EXPANDER, baseDirectory, fakeFileCache);
+          return getSpawnInputExpander()
+              .getInputMapping(simpleSpawn, getArtifactExpander(), baseDirectory, fakeFileCache);
+        }
+
+        @Override
+        public SpawnInputExpander getSpawnInputExpander() {
+          return new SpawnInputExpander(execRoot, /*strict*/ false);
         }
 
         @Override
@@ -337,6 +344,26 @@ public class RemoteSpawnCacheTest {
         .containsExactly(Pair.of(ProgressStatus.CHECKING_CACHE, "remote-cache"));
   }
 
+  @Test
+  public void merkleTreeCache_computesSameActionKey() throws Exception {
+    RemoteOptions options = Options.getDefaults(RemoteOptions.class);
+    options.remoteMerkleTreeCache = true;
+    RemoteSpawnCache merkleTreeCachingCache = remoteSpawnCacheWithOptions(options);
+
+    cache.lookup(simpleSpawn, simplePolicy);
+    // Once when the merkle trees are built, and once when they are memoized.
+    merkleTreeCachingCache.lookup(simpleSpawn, simplePolicy);
+    merkleTreeCachingCache.lookup(simpleSpawn, simplePolicy);
+
+    ArgumentCaptor<ActionKey> actionKeys = ArgumentCaptor.forClass(ActionKey.class);
+    verify(remoteCache, times(3))
+        .downloadActionResult(
+            any(RemoteActionExecutionContext.class),
+            actionKeys.capture(),
+            /* inlineOutErr= */ eq(false));
+    assertThat(ImmutableSet.copyOf(actionKeys.getAllValues())).hasSize(1);
+  }
+
   @Test
   public void noCacheSpawns() throws Exception {
     // Checks that spawns satisfying Spawns.mayBeCached=false are not looked up in the cache
@@ -0,0 +1,224 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.disk;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheGarbageCollector}. */
+@RunWith(JUnit4.class)
+public class DiskCacheGarbageCollectorTest {
+
+  private final ManualClock clock = new ManualClock();
+  private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+  private Path root;
+
+  @Before
+  public void setUp() throws Exception {
+    clock.advanceMillis(1_000_000);
+    InMemoryFileSystem fs = new InMemoryFileSystem(clock, DigestHashFunction.SHA256);
+    root = fs.getPath("/disk_cache");
+    root.createDirectoryAndParents();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private DiskCacheGarbageCollector newCollector(long maxSizeBytes, Duration maxAge) {
+    return new DiskCacheGarbageCollector(root, maxSizeBytes, maxAge, clock, executor);
+  }
+
+  /** Waits for the background work submitted so far, but not for periodic collections. */
+  private void awaitIdle() throws Exception {
+    executor.submit(() -> {}).get();
+  }
+
+  private Path writeEntry(String cacheFolder, String key, int size) throws IOException {
+    Path path = root.getChild(cacheFolder).getChild(key.substring(0, 2)).getChild(key);
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContent(path, new byte[size]);
+    clock.advanceMillis(1000);
+    return path;
+  }
+
+  @Test
+  public void scan_indexesExistingEntries() throws Exception {
+    writeEntry("cas", "aaaa", 10);
+    writeEntry("cas", "abcd", 20);
+    writeEntry("ac", "bbbb", 30);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 1000, Duration.ZERO);
+
+    gc.scan();
+
+    assertThat(gc.getTotalSizeBytes()).isEqualTo(60);
+  }
+
+  @Test
+  public void start_evictsLeastRecentlyUsedEntriesOverBudget() throws Exception {
+    Path oldest = writeEntry("cas", "aaaa", 40);
+    Path middle = writeEntry("cas", "bbbb", 40);
+    Path newest = writeEntry("ac", "cccc", 40);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ZERO);
+
+    gc.start();
+    awaitIdle();
+
+    assertThat(oldest.exists()).isFalse();
+    assertThat(middle.exists()).isTrue();
+    assertThat(newest.exists()).isTrue();
+    assertThat(gc.getTotalSizeBytes()).isEqualTo(80);
+  }
+
+  @Test
+  public void recordAccess_keepsEntryAlive() throws Exception {
+    Path oldest = writeEntry("cas", "aaaa", 40);
+    Path middle = writeEntry("cas", "bbbb", 40);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ZERO);
+    gc.start();
+    awaitIdle();
+
+    gc.recordAccess(oldest);
+    Path newest = writeEntry("cas", "cccc", 40);
+    gc.recordWrite(newest, 40);
+    awaitIdle();
+
+    assertThat(oldest.exists()).isTrue();
+    assertThat(middle.exists()).isFalse();
+    assertThat(newest.exists()).isTrue();
+  }
+
+  @Test
+  public void collect_skipsEntriesTouchedBySharingServer() throws Exception {
+    Path oldest = writeEntry("cas", "aaaa", 40);
+    Path middle = writeEntry("cas", "bbbb", 40);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ZERO);
+    gc.start();
+    awaitIdle();
+
+    // Another server reads the oldest entry, which bumps its modification time.
+    oldest.setLastModifiedTime(clock.currentTimeMillis());
+    Path newest = writeEntry("cas", "cccc", 40);
+    gc.recordWrite(newest, 40);
+    awaitIdle();
+
+    assertThat(oldest.exists()).isTrue();
+    assertThat(middle.exists()).isFalse();
+    assertThat(newest.exists()).isTrue();
+  }
+
+  @Test
+  public void collect_evictsEntriesOlderThanMaxAge() throws Exception {
+    Path old = writeEntry("cas", "aaaa", 10);
+    clock.advanceMillis(Duration.ofDays(2).toMillis());
+    Path recent = writeEntry("cas", "bbbb", 10);
+    DiskCacheGarbageCollector gc =
+        newCollector(/* maxSizeBytes= */ 0, /* maxAge= */ Duration.ofDays(1));
+
+    gc.start();
+    awaitIdle();
+
+    assertThat(old.exists()).isFalse();
+    assertThat(recent.exists()).isTrue();
+    assertThat(gc.getTotalSizeBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void recordWrite_beforeScanDoesNotCollect() throws Exception {
+    Path entry = writeEntry("cas", "aaaa", 200);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ZERO);
+
+    gc.recordWrite(entry, 200);
+    awaitIdle();
+
+    assertThat(entry.exists()).isTrue();
+  }
+
+  @Test
+  public void start_twice_scansOnlyOnce() throws Exception {
+    writeEntry("cas", "aaaa", 10);
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 1000, Duration.ZERO);
+    gc.start();
+    awaitIdle();
+
+    // Written by another server, so only a new scan would find it.
+    writeEntry("cas", "bbbb", 20);
+    gc.start();
+    awaitIdle();
+
+    assertThat(gc.getTotalSizeBytes()).isEqualTo(10);
+  }
+
+  @Test
+  public void start_maxAge_schedulesPeriodicCollection() throws Exception {
+    DiskCacheGarbageCollector gc =
+        newCollector(/* maxSizeBytes= */ 0, /* maxAge= */ Duration.ofDays(1));
+    gc.start();
+    awaitIdle();
+
+    assertThat(executor.getQueue()).hasSize(1);
+
+    // Without further writes, only the periodic collection evicts an entry that becomes too old.
+    Path entry = writeEntry("cas", "aaaa", 10);
+    gc.recordWrite(entry, 10);
+    clock.advanceMillis(Duration.ofDays(2).toMillis());
+    gc.collect();
+
+    assertThat(entry.exists()).isFalse();
+    assertThat(gc.getTotalSizeBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void start_maxSizeOnly_doesNotScheduleCollection() throws Exception {
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ZERO);
+    gc.start();
+    awaitIdle();
+
+    assertThat(executor.getQueue()).isEmpty();
+  }
+
+  @Test
+  public void getCollectionInterval_isPacedByMaxAge() {
+    assertThat(newCollector(0, Duration.ofMinutes(30)).getCollectionInterval())
+        .isEqualTo(Duration.ofMinutes(3));
+    assertThat(newCollector(0, Duration.ofMinutes(5)).getCollectionInterval())
+        .isEqualTo(Duration.ofMinutes(1));
+    assertThat(newCollector(0, Duration.ofDays(7)).getCollectionInterval())
+        .isEqualTo(Duration.ofHours(1));
+  }
+
+  @Test
+  public void hasBudget() {
+    DiskCacheGarbageCollector gc = newCollector(/* maxSizeBytes= */ 100, Duration.ofDays(1));
+
+    assertThat(gc.hasBudget(root, 100, Duration.ofDays(1))).isTrue();
+    assertThat(gc.hasBudget(root, 200, Duration.ofDays(1))).isFalse();
+    assertThat(gc.hasBudget(root, 100, Duration.ofDays(2))).isFalse();
+    assertThat(gc.hasBudget(root.getChild("other"), 100, Duration.ofDays(1))).isFalse();
+  }
+}
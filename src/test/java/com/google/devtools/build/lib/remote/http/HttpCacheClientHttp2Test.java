@@ -0,0 +1,220 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.http;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.remote.util.Utils.getFromFuture;
+import static org.junit.Assert.assertThrows;
+
+import build.bazel.remote.execution.v2.Digest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.devtools.build.lib.remote.common.CacheNotFoundException;
+import com.google.devtools.build.lib.remote.common.RemoteActionExecutionContext;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.TracingMetadataUtils;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.remote.worker.http.HttpCacheServerHandler;
+import com.google.protobuf.ByteString;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link HttpCacheClient} talking HTTP/2 with prior knowledge to a local server. */
+@RunWith(JUnit4.class)
+public class HttpCacheClientHttp2Test {
+
+  private static final DigestUtil DIGEST_UTIL = new DigestUtil(DigestHashFunction.SHA256);
+
+  /** Fewer than the number of concurrent requests in the tests, so that streams have to wait. */
+  private static final int MAX_CONCURRENT_STREAMS = 4;
+
+  private final ConcurrentHashMap<String, byte[]> cacheContents = new ConcurrentHashMap<>();
+  private final AtomicInteger connections = new AtomicInteger();
+  private final AtomicInteger streams = new AtomicInteger();
+
+  private RemoteActionExecutionContext context;
+  private EventLoopGroup serverEventLoop;
+  private ServerChannel server;
+  private HttpCacheClient client;
+
+  @Before
+  public void setUp() throws Exception {
+    context =
+        RemoteActionExecutionContext.create(
+            TracingMetadataUtils.buildMetadata(
+                "none", "none", Digest.getDefaultInstance().getHash()));
+    HttpCacheServerHandler handler = new HttpCacheServerHandler(cacheContents);
+    serverEventLoop = new NioEventLoopGroup(1);
+    server =
+        (ServerChannel)
+            new ServerBootstrap()
+                .group(serverEventLoop)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(
+                    new ChannelInitializer<Channel>() {
+                      @Override
+                      protected void initChannel(Channel ch) {
+                        connections.incrementAndGet();
+                        ch.pipeline()
+                            .addLast(
+                                Http2FrameCodecBuilder.forServer()
+                                    .initialSettings(
+                                        Http2Settings.defaultSettings()
+                                            .maxConcurrentStreams(MAX_CONCURRENT_STREAMS))
+                                    .build());
+                        ch.pipeline()
+                            .addLast(
+                                new Http2MultiplexHandler(
+                                    new ChannelInitializer<Channel>() {
+                                      @Override
+                                      protected void initChannel(Channel stream) {
+                                        streams.incrementAndGet();
+                                        stream
+                                            .pipeline()
+                                            .addLast(
+                                                new Http2StreamFrameToHttpObjectCodec(
+                                                    /* isServer= */ true),
+                                                new HttpObjectAggregator(1024 * 1024),
+                                                handler);
+                                      }
+                                    }));
+                      }
+                    })
+                .bind(new InetSocketAddress("localhost", 0))
+                .sync()
+                .channel();
+    int port = ((InetSocketAddress) server.localAddress()).getPort();
+    client =
+        HttpCacheClient.create(
+            new URI("http://localhost:" + port),
+            /* timeoutSeconds= */ 10,
+            /* remoteMaxConnections= */ 0,
+            /* useHttp2= */ true,
+            /* verifyDownloads= */ true,
+            ImmutableList.of(),
+            DIGEST_UTIL,
+            /* creds= */ null);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.close().sync();
+    serverEventLoop.shutdownGracefully().sync();
+  }
+
+  @Test
+  public void uploadAndDownload() throws Exception {
+    ByteString data = ByteString.copyFrom("foo bar", StandardCharsets.UTF_8);
+    Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+
+    getFromFuture(client.uploadBlob(context, digest, data));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    getFromFuture(client.downloadBlob(context, digest, out));
+
+    assertThat(cacheContents.get("/cas/" + digest.getHash())).isEqualTo(data.toByteArray());
+    assertThat(out.toByteArray()).isEqualTo(data.toByteArray());
+  }
+
+  @Test
+  public void downloadLargeBlob() throws Exception {
+    // Larger than the default flow control window of a stream and of a connection.
+    byte[] data = new byte[3 * 1024 * 1024 + 17];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i * 31);
+    }
+    Digest digest = DIGEST_UTIL.compute(data);
+    cacheContents.put("/cas/" + digest.getHash(), data);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    getFromFuture(client.downloadBlob(context, digest, out));
+
+    assertThat(out.toByteArray()).isEqualTo(data);
+  }
+
+  @Test
+  public void cacheMiss() throws Exception {
+    Digest digest = DIGEST_UTIL.computeAsUtf8("missing");
+
+    assertThrows(
+        CacheNotFoundException.class,
+        () -> getFromFuture(client.downloadBlob(context, digest, new ByteArrayOutputStream())));
+  }
+
+  @Test
+  public void multiplexesConcurrentRequests() throws Exception {
+    List<ListenableFuture<Void>> uploads = new ArrayList<>();
+    List<Digest> digests = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      ByteString data = ByteString.copyFromUtf8("blob " + i);
+      Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+      digests.add(digest);
+      uploads.add(client.uploadBlob(context, digest, data));
+    }
+    getFromFuture(Futures.allAsList(uploads));
+
+    List<ListenableFuture<Void>> downloads = new ArrayList<>();
+    List<ByteArrayOutputStream> outs = new ArrayList<>();
+    for (Digest digest : digests) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      outs.add(out);
+      downloads.add(client.downloadBlob(context, digest, out));
+    }
+    getFromFuture(Futures.allAsList(downloads));
+
+    assertThat(cacheContents).hasSize(100);
+    for (int i = 0; i < 100; i++) {
+      assertThat(outs.get(i).toString("UTF-8")).isEqualTo("blob " + i);
+    }
+    assertThat(streams.get()).isEqualTo(200);
+    assertThat(connections.get()).isAtMost(2);
+  }
+
+  @Test
+  public void uploadAtMostOnce() throws Exception {
+    ByteString data = ByteString.copyFrom("foo bar", StandardCharsets.UTF_8);
+    Digest digest = DIGEST_UTIL.compute(data.toByteArray());
+
+    getFromFuture(client.uploadBlob(context, digest, data));
+    cacheContents.clear();
+    getFromFuture(client.uploadBlob(context, digest, data));
+
+    assertThat(cacheContents).isEmpty();
+    assertThat(streams.get()).isEqualTo(1);
+  }
+}
@@ -268,6 +268,7 @@ public class HttpCacheClientTest {
           uri,
           timeoutSeconds,
           /* remoteMaxConnections= */ 0,
+          /* useHttp2= */ false,
           remoteVerifyDownloads,
           ImmutableList.of(),
           DIGEST_UTIL,
@@ -279,6 +280,7 @@ public class HttpCacheClientTest {
           uri,
           timeoutSeconds,
           /* remoteMaxConnections= */ 0,
+          /* useHttp2= */ false,
           remoteVerifyDownloads,
           ImmutableList.of(),
           DIGEST_UTIL,
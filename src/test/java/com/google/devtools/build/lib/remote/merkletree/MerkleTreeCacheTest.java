@@ -0,0 +1,254 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote.merkletree;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Artifact.ArtifactExpander;
+import com.google.devtools.build.lib.actions.Artifact.SpecialArtifact;
+import com.google.devtools.build.lib.actions.Artifact.SpecialArtifactType;
+import com.google.devtools.build.lib.actions.Artifact.TreeFileArtifact;
+import com.google.devtools.build.lib.actions.ArtifactRoot;
+import com.google.devtools.build.lib.actions.ArtifactRoot.RootType;
+import com.google.devtools.build.lib.actions.FileArtifactValue;
+import com.google.devtools.build.lib.actions.FilesetOutputSymlink;
+import com.google.devtools.build.lib.actions.MetadataProvider;
+import com.google.devtools.build.lib.actions.RunfilesSupplier;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.clock.JavaClock;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.exec.SpawnRunner.SpawnExecutionContext;
+import com.google.devtools.build.lib.exec.util.SpawnBuilder;
+import com.google.devtools.build.lib.remote.util.DigestUtil;
+import com.google.devtools.build.lib.remote.util.FakeSpawnExecutionContext;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MerkleTreeCache}. */
+@RunWith(JUnit4.class)
+public class MerkleTreeCacheTest {
+
+  private FileSystem fs;
+  private Path execRoot;
+  private PathFragment baseDirectory;
+  private ArtifactRoot sourceRoot;
+  private ArtifactRoot outputRoot;
+  private DigestUtil digestUtil;
+
+  private final Map<Artifact, ImmutableList<TreeFileArtifact>> treeArtifacts = new HashMap<>();
+  private final Map<Artifact, ImmutableList<FilesetOutputSymlink>> filesets = new HashMap<>();
+  private final List<ActionInput> metadataRequests = new ArrayList<>();
+
+  private final ArtifactExpander artifactExpander =
+      new ArtifactExpander() {
+        @Override
+        public void expand(Artifact artifact, Collection<? super Artifact> output) {
+          output.addAll(treeArtifacts.getOrDefault(artifact, ImmutableList.of()));
+        }
+
+        @Override
+        public ImmutableList<FilesetOutputSymlink> getFileset(Artifact artifact) {
+          return filesets.get(artifact);
+        }
+      };
+
+  private final MetadataProvider metadataProvider =
+      new MetadataProvider() {
+        @Override
+        public FileArtifactValue getMetadata(ActionInput input) throws IOException {
+          metadataRequests.add(input);
+          return FileArtifactValue.createForTesting(ActionInputHelper.toInputPath(input, execRoot));
+        }
+
+        @Override
+        public ActionInput getInput(String execPath) {
+          throw new UnsupportedOperationException();
+        }
+      };
+
+  @Before
+  public void setup() {
+    fs = new InMemoryFileSystem(new JavaClock(), DigestHashFunction.SHA256);
+    execRoot = fs.getPath("/exec/root");
+    baseDirectory = PathFragment.create(execRoot.getBaseName());
+    sourceRoot = ArtifactRoot.asSourceRoot(Root.fromPath(execRoot));
+    outputRoot = ArtifactRoot.asDerivedRoot(execRoot, RootType.Output, "out");
+    digestUtil = new DigestUtil(fs.getDigestFunction());
+  }
+
+  @Test
+  public void buildInputMerkleTree_sameAsBuildingFromInputMapping() throws Exception {
+    NestedSet<ActionInput> shared =
+        NestedSetBuilder.<ActionInput>stableOrder()
+            .add(sourceFile("lib/lib.h", "lib"))
+            .add(treeArtifact("gen_headers", "a.h", "b.h"))
+            .build();
+    NestedSet<ActionInput> inputs =
+        NestedSetBuilder.<ActionInput>stableOrder()
+            .add(sourceFile("main.cc", "main"))
+            .addTransitive(shared)
+            .addTransitive(
+                NestedSetBuilder.<ActionInput>stableOrder()
+                    .add(sourceFile("lib/other.h", "other"))
+                    .addTransitive(shared)
+                    .build())
+            .build();
+    RunfilesSupplier runfiles = mock(RunfilesSupplier.class);
+    when(runfiles.getMappings())
+        .thenReturn(
+            ImmutableMap.of(
+                PathFragment.create("out/tool.runfiles"),
+                ImmutableMap.of(
+                    PathFragment.create("workspace/data.txt"),
+                    sourceFile("data.txt", "data"),
+                    PathFragment.create("workspace/gen"),
+                    treeArtifact("runfiles_tree", "c.txt"),
+                    PathFragment.create("workspace/fs"),
+                    fileset("runfiles_fileset", "d.txt"))));
+    SpecialArtifact fileset = fileset("fileset", "e.txt", "sub/f.txt");
+    Spawn spawn =
+        new SpawnBuilder("/bin/echo", "Hello")
+            .withInputs(inputs)
+            .withRunfilesSupplier(runfiles)
+            .withFilesetMapping(fileset, filesets.get(fileset))
+            .build();
+
+    assertSameAsBuildingFromInputMapping(spawn);
+  }
+
+  @Test
+  public void buildInputMerkleTree_reusesMerkleTreesOfSharedNestedSets() throws Exception {
+    Artifact sharedHeader = sourceFile("lib/lib.h", "lib");
+    NestedSet<ActionInput> shared =
+        NestedSetBuilder.<ActionInput>stableOrder()
+            .add(sharedHeader)
+            .add(treeArtifact("gen_headers", "a.h", "b.h"))
+            .build();
+    Spawn first =
+        new SpawnBuilder("/bin/echo", "first")
+            .withInputs(shared)
+            .withInput(sourceFile("first.cc", "first"))
+            .build();
+    Spawn second =
+        new SpawnBuilder("/bin/echo", "second")
+            .withInputs(shared)
+            .withInput(sourceFile("second.cc", "second"))
+            .build();
+    MerkleTreeCache cache = new MerkleTreeCache(/* maximumSize= */ 1000, execRoot, digestUtil);
+    cache.buildInputMerkleTree(first, newContext(first), baseDirectory);
+    metadataRequests.clear();
+
+    MerkleTree merkleTree = cache.buildInputMerkleTree(second, newContext(second), baseDirectory);
+
+    assertThat(metadataRequests).doesNotContain(sharedHeader);
+    assertThat(merkleTree.getRootDigest()).isEqualTo(buildFromInputMapping(second).getRootDigest());
+  }
+
+  private void assertSameAsBuildingFromInputMapping(Spawn spawn) throws IOException {
+    MerkleTree expected = buildFromInputMapping(spawn);
+    MerkleTreeCache cache = new MerkleTreeCache(/* maximumSize= */ 1000, execRoot, digestUtil);
+
+    // Once when the cache is empty, and once when the merkle trees are memoized.
+    for (int i = 0; i < 2; i++) {
+      MerkleTree merkleTree = cache.buildInputMerkleTree(spawn, newContext(spawn), baseDirectory);
+
+      assertThat(merkleTree.getRootDigest()).isEqualTo(expected.getRootDigest());
+      assertThat(merkleTree.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+      assertThat(merkleTree.getInputFiles()).isEqualTo(expected.getInputFiles());
+      assertThat(merkleTree.getInputBytes()).isEqualTo(expected.getInputBytes());
+    }
+  }
+
+  private MerkleTree buildFromInputMapping(Spawn spawn) throws IOException {
+    return MerkleTree.build(
+        newContext(spawn).getInputMapping(baseDirectory), metadataProvider, execRoot, digestUtil);
+  }
+
+  private SpawnExecutionContext newContext(Spawn spawn) {
+    return new FakeSpawnExecutionContext(spawn, metadataProvider, execRoot, /* outErr= */ null) {
+      @Override
+      public ArtifactExpander getArtifactExpander() {
+        return artifactExpander;
+      }
+    };
+  }
+
+  private Artifact sourceFile(String path, String content) throws IOException {
+    writeFile(execRoot.getRelative(path), content);
+    return ActionsTestUtil.createArtifact(sourceRoot, path);
+  }
+
+  private SpecialArtifact treeArtifact(String path, String... children) throws IOException {
+    SpecialArtifact treeArtifact =
+        ActionsTestUtil.createTreeArtifactWithGeneratingAction(
+            outputRoot, outputRoot.getExecPath().getRelative(path));
+    ImmutableList.Builder<TreeFileArtifact> treeFiles = ImmutableList.builder();
+    for (String child : children) {
+      TreeFileArtifact treeFile = TreeFileArtifact.createTreeOutput(treeArtifact, child);
+      writeFile(treeFile.getPath(), child);
+      treeFiles.add(treeFile);
+    }
+    treeArtifacts.put(treeArtifact, treeFiles.build());
+    return treeArtifact;
+  }
+
+  private SpecialArtifact fileset(String path, String... links) throws IOException {
+    SpecialArtifact fileset =
+        new SpecialArtifact(
+            outputRoot,
+            outputRoot.getExecPath().getRelative(path),
+            ActionsTestUtil.NULL_ARTIFACT_OWNER,
+            SpecialArtifactType.FILESET);
+    ImmutableList.Builder<FilesetOutputSymlink> symlinks = ImmutableList.builder();
+    for (String link : links) {
+      // Fileset symlinks point outside of the exec root.
+      Path target = fs.getPath("/fileset_targets").getRelative(path).getRelative(link);
+      writeFile(target, link);
+      symlinks.add(
+          FilesetOutputSymlink.createForTesting(
+              PathFragment.create(link), target.asFragment(), execRoot.asFragment()));
+    }
+    filesets.put(fileset, symlinks.build());
+    return fileset;
+  }
+
+  private static void writeFile(Path path, String content) throws IOException {
+    path.getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeContentAsLatin1(path, content);
+  }
+}
@@ -20,6 +20,7 @@ import build.bazel.remote.execution.v2.Directory;
 import build.bazel.remote.execution.v2.DirectoryNode;
 import build.bazel.remote.execution.v2.FileNode;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.Artifact;
@@ -138,6 +139,54 @@ public class MerkleTreeTest {
     assertThat(allDigests).asList().containsAtLeastElementsIn(inputDigests);
   }
 
+  @Test
+  public void mergeMerkleTrees_sameAsBuildingFromUnion() throws IOException {
+    SortedMap<PathFragment, ActionInput> allInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> firstInputs = new TreeMap<>();
+    SortedMap<PathFragment, ActionInput> secondInputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+
+    addFile("srcs/foo.cc", "foo", firstInputs, metadata);
+    addFile("srcs/fizz/buzz.cc", "buzz", firstInputs, metadata);
+    addFile("srcs/bar.cc", "bar", secondInputs, metadata);
+    addFile("srcs/fizz/fizzbuzz.cc", "fizzbuzz", secondInputs, metadata);
+    addFile("srcs/other/baz.cc", "baz", secondInputs, metadata);
+    // Overlapping inputs are allowed.
+    addFile("srcs/foo.cc", "foo", secondInputs, metadata);
+    allInputs.putAll(firstInputs);
+    allInputs.putAll(secondInputs);
+    StaticMetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+
+    MerkleTree expected = MerkleTree.build(allInputs, metadataProvider, execRoot, digestUtil);
+    MerkleTree merged =
+        MerkleTree.merge(
+            ImmutableList.of(
+                MerkleTree.build(firstInputs, metadataProvider, execRoot, digestUtil),
+                MerkleTree.build(secondInputs, metadataProvider, execRoot, digestUtil)),
+            digestUtil);
+
+    assertThat(merged.getRootDigest()).isEqualTo(expected.getRootDigest());
+    assertThat(merged.getAllDigests()).containsExactlyElementsIn(expected.getAllDigests());
+    assertThat(merged.getInputFiles()).isEqualTo(expected.getInputFiles());
+    assertThat(merged.getInputBytes()).isEqualTo(expected.getInputBytes());
+  }
+
+  @Test
+  public void mergeMerkleTrees_ignoresEmptyTrees() throws IOException {
+    SortedMap<PathFragment, ActionInput> inputs = new TreeMap<>();
+    Map<ActionInput, FileArtifactValue> metadata = new HashMap<>();
+    addFile("srcs/foo.cc", "foo", inputs, metadata);
+    StaticMetadataProvider metadataProvider = new StaticMetadataProvider(metadata);
+    MerkleTree tree = MerkleTree.build(inputs, metadataProvider, execRoot, digestUtil);
+    MerkleTree empty =
+        MerkleTree.build(Collections.emptySortedMap(), metadataProvider, execRoot, digestUtil);
+
+    assertThat(MerkleTree.merge(ImmutableList.of(empty, tree, empty), digestUtil))
+        .isSameInstanceAs(tree);
+    assertThat(MerkleTree.merge(ImmutableList.of(empty, empty), digestUtil).getRootDigest())
+        .isEqualTo(empty.getRootDigest());
+  }
+
   private Artifact addFile(
       String path,
       String content,
@@ -98,7 +98,7 @@ public class FakeSpawnExecutionContext implements SpawnExecutionContext {
 
   @Override
   public ArtifactExpander getArtifactExpander() {
-    throw new UnsupportedOperationException();
+    return this::artifactExpander;
   }
 
   @Override
@@ -114,8 +114,13 @@ public class FakeSpawnExecutionContext implements SpawnExecutionContext {
   @Override
   public SortedMap<PathFragment, ActionInput> getInputMapping(PathFragment baseDirectory)
       throws IOException {
-    return new SpawnInputExpander(execRoot, /*strict*/ false)
-        .getInputMapping(spawn, this::artifactExpander, baseDirectory, metadataProvider);
+    return getSpawnInputExpander()
+        .getInputMapping(spawn, getArtifactExpander(), baseDirectory, metadataProvider);
+  }
+
+  @Override
+  public SpawnInputExpander getSpawnInputExpander() {
+    return new SpawnInputExpander(execRoot, /*strict*/ false);
   }
 
   @Override
@@ -37,6 +37,7 @@ import org.junit.runners.JUnit4;
 /** Tests for {@link SymlinkedSandboxedSpawn}. */
 @RunWith(JUnit4.class)
 public class SymlinkedSandboxedSpawnTest {
+  private Path testRoot;
   private Path workspaceDir;
   private Path sandboxDir;
   private Path execRoot;
@@ -45,7 +46,7 @@ public class SymlinkedSandboxedSpawnTest {
   @Before
   public final void setupTestDirs() throws IOException {
     FileSystem fileSystem = new InMemoryFileSystem(DigestHashFunction.SHA256);
-    Path testRoot = fileSystem.getPath(TestUtils.tmpDir());
+    testRoot = fileSystem.getPath(TestUtils.tmpDir());
     testRoot.createDirectoryAndParents();
 
     workspaceDir = testRoot.getRelative("workspace");
@@ -114,4 +115,69 @@ public class SymlinkedSandboxedSpawnTest {
 
     assertThat(outputsDir.getRelative("very/output.txt").isFile(Symlinks.NOFOLLOW)).isTrue();
   }
+
+  @Test
+  public void reuseStashedSandbox() throws Exception {
+    Path helloTxt = workspaceDir.getRelative("hello.txt");
+    FileSystemUtils.createEmptyFile(helloTxt);
+    Path worldTxt = workspaceDir.getRelative("world.txt");
+    FileSystemUtils.createEmptyFile(worldTxt);
+    SandboxStash stash = new SandboxStash(testRoot.getRelative("stash"));
+
+    Path firstExecRoot = sandboxDir.getRelative("1/execroot/main");
+    firstExecRoot.createDirectoryAndParents();
+    SymlinkedSandboxedSpawn first =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir.getRelative("1"),
+            firstExecRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("same/input.txt"), helloTxt,
+                    PathFragment.create("changed/input.txt"), helloTxt),
+                ImmutableSet.of(),
+                ImmutableMap.of()),
+            SandboxOutputs.create(
+                ImmutableSet.of(PathFragment.create("very/output.txt")), ImmutableSet.of()),
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            stash,
+            "Mnemonic");
+    first.createFileSystem();
+    FileSystemUtils.createEmptyFile(firstExecRoot.getRelative("very/output.txt"));
+    first.delete();
+
+    assertThat(sandboxDir.getRelative("1").exists()).isFalse();
+
+    Path secondExecRoot = sandboxDir.getRelative("2/execroot/main");
+    secondExecRoot.createDirectoryAndParents();
+    SymlinkedSandboxedSpawn second =
+        new SymlinkedSandboxedSpawn(
+            sandboxDir.getRelative("2"),
+            secondExecRoot,
+            ImmutableList.of("/bin/true"),
+            ImmutableMap.of(),
+            new SandboxInputs(
+                ImmutableMap.of(
+                    PathFragment.create("same/input.txt"), helloTxt,
+                    PathFragment.create("changed/input.txt"), worldTxt),
+                ImmutableSet.of(),
+                ImmutableMap.of()),
+            SandboxOutputs.create(ImmutableSet.of(), ImmutableSet.of()),
+            ImmutableSet.of(),
+            new SynchronousTreeDeleter(),
+            /* statisticsPath= */ null,
+            stash,
+            "Mnemonic");
+    second.createFileSystem();
+
+    assertThat(testRoot.getRelative("stash/Mnemonic").getDirectoryEntries()).isEmpty();
+    assertThat(secondExecRoot.getRelative("same/input.txt").readSymbolicLink())
+        .isEqualTo(helloTxt.asFragment());
+    assertThat(secondExecRoot.getRelative("changed/input.txt").readSymbolicLink())
+        .isEqualTo(worldTxt.asFragment());
+    assertThat(secondExecRoot.getRelative("very").exists()).isFalse();
+  }
 }
@@ -0,0 +1,90 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.shell;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JavaSubprocessFactory}. */
+@RunWith(JUnit4.class)
+public class JavaSubprocessFactoryTest {
+
+  /** A process that doesn't implement {@code Process#pid()}, like those of some platforms. */
+  private static class ProcessWithoutPid extends Process {
+    @Override
+    public OutputStream getOutputStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream getInputStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int waitFor() {
+      return 0;
+    }
+
+    @Override
+    public int exitValue() {
+      return 0;
+    }
+
+    @Override
+    public void destroy() {}
+  }
+
+  @Test
+  public void getProcessId_noPidMethod_returnsMinusOne() {
+    assertThat(JavaSubprocessFactory.getProcessId(new ProcessWithoutPid(), null)).isEqualTo(-1);
+  }
+
+  @Test
+  public void getProcessId_pidNotSupported_returnsMinusOne() {
+    Method pidMethod = JavaSubprocessFactory.getProcessPidMethod();
+    // Process#pid() only exists from JDK 9 on.
+    assumeNotNull(pidMethod);
+
+    assertThat(JavaSubprocessFactory.getProcessId(new ProcessWithoutPid(), pidMethod))
+        .isEqualTo(-1);
+  }
+
+  @Test
+  public void getProcessId_startedProcess() throws Exception {
+    assumeNotNull(JavaSubprocessFactory.getProcessPidMethod());
+    Subprocess process =
+        JavaSubprocessFactory.INSTANCE.create(
+            new SubprocessBuilder().setArgv(ImmutableList.of("/bin/sh", "-c", "exit 0")));
+    try {
+      assertThat(process.getProcessId()).isGreaterThan(0L);
+    } finally {
+      process.waitFor();
+      process.close();
+    }
+  }
+}
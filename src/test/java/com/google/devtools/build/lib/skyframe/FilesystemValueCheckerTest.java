@@ -869,6 +869,29 @@ public final class FilesystemValueCheckerTest extends FilesystemValueCheckerTest
 
   @Test
   public void testRemoteAndLocalArtifacts() throws Exception {
+    checkRemoteAndLocalArtifacts(null);
+  }
+
+  @Test
+  public void testRemoteAndLocalArtifactsBatchStat() throws Exception {
+    checkRemoteAndLocalArtifacts(
+        new BatchStat() {
+          @Override
+          public List<FileStatusWithDigest> batchStat(
+              boolean useDigest, boolean includeLinks, Iterable<PathFragment> paths)
+              throws IOException {
+            List<FileStatusWithDigest> stats = new ArrayList<>();
+            for (PathFragment pathFrag : paths) {
+              stats.add(
+                  FileStatusWithDigestAdapter.adapt(
+                      fs.getPath("/").getRelative(pathFrag).statIfFound(Symlinks.NOFOLLOW)));
+            }
+            return stats;
+          }
+        });
+  }
+
+  private void checkRemoteAndLocalArtifacts(BatchStat batchStatter) throws Exception {
     // Test that injected remote artifacts are trusted by the FileSystemValueChecker
     // if it is configured to trust remote artifacts, and that local files always take precedence
     // over remote files.
@@ -900,7 +923,7 @@ public final class FilesystemValueCheckerTest extends FilesystemValueCheckerTest
                     /* tsgm= */ null, /* lastExecutionTimeRange= */ null, FSVC_THREADS_FOR_TEST)
                 .getDirtyActionValues(
                     evaluator.getValues(),
-                    /* batchStatter= */ null,
+                    batchStatter,
                     ModifiedFileSet.EVERYTHING_MODIFIED,
                     /* trustRemoteArtifacts= */ true))
         .isEmpty();
@@ -913,7 +936,7 @@ public final class FilesystemValueCheckerTest extends FilesystemValueCheckerTest
                     /* tsgm= */ null, /* lastExecutionTimeRange= */ null, FSVC_THREADS_FOR_TEST)
                 .getDirtyActionValues(
                     evaluator.getValues(),
-                    /* batchStatter= */ null,
+                    batchStatter,
                     ModifiedFileSet.EVERYTHING_MODIFIED,
                     /* trustRemoteArtifacts= */ true))
         .containsExactly(actionKey1);
@@ -0,0 +1,139 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.FileStateValue;
+import com.google.devtools.build.lib.actions.FileValue;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.BuildFileName;
+import com.google.devtools.build.lib.skyframe.serialization.ObjectCodecs;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Root;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.GraphSnapshot;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GraphSnapshotFile}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotFileTest {
+  private static final String INSTALL_MD5 = "0123456789abcdef";
+
+  private final FileSystem fileSystem = new InMemoryFileSystem(DigestHashFunction.SHA256);
+  private final Root workspaceRoot = Root.fromPath(fileSystem.getPath("/workspace"));
+  private final Path snapshotPath = fileSystem.getPath("/output_base/skyframe_snapshot");
+
+  /** Codecs as a server over the same file system and workspace creates them. */
+  private ObjectCodecs newCodecs() {
+    return GraphSnapshotFile.createCodecs(fileSystem, workspaceRoot, ImmutableMap.of());
+  }
+
+  /** Returns nodes for the file states, files and the package lookup of a BUILD file. */
+  private List<GraphSnapshot.Node> buildFileNodes(Root root, String pkg) throws Exception {
+    RootedPath buildFile = RootedPath.toRootedPath(root, PathFragment.create(pkg + "/BUILD"));
+    buildFile.asPath().getParentDirectory().createDirectoryAndParents();
+    FileSystemUtils.writeIsoLatin1(buildFile.asPath(), "cc_library(name = 'lib')");
+    FileStateValue state = FileStateValue.create(buildFile, /* tsgm= */ null);
+    FileValue file =
+        FileValue.value(
+            ImmutableList.of(buildFile),
+            /* pathToUnboundedAncestorSymlinkExpansionChain= */ null,
+            /* unboundedAncestorSymlinkExpansionChain= */ null,
+            buildFile,
+            state,
+            buildFile,
+            state);
+    List<GraphSnapshot.Node> nodes = new ArrayList<>();
+    nodes.add(new GraphSnapshot.Node(FileStateValue.key(buildFile), state, ImmutableList.of()));
+    nodes.add(
+        new GraphSnapshot.Node(
+            FileValue.key(buildFile),
+            file,
+            ImmutableList.of(ImmutableList.of(FileStateValue.key(buildFile)))));
+    nodes.add(
+        new GraphSnapshot.Node(
+            PackageLookupValue.key(PackageIdentifier.createInMainRepo(pkg)),
+            PackageLookupValue.success(root, BuildFileName.BUILD),
+            ImmutableList.of(ImmutableList.of(FileValue.key(buildFile)))));
+    return nodes;
+  }
+
+  private static void assertSameNodes(
+      List<GraphSnapshot.Node> actual, List<GraphSnapshot.Node> expected) {
+    assertThat(actual).hasSize(expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertThat(actual.get(i).getKey()).isEqualTo(expected.get(i).getKey());
+      assertThat(actual.get(i).getValue()).isEqualTo(expected.get(i).getValue());
+      assertThat(actual.get(i).getDepGroups()).isEqualTo(expected.get(i).getDepGroups());
+    }
+  }
+
+  @Test
+  public void roundTrip_fileAndPackageKeys() throws Exception {
+    List<GraphSnapshot.Node> nodes = new ArrayList<>();
+    nodes.addAll(buildFileNodes(workspaceRoot, "pkg"));
+    // A root other than the workspace is written in full rather than as a single bit.
+    nodes.addAll(buildFileNodes(Root.fromPath(fileSystem.getPath("/external")), "ext"));
+    snapshotPath.getParentDirectory().createDirectoryAndParents();
+
+    int written = GraphSnapshotFile.write(snapshotPath, INSTALL_MD5, nodes, newCodecs());
+
+    assertThat(written).isEqualTo(nodes.size());
+    assertSameNodes(GraphSnapshotFile.read(snapshotPath, INSTALL_MD5, newCodecs()), nodes);
+  }
+
+  @Test
+  public void write_leavesOutUnserializableNodesAndTheirRdeps() throws Exception {
+    List<GraphSnapshot.Node> nodes = new ArrayList<>(buildFileNodes(workspaceRoot, "pkg"));
+    SkyKey unserializable = () -> SkyFunctionName.createHermetic("UNSERIALIZABLE");
+    nodes.add(0, new GraphSnapshot.Node(unserializable, new SkyValue() {}, ImmutableList.of()));
+    SkyKey rdep = PackageLookupValue.key(PackageIdentifier.createInMainRepo("rdep"));
+    nodes.add(
+        new GraphSnapshot.Node(
+            rdep,
+            PackageLookupValue.success(workspaceRoot, BuildFileName.BUILD),
+            ImmutableList.of(ImmutableList.of(unserializable))));
+    snapshotPath.getParentDirectory().createDirectoryAndParents();
+
+    int written = GraphSnapshotFile.write(snapshotPath, INSTALL_MD5, nodes, newCodecs());
+
+    assertThat(written).isEqualTo(3);
+    assertSameNodes(
+        GraphSnapshotFile.read(snapshotPath, INSTALL_MD5, newCodecs()), nodes.subList(1, 4));
+  }
+
+  @Test
+  public void read_otherInstallation_returnsNull() throws Exception {
+    snapshotPath.getParentDirectory().createDirectoryAndParents();
+    GraphSnapshotFile.write(
+        snapshotPath, INSTALL_MD5, buildFileNodes(workspaceRoot, "pkg"), newCodecs());
+
+    assertThat(GraphSnapshotFile.read(snapshotPath, "fedcba9876543210", newCodecs())).isNull();
+  }
+}
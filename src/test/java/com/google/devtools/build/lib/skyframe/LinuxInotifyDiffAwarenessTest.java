@@ -0,0 +1,192 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeFalse;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import com.google.devtools.build.lib.skyframe.DiffAwareness.View;
+import com.google.devtools.build.lib.testing.common.FakeOptions;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.OptionsProvider;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LinuxInotifyDiffAwareness} */
+@RunWith(JUnit4.class)
+public class LinuxInotifyDiffAwarenessTest {
+
+  private LinuxInotifyDiffAwareness underTest;
+  private Path watchedPath;
+  private OptionsProvider watchFsEnabledProvider;
+
+  @Before
+  public void setUp() throws Exception {
+    watchedPath = com.google.common.io.Files.createTempDir().getCanonicalFile().toPath();
+    underTest = new LinuxInotifyDiffAwareness(watchedPath.toString());
+    LocalDiffAwareness.Options localDiffOptions = new LocalDiffAwareness.Options();
+    localDiffOptions.watchFS = true;
+    watchFsEnabledProvider = FakeOptions.of(localDiffOptions);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    underTest.close();
+    MoreFiles.deleteRecursively(watchedPath, RecursiveDeleteOption.ALLOW_INSECURE);
+  }
+
+  private void scratchFile(String path, String contents) throws IOException {
+    Path p = watchedPath.resolve(path);
+    Files.createDirectories(p.getParent());
+    Files.write(p, contents.getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Checks that the union of the diffs between the view and the following views is the given set
+   * of files, waiting for the events to be drained.
+   *
+   * @return the last view
+   */
+  private View assertDiff(View view1, String... rawPaths) throws Exception {
+    ImmutableSet.Builder<PathFragment> expected = ImmutableSet.builder();
+    for (String path : rawPaths) {
+      expected.add(PathFragment.create(path));
+    }
+    Set<PathFragment> pathsYetToBeSeen = new HashSet<>(expected.build());
+    Set<PathFragment> seen = new HashSet<>();
+    for (int attempts = 0; ; attempts++) {
+      View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+      ModifiedFileSet diff = underTest.getDiff(view1, view2);
+      assumeFalse("Lost events; diff unknown", diff.equals(ModifiedFileSet.EVERYTHING_MODIFIED));
+      seen.addAll(diff.modifiedSourceFiles());
+      pathsYetToBeSeen.removeAll(diff.modifiedSourceFiles());
+      if (pathsYetToBeSeen.isEmpty()) {
+        assertThat(seen).containsExactlyElementsIn(expected.build());
+        return view2;
+      }
+      if (attempts == 100) {
+        throw new AssertionError("Paths " + pathsYetToBeSeen + " not found as modified");
+      }
+      Thread.sleep(50);
+      view1 = view2;
+    }
+  }
+
+  @Test
+  public void testModifiedFiles() throws Exception {
+    scratchFile("a/b/c", "first");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    scratchFile("a/b/c", "second");
+    scratchFile("a/d", "");
+    assertDiff(view1, "a/b/c", "a/d");
+  }
+
+  @Test
+  public void testNewDirectoryIsRescanned() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    scratchFile("a/b/c/d", "");
+    View view2 = assertDiff(view1, "a", "a/b", "a/b/c", "a/b/c/d");
+
+    // The new directories are watched too.
+    scratchFile("a/b/c/d", "changed");
+    assertDiff(view2, "a/b/c/d");
+  }
+
+  @Test
+  public void testDirectoryMovedIn() throws Exception {
+    Path outside = com.google.common.io.Files.createTempDir().toPath();
+    try {
+      Files.createDirectories(outside.resolve("dir/sub"));
+      Files.write(outside.resolve("dir/sub/file"), new byte[0]);
+      View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+      Files.move(outside.resolve("dir"), watchedPath.resolve("dir"));
+      assertDiff(view1, "dir", "dir/sub", "dir/sub/file");
+    } finally {
+      MoreFiles.deleteRecursively(outside, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @Test
+  public void testDirectoryMovedOutModifiesEverythingOnce() throws Exception {
+    scratchFile("dir/file", "");
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+    Files.move(watchedPath.resolve("dir"), watchedPath.resolve("renamed"));
+    View view2 = view1;
+    for (int attempts = 0; attempts < 100; attempts++) {
+      Thread.sleep(50);
+      view2 = underTest.getCurrentView(watchFsEnabledProvider);
+      if (underTest.getDiff(view1, view2).equals(ModifiedFileSet.EVERYTHING_MODIFIED)) {
+        break;
+      }
+      view1 = view2;
+    }
+    assertThat(underTest.getDiff(view1, view2)).isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+
+    // The next diff is precise again.
+    scratchFile("renamed/file", "changed");
+    assertDiff(view2, "renamed/file");
+  }
+
+  @Test
+  public void testDirectoryMovedOutIsNoLongerWatched() throws Exception {
+    Path outside = com.google.common.io.Files.createTempDir().toPath();
+    try {
+      scratchFile("dir/file", "");
+      View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+
+      Files.move(watchedPath.resolve("dir"), outside.resolve("dir"));
+      View view2 = view1;
+      for (int attempts = 0; attempts < 100; attempts++) {
+        Thread.sleep(50);
+        view2 = underTest.getCurrentView(watchFsEnabledProvider);
+        if (underTest.getDiff(view1, view2).equals(ModifiedFileSet.EVERYTHING_MODIFIED)) {
+          break;
+        }
+        view1 = view2;
+      }
+      assertThat(underTest.getDiff(view1, view2)).isEqualTo(ModifiedFileSet.EVERYTHING_MODIFIED);
+
+      // Changes outside of the tree are not reported under the old path of the directory.
+      Files.write(outside.resolve("dir/file"), "changed".getBytes(Charsets.UTF_8));
+      scratchFile("marker", "");
+      assertDiff(view2, "marker");
+    } finally {
+      MoreFiles.deleteRecursively(outside, RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+  }
+
+  @Test
+  public void testNoChanges() throws Exception {
+    View view1 = underTest.getCurrentView(watchFsEnabledProvider);
+    View view2 = underTest.getCurrentView(watchFsEnabledProvider);
+    assertThat(underTest.getDiff(view1, view2).modifiedSourceFiles()).isEqualTo(ImmutableSet.of());
+  }
+}
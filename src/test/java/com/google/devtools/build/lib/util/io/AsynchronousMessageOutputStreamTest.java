@@ -0,0 +1,157 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertThrows;
+
+import com.google.devtools.build.lib.runtime.commands.proto.BazelFlagsProto.FlagInfo;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests {@link AsynchronousMessageOutputStream}. */
+@RunWith(JUnit4.class)
+public class AsynchronousMessageOutputStreamTest {
+  private final FileSystem fileSystem = new InMemoryFileSystem(DigestHashFunction.SHA256);
+
+  private static FlagInfo message(String name) {
+    return FlagInfo.newBuilder().setName(name).build();
+  }
+
+  private static List<String> readNames(InputStream in) throws IOException {
+    List<String> names = new ArrayList<>();
+    FlagInfo message;
+    while ((message = FlagInfo.parseDelimitedFrom(in)) != null) {
+      names.add(message.getName());
+    }
+    return names;
+  }
+
+  @Test
+  public void testWritesInOrder() throws Exception {
+    Path logPath = fileSystem.getPath("/log");
+    AsynchronousMessageOutputStream out =
+        AsynchronousMessageOutputStream.create(logPath, /* compress= */ false);
+    for (int i = 0; i < 100; i++) {
+      out.write(message("flag" + i));
+    }
+    out.close();
+
+    List<String> names = readNames(logPath.getInputStream());
+    assertThat(names).hasSize(100);
+    for (int i = 0; i < 100; i++) {
+      assertThat(names.get(i)).isEqualTo("flag" + i);
+    }
+  }
+
+  @Test
+  public void testCompresses() throws Exception {
+    Path logPath = fileSystem.getPath("/log.gz");
+    AsynchronousMessageOutputStream out =
+        AsynchronousMessageOutputStream.create(logPath, /* compress= */ true);
+    out.write(message("a"));
+    out.write(message("b"));
+    out.close();
+
+    assertThat(readNames(new GZIPInputStream(logPath.getInputStream())))
+        .containsExactly("a", "b")
+        .inOrder();
+  }
+
+  @Test
+  public void testConcurrentWritesThroughSmallQueue() throws Exception {
+    Path logPath = fileSystem.getPath("/log");
+    AsynchronousMessageOutputStream out =
+        new AsynchronousMessageOutputStream("log", logPath.getOutputStream(), /* capacity= */ 2);
+    Thread[] writers = new Thread[10];
+    CountDownLatch start = new CountDownLatch(writers.length);
+    for (int i = 0; i < writers.length; i++) {
+      String prefix = "thread" + i + "_";
+      writers[i] =
+          new Thread(
+              () -> {
+                start.countDown();
+                try {
+                  start.await();
+                } catch (InterruptedException e) {
+                  return;
+                }
+                for (int j = 0; j < 100; j++) {
+                  out.write(message(prefix + j));
+                }
+              });
+      writers[i].start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    out.close();
+
+    List<String> names = readNames(logPath.getInputStream());
+    assertThat(names).hasSize(1000);
+    for (int i = 0; i < writers.length; i++) {
+      String prefix = "thread" + i + "_";
+      int previous = -1;
+      for (String name : names) {
+        if (name.startsWith(prefix)) {
+          int index = Integer.parseInt(name.substring(prefix.length()));
+          assertThat(index).isEqualTo(previous + 1);
+          previous = index;
+        }
+      }
+      assertThat(previous).isEqualTo(99);
+    }
+  }
+
+  @Test
+  public void testFailureIsThrownOnClose() throws Exception {
+    OutputStream failing =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            throw new IOException("disk full");
+          }
+        };
+    AsynchronousMessageOutputStream out =
+        new AsynchronousMessageOutputStream("failing", failing, /* capacity= */ 1);
+    for (int i = 0; i < 100_000; i++) {
+      // Far more than the buffer holds, so that a write reaches the failing stream.
+      out.write(message("flag" + i));
+    }
+
+    IOException e = assertThrows(IOException.class, out::close);
+    assertThat(e).hasMessageThat().isEqualTo("disk full");
+  }
+
+  @Test
+  public void testWriteAfterCloseFails() throws Exception {
+    AsynchronousMessageOutputStream out =
+        AsynchronousMessageOutputStream.create(fileSystem.getPath("/log"), /* compress= */ false);
+    out.close();
+
+    assertThrows(IllegalStateException.class, () -> out.write(message("late")));
+  }
+}
@@ -0,0 +1,153 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.vfs;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.devtools.build.lib.vfs.DigestHashFunction.DigestFunctionConverter;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the BLAKE3 {@link DigestHashFunction}. */
+@RunWith(JUnit4.class)
+public class Blake3Test {
+  /**
+   * Hashes of the official BLAKE3 test inputs of the given lengths, which repeat the bytes 0 to
+   * 250.
+   */
+  private static final ImmutableMap<Integer, String> TEST_VECTORS =
+      ImmutableMap.<Integer, String>builder()
+          .put(0, "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262")
+          .put(1, "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213")
+          .put(1023, "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11")
+          .put(1024, "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7")
+          .put(1025, "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444")
+          .put(2048, "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a")
+          .put(2049, "5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030")
+          .put(3072, "b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2")
+          .put(3073, "7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3")
+          .put(4096, "015094013f57a5277b59d8475c0501042c0b642e531b0a1c8f58d2163229e969")
+          .put(4097, "9b4052b38f1c5fc8b1f9ff7ac7b27cd242487b3d890d15c96a1c25b8aa0fb995")
+          .put(8192, "aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63")
+          .put(8193, "bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b")
+          .put(31744, "62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47")
+          .put(102400, "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085")
+          .build();
+
+  private static byte[] testInput(int length) {
+    byte[] input = new byte[length];
+    for (int i = 0; i < length; i++) {
+      input[i] = (byte) (i % 251);
+    }
+    return input;
+  }
+
+  @Test
+  public void hashFunctionMatchesTestVectors() {
+    HashFunction hashFunction = DigestHashFunction.BLAKE3.getHashFunction();
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      assertThat(hashFunction.hashBytes(testInput(vector.getKey())).toString())
+          .isEqualTo(vector.getValue());
+    }
+  }
+
+  @Test
+  public void messageDigestMatchesTestVectorsWhenUpdatedInPieces() throws Exception {
+    MessageDigest digest = DigestHashFunction.BLAKE3.cloneOrCreateMessageDigest();
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      byte[] input = testInput(vector.getKey());
+      for (int offset = 0; offset < input.length; offset += 100) {
+        digest.update(input, offset, Math.min(100, input.length - offset));
+      }
+      MessageDigest clone = (MessageDigest) digest.clone();
+      assertThat(HashCode.fromBytes(digest.digest()).toString()).isEqualTo(vector.getValue());
+      assertThat(HashCode.fromBytes(clone.digest()).toString()).isEqualTo(vector.getValue());
+    }
+  }
+
+  @Test
+  public void fileDigesterMatchesTestVectors() throws Exception {
+    for (Map.Entry<Integer, String> vector : TEST_VECTORS.entrySet()) {
+      byte[] input = testInput(vector.getKey());
+      assertThat(HashCode.fromBytes(Blake3FileDigester.digest(new ByteArrayInputStream(input))))
+          .isEqualTo(HashCode.fromString(vector.getValue()));
+    }
+  }
+
+  @Test
+  public void fileDigesterHashesSegmentsOfLargeFiles() throws Exception {
+    int segment = Blake3FileDigester.SEGMENT_SIZE;
+    assertThat(HashCode.fromBytes(Blake3FileDigester.digest(largeInput(2 * segment + 1))))
+        .isEqualTo(
+            HashCode.fromString(
+                "52dc212cb4cc61cb94d25bd7b1d47b256e4c3a6d68956df50c235c37a2aeacd7"));
+
+    HashFunction hashFunction = DigestHashFunction.BLAKE3.getHashFunction();
+    for (int length :
+        new int[] {segment - 1, segment, segment + 1, 2 * segment, 3 * segment, 7 * segment + 5}) {
+      assertThat(HashCode.fromBytes(Blake3FileDigester.digest(largeInput(length))))
+          .isEqualTo(hashFunction.hashBytes(testInput(length)));
+    }
+  }
+
+  @Test
+  public void fileDigesterStreamsFilesOfExpectedSize() throws Exception {
+    HashFunction hashFunction = DigestHashFunction.BLAKE3.getHashFunction();
+    int segment = Blake3FileDigester.SEGMENT_SIZE;
+    int buffer = Blake3FileDigester.STREAM_BUFFER_SIZE;
+    for (int length : new int[] {0, 1, buffer - 1, buffer, buffer + 1, segment, 2 * segment + 1}) {
+      assertThat(HashCode.fromBytes(Blake3FileDigester.digest(largeInput(length), length)))
+          .isEqualTo(hashFunction.hashBytes(testInput(length)));
+    }
+  }
+
+  @Test
+  public void fileDigesterIgnoresStaleExpectedSize() throws Exception {
+    HashFunction hashFunction = DigestHashFunction.BLAKE3.getHashFunction();
+    int segment = Blake3FileDigester.SEGMENT_SIZE;
+    // The file grew or shrank after it was stat'ed.
+    assertThat(HashCode.fromBytes(Blake3FileDigester.digest(largeInput(3 * segment), 10)))
+        .isEqualTo(hashFunction.hashBytes(testInput(3 * segment)));
+    assertThat(HashCode.fromBytes(Blake3FileDigester.digest(largeInput(10), 3L * segment)))
+        .isEqualTo(hashFunction.hashBytes(testInput(10)));
+  }
+
+  private static ByteArrayInputStream largeInput(int length) {
+    return new ByteArrayInputStream(testInput(length));
+  }
+
+  @Test
+  public void fileSystemDigestsFilesWithBlake3() throws Exception {
+    FileSystem fs = new InMemoryFileSystem(DigestHashFunction.BLAKE3);
+    Path file = fs.getPath("/file");
+    FileSystemUtils.writeContent(file, testInput(1025));
+
+    assertThat(HashCode.fromBytes(file.getDigest()))
+        .isEqualTo(HashCode.fromString(TEST_VECTORS.get(1025)));
+  }
+
+  @Test
+  public void converterFindsBlake3() throws Exception {
+    assertThat(new DigestFunctionConverter().convert("blake3"))
+        .isSameInstanceAs(DigestHashFunction.BLAKE3);
+  }
+}
@@ -36,6 +36,7 @@ import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileAlreadyExistsException;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
@@ -353,6 +354,24 @@ public abstract class FileSystemTest {
     assertThat(someFile.statIfFound()).isNotNull();
   }
 
+  @Test
+  public void testStatIfFoundBatch() throws Exception {
+    Path someFile = absolutize("some-file");
+    FileSystemUtils.createEmptyFile(someFile);
+    Path someDirectory = absolutize("some-directory");
+    someDirectory.createDirectory();
+    Path missing = absolutize("missing");
+
+    List<com.google.devtools.build.lib.vfs.FileStatus> stats =
+        testFS.statIfFoundBatch(
+            ImmutableList.of(someFile, missing, someDirectory), /*followSymlinks=*/ false);
+
+    assertThat(stats).hasSize(3);
+    assertThat(stats.get(0).isFile()).isTrue();
+    assertThat(stats.get(1)).isNull();
+    assertThat(stats.get(2).isDirectory()).isTrue();
+  }
+
   @Test
   public void testFileIsFile() throws Exception {
     Path someFile = absolutize("some-file");
@@ -0,0 +1,281 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.worker;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.worker.TestUtils.createWorkerKey;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import com.google.common.io.Files;
+import com.google.devtools.build.lib.clock.BlazeClock;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.vfs.DigestHashFunction;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mock;
+import org.mockito.junit.MockitoJUnit;
+import org.mockito.junit.MockitoRule;
+
+/** Tests for {@link AdaptiveWorkerPoolPolicy}. */
+@RunWith(JUnit4.class)
+public class AdaptiveWorkerPoolPolicyTest {
+  @Rule public final MockitoRule mockito = MockitoJUnit.rule();
+  @Rule public final TemporaryFolder tmp = new TemporaryFolder();
+  @Mock WorkerFactory factoryMock;
+
+  private final ManualClock clock = new ManualClock();
+  /** The resident set sizes of the fake worker processes by process id, in kilobytes. */
+  private final Map<Long, Long> residentSetKb = new HashMap<>();
+
+  private FileSystem fileSystem;
+  private WorkerKey workerKey;
+  private SimpleWorkerPool pool;
+  private int workerIds = 1;
+
+  /** A worker whose process id is its worker id. */
+  private static class TestWorker extends SingleplexWorker {
+    TestWorker(WorkerKey workerKey, int workerId, Path workDir, Path logFile) {
+      super(workerKey, workerId, workDir, logFile);
+    }
+
+    @Override
+    long getProcessId() {
+      return getWorkerId();
+    }
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    fileSystem = new InMemoryFileSystem(BlazeClock.instance(), DigestHashFunction.SHA256);
+    workerKey = createWorkerKey(fileSystem, "mnem", false);
+    doAnswer(
+            arg ->
+                new DefaultPooledObject<>(
+                    new TestWorker(
+                        arg.getArgument(0),
+                        workerIds++,
+                        fileSystem.getPath("/workDir"),
+                        fileSystem.getPath("/logDir"))))
+        .when(factoryMock)
+        .makeObject(any());
+    when(factoryMock.validateObject(any(), any())).thenReturn(true);
+    WorkerPoolConfig config = new WorkerPoolConfig();
+    config.setMaxTotalPerKey(4);
+    config.setMaxIdlePerKey(4);
+    config.setTestOnBorrow(true);
+    pool = new SimpleWorkerPool(factoryMock, config);
+  }
+
+  @After
+  public void closePool() {
+    pool.close();
+  }
+
+  private AdaptiveWorkerPoolPolicy createPolicy(int memoryBudgetMb) {
+    AdaptiveWorkerPoolPolicy policy =
+        new AdaptiveWorkerPoolPolicy(
+            memoryBudgetMb, clock, pid -> residentSetKb.getOrDefault(pid, -1L));
+    policy.manage(pool);
+    // The tests call the eviction policy themselves.
+    pool.setTimeBetweenEvictionRunsMillis(-1);
+    return policy;
+  }
+
+  private Worker borrow(AdaptiveWorkerPoolPolicy policy, long workerResidentSetKb)
+      throws Exception {
+    Worker worker = pool.borrowObject(workerKey, AdaptiveWorkerPoolPolicy.BORROW_WAIT_STEP);
+    assertThat(worker).isNotNull();
+    policy.borrowed(pool, worker);
+    residentSetKb.put(worker.getProcessId(), workerResidentSetKb);
+    return worker;
+  }
+
+  /** Lets the next call into the policy sample the memory use of the workers again. */
+  private void advanceToNextSample() {
+    clock.advanceMillis(
+        TimeUnit.NANOSECONDS.toMillis(AdaptiveWorkerPoolPolicy.SAMPLE_INTERVAL_NANOS));
+  }
+
+  @Test
+  public void manage_startsWithOneWorkerPerKey() {
+    createPolicy(/* memoryBudgetMb= */ 0);
+
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(1);
+    assertThat(pool.getMaxIdlePerKey()).isEqualTo(1);
+    assertThat(pool.getMinIdlePerKey()).isEqualTo(0);
+  }
+
+  @Test
+  public void grow_stopsAtMaxInstances() {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 0);
+
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    assertThat(policy.grow(pool, "mnem")).isFalse();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(4);
+  }
+
+  @Test
+  public void grow_overMemoryBudget_doesNotGrow() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 1);
+    Worker worker = borrow(policy, 600);
+
+    // Another worker like this one would use 1200 KB.
+    assertThat(policy.grow(pool, "mnem")).isFalse();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(1);
+
+    residentSetKb.put(worker.getProcessId(), 400L);
+    advanceToNextSample();
+
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(2);
+  }
+
+  @Test
+  public void grow_ignoresWorkersWhoseProcessIsGone() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 1);
+    Worker worker = borrow(policy, 2000);
+    residentSetKb.remove(worker.getProcessId());
+
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+  }
+
+  @Test
+  public void shouldDestroyOnReturn_overMemoryBudget_shrinksPool() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 1);
+    Worker worker1 = borrow(policy, 400);
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    Worker worker2 = borrow(policy, 400);
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker2)).isFalse();
+
+    residentSetKb.put(worker1.getProcessId(), 600L);
+    residentSetKb.put(worker2.getProcessId(), 600L);
+    advanceToNextSample();
+
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker2)).isTrue();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(1);
+    pool.invalidateObject(workerKey, worker2);
+    // The destroyed worker no longer counts against the budget.
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker1)).isFalse();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDestroyOnReturn_overMemoryBudget_keepsOneWorkerPerKey() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 1);
+    Worker worker = borrow(policy, 2000);
+    advanceToNextSample();
+
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker)).isFalse();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(1);
+  }
+
+  @Test
+  public void shouldDestroyOnReturn_poolWasShrunk() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 0);
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    Worker worker1 = borrow(policy, 100);
+    Worker worker2 = borrow(policy, 100);
+    pool.setMaxTotalPerKey(1);
+
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker1)).isTrue();
+    pool.invalidateObject(workerKey, worker1);
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker2)).isFalse();
+  }
+
+  @Test
+  public void evict_bloatedWorker() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 0);
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    assertThat(policy.grow(pool, "mnem")).isTrue();
+    Worker worker1 = borrow(policy, 100);
+    Worker worker2 = borrow(policy, 100);
+    Worker bloated = borrow(policy, 500);
+    advanceToNextSample();
+
+    // More than twice the 100 KB used by each of the other workers.
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, bloated)).isTrue();
+    pool.invalidateObject(workerKey, bloated);
+    assertThat(policy.shouldDestroyOnReturn(pool, workerKey, worker1)).isFalse();
+    pool.returnObject(workerKey, worker1);
+    pool.returnObject(workerKey, worker2);
+
+    residentSetKb.put(worker2.getProcessId(), 250L);
+    advanceToNextSample();
+
+    assertThat(policy.evict(null, new DefaultPooledObject<>(worker1), 2)).isFalse();
+    assertThat(policy.evict(null, new DefaultPooledObject<>(worker2), 2)).isTrue();
+    // Workers are only compared to the workers that are still tracked.
+    assertThat(policy.evict(null, new DefaultPooledObject<>(worker1), 1)).isFalse();
+    assertThat(pool.getMaxTotalPerKey()).isEqualTo(3);
+  }
+
+  @Test
+  public void evict_untrackedWorker_keepsWorker() throws Exception {
+    AdaptiveWorkerPoolPolicy policy = createPolicy(/* memoryBudgetMb= */ 0);
+    Worker worker = pool.borrowObject(workerKey);
+
+    assertThat(policy.evict(null, new DefaultPooledObject<>(worker), 1)).isFalse();
+  }
+
+  @Test
+  public void readResidentSetKb_parsesVmRss() throws Exception {
+    File status = tmp.newFile();
+    Files.asCharSink(status, US_ASCII)
+        .write("Name:\tjava\nVmPeak:\t  999999 kB\nVmRSS:\t   12345 kB\nThreads:\t12\n");
+
+    assertThat(AdaptiveWorkerPoolPolicy.readResidentSetKb(status)).isEqualTo(12345);
+  }
+
+  @Test
+  public void readResidentSetKb_noVmRss_returnsZero() throws Exception {
+    // Like the status of a zombie process.
+    File status = tmp.newFile();
+    Files.asCharSink(status, US_ASCII).write("Name:\tjava\nState:\tZ (zombie)\n");
+
+    assertThat(AdaptiveWorkerPoolPolicy.readResidentSetKb(status)).isEqualTo(0);
+  }
+
+  @Test
+  public void readResidentSetKb_malformed_returnsMinusOne() throws Exception {
+    File status = tmp.newFile();
+    Files.asCharSink(status, US_ASCII).write("VmRSS:\tlots kB\n");
+
+    assertThat(AdaptiveWorkerPoolPolicy.readResidentSetKb(status)).isEqualTo(-1);
+  }
+
+  @Test
+  public void readResidentSetKb_missingFile_returnsMinusOne() {
+    File status = new File(tmp.getRoot(), "gone/status");
+
+    assertThat(AdaptiveWorkerPoolPolicy.readResidentSetKb(status)).isEqualTo(-1);
+  }
+}
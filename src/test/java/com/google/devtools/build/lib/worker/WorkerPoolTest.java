@@ -145,6 +145,26 @@ public class WorkerPoolTest {
     verify(factoryMock, times(1)).makeObject(workerKey2);
   }
 
+  @Test
+  public void testBorrow_adaptivePoolGrowsWhenExhausted() throws Exception {
+    WorkerPool workerPool =
+        new WorkerPool(
+            factoryMock,
+            ImmutableMap.of("mnem", 2, "", 1),
+            ImmutableMap.of(),
+            Lists.newArrayList(),
+            new AdaptiveWorkerPoolPolicy(/* memoryBudgetMb= */ 0));
+    WorkerKey workerKey = createWorkerKey(fileSystem, "mnem", false);
+    Worker worker1 = workerPool.borrowObject(workerKey);
+    // The pool starts with one worker, and only grows after waiting for it.
+    Worker worker2 = workerPool.borrowObject(workerKey);
+    assertThat(worker1.getWorkerId()).isEqualTo(1);
+    assertThat(worker2.getWorkerId()).isEqualTo(2);
+    workerPool.returnObject(workerKey, worker2);
+    assertThat(workerPool.borrowObject(workerKey)).isSameInstanceAs(worker2);
+    verify(factoryMock, times(2)).makeObject(workerKey);
+  }
+
   @Test
   public void testBorrow_separateMultiplexWorkers() throws Exception {
     WorkerPool workerPool =
@@ -112,6 +112,20 @@ public final class WorkerTest {
     assertThat(readResponse).isEqualTo(response);
   }
 
+  @Test
+  public void testGetResponse_consecutiveResponses() throws IOException, InterruptedException {
+    WorkResponse response1 = WorkResponse.newBuilder().setRequestId(1).setOutput("one").build();
+    WorkResponse response2 = WorkResponse.newBuilder().setRequestId(2).setOutput("two").build();
+    ByteArrayOutputStream responses = new ByteArrayOutputStream();
+    response1.writeDelimitedTo(responses);
+    response2.writeDelimitedTo(responses);
+
+    TestWorker testWorker = createTestWorker(responses.toByteArray(), PROTO);
+
+    assertThat(testWorker.getResponse(1)).isEqualTo(response1);
+    assertThat(testWorker.getResponse(2)).isEqualTo(response2);
+  }
+
   @Test
   public void testPutRequest_json_success() throws IOException, InterruptedException {
     TestWorker testWorker = createTestWorker(new byte[0], JSON);
@@ -0,0 +1,134 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link GraphSnapshot}. */
+@RunWith(JUnit4.class)
+public class GraphSnapshotTest {
+
+  private final GraphTester tester = new GraphTester();
+  private final SkyKey top = skyKey("top");
+  private final SkyKey mid = skyKey("mid");
+  private final SkyKey leaf = skyKey("leaf");
+
+  private InMemoryMemoizingEvaluator evaluator;
+  private RecordingDifferencer differencer;
+  private BuildDriver driver;
+
+  private void newEvaluator() {
+    differencer = new SequencedRecordingDifferencer();
+    evaluator = new InMemoryMemoizingEvaluator(tester.getSkyFunctionMap(), differencer);
+    driver = new SequentialBuildDriver(evaluator);
+  }
+
+  private EvaluationResult<StringValue> eval(SkyKey... keys) throws InterruptedException {
+    EvaluationContext evaluationContext =
+        EvaluationContext.newBuilder()
+            .setKeepGoing(true)
+            .setNumThreads(2)
+            .setEventHandler(NullEventHandler.INSTANCE)
+            .build();
+    return driver.evaluate(ImmutableList.copyOf(keys), evaluationContext);
+  }
+
+  /** Builds top -> mid -> leaf, and returns a snapshot of it. */
+  private ImmutableList<GraphSnapshot.Node> buildChainAndTakeSnapshot() throws Exception {
+    tester.getOrCreate(leaf).setConstantValue(new StringValue("leaf"));
+    tester.getOrCreate(mid).addDependency(leaf).setComputedValue(CONCATENATE);
+    tester.getOrCreate(top).addDependency(mid).setComputedValue(CONCATENATE);
+    newEvaluator();
+    assertThat(eval(top).get(top).getValue()).isEqualTo("leaf");
+    return evaluator.takeSnapshot(key -> true);
+  }
+
+  @Test
+  public void take_depsComeBeforeRdeps() throws Exception {
+    ImmutableList<GraphSnapshot.Node> nodes = buildChainAndTakeSnapshot();
+
+    assertThat(nodes).hasSize(3);
+    assertThat(nodes.get(0).getKey()).isEqualTo(leaf);
+    assertThat(nodes.get(1).getKey()).isEqualTo(mid);
+    assertThat(nodes.get(1).getDepGroups()).containsExactly(ImmutableList.of(leaf));
+    assertThat(nodes.get(2).getKey()).isEqualTo(top);
+  }
+
+  @Test
+  public void take_leavesOutExcludedNodesAndTheirRdeps() throws Exception {
+    SkyKey other = skyKey("other");
+    tester.getOrCreate(other).setConstantValue(new StringValue("other"));
+    buildChainAndTakeSnapshot();
+    eval(other);
+
+    ImmutableList<GraphSnapshot.Node> nodes = evaluator.takeSnapshot(key -> !key.equals(mid));
+
+    assertThat(nodes).hasSize(2);
+    assertThat(ImmutableList.of(nodes.get(0).getKey(), nodes.get(1).getKey()))
+        .containsExactly(leaf, other);
+  }
+
+  @Test
+  public void take_leavesOutNodesInError() throws Exception {
+    tester.getOrCreate(leaf).setHasError(true);
+    tester.getOrCreate(top).addDependency(leaf).setComputedValue(CONCATENATE);
+    newEvaluator();
+    eval(top);
+
+    for (GraphSnapshot.Node node : evaluator.takeSnapshot(key -> true)) {
+      assertThat(node.getKey()).isNoneOf(leaf, top);
+    }
+  }
+
+  @Test
+  public void restore_unchangedNodesAreNotRecomputed() throws Exception {
+    ImmutableList<GraphSnapshot.Node> nodes = buildChainAndTakeSnapshot();
+    newEvaluator();
+    assertThat(evaluator.canRestoreSnapshot()).isTrue();
+    assertThat(evaluator.restoreSnapshot(nodes)).isTrue();
+    assertThat(evaluator.canRestoreSnapshot()).isFalse();
+    // Would change the result if mid were recomputed.
+    tester.getOrCreate(mid).unsetComputedValue().setConstantValue(new StringValue("changed"));
+
+    assertThat(eval(top).get(top).getValue()).isEqualTo("leaf");
+  }
+
+  @Test
+  public void restore_invalidatedNodesAreRecomputedWithTheirRdeps() throws Exception {
+    ImmutableList<GraphSnapshot.Node> nodes = buildChainAndTakeSnapshot();
+    newEvaluator();
+    evaluator.restoreSnapshot(nodes);
+    tester.getOrCreate(leaf).setConstantValue(new StringValue("new leaf"));
+    differencer.invalidate(ImmutableList.of(leaf));
+
+    assertThat(eval(top).get(top).getValue()).isEqualTo("new leaf");
+  }
+
+  @Test
+  public void restore_afterEvaluation_doesNothing() throws Exception {
+    ImmutableList<GraphSnapshot.Node> nodes = buildChainAndTakeSnapshot();
+
+    assertThat(evaluator.canRestoreSnapshot()).isFalse();
+    assertThat(evaluator.restoreSnapshot(nodes)).isFalse();
+  }
+}
@@ -19,9 +19,12 @@ import static org.junit.Assert.assertThrows;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Interner;
 import com.google.devtools.build.lib.concurrent.BlazeInterners;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
@@ -31,24 +34,49 @@ import org.junit.runners.Parameterized.Parameters;
 @RunWith(Parameterized.class)
 public class ReverseDepsUtilityTest {
   private final int numElements;
+  private final boolean useIntIds;
 
-  @Parameters(name = "numElements-{0}")
+  @Parameters(name = "numElements-{0}, useIntIds-{1}")
   public static List<Object[]> parameters() {
     List<Object[]> params = new ArrayList<>();
-    for (int i = 0; i < 20; i++) {
-      params.add(new Object[] {i});
+    for (boolean useIntIds : new boolean[] {false, true}) {
+      for (int i = 0; i < 20; i++) {
+        params.add(new Object[] {i, useIntIds});
+      }
     }
     return params;
   }
 
-  public ReverseDepsUtilityTest(int numElements) {
+  public ReverseDepsUtilityTest(int numElements, boolean useIntIds) {
     this.numElements = numElements;
+    this.useIntIds = useIntIds;
+  }
+
+  private InMemoryGraphImpl graph;
+  private int numEntries;
+
+  @Before
+  public void createGraph() {
+    graph = new InMemoryGraphImpl(/*keepEdges=*/ true, new ConcurrentHashMap<>(), useIntIds);
+    // Reverse deps only have ids if they are in the graph.
+    List<SkyKey> reverseDeps = new ArrayList<>();
+    for (int i = 0; i <= numElements * 10; i++) {
+      reverseDeps.add(Key.create(i));
+    }
+    graph.createIfAbsentBatch(null, Reason.OTHER, reverseDeps);
+  }
+
+  /** Returns a new node of the graph, whose key is not among the reverse deps. */
+  private InMemoryNodeEntry newEntry() {
+    SkyKey key = Key.create(-++numEntries);
+    return (InMemoryNodeEntry)
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
   }
 
   @Test
   public void testAddAndRemove() {
     for (int numRemovals = 0; numRemovals <= numElements; numRemovals++) {
-      InMemoryNodeEntry example = new InMemoryNodeEntry();
+      InMemoryNodeEntry example = newEntry();
       for (int j = 0; j < numElements; j++) {
         ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(j)));
       }
@@ -67,7 +95,7 @@ public class ReverseDepsUtilityTest {
   @Test
   public void testAddAllAndRemove() {
     for (int numRemovals = 0; numRemovals <= numElements; numRemovals++) {
-      InMemoryNodeEntry example = new InMemoryNodeEntry();
+      InMemoryNodeEntry example = newEntry();
       List<SkyKey> toAdd = new ArrayList<>();
       for (int j = 0; j < numElements; j++) {
         toAdd.add(Key.create(j));
@@ -84,7 +112,7 @@ public class ReverseDepsUtilityTest {
 
   @Test
   public void testDuplicateCheckOnGetReverseDeps() {
-    InMemoryNodeEntry example = new InMemoryNodeEntry();
+    InMemoryNodeEntry example = newEntry();
     for (int i = 0; i < numElements; i++) {
       ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(i)));
     }
@@ -100,7 +128,7 @@ public class ReverseDepsUtilityTest {
 
   @Test
   public void doubleAddThenRemove() {
-    InMemoryNodeEntry example = new InMemoryNodeEntry();
+    InMemoryNodeEntry example = newEntry();
     SkyKey key = Key.create(0);
     ReverseDepsUtility.addReverseDeps(example, Collections.singleton(key));
     // Should only fail when we call getReverseDeps().
@@ -111,7 +139,7 @@ public class ReverseDepsUtilityTest {
 
   @Test
   public void doubleAddThenRemoveCheckedOnSize() {
-    InMemoryNodeEntry example = new InMemoryNodeEntry();
+    InMemoryNodeEntry example = newEntry();
     SkyKey fixedKey = Key.create(0);
     SkyKey key = Key.create(1);
     ReverseDepsUtility.addReverseDeps(example, ImmutableList.of(fixedKey, key));
@@ -125,7 +153,7 @@ public class ReverseDepsUtilityTest {
 
   @Test
   public void addRemoveAdd() {
-    InMemoryNodeEntry example = new InMemoryNodeEntry();
+    InMemoryNodeEntry example = newEntry();
     SkyKey fixedKey = Key.create(0);
     SkyKey key = Key.create(1);
     ReverseDepsUtility.addReverseDeps(example, ImmutableList.of(fixedKey, key));
@@ -134,6 +162,53 @@ public class ReverseDepsUtilityTest {
     assertThat(ReverseDepsUtility.getReverseDeps(example)).containsExactly(fixedKey, key);
   }
 
+  @Test
+  public void addManyThenRemoveSome() {
+    InMemoryNodeEntry example = newEntry();
+    List<SkyKey> keys = new ArrayList<>();
+    for (int i = 0; i < numElements * 10; i++) {
+      SkyKey key = Key.create(i);
+      keys.add(key);
+      ReverseDepsUtility.addReverseDeps(example, Collections.singleton(key));
+    }
+    for (int i = 0; i < numElements * 10; i += 3) {
+      ReverseDepsUtility.removeReverseDep(example, keys.get(i));
+    }
+    keys.removeIf(key -> ((Integer) key.argument()) % 3 == 0);
+
+    assertThat(ReverseDepsUtility.getReverseDeps(example)).containsExactlyElementsIn(keys);
+  }
+
+  @Test
+  public void addReverseDeps_storesIdsOfNodesInGraph() {
+    InMemoryNodeEntry example = newEntry();
+    for (int i = 0; i < numElements; i++) {
+      ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(i)));
+    }
+
+    boolean storesIds = example.getReverseDepsRawForReverseDepsUtil() instanceof int[];
+    assertThat(storesIds).isEqualTo(useIntIds && numElements > 1);
+  }
+
+  @Test
+  public void reverseDepNotInGraph_fallsBackToList() {
+    InMemoryNodeEntry example = newEntry();
+    List<SkyKey> keys = new ArrayList<>();
+    for (int i = 0; i < numElements; i++) {
+      keys.add(Key.create(i));
+      ReverseDepsUtility.addReverseDeps(example, Collections.singleton(Key.create(i)));
+    }
+    SkyKey notInGraph = Key.create(Integer.MAX_VALUE);
+    keys.add(notInGraph);
+    ReverseDepsUtility.addReverseDeps(example, Collections.singleton(notInGraph));
+
+    assertThat(example.getReverseDepsRawForReverseDepsUtil()).isNotInstanceOf(int[].class);
+    assertThat(ReverseDepsUtility.getReverseDeps(example)).containsExactlyElementsIn(keys);
+    ReverseDepsUtility.removeReverseDep(example, notInGraph);
+    keys.remove(notInGraph);
+    assertThat(ReverseDepsUtility.getReverseDeps(example)).containsExactlyElementsIn(keys);
+  }
+
   private static class Key extends AbstractSkyKey<Integer> {
     private static final Interner<Key> interner = BlazeInterners.newWeakInterner();
 
@@ -0,0 +1,85 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ShardedInMemoryGraph}. */
+@RunWith(JUnit4.class)
+public class ShardedInMemoryGraphTest extends GraphTest {
+  private ShardedInMemoryGraph graph;
+
+  @Override
+  protected Version getStartingVersion() {
+    return IntVersion.of(0);
+  }
+
+  @Override
+  protected Version getNextVersion(Version v) {
+    Preconditions.checkState(v instanceof IntVersion);
+    return ((IntVersion) v).next();
+  }
+
+  @Override
+  protected void makeGraph() {
+    graph = new ShardedInMemoryGraph(/*keepEdges=*/ true, /*numShards=*/ 8, /*expectedSize=*/ 64);
+  }
+
+  @Override
+  protected ProcessableGraph getGraph(Version version) {
+    return graph;
+  }
+
+  @Test
+  public void nodesAreSpreadOverShardsAndVisibleAsOneMap() throws Exception {
+    List<SkyKey> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add(GraphTester.skyKey("key" + i));
+    }
+    graph.createIfAbsentBatch(null, Reason.OTHER, keys);
+    graph.createIfAbsentBatch(null, Reason.OTHER, keys);
+
+    assertThat(graph.getAllValues().keySet()).containsExactlyElementsIn(keys);
+    ImmutableList<ShardedInMemoryGraph.ShardStats> stats = graph.getAndResetShardStats();
+    assertThat(stats).hasSize(8);
+    long inserts = 0;
+    for (ShardedInMemoryGraph.ShardStats shard : stats) {
+      assertThat(shard.size).isGreaterThan(0);
+      assertThat(shard.lostRaces).isEqualTo(0);
+      inserts += shard.inserts;
+    }
+    assertThat(inserts).isEqualTo(1000);
+  }
+
+  @Test
+  public void removeAndIteratorRemove() throws Exception {
+    SkyKey a = GraphTester.skyKey("a");
+    SkyKey b = GraphTester.skyKey("b");
+    graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(a, b));
+
+    graph.remove(a);
+    assertThat(graph.get(null, Reason.OTHER, a)).isNull();
+    graph.getAllValuesMutable().entrySet().removeIf(e -> e.getKey().equals(b));
+    assertThat(graph.getAllValues()).isEmpty();
+  }
+}
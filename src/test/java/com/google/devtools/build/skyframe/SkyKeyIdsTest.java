@@ -0,0 +1,89 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DeletingInvalidationState;
+import com.google.devtools.build.skyframe.QueryableGraph.Reason;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link SkyKeyIds}. */
+@RunWith(JUnit4.class)
+public class SkyKeyIdsTest {
+  private final InMemoryGraphImpl graph =
+      new InMemoryGraphImpl(/*keepEdges=*/ true, new ConcurrentHashMap<>(), /*useKeyIds=*/ true);
+
+  private int createNode(SkyKey key) {
+    NodeEntry entry =
+        graph.createIfAbsentBatch(null, Reason.OTHER, ImmutableList.of(key)).get(key);
+    return ((KeyIdInMemoryNodeEntry) entry).getKeyId();
+  }
+
+  @Test
+  public void deletedId_notReusedDuringDeletionPass() {
+    int a = createNode(skyKey("a"));
+    graph.remove(skyKey("a"));
+
+    int b = createNode(skyKey("b"));
+
+    assertThat(b).isNotEqualTo(a);
+    // Other nodes being deleted may still read it from their reverse deps.
+    assertThat(graph.getKeyIds().getKey(a)).isEqualTo(skyKey("a"));
+  }
+
+  @Test
+  public void deletedId_reusedAfterDeletionPass() {
+    int a = createNode(skyKey("a"));
+    graph.remove(skyKey("a"));
+    graph.deletionPassFinished();
+    assertThat(graph.getKeyIds().getKey(a)).isNull();
+    assertThat(graph.getKeyIds().freeIdCount()).isEqualTo(1);
+
+    int b = createNode(skyKey("b"));
+
+    assertThat(b).isEqualTo(a);
+    assertThat(graph.getKeyIds().getKey(b)).isEqualTo(skyKey("b"));
+    assertThat(graph.getKeyIds().freeIdCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void eagerDeletion_freesIdsOfDeletedNodes() throws Exception {
+    int a = createNode(skyKey("a"));
+    createNode(skyKey("b"));
+
+    EagerInvalidator.delete(
+        graph,
+        ImmutableList.of(skyKey("a")),
+        new DirtyTrackingProgressReceiver(null),
+        new DeletingInvalidationState(),
+        /*traverseGraph=*/ false);
+
+    assertThat(graph.getKeyIds().freeIdCount()).isEqualTo(1);
+    assertThat(createNode(skyKey("c"))).isEqualTo(a);
+  }
+
+  @Test
+  public void nodeCreatedTwice_takesOneId() {
+    int a = createNode(skyKey("a"));
+
+    assertThat(createNode(skyKey("a"))).isEqualTo(a);
+    assertThat(createNode(skyKey("b"))).isEqualTo(a + 1);
+  }
+}
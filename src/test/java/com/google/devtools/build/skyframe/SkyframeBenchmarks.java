@@ -0,0 +1,492 @@
+// Copyright 2020 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.sun.management.OperatingSystemMXBean;
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// We can't use JMH: it isn't available to the Bazel build, and, like Oracle's recommended setup,
+// expects to generate the harness with an annotation processor. This follows the conventions of
+// the Starlark interpreter's Benchmarks instead.
+
+/**
+ * Benchmarks of the Skyframe evaluation core on synthetic graphs.
+ *
+ * <p>Each graph shape is evaluated from scratch ({@code clean}), re-evaluated without changes
+ * ({@code null}), and re-evaluated after invalidating a fraction of its leaves ({@code
+ * incremental}). For each benchmark, the wall and CPU time, the bytes allocated by all threads, and
+ * the number of {@link SkyFunction#compute} calls per evaluation are reported, as well as the heap
+ * retained per node of the graph.
+ *
+ * <p>Run it with {@code bazel run //src/test/java/com/google/devtools/build/skyframe:
+ * SkyframeBenchmarks -- --filter diamond}. The numbers are only comparable between runs on the same
+ * machine with the same JVM flags.
+ */
+public final class SkyframeBenchmarks {
+
+  private static final String HELP =
+      "Usage: SkyframeBenchmarks [--help] [--filter regex] [--iterations count] [--warmup count]\n"
+          + "    [--threads count] [--size count] [--invalidate percentage]\n"
+          + "Evaluates synthetic Skyframe graphs of about the specified number of nodes, and\n"
+          + "reports various performance measures. The optional filter is a regular expression\n"
+          + "applied to the string SHAPE/MODE, for example 'diamond/incremental'.\n";
+
+  private static final SkyFunctionName NODE = SkyFunctionName.createHermetic("BENCHMARK_NODE");
+
+  private static final ThreadMXBean threadMX = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+  private static final OperatingSystemMXBean osMX =
+      (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+  public static void main(String[] args) throws Exception {
+    Pattern filter = null; // default: all
+    int iterations = 10;
+    int warmup = 3;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int size = 100_000;
+    double invalidatePercentage = 1;
+
+    for (int i = 0; i < args.length; i++) {
+      String flag = args[i];
+      if (flag.equals("--help")) {
+        System.out.println(HELP);
+        System.exit(0);
+      }
+      if (++i == args.length) {
+        fail("%s needs an argument", flag);
+      }
+      String value = args[i];
+      try {
+        switch (flag) {
+          case "--filter":
+            filter = Pattern.compile(value);
+            break;
+          case "--iterations":
+            iterations = Integer.parseInt(value);
+            break;
+          case "--warmup":
+            warmup = Integer.parseInt(value);
+            break;
+          case "--threads":
+            threads = Integer.parseInt(value);
+            break;
+          case "--size":
+            size = Integer.parseInt(value);
+            break;
+          case "--invalidate":
+            invalidatePercentage = Double.parseDouble(value);
+            break;
+          default:
+            fail("unknown flag: %s", flag);
+        }
+      } catch (NumberFormatException | PatternSyntaxException e) {
+        fail("for %s, got '%s': %s", flag, value, e.getMessage());
+      }
+    }
+    if (iterations <= 0 || warmup < 0 || threads <= 0 || size <= 0) {
+      fail("--iterations, --threads and --size must be positive, --warmup must not be negative");
+    }
+    if (!(0 < invalidatePercentage && invalidatePercentage <= 100)) {
+      fail("--invalidate out of range");
+    }
+
+    ImmutableList<Graph> graphs =
+        ImmutableList.of(
+            Graph.wide(size), Graph.chain(Math.min(size, 10_000)), Graph.diamond(size / 1000, 1000));
+
+    System.out.printf(
+        "%-22s %8s %10s %10s %10s %12s %12s\n",
+        "benchmark", "ops", "wall/op", "cpu/op", "alloc/op", "computes/op", "retained/node");
+    for (Graph graph : graphs) {
+      for (Mode mode : Mode.values()) {
+        String name = graph.name + "/" + mode.name().toLowerCase();
+        if (filter != null && !filter.matcher(name).find()) {
+          continue;
+        }
+        System.out.flush(); // help user identify a slow benchmark
+        Benchmark b = new Benchmark(graph, mode, threads, invalidatePercentage);
+        b.run(warmup, iterations);
+        System.out.printf(
+            "%-22s %8d %10s %10s %10s %12d %12s\n",
+            name,
+            b.count,
+            formatDuration((double) b.time / b.count),
+            formatDuration((double) b.cpu / b.count),
+            formatBytes(b.alloc / b.count),
+            b.computes / b.count,
+            b.retainedBytesPerNode < 0 ? "-" : formatBytes(b.retainedBytesPerNode));
+      }
+    }
+  }
+
+  private static void fail(String format, Object... args) {
+    System.err.printf(format, args);
+    System.err.println();
+    System.exit(1);
+  }
+
+  /** The ways a graph is evaluated. */
+  private enum Mode {
+    CLEAN,
+    NULL,
+    INCREMENTAL
+  }
+
+  /** A synthetic graph, in which node {@code i} depends on the nodes {@code deps[i]}. */
+  private static final class Graph {
+    private final String name;
+    private final ImmutableList<SkyKey>[] deps;
+    private final int[] leaves;
+
+    private Graph(String name, List<List<Integer>> deps) {
+      this.name = name;
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      ImmutableList<SkyKey>[] depKeys = new ImmutableList[deps.size()];
+      List<Integer> leaves = new ArrayList<>();
+      for (int i = 0; i < depKeys.length; i++) {
+        ImmutableList.Builder<SkyKey> builder = ImmutableList.builder();
+        for (int dep : deps.get(i)) {
+          builder.add(new NodeKey(dep));
+        }
+        depKeys[i] = builder.build();
+        if (depKeys[i].isEmpty()) {
+          leaves.add(i);
+        }
+      }
+      this.deps = depKeys;
+      this.leaves = leaves.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private int size() {
+      return deps.length;
+    }
+
+    /** The root depends directly on all other nodes. */
+    private static Graph wide(int size) {
+      List<List<Integer>> deps = new ArrayList<>(size);
+      List<Integer> rootDeps = new ArrayList<>(size - 1);
+      deps.add(rootDeps);
+      for (int i = 1; i < size; i++) {
+        rootDeps.add(i);
+        deps.add(ImmutableList.of());
+      }
+      return new Graph("wide", deps);
+    }
+
+    /** Every node depends on the next one. */
+    private static Graph chain(int size) {
+      List<List<Integer>> deps = new ArrayList<>(size);
+      for (int i = 0; i < size - 1; i++) {
+        deps.add(ImmutableList.of(i + 1));
+      }
+      deps.add(ImmutableList.of());
+      return new Graph("chain", deps);
+    }
+
+    /**
+     * The root depends on the first of {@code depth} layers of {@code width} nodes, each of which
+     * depends on two adjacent nodes of the next layer, so that every pair of layers forms diamonds.
+     */
+    private static Graph diamond(int depth, int width) {
+      depth = Math.max(depth, 1);
+      List<List<Integer>> deps = new ArrayList<>(1 + depth * width);
+      List<Integer> rootDeps = new ArrayList<>(width);
+      deps.add(rootDeps);
+      for (int w = 0; w < width; w++) {
+        rootDeps.add(1 + w);
+      }
+      for (int l = 0; l < depth; l++) {
+        for (int w = 0; w < width; w++) {
+          if (l == depth - 1) {
+            deps.add(ImmutableList.of());
+          } else {
+            int next = 1 + (l + 1) * width;
+            deps.add(ImmutableList.of(next + w, next + (w + 1) % width));
+          }
+        }
+      }
+      return new Graph("diamond", deps);
+    }
+  }
+
+  private static final class NodeKey implements SkyKey {
+    private final int id;
+
+    private NodeKey(int id) {
+      this.id = id;
+    }
+
+    @Override
+    public SkyFunctionName functionName() {
+      return NODE;
+    }
+
+    @Override
+    public Object argument() {
+      return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof NodeKey && ((NodeKey) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+      return id;
+    }
+
+    @Override
+    public String toString() {
+      return "NodeKey(" + id + ")";
+    }
+  }
+
+  private static final class NodeValue implements SkyValue {
+    private final long value;
+
+    private NodeValue(long value) {
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof NodeValue && ((NodeValue) o).value == value;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(value);
+    }
+  }
+
+  /** Runs one shape in one mode, accumulating the measurements. */
+  private static final class Benchmark {
+    private final Graph graph;
+    private final Mode mode;
+    private final int threads;
+    private final int invalidatedLeaves;
+    private final Random random = new Random(0);
+
+    /** The value of each leaf, which is changed when the leaf is invalidated. */
+    private final int[] leafValues;
+
+    private final AtomicLong computeCalls = new AtomicLong();
+    private final AtomicLong poolAllocatedBytes = new AtomicLong();
+    private final SkyFunction function;
+
+    private RecordingDifferencer differencer;
+    private BuildDriver driver;
+
+    // accumulators
+    private int count; // evaluations
+    private long time; // wall time (ns)
+    private long cpu; // CPU time (ns) of the whole process
+    private long alloc; // bytes allocated by the evaluating threads
+    private long computes; // SkyFunction.compute calls
+    private long retainedBytesPerNode = -1;
+
+    private Benchmark(Graph graph, Mode mode, int threads, double invalidatePercentage) {
+      this.graph = graph;
+      this.mode = mode;
+      this.threads = threads;
+      this.invalidatedLeaves =
+          Math.max(1, (int) (graph.leaves.length * invalidatePercentage / 100));
+      this.leafValues = new int[graph.size()];
+      this.function =
+          new SkyFunction() {
+            @Override
+            public SkyValue compute(SkyKey key, Environment env) throws InterruptedException {
+              computeCalls.incrementAndGet();
+              int id = ((NodeKey) key).id;
+              ImmutableList<SkyKey> deps = graph.deps[id];
+              if (deps.isEmpty()) {
+                return new NodeValue(leafValues[id]);
+              }
+              Map<SkyKey, SkyValue> values = env.getValues(deps);
+              if (env.valuesMissing()) {
+                return null;
+              }
+              long value = id;
+              for (SkyKey dep : deps) {
+                value = value * 31 + ((NodeValue) values.get(dep)).value;
+              }
+              return new NodeValue(value);
+            }
+
+            @Override
+            public String extractTag(SkyKey skyKey) {
+              return null;
+            }
+          };
+    }
+
+    private void run(int warmup, int iterations) throws InterruptedException {
+      if (mode != Mode.CLEAN) {
+        retainedBytesPerNode = measureRetainedBytes() / graph.size();
+      }
+      for (int i = 0; i < warmup + iterations; i++) {
+        if (mode == Mode.CLEAN) {
+          reset();
+        } else if (mode == Mode.INCREMENTAL) {
+          for (int j = 0; j < invalidatedLeaves; j++) {
+            int leaf = graph.leaves[random.nextInt(graph.leaves.length)];
+            leafValues[leaf]++;
+            differencer.invalidate(ImmutableList.of(new NodeKey(leaf)));
+          }
+        }
+        measure(/* record= */ i >= warmup);
+      }
+    }
+
+    private void reset() {
+      differencer = new SequencedRecordingDifferencer();
+      driver =
+          new SequentialBuildDriver(
+              new InMemoryMemoizingEvaluator(ImmutableMap.of(NODE, function), differencer));
+    }
+
+    /** Returns the heap retained by the graph after a clean evaluation. */
+    private long measureRetainedBytes() throws InterruptedException {
+      driver = null;
+      differencer = null;
+      long before = usedHeap();
+      reset();
+      evaluate();
+      return usedHeap() - before;
+    }
+
+    private static long usedHeap() {
+      for (int i = 0; i < 3; i++) {
+        System.gc();
+      }
+      Runtime runtime = Runtime.getRuntime();
+      return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void measure(boolean record) throws InterruptedException {
+      long calls0 = computeCalls.get();
+      long mainAlloc0 = threadMX.getThreadAllocatedBytes(Thread.currentThread().getId());
+      long cpu0 = osMX.getProcessCpuTime();
+      long time0 = System.nanoTime();
+      long poolAlloc = evaluate();
+      long time1 = System.nanoTime();
+      long cpu1 = osMX.getProcessCpuTime();
+      long mainAlloc1 = threadMX.getThreadAllocatedBytes(Thread.currentThread().getId());
+      if (record) {
+        count++;
+        time += time1 - time0;
+        cpu += cpu1 - cpu0;
+        alloc += mainAlloc1 - mainAlloc0 + poolAlloc;
+        computes += computeCalls.get() - calls0;
+      }
+    }
+
+    /**
+     * Evaluates the root, and returns the number of bytes allocated by the threads of the
+     * evaluator's pool.
+     */
+    private long evaluate() throws InterruptedException {
+      // The evaluator shuts down its pool when it's done. Each thread accounts for its allocations
+      // before it exits, so that we can wait for them.
+      Phaser exited = new Phaser(1);
+      poolAllocatedBytes.set(0);
+      EvaluationContext evaluationContext =
+          EvaluationContext.newBuilder()
+              .setKeepGoing(false)
+              .setNumThreads(threads)
+              .setEventHandler(NullEventHandler.INSTANCE)
+              .setExecutorServiceSupplier(() -> newExecutorService(exited))
+              .build();
+      EvaluationResult<SkyValue> result =
+          driver.evaluate(ImmutableList.of(new NodeKey(0)), evaluationContext);
+      if (result.hasError()) {
+        throw new IllegalStateException(result.toString());
+      }
+      exited.arriveAndAwaitAdvance();
+      return poolAllocatedBytes.get();
+    }
+
+    private ExecutorService newExecutorService(Phaser exited) {
+      return new ThreadPoolExecutor(
+          threads,
+          threads,
+          1,
+          TimeUnit.SECONDS,
+          new PriorityBlockingQueue<>(),
+          runnable -> {
+            exited.register();
+            Thread thread =
+                new Thread(
+                    () -> {
+                      try {
+                        runnable.run();
+                      } finally {
+                        poolAllocatedBytes.addAndGet(
+                            threadMX.getThreadAllocatedBytes(Thread.currentThread().getId()));
+                        exited.arriveAndDeregister();
+                      }
+                    },
+                    "skyframe-benchmark-evaluator");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+
+  private static String formatDuration(double ns) {
+    // (Similar format to Go's time.Duration.)
+    if (ns == 0) {
+      return "0s";
+    } else if (ns < 1e3) {
+      return String.format("%dns", (long) ns);
+    } else if (ns < 1e6) {
+      return String.format("%.3gµs", ns / 1e3);
+    } else if (ns < 1e9) {
+      return String.format("%.6gms", ns / 1e6);
+    } else {
+      return String.format("%.3gs", ns / 1e9);
+    }
+  }
+
+  private static String formatBytes(long bytes) {
+    if (bytes == 0) {
+      return "0B";
+    } else if (bytes < 1e3) {
+      return String.format("%dB", bytes);
+    } else if (bytes < 1e6) {
+      return String.format("%.3gKB", bytes / 1e3);
+    } else if (bytes < 1e9) {
+      return String.format("%.6gMB", bytes / 1e6);
+    } else {
+      return String.format("%.3gGB", bytes / 1e9);
+    }
+  }
+}